@@ -0,0 +1,199 @@
+package com.epchain.makedjvuplugin;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses the fastest of decoders on pages of a book. Until the choice is made, every decoder decodes
+ * a few trial pages, which it accepts, and its time per pixel is measured. Then accepted pages go to
+ * the decoder with the least time per pixel. Fallback decoder decodes pages, which no other decoder accepts,
+ * and pages, which other decoder failed to decode, such as CMYK JPEG for djpeg.
+ */
+public final class AdaptivePageDecoder implements PageDecoder
+{
+  /** Trial pages of every decoder. Several pages smooth out start of process and JIT warm-up. */
+  public static final int TRIAL_PAGES = 3;
+
+  private final PageDecoder fallback;
+  private final List<Trial> trials = new ArrayList<>();
+  private final AtomicInteger failedPages = new AtomicInteger();
+  private volatile PageDecoder chosen;
+
+  /**
+   * @param fallback decoder, which accepts every page
+   * @param candidates other decoders, which compete with fallback on pages they accept
+   */
+  public AdaptivePageDecoder( PageDecoder fallback, PageDecoder... candidates )
+  {
+    this.fallback = fallback;
+    trials.add( new Trial(fallback) );
+    for ( PageDecoder candidate : candidates ) trials.add( new Trial(candidate) );
+  }
+
+  @Override
+  public String getName()
+  {
+    List<String> names = new ArrayList<>();
+    for ( Trial trial : trials ) names.add( trial.decoder.getName() );
+    return "fastest of " + String.join( ", ", names );
+  }
+
+  @Override
+  public boolean accepts( PageImage image )
+  {
+    return fallback.accepts( image );
+  }
+
+  @Override
+  public BufferedImage decode( PageImage image ) throws IOException
+  {
+    if ( !isContested(image) ) return fallback.decode( image );
+
+    PageDecoder decoder = chosen;
+    Trial trial = null;
+    if ( decoder == null || !decoder.accepts(image) )
+    {
+      trial = nextTrial( image );
+      decoder = chosen;
+      if ( trial != null ) decoder = trial.decoder;
+      // Trial pages, which are still decoded, delay the choice
+      else if ( decoder == null || !decoder.accepts(image) ) decoder = fallback;
+    }
+
+    long start = System.nanoTime();
+    BufferedImage decoded = null;
+    try
+    {
+      decoded = decoder.decode( image );
+    }
+    catch ( IOException e )
+    {
+      if ( decoder == fallback || e instanceof InterruptedIOException ) throw e;
+      failedPages.incrementAndGet();
+    }
+    finally
+    {
+      // Failed trial page counts without pixels, so decoder, which fails every page, is never chosen
+      if ( trial != null )
+      {
+        trial.completed( System.nanoTime() - start, (decoded != null) ? (long) decoded.getWidth() * decoded.getHeight() : 0 );
+      }
+    }
+    return ( decoded != null || decoder == fallback ) ? decoded : fallback.decode( image );
+  }
+
+  /** Returns chosen decoder, or null, if trials are not completed yet. */
+  public PageDecoder getChosen()
+  {
+    return chosen;
+  }
+
+  /** Returns number of pages, which were decoded with fallback after other decoder had failed. */
+  public int getFailedPages()
+  {
+    return failedPages.get();
+  }
+
+  /** Describes measured decoders of a book for log. Returns null, if no page was contested. */
+  public String getSummary()
+  {
+    List<String> speeds = new ArrayList<>();
+    synchronized ( trials )
+    {
+      for ( Trial trial : trials )
+      {
+        if ( trial.pages == 0 ) continue;
+        speeds.add( String.format(Locale.ROOT, "%s %.1f ms/megapixel", trial.decoder.getName(), trial.millisPerMegapixel()) );
+      }
+    }
+    if ( speeds.isEmpty() ) return null;
+    PageDecoder decoder = chosen;
+    String choice = ( decoder != null ) ? "Pages decoded with " + decoder.getName() : "Pages decoded by trial decoders";
+    String failed = ( getFailedPages() > 0 )
+      ? String.format( Locale.ROOT, ", %d pages decoded with %s after failure", getFailedPages(), fallback.getName() ) : "";
+    return choice + " (" + String.join( ", ", speeds ) + ")" + failed;
+  }
+
+  /** Page is contested, if decoder other than fallback accepts it. */
+  private boolean isContested( PageImage image )
+  {
+    for ( int i = 1; i < trials.size(); ++i )
+    {
+      if ( trials.get(i).decoder.accepts(image) ) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns trial of accepting decoder with the fewest started trial pages. When all accepting decoders
+   * have completed their trial pages, the fastest one is chosen and null is returned.
+   */
+  private Trial nextTrial( PageImage image )
+  {
+    synchronized ( trials )
+    {
+      if ( chosen != null && chosen.accepts(image) ) return null;
+      Trial next = null;
+      boolean completed = true;
+      for ( Trial trial : trials )
+      {
+        if ( !trial.decoder.accepts(image) ) continue;
+        if ( trial.pages < TRIAL_PAGES ) completed = false;
+        if ( trial.started < TRIAL_PAGES && (next == null || trial.started < next.started) ) next = trial;
+      }
+      if ( next != null )
+      {
+        ++next.started;
+        return next;
+      }
+      if ( completed ) choose( image );
+      return null;
+    }
+  }
+
+  private void choose( PageImage image )
+  {
+    Trial fastest = null;
+    for ( Trial trial : trials )
+    {
+      if ( !trial.decoder.accepts(image) ) continue;
+      if ( fastest == null || trial.millisPerMegapixel() < fastest.millisPerMegapixel() ) fastest = trial;
+    }
+    chosen = fastest.decoder;
+  }
+
+  /** Trial pages of decoder. Guarded by trials list. */
+  private final class Trial
+  {
+    private final PageDecoder decoder;
+    private int started;
+    private int pages;
+    private long nanos;
+    private long pixels;
+
+    Trial( PageDecoder decoder )
+    {
+      this.decoder = decoder;
+    }
+
+    void completed( long pageNanos, long pagePixels )
+    {
+      synchronized ( trials )
+      {
+        ++pages;
+        nanos += pageNanos;
+        pixels += pagePixels;
+      }
+    }
+
+    double millisPerMegapixel()
+    {
+      return ( pixels > 0 ) ? nanos / 1e6 / (pixels / 1e6) : Double.MAX_VALUE;
+    }
+  }
+}
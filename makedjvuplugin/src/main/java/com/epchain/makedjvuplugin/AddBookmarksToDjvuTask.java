@@ -1,109 +1,253 @@
 package com.epchain.makedjvuplugin;
 
 import org.gradle.api.DefaultTask;
-import org.gradle.api.tasks.Input;
-import org.gradle.api.tasks.OutputFile;
-import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.*;
 
-import java.io.BufferedReader;
+import javax.inject.Inject;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+/**
+ * Adds bookmarks to DJVU in place. DJVU is output of ImagesToDjvu, so the task declares no outputs of its own
+ * and runs whenever it is requested. DJVU, which is recorded in outputs journal of ImagesToDjvu, is recorded
+ * again with bookmarks, so the next conversion still replaces it.
+ */
 public class AddBookmarksToDjvuTask extends DefaultTask
 {
-  private Book book;
-  private File djvu;
+  private final Property<File> workDir;
+  private final Property<File> djvu;
+  private final Property<ConcurrencyBudgetService> concurrencyBudget;
+  private final Property<File> reportDir;
+  private final Property<String> bookName;
+  private final Property<File> bookmarksFile;
+  private final ListProperty<BookVariant> bookVariants;
+  private final Property<ToolRegistryService> toolRegistry;
 
-  @Input
-  public Book getBook()
+  @Inject
+  public AddBookmarksToDjvuTask( ObjectFactory objects )
   {
-    return book;
+    workDir = objects.property( File.class );
+    djvu = objects.property( File.class );
+    concurrencyBudget = objects.property( ConcurrencyBudgetService.class );
+    reportDir = objects.property( File.class );
+    bookName = objects.property( String.class );
+    bookmarksFile = objects.property( File.class );
+    bookVariants = objects.listProperty( BookVariant.class ).empty();
+    toolRegistry = objects.property( ToolRegistryService.class );
   }
 
+  @Internal
+  public String getBookName()
+  {
+    return bookName.get();
+  }
+
+  /** Bookmarks file, fingerprinted by contents only. */
+  @InputFile
+  @PathSensitive( PathSensitivity.NONE )
+  public File getBookmarksFile()
+  {
+    return bookmarksFile.get();
+  }
+
+  /** Wires settings of book. Task keeps their providers, not the book. */
   public void setBook( Book book )
   {
-    this.book = book;
+    bookName.set( book.getName() );
+    bookmarksFile.set( book.getBookmarksFileProvider() );
+    bookVariants.set( book.getVariantsProvider() );
+  }
+
+  /** Work dir of settings, which keeps outputs journal of book. */
+  @Internal
+  public File getWorkDir()
+  {
+    return workDir.get();
   }
 
-  @Input
-  @OutputFile
+  public void setWorkDir( Provider<File> workDir )
+  {
+    this.workDir.set( workDir );
+  }
+
+  @Internal
   public File getDjvu()
   {
-    return djvu;
+    return djvu.get();
   }
 
   public void setDjvu( File djvu )
   {
-    this.djvu = djvu;
+    this.djvu.set( djvu );
+  }
+
+  public void setDjvu( Provider<File> djvu )
+  {
+    this.djvu.set( djvu );
+  }
+
+  /** DJVU of every book variant by variant name. Bookmarks are added to variants as well. */
+  @Internal
+  public Map<String, File> getVariantDjvus()
+  {
+    Map<String, File> variantDjvus = new LinkedHashMap<>();
+    for ( BookVariant variant : bookVariants.get() )
+    {
+      variantDjvus.put( variant.getName(), PageVariant.variantDjvu(getDjvu(), variant.getName()) );
+    }
+    return variantDjvus;
+  }
+
+  @Internal
+  public ToolRegistry getToolRegistry()
+  {
+    return toolRegistry.get().getRegistry();
+  }
+
+  public void setToolRegistry( Provider<ToolRegistryService> toolRegistry )
+  {
+    this.toolRegistry.set( toolRegistry );
+    usesService( toolRegistry );
+  }
+
+  @Internal
+  public ConcurrencyBudgetService getConcurrencyBudget()
+  {
+    return concurrencyBudget.get();
+  }
+
+  public void setConcurrencyBudget( Provider<ConcurrencyBudgetService> concurrencyBudget )
+  {
+    this.concurrencyBudget.set( concurrencyBudget );
+    usesService( concurrencyBudget );
+  }
+
+  /** Directory of book performance report. */
+  @Internal
+  public File getReportDir()
+  {
+    return reportDir.get();
+  }
+
+  public void setReportDir( File reportDir )
+  {
+    this.reportDir.set( reportDir );
+  }
+
+  public void setReportDir( Provider<File> reportDir )
+  {
+    this.reportDir.set( reportDir );
   }
 
   @TaskAction
   public void addBookmarksToDjvu()
   {
-    getLogger().lifecycle( "Trying to add/replace bookmarks for '" + book.getName() + "'" );
+    getLogger().lifecycle( "Trying to add/replace bookmarks for '" + getBookName() + "'" );
     checkBook();
     checkTools();
-    addBodokmarksToDjvu();
+    ConversionMetrics metrics = new ConversionMetrics();
+    try
+    {
+      addBodokmarksToDjvu( metrics );
+    }
+    finally
+    {
+      writeReport( getBookName(), metrics );
+    }
   }
 
   private void checkBook()
   {
-    if ( Utils.isDjvu(djvu) )
+    if ( Utils.isDjvu(getDjvu()) )
     {
-      getLogger().lifecycle( "DJVU file found: " + djvu.getAbsolutePath() );
+      getLogger().lifecycle( "DJVU file found: " + getDjvu().getAbsolutePath() );
     }
     else fail( "DJVU file not found" );
+    for ( File variantDjvu : getVariantDjvus().values() )
+    {
+      if ( !Utils.isDjvu(variantDjvu) ) fail( "DJVU file of variant not found: " + variantDjvu.getAbsolutePath() );
+    }
 
-    if ( book.isBookmarksFound() )
+    if ( getBookmarksFile().isFile() )
     {
-      getLogger().lifecycle( "Bookmarks file found: " + book.getBookmarksFile().getAbsolutePath() );
+      getLogger().lifecycle( "Bookmarks file found: " + getBookmarksFile().getAbsolutePath() );
     }
     else fail( "Bookmarks file not found" );
   }
 
   private void checkTools()
   {
-    String djvusedPath = Utils.executablePath( "djvused" );
+    String djvusedPath = getToolRegistry().executablePath( "djvused" );
     if ( djvusedPath == null )
     {
       getLogger().error( "Add DjvuLibre installation directory to PATH environment variable." );
       fail( "DjvuLibre djvused utility not found" );
     }
-    getLogger().lifecycle( "DjvuLibre djvused found at: " + djvusedPath );
+    getLogger().lifecycle( "DjvuLibre djvused found at: " + djvusedPath + versionSuffix("djvused") );
   }
 
-  private void addBodokmarksToDjvu()
+  private String versionSuffix( String executableName )
   {
-    // Create book from first page
-    ProcessBuilder processBuilder = new ProcessBuilder(
-      "djvused",
-      "-e", // execute command
-      "\"set-outline", book.getBookmarksFile().getAbsolutePath() + "\"",
-      "-s", // save executed command result
-      "\"" + djvu.getAbsolutePath() + "\""
-    );
+    String version = getToolRegistry().version( executableName );
+    return ( version != null ) ? " (v." + version + ")" : "";
+  }
 
-    try
+  private void addBodokmarksToDjvu( ConversionMetrics metrics )
+  {
+    List<File> djvus = new ArrayList<>();
+    djvus.add( getDjvu() );
+    djvus.addAll( getVariantDjvus().values() );
+    try ( ConversionJournal outputs = openOutputsJournal() )
     {
-      Process process = processBuilder.start();
-      BufferedReader in = new BufferedReader( new InputStreamReader(process.getErrorStream()) );
-      String line;
-      while ( (line = in.readLine()) != null )
-      {
-        getLogger().lifecycle( line );
-      }
-      process.waitFor();
-      in.close();
+      for ( File djvu : djvus ) addBookmarks( djvu, outputs, metrics );
     }
-    catch ( IOException | InterruptedException e )
+    catch ( IOException e )
     {
-      fail( "Failed to add/replace bookmarks to " + djvu.getName() );
+      fail( e.getMessage() );
     }
 
     getLogger().lifecycle( "Completed" );
   }
 
+  /** Returns outputs journal of ImagesToDjvu, or null, if book is not converted in work dir. */
+  private ConversionJournal openOutputsJournal() throws IOException
+  {
+    File journalFile = CreateDjvuFromImagesTask.outputsJournal( getWorkDir(), getBookName() );
+    return ( journalFile.isFile() ) ? CreateDjvuFromImagesTask.openOutputsJournal( journalFile ) : null;
+  }
+
+  /** DJVU written by conversion is recorded with bookmarks, other DJVU is left unrecorded. */
+  private void addBookmarks( File djvu, ConversionJournal outputs, ConversionMetrics metrics ) throws IOException
+  {
+    String header = CreateDjvuFromImagesTask.OUTPUTS_JOURNAL_HEADER;
+    boolean recorded = ( outputs != null ) && outputs.isCompleted( djvu.getName(), header, djvu );
+    Conversions.addBookmarks(
+      djvu, getBookmarksFile(), getToolRegistry(), getConcurrencyBudget().getBudget(), metrics, getLogger()::lifecycle
+    );
+    if ( recorded ) outputs.recordCompleted( djvu.getName(), header, djvu );
+  }
+
+  /** Report is written even if task failed. Report failure never fails the task. */
+  private void writeReport( String bookName, ConversionMetrics metrics )
+  {
+    try
+    {
+      PerformanceReport.update( getReportDir(), bookName, "add-bookmarks", metrics );
+    }
+    catch ( IOException e )
+    {
+      getLogger().warn( "Failed to write performance report: " + e.getMessage() );
+    }
+  }
+
   private void fail( String message )
   {
     getLogger().error( message );
@@ -0,0 +1,59 @@
+package com.epchain.makedjvuplugin;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Single page DJVU of a blank page. Page is FORM:DJVU with INFO chunk only: decoders render page
+ * without background and foreground as white, so blank page takes a few dozen bytes and no c44 process.
+ */
+public final class BlankPage
+{
+  private static final int DJVU_VERSION = 26;
+  private static final int GAMMA = 22;
+  private static final int ROTATION_NONE = 1;
+  private static final int MAX_SIZE = 0xFFFF;
+
+  private BlankPage()
+  {
+  }
+
+  /** Writes white page of given size and resolution into file. */
+  public static void write( int width, int height, int dpi, File djvuPage ) throws IOException
+  {
+    try ( OutputStream out = new BufferedOutputStream(new FileOutputStream(djvuPage)) )
+    {
+      write( width, height, dpi, out );
+    }
+  }
+
+  /** Writes white page of given size and resolution into stream. Stream is not closed. */
+  public static void write( int width, int height, int dpi, OutputStream out ) throws IOException
+  {
+    if ( width > MAX_SIZE || height > MAX_SIZE )
+    {
+      throw new IOException( "Page is too large for DJVU: " + width + "x" + height );
+    }
+
+    ByteArrayOutputStream info = new ByteArrayOutputStream( 10 );
+    DataOutputStream infoOut = new DataOutputStream( info );
+    infoOut.writeShort( width );
+    infoOut.writeShort( height );
+    infoOut.writeByte( DJVU_VERSION & 0xFF ); // Minor version
+    infoOut.writeByte( DJVU_VERSION >> 8 ); // Major version
+    infoOut.writeByte( dpi & 0xFF ); // Resolution is little-endian
+    infoOut.writeByte( dpi >> 8 );
+    infoOut.writeByte( GAMMA );
+    infoOut.writeByte( ROTATION_NONE );
+
+    DataOutputStream djvuOut = new DataOutputStream( out );
+    djvuOut.write( "AT&T".getBytes(StandardCharsets.US_ASCII) );
+    djvuOut.write( "FORM".getBytes(StandardCharsets.US_ASCII) );
+    djvuOut.writeInt( 4 + 8 + info.size() );
+    djvuOut.write( "DJVU".getBytes(StandardCharsets.US_ASCII) );
+    djvuOut.write( "INFO".getBytes(StandardCharsets.US_ASCII) );
+    djvuOut.writeInt( info.size() );
+    info.writeTo( djvuOut );
+    djvuOut.flush();
+  }
+}
@@ -1,35 +1,60 @@
 package com.epchain.makedjvuplugin;
 
+import groovy.lang.Closure;
+import org.gradle.api.Action;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+
 import java.io.File;
-import java.io.Serializable;
+import java.util.List;
 
-/** A book settings object. */
-public class Book implements Serializable
+/**
+ * A book settings object. Settings are lazy properties, so tasks are wired to their providers
+ * and never hold the book itself, which keeps tasks compatible with configuration cache.
+ */
+public class Book
 {
-  private static final long serialVersionUID = 1L;
-
   /** Book block name from Gradle script. */
   private final String name;
   /** Book file or directory with image pages. */
-  private File bookFile;
+  private final Property<File> bookFile;
   /** Optional file with DJVU bookmarks. */
-  private File bookmarksFile;
+  private final Property<File> bookmarksFile;
   /** Output DJVU book directory. If null, it will be overridden */
-  private File outDir;
+  private final Property<File> outDir;
   /** Skip book conversion. */
-  private boolean skip = false;
+  private final Property<Boolean> skip;
   /**
    * Forces {@link ConvertPdfToImagesTask} to cleanup book working directory before it starts.
    * {@link ConvertPdfToImagesTask} requires empty book working directory, because it
    * potentially may overwrite user changes to existing image pages.
    */
-  private boolean forceCleanUp = false;
+  private final Property<Boolean> forceCleanUp;
   /** Keep intermediates, except for large portable maps. */
-  private boolean keepIntermediates = false;
+  private final Property<Boolean> keepIntermediates;
+  /** Margin crop of pages: "none", "page" to crop every page by its content, "book" to crop all pages by one box. */
+  private final Property<String> cropMargins;
+  /** Size budget of book DJVU in megabytes, or 0. Decibel of pages is lowered until book fits it. */
+  private final Property<Integer> maxMegabytes;
+  private final Property<Boolean> jpgToPng;
+  /** Additional outputs, which are encoded from the same decoded pages. */
+  private final ListProperty<BookVariant> variants;
 
-  public Book( String name )
+  public Book( String name, ObjectFactory objects )
   {
     this.name = name;
+    bookFile = objects.property( File.class );
+    bookmarksFile = objects.property( File.class );
+    outDir = objects.property( File.class );
+    skip = objects.property( Boolean.class ).convention( false );
+    forceCleanUp = objects.property( Boolean.class ).convention( false );
+    keepIntermediates = objects.property( Boolean.class ).convention( false );
+    cropMargins = objects.property( String.class ).convention( "none" );
+    maxMegabytes = objects.property( Integer.class ).convention( 0 );
+    jpgToPng = objects.property( Boolean.class ).convention( false );
+    variants = objects.listProperty( BookVariant.class ).empty();
   }
 
   public String getName()
@@ -38,72 +63,175 @@ public class Book implements Serializable
   }
 
   public File getBookFile()
+  {
+    return bookFile.getOrNull();
+  }
+
+  public Provider<File> getBookFileProvider()
   {
     return bookFile;
   }
 
   public void setBookFile( File bookFile )
   {
-    this.bookFile = bookFile;
+    this.bookFile.set( bookFile );
   }
 
   public File getBookmarksFile()
+  {
+    return bookmarksFile.getOrNull();
+  }
+
+  public Provider<File> getBookmarksFileProvider()
   {
     return bookmarksFile;
   }
 
   public void setBookmarksFile( File bookmarksFile )
   {
-    this.bookmarksFile = bookmarksFile;
+    this.bookmarksFile.set( bookmarksFile );
   }
 
   public File getOutDir()
+  {
+    return outDir.getOrNull();
+  }
+
+  public Provider<File> getOutDirProvider()
   {
     return outDir;
   }
 
   public void setOutDir( File outDir )
   {
-    this.outDir = outDir;
+    this.outDir.set( outDir );
   }
 
   public boolean skip()
   {
-    return skip;
+    return skip.get();
   }
 
   public void setSkip( boolean skip )
   {
-    this.skip = skip;
+    this.skip.set( skip );
   }
 
   public boolean forceCleanUp()
+  {
+    return forceCleanUp.get();
+  }
+
+  public Provider<Boolean> getForceCleanUpProvider()
   {
     return forceCleanUp;
   }
 
   public void setForceCleanUp( boolean forceCleanUp )
   {
-    this.forceCleanUp = forceCleanUp;
+    this.forceCleanUp.set( forceCleanUp );
   }
 
   public boolean keepIntermediates()
+  {
+    return keepIntermediates.get();
+  }
+
+  public Provider<Boolean> getKeepIntermediatesProvider()
   {
     return keepIntermediates;
   }
 
   public void setKeepIntermediates( boolean keepIntermediates )
   {
-    this.keepIntermediates = keepIntermediates;
+    this.keepIntermediates.set( keepIntermediates );
+  }
+
+  public String getCropMargins()
+  {
+    return cropMargins.get();
+  }
+
+  public Provider<String> getCropMarginsProvider()
+  {
+    return cropMargins;
+  }
+
+  public void setCropMargins( String cropMargins )
+  {
+    this.cropMargins.set( cropMargins );
+  }
+
+  public int getMaxMegabytes()
+  {
+    return maxMegabytes.get();
+  }
+
+  public Provider<Integer> getMaxMegabytesProvider()
+  {
+    return maxMegabytes;
+  }
+
+  public void setMaxMegabytes( int maxMegabytes )
+  {
+    this.maxMegabytes.set( maxMegabytes );
+  }
+
+  /** Whether JPG pages are replaced with PNG by the same pass, which encodes them. */
+  public boolean jpgToPng()
+  {
+    return jpgToPng.get();
+  }
+
+  public Provider<Boolean> getJpgToPngProvider()
+  {
+    return jpgToPng;
+  }
+
+  public void setJpgToPng( boolean jpgToPng )
+  {
+    this.jpgToPng.set( jpgToPng );
+  }
+
+  public List<BookVariant> getVariants()
+  {
+    return variants.get();
+  }
+
+  public Provider<List<BookVariant>> getVariantsProvider()
+  {
+    return variants;
+  }
+
+  /** Declares additional output of the book, such as small DJVU for phones. */
+  public void variant( String name, Action<? super BookVariant> action )
+  {
+    BookVariant variant = new BookVariant( name );
+    action.execute( variant );
+    variants.add( variant );
+  }
+
+  /** Groovy DSL form of {@link #variant(String, Action)}: settings of closure are applied to variant. */
+  public void variant( String name, Closure<?> configuration )
+  {
+    variant( name, variant ->
+    {
+      Closure<?> closure = (Closure<?>) configuration.clone();
+      closure.setResolveStrategy( Closure.DELEGATE_FIRST );
+      closure.setDelegate( variant );
+      closure.call( variant );
+    } );
   }
 
   public boolean isBookmarksFound()
   {
-    return bookmarksFile != null && bookmarksFile.exists() && bookmarksFile.isFile();
+    File file = getBookmarksFile();
+    return file != null && file.exists() && file.isFile();
   }
 
   public boolean isOutDirValid()
   {
-    return outDir != null && outDir.exists() && outDir.isDirectory();
+    File dir = getOutDir();
+    return dir != null && dir.exists() && dir.isDirectory();
   }
 }
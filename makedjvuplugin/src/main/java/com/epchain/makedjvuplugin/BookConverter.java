@@ -0,0 +1,879 @@
+package com.epchain.makedjvuplugin;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Conversion pipeline of a single book, which does not depend on Gradle: PDF to images,
+ * images to single page DJVU, bundling pages and adding bookmarks. Gradle tasks and command line
+ * {@link MakeDjvu} are thin wrappers over it. Progress is reported into log consumer.
+ * Pages are encoded as fork-join tasks within pool of caller, such as library pool, or within own pool.
+ */
+public final class BookConverter
+{
+  /** Journal of encoded pages inside book work dir. */
+  public static final String PAGES_JOURNAL_NAME = "images-to-djvu.journal";
+
+  private final ToolRegistry toolRegistry;
+  private final ConcurrencyBudget budget;
+  private final Consumer<String> log;
+  private MarginCrop.Mode cropMode = MarginCrop.Mode.NONE;
+  private boolean detectBlankPages = false;
+  private boolean detectGrayPages = true;
+  private boolean detectDuplicatePages = true;
+  private boolean keepIntermediates = false;
+  private List<PageVariant> variants = Collections.emptyList();
+  private PageDecoder decoder;
+  private long maxBytes = 0;
+  private PngWriteParam pngCopies;
+  private List<String> pageWorkers = Collections.emptyList();
+
+  public BookConverter( ToolRegistry toolRegistry, ConcurrencyBudget budget, Consumer<String> log )
+  {
+    this.toolRegistry = toolRegistry;
+    this.budget = budget;
+    this.log = log;
+  }
+
+  public MarginCrop.Mode getCropMode()
+  {
+    return cropMode;
+  }
+
+  public void setCropMode( MarginCrop.Mode cropMode )
+  {
+    this.cropMode = cropMode;
+  }
+
+  public boolean getDetectBlankPages()
+  {
+    return detectBlankPages;
+  }
+
+  public void setDetectBlankPages( boolean detectBlankPages )
+  {
+    this.detectBlankPages = detectBlankPages;
+  }
+
+  public boolean getDetectGrayPages()
+  {
+    return detectGrayPages;
+  }
+
+  public void setDetectGrayPages( boolean detectGrayPages )
+  {
+    this.detectGrayPages = detectGrayPages;
+  }
+
+  /** Whether pages with the same pixels are encoded once. Otherwise pages are not fingerprinted for duplicates. */
+  public boolean getDetectDuplicatePages()
+  {
+    return detectDuplicatePages;
+  }
+
+  public void setDetectDuplicatePages( boolean detectDuplicatePages )
+  {
+    this.detectDuplicatePages = detectDuplicatePages;
+  }
+
+  /** Keep intermediates, such as EPUB, extracted images of PDF and single page DJVU files. */
+  public boolean getKeepIntermediates()
+  {
+    return keepIntermediates;
+  }
+
+  public void setKeepIntermediates( boolean keepIntermediates )
+  {
+    this.keepIntermediates = keepIntermediates;
+  }
+
+  /** Additional outputs of every book, which are encoded from the same decoded pages. */
+  public List<PageVariant> getVariants()
+  {
+    return variants;
+  }
+
+  /** Throws {@link IllegalArgumentException}, if two variants have the same name. */
+  public void setVariants( List<PageVariant> variants )
+  {
+    List<String> names = new ArrayList<>();
+    for ( PageVariant variant : variants )
+    {
+      if ( names.contains(variant.getName()) ) throw new IllegalArgumentException( "Duplicate variant name '" + variant.getName() + "'" );
+      names.add( variant.getName() );
+    }
+    this.variants = new ArrayList<>( variants );
+  }
+
+  /** Decoder of pages, or null, if decoder is selected by {@link PageDecoder#select}. */
+  public PageDecoder getDecoder()
+  {
+    return decoder;
+  }
+
+  public void setDecoder( PageDecoder decoder )
+  {
+    this.decoder = decoder;
+  }
+
+  /** Size budget of main DJVU of every book in bytes, or 0 for no budget. */
+  public long getMaxBytes()
+  {
+    return maxBytes;
+  }
+
+  /**
+   * With size budget, decibel of main output is the highest one, which fits the budget by estimate of
+   * {@link SizeBudget}, instead of default decibel {@link PageVariant#DECIBEL}.
+   */
+  public void setMaxBytes( long maxBytes )
+  {
+    if ( maxBytes < 0 ) throw new IllegalArgumentException( "Size budget must not be negative: " + maxBytes );
+    this.maxBytes = maxBytes;
+  }
+
+  /** PNG write settings of copies, which replace JPG pages of images dir, or null, if JPG pages are kept. */
+  public PngWriteParam getPngCopies()
+  {
+    return pngCopies;
+  }
+
+  /**
+   * With PNG copies, every JPG page of images dir is replaced with PNG, which is written from the page decoded
+   * for encoding, see {@link PngCopy}. It does what JPG to PNG conversion before encoding does, but every JPG is
+   * decoded once. Pages, which are reused from journal, are not decoded, so they keep their JPGs.
+   */
+  public void setPngCopies( PngWriteParam pngCopies )
+  {
+    this.pngCopies = pngCopies;
+  }
+
+  /** Addresses "host:port" of {@link PageWorker} processes, which encode pages of books. */
+  public List<String> getPageWorkers()
+  {
+    return pageWorkers;
+  }
+
+  /**
+   * With page workers, pages are encoded by worker processes of {@link PageWorkerPool}, pages, which no worker is left for,
+   * are encoded locally. Size budget trials and pages, which replace JPGs with PNG copies, are always encoded locally.
+   * Throws {@link IllegalArgumentException}, if address is not valid.
+   */
+  public void setPageWorkers( List<String> pageWorkers )
+  {
+    for ( String address : pageWorkers ) WorkerProtocol.parseAddress( address );
+    this.pageWorkers = new ArrayList<>( pageWorkers );
+  }
+
+  /** Returns true, if DjvuLibre tools are found. */
+  public static boolean djvuToolsFound( ToolRegistry toolRegistry )
+  {
+    return toolRegistry.allFound( "c44", "djvm" );
+  }
+
+  /** Returns true, if tools for PDF extraction are found. */
+  public static boolean pdfToolsFound( ToolRegistry toolRegistry )
+  {
+    return toolRegistry.allFound( "ebook-convert" );
+  }
+
+  /** Bookmarks are taken from "bookmarks.lsp" inside images dir or from "[name].lsp" next to PDF or page archive. */
+  public static File bookmarksFile( File source )
+  {
+    return ( Utils.isPdfName(source) || Utils.isArchiveName(source) )
+      ? new File( source.getParentFile(), Utils.getFilenameWithoutExtension(source.getName()) + ".lsp" )
+      : new File( source, "bookmarks.lsp" );
+  }
+
+  /**
+   * Converts PDF, images dir or page archive into DJVU with bookmarks, if bookmarks file is found.
+   * Intermediates are placed into book work dir. Existing DJVU is replaced.
+   */
+  public BookResult convert( File source, File djvu, File workDir, String bookName, ConversionMetrics metrics )
+    throws IOException
+  {
+    boolean isPdf = Utils.isPdfName( source );
+    if ( !djvuToolsFound(toolRegistry) ) throw new IOException( "DjvuLibre c44 or djvm utility not found" );
+    if ( isPdf && !pdfToolsFound(toolRegistry) ) throw new IOException( "Calibre ebook-convert utility not found" );
+    createDir( workDir, "Work dir" );
+
+    File imagesDir = source;
+    long extractMillis = 0;
+    if ( isPdf )
+    {
+      long extractStart = System.nanoTime();
+      imagesDir = new File( workDir, "images" );
+      File epub = new File( workDir, Utils.getFilenameWithoutExtension(source.getName()) + ".epub" );
+      extractImages( source, imagesDir, epub, null, metrics );
+      extractMillis = ConversionMetrics.millisSince( extractStart );
+    }
+
+    if ( Utils.isArchiveName(source) )
+    {
+      // Pages are decoded straight from archive
+      try ( PageArchive archive = PageArchive.open(source) )
+      {
+        return convertImages( archive.getPages(), djvu, workDir, bookmarksFile(source), bookName, metrics );
+      }
+    }
+    List<File> images = Conversions.listPages( imagesDir );
+    // Extracted images of PDF are intermediates, they are never replaced with PNG copies
+    BookResult result = convertImages(
+      PageImage.of(images), djvu, workDir, bookmarksFile(source), bookName, isPdf ? null : pngCopies, metrics
+    );
+    result.extractMillis = extractMillis;
+    if ( isPdf && !keepIntermediates )
+    {
+      for ( File image : images ) image.delete();
+    }
+    return result;
+  }
+
+  /**
+   * Extracts page images of PDF into images dir with EPUB of ebook-convert.
+   * With journal, EPUB and images of interrupted extraction of the same PDF are reused.
+   * Without journal, images of previous extraction are deleted first.
+   * @param journal journal of extraction, may be null
+   */
+  public void extractImages( File pdf, File imagesDir, File epub, ConversionJournal journal, ConversionMetrics metrics )
+    throws IOException
+  {
+    File[] oldImages = ( journal == null ) ? imagesDir.listFiles() : null;
+    if ( oldImages != null )
+    { // Leftovers of interrupted extraction
+      for ( File oldImage : oldImages ) oldImage.delete();
+    }
+    createDir( imagesDir, "Images dir" );
+
+    String pdfChecksum = ( journal != null ) ? ConversionJournal.checksum( pdf ) : null;
+    if ( journal != null && journal.isCompleted(epub.getName(), pdfChecksum, epub) )
+    {
+      log.accept( "EPUB reused from journal: " + epub.getAbsolutePath() );
+    }
+    else
+    {
+      Conversions.convertPdfToEpub( pdf, epub, toolRegistry, budget, metrics, log );
+      if ( journal != null ) journal.recordCompleted( epub.getName(), pdfChecksum, epub );
+    }
+    int indexLength = Conversions.extractImagesFromEpub( epub, imagesDir, journal, metrics, log );
+    Conversions.renameImages( imagesDir, indexLength, log );
+    if ( !keepIntermediates && epub.delete() ) log.accept( "Deleted " + epub.getName() );
+  }
+
+  /**
+   * Converts images into DJVU. Single page DJVU files are placed into work dir with journal of encoded pages,
+   * so pages of interrupted conversion with the same settings are reused. Existing DJVU is replaced.
+   * DJVU of every variant is created next to given DJVU, variants are bundled concurrently.
+   * @param images page files or entries of open page archive
+   * @param bookmarks bookmarks in djvused outline format. Not added, if file is not found or null
+   */
+  public BookResult convertImages(
+    List<PageImage> images, File djvu, File workDir, File bookmarks, String bookName, ConversionMetrics metrics
+  ) throws IOException
+  {
+    return convertImages( images, djvu, workDir, bookmarks, bookName, pngCopies, metrics );
+  }
+
+  private BookResult convertImages(
+    List<PageImage> images, File djvu, File workDir, File bookmarks, String bookName, PngWriteParam pngCopies,
+    ConversionMetrics metrics
+  ) throws IOException
+  {
+    if ( images.isEmpty() ) throw new IOException( "No JPG or PNG pages found" );
+    if ( !djvuToolsFound(toolRegistry) ) throw new IOException( "DjvuLibre c44 or djvm utility not found" );
+    PageConversion conversion = createPageConversion( images, workDir, bookName, metrics );
+    for ( PageVariant output : conversion.getOutputs() )
+    {
+      createDir( output.getPagesDir(workDir), "Work dir" );
+    }
+    if ( maxBytes > 0 ) conversion = fitSizeBudget( images, workDir, conversion, bookName, metrics );
+    if ( pngCopies != null )
+    {
+      checkPngCopies( images );
+      conversion = conversion.withPngCopies( pngCopies );
+    }
+
+    BookResult result = new BookResult();
+    result.pages = images.size();
+    File journalFile = new File( workDir, PAGES_JOURNAL_NAME );
+    ConversionJournal journal = ConversionJournal.open( journalFile, conversion.getDescription() );
+    boolean completed = false;
+    try
+    {
+      if ( !journal.isEmpty() ) log.accept( "Found journal of previous run, verified pages will be reused" );
+      List<File> djvuPages = encodePages( images, workDir, conversion, journal, metrics, result );
+      GrayPages grayPages = conversion.getGrayPages();
+      result.grayPages = grayPages.getDowngradedPages();
+      result.grayPagesSavedBytes = grayPages.getSavedBytes();
+      if ( result.grayPages > 0 ) log.accept( grayPages.getSummary() );
+      if ( conversion.getDecoder() instanceof AdaptivePageDecoder )
+      {
+        String decoderSummary = ( (AdaptivePageDecoder) conversion.getDecoder() ).getSummary();
+        if ( decoderSummary != null ) log.accept( decoderSummary );
+      }
+
+      long bundleStart = System.nanoTime();
+      createDir( djvu.getAbsoluteFile().getParentFile(), "Out dir" );
+      List<BundleJob> bundleJobs = new ArrayList<>();
+      for ( PageVariant output : conversion.getOutputs() )
+      {
+        bundleJobs.add( new BundleJob(output, djvuPages, djvu, bookmarks, keepPages(result), metrics) );
+      }
+      invokeAll( bundleJobs, "bundling " + djvu.getName() );
+      for ( BundleJob bundleJob : bundleJobs )
+      {
+        if ( bundleJob.error != null ) throw bundleJob.error;
+      }
+      if ( result.replacedJpgs > 0 ) log.accept( result.replacedJpgs + " JPG files replaced with PNG" );
+      if ( !keepPages(result) )
+      {
+        for ( PageVariant output : conversion.getOutputs() )
+        {
+          if ( !output.isMain() ) output.getPagesDir( workDir ).delete();
+        }
+      }
+      result.bundleMillis = ConversionMetrics.millisSince( bundleStart );
+      if ( maxBytes > 0 && djvu.length() > maxBytes )
+      {
+        log.accept( String.format( Locale.ROOT,
+          "Warning: %s is %.1f MB, which exceeds size budget of %.1f MB",
+          djvu.getName(), djvu.length() / (1024.0 * 1024), maxBytes / (1024.0 * 1024)
+        ) );
+      }
+      completed = true;
+    }
+    finally
+    {
+      // Journal is deleted, when its pages are no longer kept
+      if ( completed && !keepPages(result) ) journal.delete();
+      else journal.close();
+    }
+    return result;
+  }
+
+  /**
+   * Pages are kept with their journal, when JPG pages were replaced: the next run finds PNG pages instead,
+   * and reuses every page from journal.
+   */
+  private boolean keepPages( BookResult result )
+  {
+    return keepIntermediates || result.replacedJpgs > 0;
+  }
+
+  /** Checks all pages before any JPG is replaced, existing PNG is never overwritten. */
+  private static void checkPngCopies( List<PageImage> images ) throws IOException
+  {
+    List<String> names = new ArrayList<>( images.size() );
+    for ( PageImage image : images ) names.add( image.getName() );
+    for ( PageImage image : images )
+    {
+      if ( !PngCopy.isJpgFile(image) ) continue;
+      File png = PngCopy.pngFor( ((PageImage.FilePage) image).getFile() );
+      if ( names.contains(png.getName()) || png.exists() ) throw new IOException( png.getName() + " already exists. Aborting operation." );
+    }
+  }
+
+  /** Crop box of the whole book is found before pages are encoded. */
+  private PageConversion createPageConversion(
+    List<PageImage> images, File workDir, String bookName, ConversionMetrics metrics
+  ) throws IOException
+  {
+    // Decoder is selected per book, as speed of decoders depends on page size and type
+    PageDecoder pageDecoder = ( decoder != null ) ? decoder : PageDecoder.select( toolRegistry );
+    MarginCrop crop;
+    switch ( cropMode )
+    {
+      case PAGE:
+        crop = MarginCrop.perPage();
+        break;
+
+      case BOOK:
+        log.accept( "Scanning pages for crop box..." );
+        long scanStart = System.nanoTime();
+        crop = MarginCrop.forBook( images, new File(workDir, MarginCrop.CACHE_NAME), pages -> scanPages(pages, pageDecoder) );
+        metrics.record( ConversionMetrics.CROP_SCAN, bookName, ConversionMetrics.millisSince(scanStart), 0 );
+        log.accept( Utils.capitalize(crop.getDescription()) );
+        break;
+
+      default: crop = MarginCrop.none();
+    }
+    return new PageConversion(
+      crop, new PageFingerprints(detectBlankPages, detectDuplicatePages), new GrayPages(detectGrayPages), variants, pageDecoder
+    );
+  }
+
+  /** Scans pages for content bounds concurrently, every page within decode slot. */
+  private List<Rectangle> scanPages( List<PageImage> pages, PageDecoder pageDecoder ) throws IOException
+  {
+    AtomicBoolean failed = new AtomicBoolean();
+    List<ScanJob> scanJobs = new ArrayList<>( pages.size() );
+    for ( PageImage page : pages ) scanJobs.add( new ScanJob(page, pageDecoder, failed) );
+    invokeAll( scanJobs, "scanning pages for crop box" );
+    List<Rectangle> bounds = new ArrayList<>( scanJobs.size() );
+    for ( ScanJob scanJob : scanJobs )
+    {
+      if ( scanJob.error != null ) throw scanJob.error;
+      bounds.add( scanJob.bounds );
+    }
+    return bounds;
+  }
+
+  /**
+   * Chooses decibel of main output, which fits size budget. Trial pages are encoded concurrently
+   * within book work dir and deleted right after they are measured.
+   */
+  private PageConversion fitSizeBudget(
+    List<PageImage> images, File workDir, PageConversion conversion, String bookName, ConversionMetrics metrics
+  ) throws IOException
+  {
+    log.accept( "Searching decibel, which fits size budget..." );
+    long start = System.nanoTime();
+    File trialDir = new File( workDir, "size-trials" );
+    // Trial sizes depend on page settings only, not on variants or decibel
+    String settings = conversion.forTrials( new int[] { PageVariant.DECIBEL } ).getDescription();
+    SizeBudget.Choice choice;
+    try
+    {
+      choice = new SizeBudget( maxBytes ).choose(
+        images, settings, new File(workDir, SizeBudget.CACHE_NAME),
+        ( pages, decibels ) -> encodeTrials( pages, decibels, trialDir, conversion.forTrials(decibels) )
+      );
+    }
+    finally
+    {
+      trialDir.delete();
+    }
+    metrics.record( ConversionMetrics.SIZE_TRIAL, bookName, ConversionMetrics.millisSince(start), choice.getEstimatedBytes() );
+    log.accept( choice.getSummary() );
+    return conversion.withDecibel( choice.getDecibel() );
+  }
+
+  /** Encodes trial pages at all decibels of trial conversion. Returns page sizes per decibel. */
+  private long[][] encodeTrials( List<PageImage> pages, int[] decibels, File trialDir, PageConversion trials )
+    throws IOException
+  {
+    for ( PageVariant output : trials.getOutputs() ) createDir( output.getPagesDir(trialDir), "Trial dir" );
+    // Trial encodes are not part of conversion timings
+    ConversionMetrics trialMetrics = new ConversionMetrics();
+    AtomicBoolean failed = new AtomicBoolean();
+    List<TrialJob> trialJobs = new ArrayList<>( pages.size() );
+    for ( int i = 0; i < pages.size(); ++i )
+    {
+      // Pages are numbered, as sample pages of archive may share names with pages of images dir
+      trialJobs.add( new TrialJob(pages.get(i), new File(trialDir, "trial-" + i + ".djvu"), trials, trialMetrics, failed) );
+    }
+    try
+    {
+      invokeAll( trialJobs, "encoding trial pages" );
+      long[][] sizes = new long[ decibels.length ][ pages.size() ];
+      for ( int i = 0; i < trialJobs.size(); ++i )
+      {
+        TrialJob trialJob = trialJobs.get( i );
+        if ( trialJob.error != null ) throw trialJob.error;
+        for ( int d = 0; d < decibels.length; ++d ) sizes[d][i] = trials.getOutputs().get( d ).getPage( trialJob.djvuPage ).length();
+      }
+      return sizes;
+    }
+    finally
+    {
+      for ( TrialJob trialJob : trialJobs )
+      {
+        for ( PageVariant output : trials.getOutputs() ) output.getPage( trialJob.djvuPage ).delete();
+      }
+      for ( PageVariant output : trials.getOutputs() ) output.getPagesDir( trialDir ).delete();
+    }
+  }
+
+  /**
+   * Encodes pages concurrently, each worker acquires budget permits, so parallel books share the same limits.
+   * After the first failed page, pages, which are not started yet, are not encoded.
+   */
+  private List<File> encodePages(
+    List<PageImage> images, File workDir, PageConversion conversion, ConversionJournal journal,
+    ConversionMetrics metrics, BookResult result
+  ) throws IOException
+  {
+    log.accept( "Converting each image into single page DJVU..." );
+    AtomicBoolean failed = new AtomicBoolean();
+    List<PageJob> pageJobs = new ArrayList<>( images.size() );
+    try ( PageWorkerPool workers = connectPageWorkers(conversion) )
+    {
+      for ( PageImage image : images )
+      {
+        File djvuPage = new File( workDir, Utils.getFilenameWithoutExtension(image.getName()) + ".djvu" );
+        pageJobs.add( new PageJob(image, djvuPage, conversion, journal, workers, metrics, failed) );
+      }
+      // Remote pages wait for workers, local pages are limited by budget permits anyway
+      int parallelism = ( workers != null ) ? Math.max( budget.getMaxProcesses(), workers.getSlots() ) : budget.getMaxProcesses();
+      invokeAll( pageJobs, "converting images", parallelism );
+    }
+
+    // Collected in page order
+    List<File> djvuPages = new ArrayList<>( pageJobs.size() );
+    for ( PageJob pageJob : pageJobs )
+    {
+      if ( pageJob.error != null ) throw pageJob.error;
+      result.encodeMillis += pageJob.millis;
+      result.slowestPageMillis = Math.max( result.slowestPageMillis, pageJob.millis );
+      if ( pageJob.replacedJpg ) ++result.replacedJpgs;
+      djvuPages.add( pageJob.djvuPage );
+    }
+    log.accept( djvuPages.size() + " images converted" );
+    return djvuPages;
+  }
+
+  /** Returns pool of connected page workers, or null, if pages are encoded locally. */
+  private PageWorkerPool connectPageWorkers( PageConversion conversion )
+  {
+    if ( pageWorkers.isEmpty() ) return null;
+    if ( conversion.getPngCopies() != null )
+    {
+      log.accept( "JPG pages are replaced with PNG while encoded locally, page workers are not used" );
+      return null;
+    }
+    PageWorkerPool workers = PageWorkerPool.connect( pageWorkers, log );
+    if ( workers.getSlots() == 0 )
+    {
+      log.accept( "No page workers available, pages are encoded locally" );
+      workers.close();
+      return null;
+    }
+    log.accept( "Pages are encoded by " + workers.getWorkers() + " page workers with " + workers.getSlots() + " slots" );
+    return workers;
+  }
+
+  /** Runs jobs within pool of caller, or within own pool, which is limited by process limit of budget. */
+  private void invokeAll( List<? extends RecursiveAction> jobs, String action ) throws IOException
+  {
+    invokeAll( jobs, action, budget.getMaxProcesses() );
+  }
+
+  private void invokeAll( List<? extends RecursiveAction> jobs, String action, int parallelism ) throws IOException
+  {
+    if ( ForkJoinTask.inForkJoinPool() )
+    {
+      ForkJoinTask.invokeAll( jobs );
+      return;
+    }
+    ForkJoinPool pool = new ForkJoinPool( Math.min(jobs.size(), parallelism) );
+    try
+    {
+      pool.submit( () -> ForkJoinTask.invokeAll(jobs) ).get();
+    }
+    catch ( InterruptedException e )
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException( "Interrupted while " + action );
+    }
+    catch ( ExecutionException e )
+    {
+      if ( e.getCause() instanceof RuntimeException ) throw (RuntimeException) e.getCause();
+      throw new IOException( e.getCause() );
+    }
+    finally
+    {
+      pool.shutdownNow();
+    }
+  }
+
+  private static void createDir( File dir, String description ) throws IOException
+  {
+    if ( Utils.createDirIfNotExists(dir) == Utils.DirState.FAIL )
+    {
+      throw new IOException( description + " not found nor created: " + dir );
+    }
+  }
+
+  /** Timings and page counts of converted book. */
+  public static final class BookResult
+  {
+    private int pages;
+    private long extractMillis;
+    private long encodeMillis;
+    private long slowestPageMillis;
+    private long bundleMillis;
+    private int grayPages;
+    private long grayPagesSavedBytes;
+    private int replacedJpgs;
+
+    public int getPages()
+    {
+      return pages;
+    }
+
+    /** Time of PDF extraction, or 0 for images. */
+    public long getExtractMillis()
+    {
+      return extractMillis;
+    }
+
+    /** Total time of all pages. Pages are encoded concurrently, so it exceeds wall time. */
+    public long getEncodeMillis()
+    {
+      return encodeMillis;
+    }
+
+    public long getSlowestPageMillis()
+    {
+      return slowestPageMillis;
+    }
+
+    /** Time of bundling pages and adding bookmarks. */
+    public long getBundleMillis()
+    {
+      return bundleMillis;
+    }
+
+    /** Number of colour pages stored as grayscale. */
+    public int getGrayPages()
+    {
+      return grayPages;
+    }
+
+    public long getGrayPagesSavedBytes()
+    {
+      return grayPagesSavedBytes;
+    }
+
+    /** Number of JPG pages replaced with PNG copies. */
+    public int getReplacedJpgs()
+    {
+      return replacedJpgs;
+    }
+  }
+
+  /** Encodes a single page. Errors are kept, so other pages of the pool are not cancelled. */
+  private class PageJob extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final PageImage image;
+    private final File djvuPage;
+    private final PageConversion conversion;
+    private final ConversionJournal journal;
+    private final PageWorkerPool workers;
+    private final ConversionMetrics metrics;
+    private final AtomicBoolean failed;
+    private IOException error;
+    private long millis;
+    private boolean replacedJpg;
+
+    /** @param workers page workers, or null for local encoding */
+    PageJob(
+      PageImage image, File djvuPage, PageConversion conversion, ConversionJournal journal, PageWorkerPool workers,
+      ConversionMetrics metrics, AtomicBoolean failed
+    )
+    {
+      this.image = image;
+      this.djvuPage = djvuPage;
+      this.conversion = conversion;
+      this.journal = journal;
+      this.workers = workers;
+      this.metrics = metrics;
+      this.failed = failed;
+    }
+
+    @Override
+    protected void compute()
+    {
+      // Failed page is reported by its own job
+      if ( failed.get() ) return;
+      long start = System.nanoTime();
+      try
+      {
+        String imageChecksum = image.checksum();
+        if ( isCompleted(imageChecksum) )
+        {
+          log.accept( djvuPage.getName() + " reused from journal" );
+          return;
+        }
+        if ( workers == null || !workers.encode(image, djvuPage, conversion, metrics) )
+        {
+          Conversions.encodePage( image, djvuPage, conversion, toolRegistry, budget, metrics );
+        }
+        for ( PageVariant output : conversion.getOutputs() )
+        {
+          journal.recordCompleted( output.label(image.getName()), imageChecksum, output.getPage(djvuPage) );
+        }
+        log.accept( image.getName() + " converted to " + djvuPage.getName() );
+        if ( conversion.getPngCopies() != null && PngCopy.isJpgFile(image) ) recordPngCopy();
+      }
+      catch ( IOException e )
+      {
+        failed.set( true );
+        error = e;
+      }
+      finally
+      {
+        millis = ConversionMetrics.millisSince( start );
+      }
+    }
+
+    /** The next run finds PNG in place of JPG, so encoded page is recorded for PNG too. */
+    private void recordPngCopy() throws IOException
+    {
+      File png = PngCopy.pngFor( ((PageImage.FilePage) image).getFile() );
+      String pngChecksum = ConversionJournal.checksum( png );
+      for ( PageVariant output : conversion.getOutputs() )
+      {
+        journal.recordCompleted( output.label(png.getName()), pngChecksum, output.getPage(djvuPage) );
+      }
+      replacedJpg = true;
+      log.accept( image.getName() + " replaced with " + png.getName() );
+    }
+
+    /** Page is reused, only if every output of it is verified, as all outputs are encoded from one decoded page. */
+    private boolean isCompleted( String imageChecksum ) throws IOException
+    {
+      for ( PageVariant output : conversion.getOutputs() )
+      {
+        if ( !journal.isCompleted(output.label(image.getName()), imageChecksum, output.getPage(djvuPage)) ) return false;
+      }
+      return true;
+    }
+  }
+
+  /** Scans a page for crop box. Errors are kept, so other pages of the pool are not cancelled. */
+  private class ScanJob extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final PageImage image;
+    private final PageDecoder pageDecoder;
+    private final AtomicBoolean failed;
+    private Rectangle bounds;
+    private IOException error;
+
+    ScanJob( PageImage image, PageDecoder pageDecoder, AtomicBoolean failed )
+    {
+      this.image = image;
+      this.pageDecoder = pageDecoder;
+      this.failed = failed;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if ( failed.get() ) return;
+      try
+      {
+        ConcurrencyBudget.Permit decodeSlot = budget.acquireDecodeSlot();
+        try
+        {
+          bounds = MarginCrop.scanContentBounds( image, pageDecoder );
+        }
+        finally
+        {
+          decodeSlot.release();
+        }
+      }
+      catch ( InterruptedException e )
+      {
+        Thread.currentThread().interrupt();
+        failed.set( true );
+        error = new InterruptedIOException( "Interrupted while scanning " + image.getName() );
+      }
+      catch ( IOException e )
+      {
+        failed.set( true );
+        error = e;
+      }
+    }
+  }
+
+  /** Encodes a trial page at all decibels. Errors are kept, so other pages of the pool are not cancelled. */
+  private class TrialJob extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final PageImage image;
+    private final File djvuPage;
+    private final PageConversion trials;
+    private final ConversionMetrics metrics;
+    private final AtomicBoolean failed;
+    private IOException error;
+
+    TrialJob( PageImage image, File djvuPage, PageConversion trials, ConversionMetrics metrics, AtomicBoolean failed )
+    {
+      this.image = image;
+      this.djvuPage = djvuPage;
+      this.trials = trials;
+      this.metrics = metrics;
+      this.failed = failed;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if ( failed.get() ) return;
+      try
+      {
+        Conversions.encodePage( image, djvuPage, trials, toolRegistry, budget, metrics );
+      }
+      catch ( IOException e )
+      {
+        failed.set( true );
+        error = e;
+      }
+    }
+  }
+
+  /** Bundles pages of one output and adds bookmarks to it. Errors are kept, so other outputs are not cancelled. */
+  private class BundleJob extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final PageVariant output;
+    private final List<File> mainPages;
+    private final File mainDjvu;
+    private final File bookmarks;
+    private final boolean keepPages;
+    private final ConversionMetrics metrics;
+    private IOException error;
+
+    BundleJob(
+      PageVariant output, List<File> mainPages, File mainDjvu, File bookmarks, boolean keepPages, ConversionMetrics metrics
+    )
+    {
+      this.output = output;
+      this.mainPages = mainPages;
+      this.mainDjvu = mainDjvu;
+      this.bookmarks = bookmarks;
+      this.keepPages = keepPages;
+      this.metrics = metrics;
+    }
+
+    @Override
+    protected void compute()
+    {
+      File djvu = output.getDjvu( mainDjvu );
+      List<File> pages = new ArrayList<>( mainPages.size() );
+      for ( File mainPage : mainPages ) pages.add( output.getPage(mainPage) );
+      try
+      {
+        if ( djvu.exists() && !djvu.delete() ) throw new IOException( "Failed to delete " + djvu );
+        Conversions.bundlePages( pages, djvu, keepPages, toolRegistry, budget, metrics, log );
+        if ( bookmarks != null && Utils.isFileValid(bookmarks) )
+        {
+          Conversions.addBookmarks( djvu, bookmarks, toolRegistry, budget, metrics, log );
+        }
+      }
+      catch ( IOException e )
+      {
+        error = e;
+      }
+    }
+  }
+}
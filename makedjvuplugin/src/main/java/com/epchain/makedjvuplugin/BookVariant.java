@@ -0,0 +1,58 @@
+package com.epchain.makedjvuplugin;
+
+import java.io.Serializable;
+
+/** Settings of additional book output, such as small DJVU for phones. */
+public class BookVariant implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+
+  /** Variant name, DJVU of variant is "[book]-[name].djvu". */
+  private final String name;
+  /** Page size as fraction of decoded (and cropped) page. */
+  private double scale = 1;
+  /** Encoding quality in decibels, 16-50. */
+  private int decibel = PageVariant.DECIBEL;
+
+  public BookVariant( String name )
+  {
+    this.name = name;
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  public double getScale()
+  {
+    return scale;
+  }
+
+  public void setScale( double scale )
+  {
+    this.scale = scale;
+  }
+
+  public int getDecibel()
+  {
+    return decibel;
+  }
+
+  public void setDecibel( int decibel )
+  {
+    this.decibel = decibel;
+  }
+
+  /** Describes settings of variant as they are declared. */
+  public String getDescription()
+  {
+    return name + ": -decibel " + decibel + ", scale " + scale;
+  }
+
+  /** Returns variant of page conversion. Throws {@link IllegalArgumentException} with message for user, if settings are not valid. */
+  public PageVariant toPageVariant()
+  {
+    return new PageVariant( name, decibel, scale );
+  }
+}
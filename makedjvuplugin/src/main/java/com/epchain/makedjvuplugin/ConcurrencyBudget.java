@@ -0,0 +1,100 @@
+package com.epchain.makedjvuplugin;
+
+import java.io.File;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Budget of concurrent external tool processes, in-JVM image decodes and scratch space.
+ * Shared by all conversions of a process, so parallel conversions together never exceed configured limits.
+ * Permits are fair, waiting conversions are served in arrival order and no book starves.
+ */
+public final class ConcurrencyBudget
+{
+  private final int maxProcesses;
+  private final int maxDecodeSlots;
+  private final Semaphore processes;
+  private final Semaphore decodeSlots;
+  private final ScratchSpace scratchSpace;
+
+  /**
+   * @param maxProcesses maximum number of concurrently running external tools, such as c44 and djvm
+   * @param maxDecodeSlots maximum number of images decoded concurrently. Every decoded page is held in heap
+   * @param scratchSpace space for short-lived intermediates, such as portable maps
+   */
+  public ConcurrencyBudget( int maxProcesses, int maxDecodeSlots, ScratchSpace scratchSpace )
+  {
+    this.maxProcesses = Math.max( 1, maxProcesses );
+    this.maxDecodeSlots = Math.max( 1, maxDecodeSlots );
+    processes = new Semaphore( this.maxProcesses, true );
+    decodeSlots = new Semaphore( this.maxDecodeSlots, true );
+    this.scratchSpace = scratchSpace;
+  }
+
+  /**
+   * Creates budget with default limits of plugin settings: a process per processor, decode per two processors,
+   * and portable maps on RAM disk, if it is available.
+   */
+  public static ConcurrencyBudget withDefaults()
+  {
+    int processors = Runtime.getRuntime().availableProcessors();
+    File scratchDir = ScratchSpace.detectRamDir();
+    return new ConcurrencyBudget(
+      processors, processors / 2, new ScratchSpace(scratchDir, ScratchSpace.defaultBudget(scratchDir), 256L * 1024 * 1024)
+    );
+  }
+
+  public int getMaxProcesses()
+  {
+    return maxProcesses;
+  }
+
+  public int getMaxDecodeSlots()
+  {
+    return maxDecodeSlots;
+  }
+
+  public ScratchSpace getScratchSpace()
+  {
+    return scratchSpace;
+  }
+
+  /** Blocks until external process may be started. Permit must be released after process is finished. */
+  public Permit acquireProcess() throws InterruptedException
+  {
+    return Permit.acquire( processes );
+  }
+
+  /** Blocks until image may be decoded. Permit must be released after decoded image is no longer referenced. */
+  public Permit acquireDecodeSlot() throws InterruptedException
+  {
+    return Permit.acquire( decodeSlots );
+  }
+
+  /**
+   * Acquired permit. It is released explicitly in finally block, as it may outlive the block, which acquired it.
+   * Releasing it more than once has no effect.
+   */
+  public static final class Permit
+  {
+    private final Semaphore semaphore;
+    private boolean released = false;
+
+    private Permit( Semaphore semaphore )
+    {
+      this.semaphore = semaphore;
+    }
+
+    private static Permit acquire( Semaphore semaphore ) throws InterruptedException
+    {
+      semaphore.acquire();
+      return new Permit( semaphore );
+    }
+
+    public synchronized void release()
+    {
+      if ( released ) return;
+      released = true;
+      semaphore.release();
+    }
+  }
+}
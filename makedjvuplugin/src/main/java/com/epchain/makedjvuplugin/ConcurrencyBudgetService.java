@@ -0,0 +1,50 @@
+package com.epchain.makedjvuplugin;
+
+import org.gradle.api.provider.Property;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import java.io.File;
+
+/**
+ * Build-wide {@link ConcurrencyBudget}. Shared by all tasks of all books,
+ * so parallel tasks together never exceed configured limits.
+ */
+public abstract class ConcurrencyBudgetService implements BuildService<ConcurrencyBudgetService.Params>
+{
+  public static final String NAME = "makeDjvuConcurrencyBudget";
+
+  public interface Params extends BuildServiceParameters
+  {
+    /** Maximum number of concurrently running external tools, such as c44 and djvm. */
+    Property<Integer> getMaxProcesses();
+    /** Maximum number of images decoded concurrently. Every decoded page is held in heap. */
+    Property<Integer> getMaxDecodeSlots();
+    /** Dir for short-lived intermediates, such as portable maps. Work dirs are used, if not set. */
+    Property<File> getScratchDir();
+    /** Maximum megabytes of intermediates in scratch dir. Half of its free space, if not positive. */
+    Property<Integer> getMaxScratchMegabytes();
+    /** Free space kept in work dirs. New pages wait, while intermediates would take it. */
+    Property<Integer> getMinFreeMegabytes();
+  }
+
+  private final ConcurrencyBudget budget;
+
+  public ConcurrencyBudgetService()
+  {
+    File scratchDir = getParameters().getScratchDir().getOrNull();
+    long scratchBudget = (long) getParameters().getMaxScratchMegabytes().getOrElse( 0 ) * 1024 * 1024;
+    if ( scratchBudget <= 0 ) scratchBudget = ScratchSpace.defaultBudget( scratchDir );
+    long minFreeBytes = (long) getParameters().getMinFreeMegabytes().getOrElse( 0 ) * 1024 * 1024;
+    budget = new ConcurrencyBudget(
+      getParameters().getMaxProcesses().get(),
+      getParameters().getMaxDecodeSlots().get(),
+      new ScratchSpace( scratchDir, scratchBudget, minFreeBytes )
+    );
+  }
+
+  public ConcurrencyBudget getBudget()
+  {
+    return budget;
+  }
+}
@@ -0,0 +1,201 @@
+package com.epchain.makedjvuplugin;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Crash-safe append-only journal of completed conversion steps, kept in book work dir.
+ * Every record stores checksums of step source and step output, and is synced to disk before
+ * step is considered completed. Record is protected by its own checksum, so a record torn by crash
+ * is detected and dropped with everything after it. Re-run trusts a step only if its source
+ * is unchanged and its output still matches recorded checksum.
+ */
+public final class ConversionJournal implements Closeable
+{
+  private static final String FORMAT = "makedjvu-journal-1";
+
+  private final File file;
+  private final Map<String, Record> records = new HashMap<>();
+  private FileOutputStream out;
+
+  private ConversionJournal( File file )
+  {
+    this.file = file;
+  }
+
+  /**
+   * Opens journal for appending. Records are kept only if journal was written with the same header,
+   * which should describe everything affecting outputs, such as tool options. Otherwise journal is restarted.
+   */
+  public static ConversionJournal open( File file, String header ) throws IOException
+  {
+    ConversionJournal journal = new ConversionJournal( file );
+    long validLength = journal.read( header );
+    if ( validLength > 0 )
+    {
+      journal.out = new FileOutputStream( file, true );
+      // Drop torn tail left by crash
+      journal.out.getChannel().truncate( validLength );
+    }
+    else
+    {
+      journal.records.clear();
+      journal.out = new FileOutputStream( file, false );
+      journal.append( FORMAT + "\t" + header );
+    }
+    return journal;
+  }
+
+  /** Returns true, if journal has no completed steps. */
+  public synchronized boolean isEmpty()
+  {
+    return records.isEmpty();
+  }
+
+  /** Returns true, if step was completed from the same source and its output is unchanged. */
+  public boolean isCompleted( String step, String sourceChecksum, File output ) throws IOException
+  {
+    Record record;
+    synchronized ( this )
+    {
+      record = records.get( step );
+    }
+    return record != null
+      && record.sourceChecksum.equals( sourceChecksum )
+      && Utils.isFileValid( output )
+      && record.outputChecksum.equals( checksum(output) );
+  }
+
+  /** Records completed step. Returns after record is written to disk. */
+  public void recordCompleted( String step, String sourceChecksum, File output ) throws IOException
+  {
+    if ( step.indexOf('\t') >= 0 || step.indexOf('\n') >= 0 ) throw new IllegalArgumentException( "Bad step name: " + step );
+
+    Record record = new Record( sourceChecksum, checksum(output) );
+    synchronized ( this )
+    {
+      append( step + "\t" + record.sourceChecksum + "\t" + record.outputChecksum );
+      records.put( step, record );
+    }
+  }
+
+  /** Closes and deletes journal, when its steps are no longer needed. */
+  public synchronized void delete() throws IOException
+  {
+    close();
+    if ( file.exists() && !file.delete() ) throw new IOException( "Failed to delete " + file.getName() );
+  }
+
+  @Override
+  public synchronized void close() throws IOException
+  {
+    if ( out != null ) out.close();
+    out = null;
+  }
+
+  /** Returns size and CRC32 of file contents. */
+  public static String checksum( File file ) throws IOException
+  {
+    CRC32 crc = new CRC32();
+    byte[] buffer = new byte[ 64 * 1024 ];
+    try ( InputStream in = new FileInputStream(file) )
+    {
+      int readBytes;
+      while ( (readBytes = in.read(buffer)) > 0 )
+      {
+        crc.update( buffer, 0, readBytes );
+      }
+    }
+    return file.length() + ":" + Long.toHexString( crc.getValue() );
+  }
+
+  /** Reads records and returns length of valid journal part, or 0, if journal must be restarted. */
+  private long read( String header ) throws IOException
+  {
+    if ( !file.isFile() ) return 0;
+
+    byte[] bytes;
+    try ( InputStream in = new FileInputStream(file) )
+    {
+      bytes = readAll( in );
+    }
+
+    long validLength = 0;
+    int lineStart = 0;
+    boolean headerFound = false;
+    for ( int i = 0; i < bytes.length; ++i )
+    {
+      if ( bytes[i] != '\n' ) continue;
+
+      String line = new String( bytes, lineStart, i - lineStart, StandardCharsets.UTF_8 );
+      String content = verifiedContent( line );
+      if ( content == null ) break;
+
+      String[] fields = content.split( "\t", -1 );
+      if ( !headerFound )
+      {
+        if ( !content.equals(FORMAT + "\t" + header) ) return 0;
+        headerFound = true;
+      }
+      else if ( fields.length == 3 )
+      {
+        records.put( fields[0], new Record(fields[1], fields[2]) );
+      }
+      else break;
+
+      lineStart = i + 1;
+      validLength = lineStart;
+    }
+    return ( headerFound ) ? validLength : 0;
+  }
+
+  private void append( String content ) throws IOException
+  {
+    if ( out == null ) throw new IOException( "Journal is closed: " + file.getName() );
+    out.write( (content + "\t" + crc(content) + "\n").getBytes(StandardCharsets.UTF_8) );
+    out.getFD().sync();
+  }
+
+  /** Returns line content without checksum, or null, if line is torn or corrupted. */
+  private static String verifiedContent( String line )
+  {
+    int lastTab = line.lastIndexOf( '\t' );
+    if ( lastTab < 0 ) return null;
+    String content = line.substring( 0, lastTab );
+    return ( crc(content).equals(line.substring(lastTab + 1)) ) ? content : null;
+  }
+
+  private static String crc( String content )
+  {
+    CRC32 crc = new CRC32();
+    crc.update( content.getBytes(StandardCharsets.UTF_8) );
+    return Long.toHexString( crc.getValue() );
+  }
+
+  private static byte[] readAll( InputStream in ) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[ 8192 ];
+    int readBytes;
+    while ( (readBytes = in.read(buffer)) > 0 )
+    {
+      bytes.write( buffer, 0, readBytes );
+    }
+    return bytes.toByteArray();
+  }
+
+  private static final class Record
+  {
+    final String sourceChecksum;
+    final String outputChecksum;
+
+    Record( String sourceChecksum, String outputChecksum )
+    {
+      this.sourceChecksum = sourceChecksum;
+      this.outputChecksum = outputChecksum;
+    }
+  }
+}
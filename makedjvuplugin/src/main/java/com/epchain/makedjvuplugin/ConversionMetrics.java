@@ -0,0 +1,91 @@
+package com.epchain.makedjvuplugin;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Thread-safe collector of per-page and per-stage timings of one task run.
+ * Every sample is a stage, such as "decode" or "c44", an item, usually page name,
+ * wall time and number of processed bytes. Samples are saved as CSV, which is merged
+ * into book report by {@link PerformanceReport}.
+ */
+public final class ConversionMetrics
+{
+  public static final String DECODE = "decode";
+  public static final String PNM_WRITE = "pnm-write";
+  public static final String PNG_WRITE = "png-write";
+  public static final String C44 = "c44";
+  public static final String REMOTE_ENCODE = "remote-encode";
+  public static final String CROP = "crop";
+  public static final String CROP_SCAN = "crop-scan";
+  public static final String SIZE_TRIAL = "size-trial";
+  public static final String GRAY_PAGE = "gray-page";
+  public static final String FINGERPRINT = "fingerprint";
+  public static final String SCALE = "scale";
+  public static final String BLANK_PAGE = "blank-page";
+  public static final String DUPLICATE_PAGE = "duplicate-page";
+  public static final String DJVM = "djvm";
+  public static final String DJVUSED = "djvused";
+  public static final String EBOOK_CONVERT = "ebook-convert";
+  public static final String EPUB_EXTRACT = "epub-extract";
+  public static final String SCRATCH_WAIT = "scratch-wait";
+  public static final String HEAP_PEAK = "heap-peak";
+
+  static final String CSV_HEADER = "stage,item,millis,bytes";
+
+  private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+  private final List<String> samples = new ArrayList<>();
+  private long heapPeak;
+
+  /** Returns milliseconds passed since given {@link System#nanoTime()}. */
+  public static long millisSince( long startNanos )
+  {
+    return ( System.nanoTime() - startNanos ) / 1_000_000;
+  }
+
+  /** Records stage sample. Waiting for concurrency budget should not be included into stage time. */
+  public void record( String stage, String item, long millis, long bytes )
+  {
+    String sample = csvField( stage ) + "," + csvField( item ) + "," + millis + "," + bytes;
+    synchronized ( this )
+    {
+      samples.add( sample );
+    }
+  }
+
+  /** Samples used heap. Called when heap usage is likely to be the highest, such as right after decode. */
+  public void sampleHeap()
+  {
+    long used = MEMORY.getHeapMemoryUsage().getUsed();
+    synchronized ( this )
+    {
+      heapPeak = Math.max( heapPeak, used );
+    }
+  }
+
+  /** Writes samples as CSV. Heap peak is written as a sample of whole task. */
+  public synchronized void writeCsv( File csv, String taskName ) throws IOException
+  {
+    sampleHeap();
+    try ( Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csv), StandardCharsets.UTF_8)) )
+    {
+      out.write( CSV_HEADER + "\n" );
+      for ( String sample : samples )
+      {
+        out.write( sample + "\n" );
+      }
+      out.write( HEAP_PEAK + "," + csvField(taskName) + ",0," + heapPeak + "\n" );
+    }
+  }
+
+  private static String csvField( String value )
+  {
+    boolean needsQuotes = value.indexOf( ',' ) >= 0 || value.indexOf( '"' ) >= 0 || value.indexOf( '\n' ) >= 0;
+    return ( needsQuotes ) ? "\"" + value.replace( "\"", "\"\"" ) + "\"" : value;
+  }
+}
@@ -0,0 +1,603 @@
+package com.epchain.makedjvuplugin;
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Conversion steps shared by book tasks and library task.
+ * Steps report progress to given log and throw {@link IOException} with user-readable message on failure.
+ * External tools and image decoding are run within permits of given concurrency budget.
+ * External tools are started from paths resolved by given tool registry, not looked up in PATH again.
+ */
+public final class Conversions
+{
+  private static final Pattern TARGET_IMAGE_PATTERN = Pattern.compile( "index-[0-9]+_[0-9]+" );
+
+  /** Returns image pages of directory in natural page order. See {@link PageManifest}. */
+  public static List<File> listPages( File imagesDir ) throws IOException
+  {
+    return PageManifest.scan( imagesDir ).getFiles();
+  }
+
+  /**
+   * Encodes image into single page DJVU with c44. Page is decoded with decoder of conversion. Margins of decoded page are cropped first,
+   * and gray colour page is stored as grayscale, so its portable map is PGM.
+   * Fingerprint of decoded page is taken: near-blank pages are replaced with blank page,
+   * and page with the same pixels as another page of the book is copied from it instead of encoding.
+   * Page is decoded once for all outputs of conversion: it is scaled and encoded for every variant
+   * into {@link PageVariant#getPage} of given page.
+   * Intermediate portable maps of c44 are placed by scratch space of budget, usually on RAM disk,
+   * and deleted after encoding.
+   * If conversion has PNG copies, JPG file page is replaced with {@link PngCopy}, which is written from the decoded page
+   * concurrently with its preparation and encoding, within decode slot of the page. Copy is kept only if the page is encoded.
+   */
+  public static void encodePage(
+    PageImage image, File djvuPage, PageConversion conversion, ToolRegistry tools, ConcurrencyBudget budget,
+    ConversionMetrics metrics
+  ) throws IOException
+  {
+    PageFingerprints fingerprints = conversion.getFingerprints();
+    PageFingerprints.Claim claim = null;
+    ScratchSpace.Reservation reservation = null;
+    PngCopy pngCopy = null;
+    // Portable maps of outputs, encoded out of decode slot
+    List<File> portableMaps = new ArrayList<>();
+    try
+    {
+      ConcurrencyBudget.Permit decodeSlot = acquireDecodeSlot( budget, image );
+      try
+      {
+        long decodeStart = System.nanoTime();
+        BufferedImage decoded = conversion.getDecoder().decode( image );
+        if ( decoded == null ) throw new IOException( "Failed to decode " + image.getName() );
+        metrics.record( ConversionMetrics.DECODE, image.getName(), ConversionMetrics.millisSince(decodeStart), image.length() );
+        metrics.sampleHeap();
+        // Copy gets original decoded page, which is never changed by crop and gray pages
+        if ( conversion.getPngCopies() != null )
+        {
+          pngCopy = PngCopy.start( image, decoded, conversion.getPngCopies(), decodeSlot, metrics );
+        }
+
+        if ( conversion.getCrop().getMode() != MarginCrop.Mode.NONE )
+        {
+          long cropStart = System.nanoTime();
+          long fullSize = Utils.portableMapSize( decoded );
+          decoded = conversion.getCrop().apply( decoded );
+          long croppedBytes = fullSize - Utils.portableMapSize( decoded );
+          metrics.record( ConversionMetrics.CROP, image.getName(), ConversionMetrics.millisSince(cropStart), croppedBytes );
+        }
+
+        if ( conversion.getGrayPages().detectsGrayPages() )
+        {
+          long grayStart = System.nanoTime();
+          long colourSize = Utils.portableMapSize( decoded );
+          decoded = conversion.getGrayPages().apply( decoded );
+          long savedBytes = colourSize - Utils.portableMapSize( decoded );
+          // Only downgraded pages are recorded, so stage count and bytes are pages and bytes saved
+          if ( savedBytes > 0 )
+          {
+            metrics.record( ConversionMetrics.GRAY_PAGE, image.getName(), ConversionMetrics.millisSince(grayStart), savedBytes );
+          }
+        }
+
+        long fingerprintStart = System.nanoTime();
+        PageFingerprints.Fingerprint fingerprint = fingerprints.fingerprintFor( decoded );
+        if ( fingerprints.detectsDuplicatePages() || fingerprints.detectsBlankPages() )
+        {
+          metrics.record( ConversionMetrics.FINGERPRINT, image.getName(), ConversionMetrics.millisSince(fingerprintStart), 0 );
+        }
+
+        if ( fingerprints.isBlank(fingerprint) )
+        {
+          for ( PageVariant output : conversion.getOutputs() )
+          {
+            writeBlankPage( image, fingerprint, output, output.getPage(djvuPage), metrics );
+          }
+          if ( pngCopy != null ) pngCopy.commit();
+          return;
+        }
+        claim = fingerprints.claim( fingerprint );
+        if ( claim.isOwner() )
+        {
+          long fullSize = Utils.portableMapSize( decoded );
+          long pixels = (long) decoded.getWidth() * decoded.getHeight();
+          long portableMapsSize = 0;
+          for ( PageVariant output : conversion.getOutputs() )
+          {
+            portableMapsSize += fullSize * output.scaled( decoded.getWidth() ) * output.scaled( decoded.getHeight() ) / pixels;
+          }
+          long reserveStart = System.nanoTime();
+          reservation = budget.getScratchSpace().reserve( portableMapsSize, djvuPage.getParentFile() );
+          long reserveMillis = ConversionMetrics.millisSince( reserveStart );
+          if ( reserveMillis > 0 ) metrics.record( ConversionMetrics.SCRATCH_WAIT, image.getName(), reserveMillis, portableMapsSize );
+
+          for ( PageVariant output : conversion.getOutputs() )
+          {
+            BufferedImage page = scale( image, decoded, output, metrics );
+            long writeStart = System.nanoTime();
+            File portableMap = writePortableMap( page, reservation.getDir(), djvuPage );
+            portableMaps.add( portableMap );
+            metrics.record(
+              ConversionMetrics.PNM_WRITE, output.label(image.getName()), ConversionMetrics.millisSince(writeStart),
+              portableMap.length()
+            );
+          }
+        }
+      }
+      catch ( InterruptedException e )
+      {
+        throw interrupted( "converting " + image.getName() );
+      }
+      finally
+      {
+        // PNG copy keeps decoded page, so it releases decode slot, when it is written
+        if ( pngCopy == null ) decodeSlot.release();
+      }
+
+      // Original page is awaited out of decode slot
+      if ( !claim.isOwner() )
+      {
+        File original = claim.awaitOriginal();
+        for ( PageVariant output : conversion.getOutputs() )
+        {
+          copyDuplicatePage( image, output, output.getPage(original), output.getPage(djvuPage), metrics );
+        }
+      }
+      else
+      {
+        for ( int i = 0; i < portableMaps.size(); ++i )
+        {
+          PageVariant output = conversion.getOutputs().get( i );
+          encodePortableMap( image, portableMaps.get(i), output, output.getPage(djvuPage), tools, budget, metrics );
+        }
+      }
+      if ( pngCopy != null ) pngCopy.commit();
+      claim.completed( djvuPage );
+    }
+    catch ( IOException | RuntimeException | Error e )
+    {
+      // Duplicates of failed page must not wait for it
+      if ( claim != null ) claim.failed( e );
+      if ( pngCopy != null ) pngCopy.discard();
+      throw e;
+    }
+    finally
+    {
+      // Portable maps are huge, maps of failed page are not left behind
+      for ( File portableMap : portableMaps ) portableMap.delete();
+      if ( reservation != null ) reservation.close();
+    }
+  }
+
+  /** Scales decoded page to resolution of output. Main output gets decoded page as is. */
+  private static BufferedImage scale( PageImage image, BufferedImage decoded, PageVariant output, ConversionMetrics metrics )
+  {
+    if ( output.getScale() == 1 ) return decoded;
+    long scaleStart = System.nanoTime();
+    BufferedImage scaled = output.scale( decoded );
+    metrics.record(
+      ConversionMetrics.SCALE, output.label(image.getName()), ConversionMetrics.millisSince(scaleStart),
+      Utils.portableMapSize( scaled )
+    );
+    return scaled;
+  }
+
+  /** Writes portable map with unique name into given dir. Returns written file. */
+  private static File writePortableMap( BufferedImage decoded, File dir, File djvuPage ) throws IOException
+  {
+    String pageName = Utils.getFilenameWithoutExtension( djvuPage.getName() );
+    // Scratch dir is shared by all books, so names must be unique
+    File tmpPortableMap = Files.createTempFile( dir.toPath(), "makedjvu-" + pageName + "-", ".pm" ).toFile();
+    String portableMapExt = Utils.imageToPortableMap( decoded, tmpPortableMap, MakeDjvuPlugin.PLUGIN_NAME );
+    if ( portableMapExt == null )
+    {
+      tmpPortableMap.delete();
+      throw new IOException( "Failed to convert " + pageName + ": unsupported format." );
+    }
+
+    String baseName = Utils.getFilenameWithoutExtension( tmpPortableMap.getName() );
+    File portableMap = new File( dir, baseName + "." + portableMapExt );
+    if ( !tmpPortableMap.renameTo(portableMap) )
+    {
+      tmpPortableMap.delete();
+      throw new IOException( "Failed to rename " + tmpPortableMap.getName() + " to " + portableMap.getName() );
+    }
+    return portableMap;
+  }
+
+  private static void writeBlankPage(
+    PageImage image, PageFingerprints.Fingerprint fingerprint, PageVariant output, File djvuPage, ConversionMetrics metrics
+  ) throws IOException
+  {
+    long start = System.nanoTime();
+    File partialPage = new File( djvuPage.getParentFile(), djvuPage.getName() + ".partial" );
+    try
+    {
+      BlankPage.write( output.scaled(fingerprint.getWidth()), output.scaled(fingerprint.getHeight()), output.getDpi(), partialPage );
+      moveIntoPlace( partialPage, djvuPage );
+    }
+    finally
+    {
+      partialPage.delete();
+    }
+    metrics.record(
+      ConversionMetrics.BLANK_PAGE, output.label(image.getName()), ConversionMetrics.millisSince(start), djvuPage.length()
+    );
+  }
+
+  private static void copyDuplicatePage(
+    PageImage image, PageVariant output, File original, File djvuPage, ConversionMetrics metrics
+  ) throws IOException
+  {
+    long start = System.nanoTime();
+    File partialPage = new File( djvuPage.getParentFile(), djvuPage.getName() + ".partial" );
+    try
+    {
+      Files.copy( original.toPath(), partialPage.toPath(), StandardCopyOption.REPLACE_EXISTING );
+      moveIntoPlace( partialPage, djvuPage );
+    }
+    finally
+    {
+      partialPage.delete();
+    }
+    metrics.record(
+      ConversionMetrics.DUPLICATE_PAGE, output.label(image.getName()), ConversionMetrics.millisSince(start), djvuPage.length()
+    );
+  }
+
+  private static void encodePortableMap(
+    PageImage image, File portableMap, PageVariant output, File djvuPage, ToolRegistry tools, ConcurrencyBudget budget,
+    ConversionMetrics metrics
+  ) throws IOException
+  {
+    try
+    {
+      List<String> command = new ArrayList<>( Arrays.asList(
+        executable( tools, "c44" ),
+        "-decibel", String.valueOf( output.getDecibel() ) // max quality for main output
+      ) );
+      // Scaled pages keep physical size of main pages
+      if ( output.getScale() != 1 ) command.addAll( Arrays.asList("-dpi", String.valueOf(output.getDpi())) );
+      command.add( portableMap.getAbsolutePath() );
+      command.add( djvuPage.getAbsolutePath() );
+      long millis = runTool( budget, null, "Failed to convert " + output.label(image.getName()),
+        command.toArray( new String[0] )
+      );
+      metrics.record( ConversionMetrics.C44, output.label(image.getName()), millis, djvuPage.length() );
+    }
+    finally
+    {
+      // Portable maps are huge and unnecessary, so they are deleted
+      if ( !portableMap.delete() && portableMap.exists() )
+      {
+        throw new IOException( "Failed to delete " + portableMap.getName() );
+      }
+    }
+
+    if ( !Utils.isFileValid(djvuPage) )
+    {
+      throw new IOException( djvuPage.getName() + " not exists after conversion process" );
+    }
+  }
+
+  /**
+   * Creates multipage DJVU from single DJVU pages.
+   * DJVU is assembled in a partial file next to it and moved into place when complete,
+   * so interrupted run never leaves truncated DJVU behind.
+   * @param keepPages keep page files after DJVU is created
+   */
+  public static void bundlePages(
+    List<File> djvuPages, File djvu, boolean keepPages,
+    ToolRegistry tools, ConcurrencyBudget budget, ConversionMetrics metrics, Consumer<String> log
+  ) throws IOException
+  {
+    if ( djvuPages.isEmpty() ) return;
+    log.accept( "Creating multipage DJVU from single DJVU pages..." );
+
+    File partial = new File( djvu.getParentFile(), Utils.getFilenameWithoutExtension(djvu.getName()) + ".partial.djvu" );
+    if ( partial.exists() && !partial.delete() ) throw new IOException( "Failed to delete " + partial.getName() );
+
+    // Create book from first page
+    String djvm = executable( tools, "djvm" );
+    File firstPage = djvuPages.get( 0 );
+    long millis = runTool( budget, null, "Failed to create " + djvu.getName() + " from " + firstPage.getName(),
+      djvm,
+      "-c", // create
+      partial.getAbsolutePath(),
+      firstPage.getAbsolutePath()
+    );
+    metrics.record( ConversionMetrics.DJVM, firstPage.getName(), millis, firstPage.length() );
+    log.accept( "Created book with first page" );
+
+    // Append rest pages to main book file
+    for ( File djvuPage : djvuPages.subList(1, djvuPages.size()) )
+    {
+      millis = runTool( budget, null, "Failed to append " + djvuPage.getName() + " to " + djvu.getName(),
+        djvm,
+        "-i", // insert
+        partial.getAbsolutePath(),
+        djvuPage.getAbsolutePath()
+      );
+      metrics.record( ConversionMetrics.DJVM, djvuPage.getName(), millis, djvuPage.length() );
+      log.accept( djvuPage.getName() + " appended to " + djvu.getName() );
+    }
+
+    moveIntoPlace( partial, djvu );
+    log.accept( "Created " + djvu.getName() );
+    if ( keepPages ) return;
+    for ( File djvuPage : djvuPages )
+    {
+      if ( djvuPage.delete() ) log.accept( "Deleted " + djvuPage.getName() );
+    }
+  }
+
+  /** Replaces target with complete file. Move is atomic, if file system supports it. */
+  public static void moveIntoPlace( File complete, File target ) throws IOException
+  {
+    try
+    {
+      Files.move( complete.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+    catch ( AtomicMoveNotSupportedException e )
+    {
+      Files.move( complete.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING );
+    }
+  }
+
+  /** Adds or replaces DJVU bookmarks with djvused. */
+  public static void addBookmarks(
+    File djvu, File bookmarks, ToolRegistry tools, ConcurrencyBudget budget, ConversionMetrics metrics, Consumer<String> log
+  ) throws IOException
+  {
+    long millis = runTool( budget, log, "Failed to add/replace bookmarks to " + djvu.getName(),
+      executable( tools, "djvused" ),
+      "-e", // execute command
+      "set-outline \"" + bookmarks.getAbsolutePath() + "\"",
+      "-s", // save executed command result
+      djvu.getAbsolutePath()
+    );
+    metrics.record( ConversionMetrics.DJVUSED, djvu.getName(), millis, djvu.length() );
+  }
+
+  /** Converts PDF into EPUB with Calibre ebook-convert. */
+  public static void convertPdfToEpub(
+    File pdf, File epub, ToolRegistry tools, ConcurrencyBudget budget, ConversionMetrics metrics, Consumer<String> log
+  ) throws IOException
+  {
+    log.accept( "Generating EPUB from " + pdf.getName() + "..." );
+    long millis = runTool( budget, log, "Failed to run ebook-convert",
+      executable( tools, "ebook-convert" ),
+      pdf.getAbsolutePath(),
+      epub.getAbsolutePath(),
+      "--input-profile", "default",
+      "--output-profile", "tablet"
+    );
+    metrics.record( ConversionMetrics.EBOOK_CONVERT, pdf.getName(), millis, pdf.length() );
+    log.accept( "EPUB successfully generated: " + epub.getAbsolutePath() );
+  }
+
+  /**
+   * Extracts page images from EPUB, generated by Calibre.
+   * @return maximum length of page index in image names, to be passed to {@link #renameImages}
+   */
+  public static int extractImagesFromEpub(
+    File epub, File outDir, ConversionMetrics metrics, Consumer<String> log
+  ) throws IOException
+  {
+    return extractImagesFromEpub( epub, outDir, null, metrics, log );
+  }
+
+  /**
+   * Extracts page images from EPUB, generated by Calibre.
+   * Images, which are recorded in journal as extracted from the same EPUB, are not extracted again.
+   * Newly extracted images are recorded in journal.
+   * @param journal journal of extracted images, may be null
+   * @return maximum length of page index in image names, to be passed to {@link #renameImages}
+   */
+  public static int extractImagesFromEpub(
+    File epub, File outDir, ConversionJournal journal, ConversionMetrics metrics, Consumer<String> log
+  ) throws IOException
+  {
+    log.accept( "Extracting image files..." );
+    long extractStart = System.nanoTime();
+    long bytesExtracted = 0;
+    String epubChecksum = ( journal != null ) ? ConversionJournal.checksum( epub ) : null;
+
+    int maxIndexLength = -1;
+    int filesExtracted = 0;
+    try ( ZipInputStream zipIn = new ZipInputStream(new BufferedInputStream(new FileInputStream(epub))) )
+    {
+      ZipEntry entry;
+      while ( (entry = zipIn.getNextEntry()) != null )
+      {
+        if ( !entry.isDirectory() && isTargetImage(entry.getName()) )
+        {
+          // Saving index for further pages renaming
+          String strIndex = getStrIndex( entry.getName() );
+          maxIndexLength = Math.max( maxIndexLength, strIndex.length() );
+
+          File extractedImage = new File( outDir, entry.getName() );
+          if ( journal != null && journal.isCompleted(entry.getName(), epubChecksum, extractedImage) )
+          {
+            log.accept( "Reused file: " + extractedImage.getName() );
+            ++filesExtracted;
+            continue;
+          }
+
+          // Extracting image file
+          int bufferSize = 2048;
+          try ( BufferedOutputStream fileOut =
+                  new BufferedOutputStream(new FileOutputStream(extractedImage), bufferSize) )
+          {
+            byte[] buffer = new byte[ bufferSize ];
+            int readBytes;
+            while ( (readBytes = zipIn.read(buffer)) > 0 )
+            {
+              fileOut.write( buffer, 0, readBytes );
+            }
+          }
+
+          bytesExtracted += extractedImage.length();
+          if ( journal != null ) journal.recordCompleted( entry.getName(), epubChecksum, extractedImage );
+          log.accept( "Extracted file: " + extractedImage.getName() );
+          ++filesExtracted;
+        }
+      }
+    }
+    catch ( IOException e )
+    {
+      throw new IOException( "Failed to extract images from EPUB: " + e.getMessage(), e );
+    }
+
+    metrics.record( ConversionMetrics.EPUB_EXTRACT, epub.getName(), ConversionMetrics.millisSince(extractStart), bytesExtracted );
+    log.accept( "Extracted " + filesExtracted + " images" );
+    return maxIndexLength;
+  }
+
+  /** Renames extracted images into "page-[index].[ext]", where indexes are padded with zeroes. */
+  public static void renameImages( File imagesDir, final int indexLength, Consumer<String> log ) throws IOException
+  {
+    log.accept( "Renaming image files..." );
+    log.accept( "Maximum index length of files: " + indexLength );
+
+    // Only names are needed, so files are not stat'ed
+    List<File> images = new ArrayList<>();
+    try ( DirectoryStream<Path> entries = Files.newDirectoryStream(imagesDir.toPath(), entry -> isTargetImage(entry.getFileName().toString())) )
+    {
+      for ( Path entry : entries ) images.add( new File(imagesDir, entry.getFileName().toString()) );
+    }
+    catch ( IOException e )
+    {
+      throw new IOException( "Failed to get image file list for renaming: " + e.getMessage(), e );
+    }
+
+    int filesRenamed = 0;
+    for ( File image : images )
+    {
+      String fileName = image.getName();
+      String strIndex = getStrIndex( fileName );
+      StringBuilder newStrIndex = new StringBuilder( indexLength );
+      // Building new index with preceding zeroes
+      for ( int i = 0; i < (indexLength - strIndex.length()); ++i )
+      {
+        newStrIndex.append( '0' );
+      }
+      newStrIndex.append( strIndex );
+
+      String newFilename = "page-" + newStrIndex + "." + Utils.getFileExtension( fileName );
+      File renamedFile = new File( image.getParentFile(), newFilename );
+      // Page may be left by interrupted run
+      renamedFile.delete();
+      if ( image.renameTo(renamedFile) )
+      {
+        log.accept( "Renamed " + fileName + " to " + renamedFile.getName() );
+        ++filesRenamed;
+      }
+    }
+
+    log.accept( "Files renamed: " + filesRenamed );
+  }
+
+  /**
+   * Runs external tool within process permit and waits for it.
+   * @param output receives tool output lines, may be null to discard output
+   * @param failMessage message of exception, if tool cannot be run or exits with error
+   * @return tool wall time in milliseconds, not including waiting for permit
+   */
+  public static long runTool(
+    ConcurrencyBudget budget, Consumer<String> output, String failMessage, String... command
+  ) throws IOException
+  {
+    ProcessBuilder processBuilder = new ProcessBuilder( command ).redirectErrorStream( true );
+    int exitCode;
+    long millis;
+    try
+    {
+      ConcurrencyBudget.Permit permit = budget.acquireProcess();
+      try
+      {
+        long start = System.nanoTime();
+        Process process = processBuilder.start();
+        process.getOutputStream().close();
+        try ( BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream())) )
+        {
+          String line;
+          while ( (line = in.readLine()) != null )
+          {
+            if ( output != null ) output.accept( line );
+          }
+        }
+        exitCode = process.waitFor();
+        millis = ConversionMetrics.millisSince( start );
+      }
+      finally
+      {
+        permit.release();
+      }
+    }
+    catch ( InterruptedException e )
+    {
+      throw interrupted( "running " + new File(command[0]).getName() );
+    }
+    catch ( IOException e )
+    {
+      throw new IOException( failMessage + ": " + e.getMessage(), e );
+    }
+
+    if ( exitCode != 0 )
+    {
+      throw new IOException( failMessage + ": " + new File(command[0]).getName() + " exited with code " + exitCode );
+    }
+    return millis;
+  }
+
+  /** Returns path of tool resolved by registry. */
+  private static String executable( ToolRegistry tools, String executableName ) throws IOException
+  {
+    String path = tools.executablePath( executableName );
+    if ( path == null ) throw new IOException( executableName + " utility not found" );
+    return path;
+  }
+
+  private static ConcurrencyBudget.Permit acquireDecodeSlot( ConcurrencyBudget budget, PageImage image ) throws IOException
+  {
+    try
+    {
+      return budget.acquireDecodeSlot();
+    }
+    catch ( InterruptedException e )
+    {
+      throw interrupted( "converting " + image.getName() );
+    }
+  }
+
+  private static InterruptedIOException interrupted( String action )
+  {
+    Thread.currentThread().interrupt();
+    return new InterruptedIOException( "Interrupted while " + action );
+  }
+
+  private static boolean isTargetImage( String fileName )
+  {
+    return TARGET_IMAGE_PATTERN.matcher( fileName ).find();
+  }
+
+  private static String getStrIndex( String fileName )
+  {
+    int startIndex = "index-".length();
+    int endIndex = fileName.indexOf( "_" );
+    return fileName.substring( startIndex, endIndex );
+  }
+}
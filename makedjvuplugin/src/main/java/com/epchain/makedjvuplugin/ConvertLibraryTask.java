@@ -0,0 +1,727 @@
+package com.epchain.makedjvuplugin;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.specs.Specs;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.tasks.options.Option;
+
+import javax.inject.Inject;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Converts every book of a library directory tree into DJVU.
+ * Every PDF file, CBZ/ZIP page archive and every directory with JPG/PNG pages is a book.
+ * Pages of all books are scheduled onto one work-stealing pool, so workers, which finished
+ * small books, take pages of remaining huge books instead of staying idle.
+ * Results and timings of every book are written into library manifest.
+ * With --watch option task keeps running after that and converts books, which are dropped into library,
+ * so found tools, concurrency budget and warm JVM are reused for every book.
+ */
+public class ConvertLibraryTask extends DefaultTask
+{
+  public static final String MANIFEST_NAME = "library-manifest.json";
+  /** Watch loop wakes up this often to collect finished books. */
+  private static final long WATCH_POLL_MILLIS = 1000;
+
+  private final Property<File> rootDir;
+  private final Property<File> outDir;
+  private final Property<File> workDir;
+  private final ListProperty<String> includes;
+  private final ListProperty<String> excludes;
+  private final Property<Boolean> forceCleanUp;
+  private final Property<Boolean> keepIntermediates;
+  private final Property<ConcurrencyBudgetService> concurrencyBudget;
+  private final Property<Boolean> detectBlankPages;
+  private final Property<Boolean> detectGrayPages;
+  private final Property<Boolean> detectDuplicatePages;
+  private final Property<String> cropMargins;
+  private final Property<Integer> maxMegabytes;
+  private final Property<Boolean> watch;
+  private final Property<Integer> watchSettleSeconds;
+  private final Map<File, LibraryBook> djvus = new HashMap<>();
+  private final Property<ToolRegistryService> toolRegistry;
+  private BookConverter converter;
+
+  @Inject
+  public ConvertLibraryTask( ObjectFactory objects )
+  {
+    rootDir = objects.property( File.class );
+    outDir = objects.property( File.class );
+    workDir = objects.property( File.class );
+    includes = objects.listProperty( String.class );
+    excludes = objects.listProperty( String.class );
+    forceCleanUp = objects.property( Boolean.class );
+    keepIntermediates = objects.property( Boolean.class );
+    concurrencyBudget = objects.property( ConcurrencyBudgetService.class );
+    detectBlankPages = objects.property( Boolean.class );
+    detectBlankPages.convention( false );
+    detectGrayPages = objects.property( Boolean.class );
+    detectGrayPages.convention( true );
+    detectDuplicatePages = objects.property( Boolean.class );
+    detectDuplicatePages.convention( true );
+    cropMargins = objects.property( String.class );
+    cropMargins.convention( "none" );
+    maxMegabytes = objects.property( Integer.class );
+    maxMegabytes.convention( 0 );
+    watch = objects.property( Boolean.class );
+    watch.convention( false );
+    watchSettleSeconds = objects.property( Integer.class );
+    watchSettleSeconds.convention( 10 );
+    toolRegistry = objects.property( ToolRegistryService.class );
+    // Library contents are discovered at execution time, so task is never up-to-date
+    getOutputs().upToDateWhen( Specs.satisfyNone() );
+  }
+
+  @Internal
+  public File getRootDir()
+  {
+    return rootDir.get();
+  }
+
+  public void setRootDir( Provider<File> rootDir )
+  {
+    this.rootDir.set( rootDir );
+  }
+
+  @Internal
+  public File getOutDir()
+  {
+    return outDir.get();
+  }
+
+  public void setOutDir( Provider<File> outDir )
+  {
+    this.outDir.set( outDir );
+  }
+
+  @Internal
+  public File getWorkDir()
+  {
+    return workDir.get();
+  }
+
+  public void setWorkDir( Provider<File> workDir )
+  {
+    this.workDir.set( workDir );
+  }
+
+  @Internal
+  public List<String> getIncludes()
+  {
+    return includes.get();
+  }
+
+  public void setIncludes( Provider<List<String>> includes )
+  {
+    this.includes.set( includes );
+  }
+
+  @Internal
+  public List<String> getExcludes()
+  {
+    return excludes.get();
+  }
+
+  public void setExcludes( Provider<List<String>> excludes )
+  {
+    this.excludes.set( excludes );
+  }
+
+  @Internal
+  public boolean getForceCleanUp()
+  {
+    return forceCleanUp.get();
+  }
+
+  public void setForceCleanUp( Provider<Boolean> forceCleanUp )
+  {
+    this.forceCleanUp.set( forceCleanUp );
+  }
+
+  @Internal
+  public boolean getKeepIntermediates()
+  {
+    return keepIntermediates.get();
+  }
+
+  public void setKeepIntermediates( Provider<Boolean> keepIntermediates )
+  {
+    this.keepIntermediates.set( keepIntermediates );
+  }
+
+  /** Whether near-blank pages are replaced with blank pages. */
+  @Internal
+  public boolean getDetectBlankPages()
+  {
+    return detectBlankPages.get();
+  }
+
+  public void setDetectBlankPages( Provider<Boolean> detectBlankPages )
+  {
+    this.detectBlankPages.set( detectBlankPages );
+  }
+
+  /** Whether colour pages, which are effectively gray, are stored as grayscale. */
+  @Internal
+  public boolean getDetectGrayPages()
+  {
+    return detectGrayPages.get();
+  }
+
+  public void setDetectGrayPages( Provider<Boolean> detectGrayPages )
+  {
+    this.detectGrayPages.set( detectGrayPages );
+  }
+
+  /** Whether pages with the same pixels are encoded once. */
+  @Internal
+  public boolean getDetectDuplicatePages()
+  {
+    return detectDuplicatePages.get();
+  }
+
+  public void setDetectDuplicatePages( Provider<Boolean> detectDuplicatePages )
+  {
+    this.detectDuplicatePages.set( detectDuplicatePages );
+  }
+
+  /** Margin crop of pages of every book: "none", "page" or "book". */
+  @Internal
+  public String getCropMargins()
+  {
+    return cropMargins.get();
+  }
+
+  public void setCropMargins( Provider<String> cropMargins )
+  {
+    this.cropMargins.set( cropMargins );
+  }
+
+  /** Size budget of every book DJVU in megabytes, or 0 for default decibel. */
+  @Internal
+  public int getMaxMegabytes()
+  {
+    return maxMegabytes.get();
+  }
+
+  public void setMaxMegabytes( Provider<Integer> maxMegabytes )
+  {
+    this.maxMegabytes.set( maxMegabytes );
+  }
+
+  /** Whether task keeps watching library for new books, until build is cancelled. */
+  @Internal
+  public boolean getWatch()
+  {
+    return watch.get();
+  }
+
+  @Option( option = "watch", description = "Keep watching library and convert new books, until build is cancelled." )
+  public void setWatch( boolean watch )
+  {
+    this.watch.set( watch );
+  }
+
+  /** In watch mode, new book is converted after it has no changes for this time. */
+  @Internal
+  public int getWatchSettleSeconds()
+  {
+    return watchSettleSeconds.get();
+  }
+
+  public void setWatchSettleSeconds( Provider<Integer> watchSettleSeconds )
+  {
+    this.watchSettleSeconds.set( watchSettleSeconds );
+  }
+
+  @Internal
+  public ToolRegistry getToolRegistry()
+  {
+    return toolRegistry.get().getRegistry();
+  }
+
+  public void setToolRegistry( Provider<ToolRegistryService> toolRegistry )
+  {
+    this.toolRegistry.set( toolRegistry );
+    usesService( toolRegistry );
+  }
+
+  @Internal
+  public ConcurrencyBudgetService getConcurrencyBudget()
+  {
+    return concurrencyBudget.get();
+  }
+
+  public void setConcurrencyBudget( Provider<ConcurrencyBudgetService> concurrencyBudget )
+  {
+    this.concurrencyBudget.set( concurrencyBudget );
+    usesService( concurrencyBudget );
+  }
+
+  @TaskAction
+  public void convertLibrary()
+  {
+    getLogger().lifecycle( "Beginning library conversion: " + getRootDir().getAbsolutePath() );
+    // Tool output of books is logged at info level, so logs of parallel books do not interleave
+    converter = new BookConverter( getToolRegistry(), getConcurrencyBudget().getBudget(), getLogger()::info );
+    converter.setDetectBlankPages( getDetectBlankPages() );
+    converter.setDetectGrayPages( getDetectGrayPages() );
+    converter.setDetectDuplicatePages( getDetectDuplicatePages() );
+    converter.setKeepIntermediates( getKeepIntermediates() );
+    try
+    {
+      converter.setCropMode( MarginCrop.modeFromName(getCropMargins()) );
+      converter.setMaxBytes( (long) getMaxMegabytes() * 1024 * 1024 );
+    }
+    catch ( IllegalArgumentException e )
+    {
+      fail( e.getMessage() );
+    }
+    checkTools();
+    Path root = getRootDir().toPath().toAbsolutePath().normalize();
+    if ( !Files.isDirectory(root) ) fail( "Library root dir not found: " + root );
+    // Watching starts before discovery, so books dropped during initial conversion are not missed
+    SpoolWatcher watcher = ( getWatch() ) ? openWatcher( root ) : null;
+    List<LibraryBook> books = discoverBooks( root );
+    getLogger().lifecycle( "Found " + books.size() + " books" );
+
+    long start = System.nanoTime();
+    ForkJoinPool pool = new ForkJoinPool( getConcurrencyBudget().getBudget().getMaxProcesses() );
+    try
+    {
+      List<BookJob> bookJobs = new ArrayList<>( books.size() );
+      for ( LibraryBook book : books ) bookJobs.add( new BookJob(book) );
+      pool.invoke( new LibraryJob(bookJobs) );
+      long wallMillis = ( System.nanoTime() - start ) / 1_000_000;
+      int failed = logSummary( books, wallMillis, writeManifest(books, wallMillis) );
+      if ( watcher != null ) watchLibrary( watcher, pool, books, start );
+      else if ( failed > 0 ) fail( failed + " of " + books.size() + " books failed. See manifest for details" );
+    }
+    finally
+    {
+      pool.shutdown();
+      if ( watcher != null ) closeWatcher( watcher );
+    }
+  }
+
+  /** Logs book counts. Returns number of failed books. */
+  private int logSummary( List<LibraryBook> books, long wallMillis, File manifest )
+  {
+    int converted = 0;
+    int skipped = 0;
+    int failed = 0;
+    for ( LibraryBook book : books )
+    {
+      switch ( book.status )
+      {
+        case CONVERTED: ++converted; break;
+        case SKIPPED: ++skipped; break;
+        default: ++failed;
+      }
+    }
+    getLogger().lifecycle(
+      "Library converted in " + wallMillis / 1000.0 + " s: " +
+      converted + " converted, " + skipped + " skipped, " + failed + " failed"
+    );
+    getLogger().lifecycle( "Manifest: " + manifest.getAbsolutePath() );
+    return failed;
+  }
+
+  /** Own output and work dirs are not watched, if they are inside library. */
+  private SpoolWatcher openWatcher( Path root )
+  {
+    List<Path> ignored = new ArrayList<>();
+    for ( File ownDir : Arrays.asList(getOutDir(), getWorkDir()) )
+    {
+      Path ownPath = ownDir.toPath().toAbsolutePath().normalize();
+      if ( ownPath.startsWith(root) && !ownPath.equals(root) ) ignored.add( ownPath );
+    }
+    try
+    {
+      return new SpoolWatcher( root, ignored, getWatchSettleSeconds() * 1000L );
+    }
+    catch ( IOException e )
+    {
+      fail( "Failed to watch library: " + e.getMessage() );
+      return null;
+    }
+  }
+
+  private void closeWatcher( SpoolWatcher watcher )
+  {
+    try
+    {
+      watcher.close();
+    }
+    catch ( IOException e )
+    {
+      getLogger().warn( "Failed to stop watching library: " + e.getMessage() );
+    }
+  }
+
+  /**
+   * Converts books, which appear in library, until build is cancelled. Settled library entries are rescanned,
+   * and their new books are queued onto the same pool. Failed books do not stop watching,
+   * they are converted again, when their files change. Manifest is rewritten after every finished book.
+   */
+  private void watchLibrary( SpoolWatcher watcher, ForkJoinPool pool, List<LibraryBook> books, long start )
+  {
+    getLogger().lifecycle( "Watching library for new books. Cancel build to stop watching" );
+    Map<String, ForkJoinTask<?>> queued = new HashMap<>();
+    try
+    {
+      while ( true )
+      {
+        for ( Path entry : watcher.awaitSettled(WATCH_POLL_MILLIS) )
+        {
+          for ( LibraryBook book : discoverBooks(entry) )
+          {
+            if ( queued.containsKey(book.name) )
+            { // Book is changed while being converted, it is checked again later
+              watcher.markChanged( entry );
+              continue;
+            }
+            LibraryBook known = null;
+            for ( LibraryBook other : books ) if ( other.name.equals(book.name) ) known = other;
+            if ( known != null && known.status != BookStatus.FAILED && book.djvu.exists() && !getForceCleanUp() ) continue;
+
+            books.remove( known );
+            books.add( book );
+            queued.put( book.name, pool.submit(new BookJob(book)) );
+            getLogger().lifecycle( "'" + book.name + "' queued" );
+          }
+        }
+        if ( queued.values().removeIf(ForkJoinTask::isDone) )
+        {
+          books.sort( Comparator.comparing(book -> book.name) );
+          writeManifest( books, (System.nanoTime() - start) / 1_000_000 );
+        }
+      }
+    }
+    catch ( InterruptedException e )
+    {
+      Thread.currentThread().interrupt();
+      pool.shutdownNow();
+      fail( "Library watching is interrupted" );
+    }
+    catch ( IOException e )
+    {
+      fail( "Failed to watch library: " + e.getMessage() );
+    }
+  }
+
+  private void checkTools()
+  {
+    if ( !BookConverter.djvuToolsFound(getToolRegistry()) )
+    {
+      getLogger().error( "Add DjvuLibre installation directory to PATH environment variable." );
+      fail( "DjvuLibre c44 or djvm utility not found" );
+    }
+    if ( !BookConverter.pdfToolsFound(getToolRegistry()) )
+    {
+      getLogger().warn( "Calibre ebook-convert utility not found. PDF books will fail." );
+    }
+  }
+
+  /**
+   * Walks library tree or its entry once. Book candidates are PDF files, CBZ/ZIP page archives and directories,
+   * which contain images.
+   * Book names are relative to library root.
+   */
+  private List<LibraryBook> discoverBooks( Path scanRoot )
+  {
+    final Path root = getRootDir().toPath().toAbsolutePath().normalize();
+    if ( !Files.exists(scanRoot) ) return new ArrayList<>();
+
+    final Path outPath = getOutDir().toPath().toAbsolutePath().normalize();
+    final Path workPath = getWorkDir().toPath().toAbsolutePath().normalize();
+    final Set<Path> pdfs = new TreeSet<>();
+    final Set<Path> archives = new TreeSet<>();
+    final Set<Path> imageDirs = new TreeSet<>();
+    try
+    {
+      Files.walkFileTree( scanRoot, new SimpleFileVisitor<Path>()
+      {
+        @Override
+        public FileVisitResult preVisitDirectory( Path dir, BasicFileAttributes attrs )
+        {
+          // Do not discover own output
+          boolean isOwnDir = dir.equals( outPath ) || dir.equals( workPath );
+          return ( isOwnDir && !dir.equals(root) ) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile( Path file, BasicFileAttributes attrs )
+        {
+          if ( !attrs.isRegularFile() ) return FileVisitResult.CONTINUE;
+          String fileName = file.getFileName().toString().toLowerCase();
+          if ( fileName.endsWith(".pdf") ) pdfs.add( file );
+          else if ( fileName.endsWith(".cbz") || fileName.endsWith(".zip") ) archives.add( file );
+          else if ( fileName.endsWith(".jpg") || fileName.endsWith(".png") ) imageDirs.add( file.getParent() );
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed( Path file, IOException e ) throws IOException
+        {
+          // Files may be moved out of library, while it is scanned
+          if ( e instanceof NoSuchFileException ) return FileVisitResult.CONTINUE;
+          throw e;
+        }
+      } );
+    }
+    catch ( IOException e )
+    {
+      fail( "Failed to scan library: " + e.getMessage() );
+    }
+
+    List<PathMatcher> includeMatchers = matchers( getIncludes() );
+    List<PathMatcher> excludeMatchers = matchers( getExcludes() );
+    File libraryWorkDir = new File( getWorkDir(), "library" );
+
+    List<LibraryBook> books = new ArrayList<>();
+    List<Path> candidates = new ArrayList<>( pdfs );
+    candidates.addAll( archives );
+    candidates.addAll( imageDirs );
+    for ( Path candidate : candidates )
+    {
+      Path relative = root.relativize( candidate );
+      if ( !matches(relative, includeMatchers, true) || matches(relative, excludeMatchers, false) ) continue;
+
+      boolean isPdf = pdfs.contains( candidate );
+      String relativePath = relative.toString().isEmpty() ? root.getFileName().toString() : relative.toString();
+      String baseName = ( isPdf || archives.contains(candidate) )
+        ? Utils.getFilenameWithoutExtension( relativePath ) : relativePath;
+      LibraryBook book = new LibraryBook(
+        relativePath.replace( File.separatorChar, '/' ),
+        candidate.toFile(),
+        isPdf,
+        new File( getOutDir(), baseName + ".djvu" ),
+        new File( libraryWorkDir, baseName ),
+        new File( new File(getOutDir(), PerformanceReport.DIR_NAME), baseName )
+      );
+
+      // Books are rediscovered in watch mode
+      LibraryBook conflicting = djvus.get( book.djvu );
+      if ( conflicting != null && !conflicting.name.equals(book.name) )
+      {
+        book.status = BookStatus.FAILED;
+        book.error = "Output DJVU conflicts with book " + conflicting.name;
+      }
+      else
+      {
+        djvus.put( book.djvu, book );
+      }
+      books.add( book );
+    }
+
+    books.sort( Comparator.comparing(book -> book.name) );
+    return books;
+  }
+
+  private static List<PathMatcher> matchers( List<String> patterns )
+  {
+    List<PathMatcher> matchers = new ArrayList<>();
+    for ( String pattern : patterns )
+    {
+      matchers.add( FileSystems.getDefault().getPathMatcher("glob:" + pattern) );
+    }
+    return matchers;
+  }
+
+  private static boolean matches( Path relative, List<PathMatcher> matchers, boolean matchIfEmpty )
+  {
+    if ( matchers.isEmpty() ) return matchIfEmpty;
+    for ( PathMatcher matcher : matchers )
+    {
+      if ( matcher.matches(relative) ) return true;
+    }
+    return false;
+  }
+
+  private File writeManifest( List<LibraryBook> books, long wallMillis )
+  {
+    File manifest = new File( getOutDir(), MANIFEST_NAME );
+    if ( Utils.createDirIfNotExists(getOutDir()) == Utils.DirState.FAIL ) fail( "Out dir not found nor created" );
+
+    StringBuilder json = new StringBuilder();
+    json.append( "{\n" );
+    json.append( "  \"root\": " ).append( Utils.toJsonString(getRootDir().getAbsolutePath()) ).append( ",\n" );
+    json.append( "  \"finishedAt\": " ).append( Utils.toJsonString(Instant.now().toString()) ).append( ",\n" );
+    json.append( "  \"wallMillis\": " ).append( wallMillis ).append( ",\n" );
+    json.append( "  \"books\": [" );
+    for ( int i = 0; i < books.size(); ++i )
+    {
+      LibraryBook book = books.get( i );
+      json.append( (i > 0) ? ",\n" : "\n" );
+      json.append( "    {" );
+      json.append( "\"name\": " ).append( Utils.toJsonString(book.name) );
+      String type = ( book.isPdf ) ? "pdf" : ( Utils.isArchiveName(book.source) ) ? "archive" : "images";
+      json.append( ", \"type\": " ).append( Utils.toJsonString(type) );
+      json.append( ", \"source\": " ).append( Utils.toJsonString(book.source.getAbsolutePath()) );
+      json.append( ", \"djvu\": " ).append( Utils.toJsonString(book.djvu.getAbsolutePath()) );
+      json.append( ", \"status\": " ).append( Utils.toJsonString(book.status.name().toLowerCase()) );
+      json.append( ", \"pages\": " ).append( book.pages );
+      json.append( ", \"extractMillis\": " ).append( book.extractMillis );
+      json.append( ", \"encodeMillis\": " ).append( book.encodeMillis );
+      json.append( ", \"slowestPageMillis\": " ).append( book.slowestPageMillis );
+      json.append( ", \"bundleMillis\": " ).append( book.bundleMillis );
+      json.append( ", \"wallMillis\": " ).append( book.wallMillis );
+      json.append( ", \"error\": " ).append( Utils.toJsonString(book.error) );
+      json.append( "}" );
+    }
+    json.append( "\n  ]\n}\n" );
+
+    try
+    {
+      Files.write( manifest.toPath(), json.toString().getBytes(StandardCharsets.UTF_8) );
+    }
+    catch ( IOException e )
+    {
+      fail( "Failed to write manifest: " + e.getMessage() );
+    }
+    return manifest;
+  }
+
+  private void fail( String message )
+  {
+    getLogger().error( message );
+    throw new RuntimeException( message );
+  }
+
+  private enum BookStatus { PENDING, CONVERTED, SKIPPED, FAILED }
+
+  /** Discovered book with its results. Fields are written by book job and read after pool is finished. */
+  private static class LibraryBook
+  {
+    final String name;
+    final File source;
+    final boolean isPdf;
+    final File djvu;
+    final File workDir;
+    final File reportDir;
+
+    BookStatus status = BookStatus.PENDING;
+    String error;
+    int pages;
+    long extractMillis;
+    long encodeMillis;
+    long slowestPageMillis;
+    long bundleMillis;
+    long wallMillis;
+
+    LibraryBook( String name, File source, boolean isPdf, File djvu, File workDir, File reportDir )
+    {
+      this.name = name;
+      this.source = source;
+      this.isPdf = isPdf;
+      this.djvu = djvu;
+      this.workDir = workDir;
+      this.reportDir = reportDir;
+    }
+  }
+
+  /** Converts a single book. Its pages are forked into the common pool. */
+  private class BookJob extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final LibraryBook book;
+    private final ConversionMetrics metrics = new ConversionMetrics();
+
+    BookJob( LibraryBook book )
+    {
+      this.book = book;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if ( book.status != BookStatus.PENDING ) return;
+
+      long start = System.nanoTime();
+      try
+      {
+        convert();
+        getLogger().lifecycle( "'" + book.name + "' " + book.status.name().toLowerCase() );
+      }
+      catch ( IOException | RuntimeException e )
+      {
+        book.status = BookStatus.FAILED;
+        book.error = e.getMessage();
+        getLogger().error( "'" + book.name + "' failed: " + e.getMessage() );
+      }
+      finally
+      {
+        book.wallMillis = ( System.nanoTime() - start ) / 1_000_000;
+      }
+      if ( book.status != BookStatus.SKIPPED ) writeReport();
+    }
+
+    private void writeReport()
+    {
+      try
+      {
+        PerformanceReport.update( book.reportDir, book.name, "library", metrics );
+      }
+      catch ( IOException e )
+      {
+        getLogger().warn( "Failed to write performance report of '" + book.name + "': " + e.getMessage() );
+      }
+    }
+
+    private void convert() throws IOException
+    {
+      if ( book.djvu.exists() && !getForceCleanUp() )
+      {
+        book.status = BookStatus.SKIPPED;
+        return;
+      }
+      BookConverter.BookResult result = converter.convert( book.source, book.djvu, book.workDir, book.name, metrics );
+      book.pages = result.getPages();
+      book.extractMillis = result.getExtractMillis();
+      book.encodeMillis = result.getEncodeMillis();
+      book.slowestPageMillis = result.getSlowestPageMillis();
+      book.bundleMillis = result.getBundleMillis();
+      if ( result.getGrayPages() > 0 )
+      {
+        getLogger().lifecycle(
+          "'" + book.name + "': " + GrayPages.summary( result.getGrayPages(), result.getGrayPagesSavedBytes() )
+        );
+      }
+      book.status = BookStatus.CONVERTED;
+    }
+  }
+
+  /** Converts all books of library within pool, so idle threads steal pending books. */
+  private static final class LibraryJob extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final List<BookJob> bookJobs;
+
+    LibraryJob( List<BookJob> bookJobs )
+    {
+      this.bookJobs = bookJobs;
+    }
+
+    @Override
+    protected void compute()
+    {
+      ForkJoinTask.invokeAll( bookJobs );
+    }
+  }
+}
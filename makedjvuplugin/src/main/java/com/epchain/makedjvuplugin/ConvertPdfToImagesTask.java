@@ -1,31 +1,51 @@
 package com.epchain.makedjvuplugin;
 
 import org.gradle.api.DefaultTask;
+import org.gradle.api.model.ObjectFactory;
 import org.gradle.api.provider.Property;
 import org.gradle.api.provider.Provider;
-import org.gradle.api.tasks.Input;
-import org.gradle.api.tasks.OutputDirectory;
-import org.gradle.api.tasks.TaskAction;
-
-import java.io.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-
+import org.gradle.api.tasks.*;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Extracts images from PDF. Task is cacheable, images depend only on PDF contents.
+ * Progress is written into journal, so interrupted conversion is resumed with verified EPUB and images.
+ * Out dir is the images dir of the book only, so 'forceCleanUp' never deletes files of ImagesToDjvu in book work dir.
+ */
+@CacheableTask
 public class ConvertPdfToImagesTask extends DefaultTask
 {
   private final Property<File> workDir;
-  private Book book;
-  private File outDir;
+  private final Property<File> outDir;
+  private final Property<ConcurrencyBudgetService> concurrencyBudget;
+  private final Property<File> reportDir;
+  private final Property<String> bookName;
+  private final Property<File> pdf;
+  private final Property<Boolean> forceCleanUp;
+  private final Property<Boolean> keepIntermediates;
+  private final Property<ToolRegistryService> toolRegistry;
   private File epub;
+  private ConversionJournal journal;
+  private ConversionMetrics metrics;
 
-  public ConvertPdfToImagesTask()
+  @Inject
+  public ConvertPdfToImagesTask( ObjectFactory objects )
   {
-    workDir = getProject().getObjects().property( File.class );
+    workDir = objects.property( File.class );
+    outDir = objects.property( File.class );
+    concurrencyBudget = objects.property( ConcurrencyBudgetService.class );
+    reportDir = objects.property( File.class );
+    bookName = objects.property( String.class );
+    pdf = objects.property( File.class );
+    forceCleanUp = objects.property( Boolean.class ).convention( false );
+    keepIntermediates = objects.property( Boolean.class ).convention( false );
+    toolRegistry = objects.property( ToolRegistryService.class );
   }
 
-  @Input
+  @Internal
   public File getWorkDir()
   {
     return workDir.get();
@@ -41,60 +61,129 @@ public class ConvertPdfToImagesTask extends DefaultTask
     this.workDir.set( workDir );
   }
 
-  @Input
-  public Book getBook()
+  @Internal
+  public String getBookName()
   {
-    return book;
+    return bookName.get();
   }
 
+  /** PDF file, fingerprinted by contents only. */
+  @InputFile
+  @PathSensitive( PathSensitivity.NONE )
+  public File getPdf()
+  {
+    return pdf.get();
+  }
+
+  /** Wires settings of book. Task keeps their providers, not the book. */
   public void setBook( Book book )
   {
-    this.book = book;
+    bookName.set( book.getName() );
+    pdf.set( book.getBookFileProvider() );
+    forceCleanUp.set( book.getForceCleanUpProvider() );
+    keepIntermediates.set( book.getKeepIntermediatesProvider() );
   }
 
   @OutputDirectory
   public File getOutDir()
   {
-    return outDir;
+    return outDir.get();
   }
 
   public void setOutDir( File outDir )
   {
-    this.outDir = outDir;
+    this.outDir.set( outDir );
+  }
+
+  public void setOutDir( Provider<File> outDir )
+  {
+    this.outDir.set( outDir );
+  }
+
+  @Internal
+  public ToolRegistry getToolRegistry()
+  {
+    return toolRegistry.get().getRegistry();
+  }
+
+  public void setToolRegistry( Provider<ToolRegistryService> toolRegistry )
+  {
+    this.toolRegistry.set( toolRegistry );
+    usesService( toolRegistry );
+  }
+
+  @Internal
+  public ConcurrencyBudgetService getConcurrencyBudget()
+  {
+    return concurrencyBudget.get();
+  }
+
+  public void setConcurrencyBudget( Provider<ConcurrencyBudgetService> concurrencyBudget )
+  {
+    this.concurrencyBudget.set( concurrencyBudget );
+    usesService( concurrencyBudget );
+  }
+
+  /** Directory of book performance report. */
+  @Internal
+  public File getReportDir()
+  {
+    return reportDir.get();
+  }
+
+  public void setReportDir( File reportDir )
+  {
+    this.reportDir.set( reportDir );
+  }
+
+  public void setReportDir( Provider<File> reportDir )
+  {
+    this.reportDir.set( reportDir );
   }
 
   @TaskAction
   public void convertPdfToImageFiles()
   {
-    getLogger().lifecycle( "Beginning '" + book.getName() + "' conversion from PDF to image set." );
+    getLogger().lifecycle( "Beginning '" + getBookName() + "' conversion from PDF to image set." );
     checkTools();
     checkWorkDir();
-    if ( !checkOutDir() ) return;
     checkBook();
-    getLogger().lifecycle( "Output dir: " + outDir.getAbsolutePath() );
-    convertPdfToEpub();
-    int indexLength = extractImagesFromEpub();
-    if ( !book.keepIntermediates() )
+    String epubName = Utils.getFilenameWithoutExtension( getPdf().getName() ) + ".epub";
+    epub = new File( getOutDir(), epubName );
+    openJournal();
+    metrics = new ConversionMetrics();
+    try
     {
-      if ( epub.delete() ) getLogger().lifecycle( "Deleted " + epub.getName() );
+      if ( !checkOutDir() ) return;
+      getLogger().lifecycle( "Output dir: " + getOutDir().getAbsolutePath() );
+      extractImages();
+      // Conversion is complete, nothing to resume
+      closeJournal( true );
+      writeReport( getBookName(), metrics );
+    }
+    finally
+    {
+      closeJournal( false );
     }
-    renameImages( indexLength );
   }
 
-  public static boolean toolsFound()
+  public static boolean toolsFound( ToolRegistry toolRegistry )
   {
-    return Utils.executablePath( "ebook-convert" ) != null;
+    return BookConverter.pdfToolsFound( toolRegistry );
   }
 
   private void checkTools()
   {
-    String ebookConvertPath = Utils.executablePath( "ebook-convert" );
+    String ebookConvertPath = getToolRegistry().executablePath( "ebook-convert" );
     if ( ebookConvertPath == null )
     {
       getLogger().error( "Add Calibre installation directory to PATH environment variable." );
       fail( "Calibre ebook-convert utility not found." );
     }
-    getLogger().lifecycle( "Calibre ebook-convert found at: " + ebookConvertPath );
+    String version = getToolRegistry().version( "ebook-convert", "--version" );
+    getLogger().lifecycle(
+      "Calibre ebook-convert found at: " + ebookConvertPath + ( (version != null) ? " (v." + version + ")" : "" )
+    );
   }
 
   private void checkWorkDir()
@@ -114,19 +203,73 @@ public class ConvertPdfToImagesTask extends DefaultTask
     }
   }
 
+  /** Journal exists only while conversion is not completed. */
+  private void openJournal()
+  {
+    if ( Utils.createDirIfNotExists(getOutDir()) == Utils.DirState.FAIL ) fail( "Out dir not found nor created" );
+    try
+    {
+      journal = ConversionJournal.open( getJournalFile(), "pdf-to-images" );
+    }
+    catch ( IOException e )
+    {
+      fail( "Failed to open journal: " + e.getMessage() );
+    }
+  }
+
+  private void closeJournal( boolean delete )
+  {
+    if ( journal == null ) return;
+    try
+    {
+      if ( delete ) journal.delete();
+      else journal.close();
+    }
+    catch ( IOException e )
+    {
+      getLogger().warn( "Failed to close journal: " + e.getMessage() );
+    }
+    journal = null;
+  }
+
+  private File getJournalFile()
+  {
+    return new File( getOutDir(), "pdf-to-images.journal" );
+  }
+
+  /** Returns true, if EPUB of interrupted conversion of the same PDF is found. */
+  private boolean isEpubCompleted()
+  {
+    try
+    {
+      return journal.isCompleted( epub.getName(), ConversionJournal.checksum(getPdf()), epub );
+    }
+    catch ( IOException e )
+    {
+      getLogger().warn( "Failed to verify EPUB: " + e.getMessage() );
+      return false;
+    }
+  }
+
   private boolean checkOutDir()
   {
-    File[] files = getOutDir().listFiles();
+    File[] files = getOutDir().listFiles( file -> !file.equals(getJournalFile()) );
     if ( files == null )
     {
       fail( "Out dir points to file" );
       return false;
     }
+    if ( (files.length > 0) && isEpubCompleted() )
+    {
+      // Interrupted conversion. Its files are verified by journal, when used.
+      getLogger().lifecycle( "Found journal of interrupted conversion, resuming with " + epub.getName() );
+      return true;
+    }
     if ( (files.length > 0) )
     {
-      if ( book.forceCleanUp() )
+      if ( forceCleanUp.get() )
       {
-        getLogger().lifecycle( "Cleaning up book working directory..." );
+        getLogger().lifecycle( "Cleaning up book images directory..." );
         boolean allDeleted = true;
         for ( File file : files )
         {
@@ -135,19 +278,22 @@ public class ConvertPdfToImagesTask extends DefaultTask
 
         if ( !allDeleted )
         {
-          fail( "Failed to clean up book working directory files" );
+          fail( "Failed to clean up book images directory files" );
         }
         else
         {
           getLogger().lifecycle( "Clean up completed" );
         }
+        // Journal of cleaned up files is restarted
+        closeJournal( true );
+        openJournal();
       }
       else
       {
-        getLogger().error( "Found files inside book working directory: " + getOutDir().getAbsolutePath() );
+        getLogger().error( "Found files inside book images directory: " + getOutDir().getAbsolutePath() );
         getLogger().error( "This may lead to accidental overwriting of changes you made to images" );
-        getLogger().error( "You must set 'forceCleanUp = true' in '" + book.getName() + "' block" );
-        getLogger().error( "or manually delete all files from '" + book.getName() + "' working directory" );
+        getLogger().error( "You must set 'forceCleanUp = true' in '" + getBookName() + "' block" );
+        getLogger().error( "or manually delete all files from '" + getBookName() + "' images directory" );
         getLogger().error( "Task will not proceed" );
         return false;
       }
@@ -159,137 +305,37 @@ public class ConvertPdfToImagesTask extends DefaultTask
   private void checkBook()
   {
     getLogger().lifecycle( "Checking book..." );
-    if ( !Utils.isPdf( book.getBookFile() ) ) fail( "'" + book.getName() + "' is not a valid PDF book" );
-    getLogger().lifecycle( "'" + book.getName() + "' seems to be PDF" );
-    getLogger().lifecycle( "Book file: " + book.getBookFile().getAbsolutePath() );
+    if ( !Utils.isPdf( getPdf() ) ) fail( "'" + getBookName() + "' is not a valid PDF book" );
+    getLogger().lifecycle( "'" + getBookName() + "' seems to be PDF" );
+    getLogger().lifecycle( "Book file: " + getPdf().getAbsolutePath() );
   }
 
-  private void convertPdfToEpub()
+  /** EPUB and images of interrupted conversion are reused, if journal verifies them. */
+  private void extractImages()
   {
-    getLogger().lifecycle( "Generating EPUB from " + book.getBookFile().getName() + "..." );
-
-    String epubName = Utils.getFilenameWithoutExtension( book.getBookFile().getName() ) + ".epub";
-    epub = new File( outDir, epubName );
-
-    ProcessBuilder processBuilder = new ProcessBuilder(
-      "ebook-convert",
-      "\"" + book.getBookFile().getAbsolutePath() + "\"",
-      "\"" + epub.getAbsolutePath() + "\"",
-      "--input-profile", "default",
-      "--output-profile", "tablet"
-    );
-
+    BookConverter converter = new BookConverter( getToolRegistry(), getConcurrencyBudget().getBudget(), getLogger()::lifecycle );
+    converter.setKeepIntermediates( keepIntermediates.get() );
     try
     {
-      Process process = processBuilder.start();
-      BufferedReader in = new BufferedReader( new InputStreamReader(process.getInputStream()) );
-      String line;
-      while ( (line = in.readLine()) != null )
-      {
-        getLogger().lifecycle( line );
-      }
-      process.waitFor();
-      in.close();
+      converter.extractImages( getPdf(), getOutDir(), epub, journal, metrics );
     }
-    catch ( IOException | InterruptedException e )
+    catch ( IOException e )
     {
-      fail( "Failed to run ebook-convert" );
+      fail( e.getMessage() );
     }
-
-    getLogger().lifecycle( "EPUB successfully generated: " + epub.getAbsolutePath() );
   }
 
-  private int extractImagesFromEpub()
+  /** Report is written even if task failed. Report failure never fails the task. */
+  private void writeReport( String bookName, ConversionMetrics metrics )
   {
-    int maxIndexLength = -1;
-    int filesExtracted = 0;
     try
     {
-      getLogger().lifecycle( "Extracting image files..." );
-
-      FileInputStream epubIn = new FileInputStream( epub );
-      ZipInputStream zipIn = new ZipInputStream( new BufferedInputStream(epubIn) );
-
-      ZipEntry entry;
-      while( (entry = zipIn.getNextEntry()) != null )
-      {
-        if ( !entry.isDirectory() && isTargetImage(entry.getName()) )
-        {
-          // Saving index for further pages renaming
-          String strIndex = getStrIndex( entry.getName() );
-          maxIndexLength = Math.max( maxIndexLength, strIndex.length() );
-
-          // Extracting image file
-          int bufferSize = 2048;
-          File extractedImage = new File( outDir, entry.getName() );
-          BufferedOutputStream fileOut = new BufferedOutputStream( new FileOutputStream(extractedImage), bufferSize );
-
-          byte[] buffer = new byte[ bufferSize ];
-          int readBytes;
-          while ( (readBytes = zipIn.read(buffer)) > 0 )
-          {
-            fileOut.write( buffer, 0, readBytes );
-          }
-
-          fileOut.flush();
-          fileOut.close();
-
-          getLogger().lifecycle( "Extracted file: " + extractedImage.getName() );
-          ++filesExtracted;
-        }
-      }
-
-      zipIn.closeEntry();
-      zipIn.close();
+      PerformanceReport.update( getReportDir(), bookName, "pdf-to-images", metrics );
     }
     catch ( IOException e )
     {
-      fail( "Failed to extract images from EPUB" );
+      getLogger().warn( "Failed to write performance report: " + e.getMessage() );
     }
-
-    getLogger().lifecycle( "Extracted " + filesExtracted + " images" );
-    return maxIndexLength;
-  }
-
-  private void renameImages( final int indexLength )
-  {
-    getLogger().lifecycle( "Renaming image files..." );
-    getLogger().lifecycle( "Maximum index length of files: " + indexLength );
-
-    int filesRenamed = 0;
-    File[] images = outDir.listFiles();
-    if ( images != null )
-    {
-      for ( File image : images )
-      {
-        String fileName = image.getName();
-        if ( isTargetImage(fileName) )
-        {
-          String strIndex = getStrIndex( fileName );
-          StringBuilder newStrIndex = new StringBuilder( indexLength );
-          // Building new index with preceding zeroes
-          for ( int i = 0; i < (indexLength - strIndex.length()); ++i )
-          {
-            newStrIndex.append( '0' );
-          }
-          newStrIndex.append( strIndex );
-
-          String newFilename = "page-" + newStrIndex + "." + Utils.getFileExtension( fileName );
-          File renamedFile = new File(image.getParentFile(), newFilename);
-          if ( image.renameTo(renamedFile) )
-          {
-            getLogger().lifecycle( "Renamed " + fileName + " to " + renamedFile.getName() );
-            ++filesRenamed;
-          }
-        }
-      }
-    }
-    else
-    {
-      fail( "Failed to get image file list for renaming" );
-    }
-
-    getLogger().lifecycle( "Files renamed: " + filesRenamed );
   }
 
   private void fail( String message )
@@ -297,17 +343,4 @@ public class ConvertPdfToImagesTask extends DefaultTask
     getLogger().error( message );
     throw new RuntimeException( message );
   }
-
-  private boolean isTargetImage( String fileName )
-  {
-    Matcher matcher = Pattern.compile( "index-[0-9]+_[0-9]+" ).matcher( fileName );
-    return matcher.find();
-  }
-
-  private String getStrIndex( String fileName )
-  {
-    int startIndex = "index-".length();
-    int endIndex = fileName.indexOf( "_" );
-    return fileName.substring( startIndex, endIndex );
-  }
 }
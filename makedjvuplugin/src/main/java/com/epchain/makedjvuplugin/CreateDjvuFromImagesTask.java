@@ -1,34 +1,100 @@
 package com.epchain.makedjvuplugin;
 
 import org.gradle.api.DefaultTask;
+import org.gradle.api.file.FileTree;
+import org.gradle.api.file.FileTreeElement;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.ListProperty;
 import org.gradle.api.provider.Property;
 import org.gradle.api.provider.Provider;
-import org.gradle.api.tasks.Input;
-import org.gradle.api.tasks.InputDirectory;
-import org.gradle.api.tasks.OutputFile;
-import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.tasks.*;
 
+import javax.inject.Inject;
 import java.io.File;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Creates DJVU from image set: images dir or CBZ/ZIP page archive, which is read without extraction.
+ * Task is cacheable: DJVU depends only on page images contents and names, which define page order,
+ * so it can be reused from local or shared build cache.
+ * With 'jpgToPng', JPG pages are replaced with PNG while they are encoded, so the task changes its own inputs
+ * and is never cached.
+ */
+@CacheableTask
 public class CreateDjvuFromImagesTask extends DefaultTask
 {
+  /**
+   * Journal of DJVU files written by the task, kept in book work dir. Such files are replaced without forceCleanUp.
+   * AddBookmarks records DJVU again after editing it in place.
+   */
+  public static final String OUTPUTS_JOURNAL_NAME = "djvu-outputs.journal";
+  static final String OUTPUTS_JOURNAL_HEADER = "djvu outputs";
+
   private final Property<File> workDir;
   private final Property<File> outDir;
-  private Book book;
-  private File imagesDir;
+  private final Property<File> imagesDir;
+  private final Property<File> djvu;
+  private final Property<ConcurrencyBudgetService> concurrencyBudget;
+  private final Property<File> reportDir;
+  private final Property<Boolean> detectBlankPages;
+  private final Property<Boolean> detectGrayPages;
+  private final Property<Boolean> detectDuplicatePages;
+  private final Property<String> bookName;
+  private final Property<File> bookFile;
+  private final Property<Boolean> forceCleanUp;
+  private final Property<Boolean> keepIntermediates;
+  private final Property<String> cropMargins;
+  private final Property<Integer> maxMegabytes;
+  private final Property<Boolean> jpgToPng;
+  private final Property<Integer> pngCompressionLevel;
+  private final Property<String> pngFilter;
+  private final ListProperty<BookVariant> bookVariants;
+  private final ListProperty<String> pageWorkers;
+  private final Property<ToolRegistryService> toolRegistry;
+  private final ObjectFactory objects;
   private File bookWorkDir;
-  private File djvu;
+  private ConversionMetrics metrics;
+  private PageManifest manifest;
+  private PageArchive archive;
 
-  public CreateDjvuFromImagesTask()
+  @Inject
+  public CreateDjvuFromImagesTask( ObjectFactory objects )
   {
-    workDir = getProject().getObjects().property( File.class );
-    outDir = getProject().getObjects().property( File.class );
+    this.objects = objects;
+    workDir = objects.property( File.class );
+    outDir = objects.property( File.class );
+    imagesDir = objects.property( File.class );
+    djvu = objects.property( File.class );
+    concurrencyBudget = objects.property( ConcurrencyBudgetService.class );
+    reportDir = objects.property( File.class );
+    detectBlankPages = objects.property( Boolean.class );
+    detectBlankPages.convention( false );
+    detectGrayPages = objects.property( Boolean.class );
+    detectGrayPages.convention( true );
+    detectDuplicatePages = objects.property( Boolean.class );
+    detectDuplicatePages.convention( true );
+    bookName = objects.property( String.class );
+    bookFile = objects.property( File.class );
+    forceCleanUp = objects.property( Boolean.class ).convention( false );
+    keepIntermediates = objects.property( Boolean.class ).convention( false );
+    cropMargins = objects.property( String.class ).convention( "none" );
+    maxMegabytes = objects.property( Integer.class ).convention( 0 );
+    jpgToPng = objects.property( Boolean.class ).convention( false );
+    pngCompressionLevel = objects.property( Integer.class ).convention( 6 );
+    pngFilter = objects.property( String.class ).convention( PngWriteParam.Filter.ADAPTIVE.name() );
+    bookVariants = objects.listProperty( BookVariant.class ).empty();
+    pageWorkers = objects.listProperty( String.class ).empty();
+    toolRegistry = objects.property( ToolRegistryService.class );
+    // Output of a run, which replaced JPGs, does not match its recorded inputs
+    getOutputs().cacheIf( "JPG pages are not replaced with PNG", task -> !getJpgToPng() );
   }
 
-  @Input
+  @Internal
   public File getWorkDir()
   {
     return workDir.get();
@@ -44,7 +110,7 @@ public class CreateDjvuFromImagesTask extends DefaultTask
     this.workDir.set( workDir );
   }
 
-  @Input
+  @Internal
   public File getOutDir()
   {
     return outDir.get();
@@ -60,63 +126,335 @@ public class CreateDjvuFromImagesTask extends DefaultTask
     this.outDir.set( outDir );
   }
 
-  @Input
-  public Book getBook()
+  @Internal
+  public String getBookName()
   {
-    return book;
+    return bookName.get();
   }
 
+  /** Wires settings of book. Task keeps their providers, not the book. */
   public void setBook( Book book )
   {
-    this.book = book;
+    bookName.set( book.getName() );
+    bookFile.set( book.getBookFileProvider() );
+    forceCleanUp.set( book.getForceCleanUpProvider() );
+    keepIntermediates.set( book.getKeepIntermediatesProvider() );
+    cropMargins.set( book.getCropMarginsProvider() );
+    maxMegabytes.set( book.getMaxMegabytesProvider() );
+    jpgToPng.set( book.getJpgToPngProvider() );
+    bookVariants.set( book.getVariantsProvider() );
   }
 
-  @InputDirectory
+  @Internal
   public File getImagesDir()
   {
-    return imagesDir;
+    return imagesDir.get();
+  }
+
+  /**
+   * Page images, fingerprinted by contents and names. Other files in images dir are ignored.
+   * Page archive is fingerprinted as a whole.
+   */
+  @InputFiles
+  @PathSensitive( PathSensitivity.RELATIVE )
+  public FileTree getImages()
+  {
+    if ( Utils.isArchiveName(getImagesDir()) ) return objects.fileCollection().from( getImagesDir() ).getAsFileTree();
+    return objects.fileTree().from( getImagesDir() ).matching( tree ->
+    {
+      tree.include( CreateDjvuFromImagesTask::isImage );
+      tree.exclude( FileTreeElement::isDirectory );
+    } );
   }
 
   public void setImagesDir( File imagesDir )
   {
-    this.imagesDir = imagesDir;
+    this.imagesDir.set( imagesDir );
+  }
+
+  public void setImagesDir( Provider<File> imagesDir )
+  {
+    this.imagesDir.set( imagesDir );
   }
 
   @OutputFile
   public File getDjvu()
   {
-    return djvu;
+    return djvu.get();
   }
 
   public void setDjvu( File djvu )
   {
-    this.djvu = djvu;
+    this.djvu.set( djvu );
+  }
+
+  public void setDjvu( Provider<File> djvu )
+  {
+    this.djvu.set( djvu );
+  }
+
+  /** DJVU of every book variant by variant name, placed next to main DJVU. */
+  @OutputFiles
+  public Map<String, File> getVariantDjvus()
+  {
+    Map<String, File> variantDjvus = new LinkedHashMap<>();
+    for ( BookVariant variant : bookVariants.get() )
+    {
+      variantDjvus.put( variant.getName(), PageVariant.variantDjvu(getDjvu(), variant.getName()) );
+    }
+    return variantDjvus;
+  }
+
+  /** Journal of written DJVU files. It is an output, so DJVU restored from build cache comes with its records. */
+  @OutputFile
+  public File getOutputsJournal()
+  {
+    return outputsJournal( getWorkDir(), getBookName() );
+  }
+
+  /** Returns outputs journal of book in given work dir. */
+  public static File outputsJournal( File workDir, String bookName )
+  {
+    return new File( new File(workDir, bookName), OUTPUTS_JOURNAL_NAME );
+  }
+
+  /** Opens journal of DJVU files written by book conversion. */
+  static ConversionJournal openOutputsJournal( File journalFile ) throws IOException
+  {
+    return ConversionJournal.open( journalFile, OUTPUTS_JOURNAL_HEADER );
+  }
+
+  /** Settings of book variants. */
+  @Input
+  public List<String> getVariants()
+  {
+    List<String> variants = new ArrayList<>();
+    for ( BookVariant variant : bookVariants.get() ) variants.add( variant.getDescription() );
+    return variants;
+  }
+
+  @Internal
+  public ToolRegistry getToolRegistry()
+  {
+    return toolRegistry.get().getRegistry();
+  }
+
+  public void setToolRegistry( Provider<ToolRegistryService> toolRegistry )
+  {
+    this.toolRegistry.set( toolRegistry );
+    usesService( toolRegistry );
+  }
+
+  @Internal
+  public ConcurrencyBudgetService getConcurrencyBudget()
+  {
+    return concurrencyBudget.get();
+  }
+
+  public void setConcurrencyBudget( Provider<ConcurrencyBudgetService> concurrencyBudget )
+  {
+    this.concurrencyBudget.set( concurrencyBudget );
+    usesService( concurrencyBudget );
+  }
+
+  /** Directory of book performance report. */
+  @Internal
+  public File getReportDir()
+  {
+    return reportDir.get();
+  }
+
+  public void setReportDir( File reportDir )
+  {
+    this.reportDir.set( reportDir );
+  }
+
+  public void setReportDir( Provider<File> reportDir )
+  {
+    this.reportDir.set( reportDir );
+  }
+
+  /** Margin crop of book pages: "none", "page" or "book". */
+  @Input
+  public String getCropMargins()
+  {
+    return cropMargins.get();
+  }
+
+  /** Size budget of book DJVU in megabytes, or 0 for default decibel. */
+  @Input
+  public int getMaxMegabytes()
+  {
+    return maxMegabytes.get();
+  }
+
+  /** Whether JPG pages of images dir are replaced with PNG copies of decoded pages, see {@link PngCopy}. */
+  @Input
+  public boolean getJpgToPng()
+  {
+    return jpgToPng.get();
+  }
+
+  /** PNG deflate level of copies from 0 (fastest) to 9 (smallest). Null without 'jpgToPng', as no copies are made. */
+  @Optional
+  @Input
+  public Integer getPngCompressionLevel()
+  {
+    return getJpgToPng() ? pngCompressionLevel.get() : null;
+  }
+
+  public void setPngCompressionLevel( int pngCompressionLevel )
+  {
+    this.pngCompressionLevel.set( pngCompressionLevel );
+  }
+
+  public void setPngCompressionLevel( Provider<Integer> pngCompressionLevel )
+  {
+    this.pngCompressionLevel.set( pngCompressionLevel );
+  }
+
+  /** PNG scanline filter of copies: none, sub, up, average, paeth or adaptive. Null without 'jpgToPng'. */
+  @Optional
+  @Input
+  public String getPngFilter()
+  {
+    return getJpgToPng() ? pngFilter.get() : null;
+  }
+
+  public void setPngFilter( String pngFilter )
+  {
+    this.pngFilter.set( pngFilter );
+  }
+
+  public void setPngFilter( Provider<String> pngFilter )
+  {
+    this.pngFilter.set( pngFilter );
+  }
+
+  /** Addresses of page workers. Workers encode the same pages, so they do not make task out of date. */
+  @Internal
+  public List<String> getPageWorkers()
+  {
+    return pageWorkers.get();
+  }
+
+  public void setPageWorkers( Provider<List<String>> pageWorkers )
+  {
+    this.pageWorkers.set( pageWorkers );
+  }
+
+  /** Whether near-blank pages are replaced with blank pages. */
+  @Input
+  public boolean getDetectBlankPages()
+  {
+    return detectBlankPages.get();
+  }
+
+  public void setDetectBlankPages( boolean detectBlankPages )
+  {
+    this.detectBlankPages.set( detectBlankPages );
+  }
+
+  public void setDetectBlankPages( Provider<Boolean> detectBlankPages )
+  {
+    this.detectBlankPages.set( detectBlankPages );
+  }
+
+  /** Whether colour pages, which are effectively gray, are stored as grayscale. */
+  @Input
+  public boolean getDetectGrayPages()
+  {
+    return detectGrayPages.get();
+  }
+
+  public void setDetectGrayPages( boolean detectGrayPages )
+  {
+    this.detectGrayPages.set( detectGrayPages );
+  }
+
+  public void setDetectGrayPages( Provider<Boolean> detectGrayPages )
+  {
+    this.detectGrayPages.set( detectGrayPages );
+  }
+
+  /** Whether pages with the same pixels are encoded once. Duplicate gets the same page as its own encode, so it is not an input. */
+  @Internal
+  public boolean getDetectDuplicatePages()
+  {
+    return detectDuplicatePages.get();
+  }
+
+  public void setDetectDuplicatePages( boolean detectDuplicatePages )
+  {
+    this.detectDuplicatePages.set( detectDuplicatePages );
+  }
+
+  public void setDetectDuplicatePages( Provider<Boolean> detectDuplicatePages )
+  {
+    this.detectDuplicatePages.set( detectDuplicatePages );
   }
 
   @TaskAction
   public void createDjvuFromImages()
   {
-    getLogger().lifecycle( "Beginning '" + book.getName() + "' conversion from image set to DJVU." );
+    getLogger().lifecycle( "Beginning '" + getBookName() + "' conversion from image set to DJVU." );
+    List<PageVariant> variants = checkVariants();
     checkTools();
-    checkBook();
-    if ( !checkDjvu() ) return;
     checkWorkDir();
-    checkBookWorkDir();
-    List<File> djvuPages = convertEachImageToDjvu();
-    createMultipageDjvu( djvuPages );
+    try
+    {
+      checkBook();
+      checkBookWorkDir();
+      checkDjvu();
+      convert( createConverter(variants) );
+    }
+    finally
+    {
+      closeArchive();
+    }
+  }
+
+  private void convert( BookConverter converter )
+  {
+    metrics = new ConversionMetrics();
+    try
+    {
+      converter.convertImages( listImages(), getDjvu(), bookWorkDir, null, getBookName(), metrics );
+      recordDjvus();
+    }
+    catch ( IOException e )
+    {
+      fail( e.getMessage() );
+    }
+    finally
+    {
+      writeReport( getBookName(), metrics );
+    }
   }
 
-  public static boolean toolsFound()
+  public static boolean toolsFound( ToolRegistry toolRegistry )
   {
-    boolean allFound = Utils.executablePath( "c44" ) != null;
-    allFound &= Utils.executablePath( "djvm" ) != null;
-    return allFound;
+    return BookConverter.djvuToolsFound( toolRegistry );
+  }
+
+  private List<PageVariant> checkVariants()
+  {
+    List<PageVariant> variants = new ArrayList<>();
+    try
+    {
+      for ( BookVariant variant : bookVariants.get() ) variants.add( variant.toPageVariant() );
+    }
+    catch ( IllegalArgumentException e )
+    {
+      fail( e.getMessage() );
+    }
+    return variants;
   }
 
   private void checkTools()
   {
-    String c44Path = Utils.executablePath( "c44" );
-    String djvmPath = Utils.executablePath( "djvm" );
+    String c44Path = getToolRegistry().executablePath( "c44" );
+    String djvmPath = getToolRegistry().executablePath( "djvm" );
 
     String recommendation = "Add DjvuLibre installation directory to PATH environment variable.";
     if ( c44Path == null )
@@ -129,35 +467,105 @@ public class CreateDjvuFromImagesTask extends DefaultTask
       getLogger().error( recommendation );
       fail( "DjvuLibre djvm utility not found" );
     }
-    getLogger().lifecycle( "DjvuLibre c44 found at: " + c44Path );
-    getLogger().lifecycle( "DjvuLibre djvm found at: " + djvmPath );
+    getLogger().lifecycle( "DjvuLibre c44 found at: " + c44Path + versionSuffix("c44") );
+    getLogger().lifecycle( "DjvuLibre djvm found at: " + djvmPath + versionSuffix("djvm") );
+  }
+
+  private String versionSuffix( String executableName )
+  {
+    String version = getToolRegistry().version( executableName );
+    return ( version != null ) ? " (v." + version + ")" : "";
+  }
+
+  private static boolean isImage( FileTreeElement element )
+  {
+    String fileName = element.getName().toLowerCase();
+    return fileName.endsWith( ".jpg" ) || fileName.endsWith( ".png" );
   }
 
   private void checkBook()
   {
     getLogger().lifecycle( "Checking book..." );
-    getLogger().lifecycle( "Book file: " + book.getBookFile().getAbsolutePath() );
-    if ( !Utils.isImageSet(book.getBookFile()) )
+    getLogger().lifecycle( "Book file: " + bookFile.get().getAbsolutePath() );
+    if ( Utils.isArchiveName(getImagesDir()) )
+    {
+      checkArchive();
+      return;
+    }
+    getLogger().lifecycle( "Images dir: " + getImagesDir().getAbsolutePath() );
+    // Pages are listed once here, the listing is shared by all stages and cached in work dir for the next run
+    try
+    {
+      manifest = PageManifest.load( getImagesDir(), PageManifest.cacheFile(getWorkDir(), getBookName()) );
+    }
+    catch ( IOException e )
+    {
+      fail( "'" + getBookName() + "' is not a valid image set: " + e.getMessage() );
+    }
+    if ( manifest.isEmpty() ) fail( "'" + getBookName() + "' is not a valid image set" );
+    getLogger().lifecycle( "'" + getBookName() + "' is an image set of " + manifest.getPages().size() + " pages" );
+  }
+
+  /** Archive is kept open until pages are converted, as pages are read straight from it. */
+  private void checkArchive()
+  {
+    getLogger().lifecycle( "Page archive: " + getImagesDir().getAbsolutePath() );
+    try
+    {
+      archive = PageArchive.open( getImagesDir() );
+    }
+    catch ( IOException e )
+    {
+      fail( "'" + getBookName() + "' is not a valid page archive: " + e.getMessage() );
+    }
+    if ( archive.getPages().isEmpty() )
+    {
+      fail( "'" + getBookName() + "' page archive has no JPG or PNG pages" );
+    }
+    getLogger().lifecycle( "'" + getBookName() + "' is a page archive of " + archive.getPages().size() + " pages" );
+  }
+
+  private void closeArchive()
+  {
+    if ( archive == null ) return;
+    try
+    {
+      archive.close();
+    }
+    catch ( IOException e )
+    {
+      getLogger().warn( "Failed to close page archive: " + e.getMessage() );
+    }
+    archive = null;
+  }
+
+  /**
+   * Task never finishes without its DJVU files, so existing DJVU, which the task may not replace, fails the task.
+   * DJVU is replaced with forceCleanUp, or if it is unchanged DJVU of an earlier run, as recorded by outputs journal.
+   */
+  private void checkDjvu()
+  {
+    try ( ConversionJournal outputs = openOutputsJournal() )
+    {
+      for ( File djvu : getDjvus() ) checkDjvu( djvu, outputs );
+    }
+    catch ( IOException e )
     {
-      getLogger().lifecycle( "'" + book.getName() + "' book file is not an image set. Checking images dir..." );
-      getLogger().lifecycle( "Images dir: " + imagesDir.getAbsolutePath() );
-      if ( !Utils.isImageSet(imagesDir) ) fail( "'" + book.getName() + "' is not a valid image set" );
+      fail( "Failed to read journal of '" + getBookName() + "' DJVU files: " + e.getMessage() );
     }
-    getLogger().lifecycle( "'" + book.getName() + "' seems to be an image set" );
   }
 
-  private boolean checkDjvu()
+  private void checkDjvu( File djvu, ConversionJournal outputs ) throws IOException
   {
     if ( djvu.exists() )
     {
-      if ( !book.forceCleanUp() )
+      if ( !forceCleanUp.get() && !outputs.isCompleted(djvu.getName(), OUTPUTS_JOURNAL_HEADER, djvu) )
       {
         getLogger().error( "Found destination DJVU: " + djvu.getAbsolutePath() );
         getLogger().error( "You may accidentally overwrite this file." );
-        getLogger().error( "You must set 'forceCleanUp = true' in '" + book.getName() + "' block" );
+        getLogger().error( "You must set 'forceCleanUp = true' in '" + getBookName() + "' block" );
         getLogger().error( "or manually delete DJVU file." );
-        getLogger().error( "Task will not proceed." );
-        return false;
+        fail( "Found destination DJVU, which is not written by '" + getBookName() + "' conversion: " + djvu.getName() );
       }
       else
       {
@@ -168,8 +576,28 @@ public class CreateDjvuFromImagesTask extends DefaultTask
         getLogger().lifecycle( "Deleted DJVU: " + djvu.getName() );
       }
     }
+  }
+
+  /** Records written DJVU files, so that the next run may replace them. */
+  private void recordDjvus() throws IOException
+  {
+    try ( ConversionJournal outputs = openOutputsJournal() )
+    {
+      for ( File djvu : getDjvus() ) outputs.recordCompleted( djvu.getName(), OUTPUTS_JOURNAL_HEADER, djvu );
+    }
+  }
 
-    return true;
+  private ConversionJournal openOutputsJournal() throws IOException
+  {
+    return openOutputsJournal( getOutputsJournal() );
+  }
+
+  private List<File> getDjvus()
+  {
+    List<File> djvus = new ArrayList<>();
+    djvus.add( getDjvu() );
+    djvus.addAll( getVariantDjvus().values() );
+    return djvus;
   }
 
   private void checkWorkDir()
@@ -191,9 +619,9 @@ public class CreateDjvuFromImagesTask extends DefaultTask
 
   private void checkBookWorkDir()
   {
-    getLogger().lifecycle( "Checking '" + book.getName() + "' work dir..." );
+    getLogger().lifecycle( "Checking '" + getBookName() + "' work dir..." );
 
-    bookWorkDir = new File( getWorkDir(), book.getName() );
+    bookWorkDir = new File( getWorkDir(), getBookName() );
     switch ( Utils.createDirIfNotExists(bookWorkDir) )
     {
       case EXISTS:
@@ -204,159 +632,68 @@ public class CreateDjvuFromImagesTask extends DefaultTask
         getLogger().lifecycle( "Work dir created: " + bookWorkDir.getAbsolutePath() );
         break;
 
-      default: fail( "'" + book.getName() + "' work dir not found nor created" );
+      default: fail( "'" + getBookName() + "' work dir not found nor created" );
     }
   }
 
-  private List<File> convertEachImageToDjvu()
+  private List<PageImage> listImages()
   {
-    getLogger().lifecycle( "Converting each image into single page DJVU..." );
-
-    List<File> djvuPages = new LinkedList<>();
+    return ( archive != null ) ? archive.getPages() : PageImage.of( manifest.getFiles() );
+  }
 
-    File[] files = imagesDir.listFiles();
-    if ( files != null )
+  private BookConverter createConverter( List<PageVariant> variants )
+  {
+    BookConverter converter = new BookConverter( getToolRegistry(), getConcurrencyBudget().getBudget(), getLogger()::lifecycle );
+    converter.setDetectBlankPages( getDetectBlankPages() );
+    converter.setDetectGrayPages( getDetectGrayPages() );
+    converter.setDetectDuplicatePages( getDetectDuplicatePages() );
+    converter.setKeepIntermediates( keepIntermediates.get() );
+    try
     {
-      for ( File file : files )
-      {
-        boolean fileSupported = Utils.isJpg(file) || Utils.isPng(file);
-        if ( !fileSupported ) continue;
-
-        File djvuPage = new File( bookWorkDir, Utils.getFilenameWithoutExtension(file.getName()) + ".djvu" );
-        File tmpPortableMap = new File( bookWorkDir, Utils.getFilenameWithoutExtension(file.getName()) + ".pm" );
-
-        String portableMapExt = Utils.imageToPortableMap( file, tmpPortableMap, MakeDjvuPlugin.PLUGIN_NAME );
-        if ( portableMapExt == null )
-        {
-          fail( "Failed to convert " + file.getName() + ": unsupported format." );
-        }
-
-        String correctPmName = Utils.getFilenameWithoutExtension( tmpPortableMap.getName() ) + "." + portableMapExt;
-        File portableMap = new File( bookWorkDir, correctPmName );
-        if ( !tmpPortableMap.renameTo(portableMap) )
-        {
-          fail( "Failed to rename " + tmpPortableMap.getName() + " to " + portableMap.getName() );
-        }
-
-        try
-        {
-          ProcessBuilder processBuilder = getProcessBuilderFor( portableMap, djvuPage );
-          if ( processBuilder == null )
-          {
-            fail( "Failed to create process for " + portableMap.getName() );
-          }
-          else
-          {
-            Process process = processBuilder.start();
-            process.waitFor();
-          }
-        }
-        catch ( IOException | InterruptedException e )
-        {
-          fail( "Failed to convert " + file.getName() );
-        }
-
-        if ( !djvuPage.exists() && !djvuPage.isFile() )
-        {
-          fail( djvuPage.getName() + " not exists after conversion process" );
-        }
-
-        djvuPages.add( djvuPage );
-
-        // Portable maps are huge and unnecessary, so they are deleted
-        if ( !portableMap.delete() )
-        {
-          fail( "Failed to delete " + portableMap.getName() );
-        }
-
-        getLogger().lifecycle( file.getName() + " converted to " + djvuPage.getName() );
-      }
+      converter.setCropMode( MarginCrop.modeFromName(getCropMargins()) );
+      converter.setMaxBytes( (long) getMaxMegabytes() * 1024 * 1024 );
+      converter.setVariants( variants );
+      if ( getJpgToPng() ) converter.setPngCopies( createPngWriteParam() );
+      converter.setPageWorkers( getPageWorkers() );
     }
-    else
+    catch ( IllegalArgumentException e )
     {
-      fail( "BUG: Images dir points to file" );
+      fail( e.getMessage() );
     }
-
-    getLogger().lifecycle( djvuPages.size() + " images converted" );
-    return djvuPages;
+    return converter;
   }
 
-  private void createMultipageDjvu( List<File> djvuPages )
+  /** Copies share cores with encoding of pages, so every copy is compressed by one thread. */
+  private PngWriteParam createPngWriteParam()
   {
-    if ( djvuPages.size() < 1 ) return;
-    getLogger().lifecycle( "Creating multipage DJVU from single DJVU pages..." );
-
-    // Create book from first page
-    File firstPage = djvuPages.get( 0 );
-    ProcessBuilder processBuilder = new ProcessBuilder(
-      "djvm",
-      "-c", // create
-      "\"" + djvu.getAbsolutePath() + "\"",
-      "\"" + firstPage.getAbsolutePath() + "\""
-    );
-
-    try
+    if ( archive != null )
     {
-      Process process = processBuilder.start();
-      process.waitFor();
+      getLogger().warn( "Pages of archive are never replaced, 'jpgToPng' is ignored" );
+      return null;
     }
-    catch ( IOException | InterruptedException e )
-    {
-      fail( "Failed to create " + djvu.getName() + " from " + firstPage.getName() );
-    }
-    // Now skip first page
-    djvuPages.remove( 0 );
-
-    getLogger().lifecycle( "Created book with first page" );
-
-    if ( !book.keepIntermediates() )
+    PngWriteParam param = new PngWriteParam();
+    try
     {
-      if ( firstPage.delete() ) getLogger().lifecycle( "Deleted " + firstPage.getName() );
+      param.setDeflateLevel( getPngCompressionLevel() );
+      param.setFilter( PngWriteParam.Filter.valueOf(getPngFilter().toUpperCase(Locale.ROOT)) );
     }
-
-    // Append rest pages to main book file
-    for ( File djvuPage : djvuPages )
+    catch ( IllegalArgumentException e )
     {
-      processBuilder = new ProcessBuilder(
-        "djvm",
-        "-i", // insert
-        "\"" + djvu.getAbsolutePath() + "\"",
-        "\"" + djvuPage.getAbsolutePath() + "\""
-      );
-
-      try
-      {
-        Process process = processBuilder.start();
-        process.waitFor();
-      }
-      catch ( IOException | InterruptedException e )
-      {
-        fail( "Failed to append " + djvuPage.getName() + " to " + djvu.getName() );
-      }
-
-      getLogger().lifecycle( djvuPage.getName() + " appended to " + djvu.getName() );
-
-      if ( !book.keepIntermediates() )
-      {
-        if ( djvuPage.delete() ) getLogger().lifecycle( "Deleted " + djvuPage.getName() );
-      }
+      fail( "Wrong PNG settings: " + e.getMessage() );
     }
+    return param;
   }
 
-  private ProcessBuilder getProcessBuilderFor( File portableMap, File outputDjvu )
+  /** Report is written even if task failed. Report failure never fails the task. */
+  private void writeReport( String bookName, ConversionMetrics metrics )
   {
-    switch ( Utils.getFileExtension(portableMap.getName()) )
+    try
     {
-      case "ppm":
-      case "pgm":
-        return new ProcessBuilder(
-          "c44",
-          "-decibel", "48", // max quality
-          "\"" + portableMap.getAbsolutePath() + "\"",
-          "\"" + outputDjvu.getAbsolutePath() + "\""
-        );
-
-      default: return null;
+      PerformanceReport.update( getReportDir(), bookName, "images-to-djvu", metrics );
+    }
+    catch ( IOException e )
+    {
+      getLogger().warn( "Failed to write performance report: " + e.getMessage() );
     }
   }
 
@@ -0,0 +1,190 @@
+package com.epchain.makedjvuplugin;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Decodes JPG pages with djpeg of libjpeg-turbo, which writes PPM or PGM into pipe.
+ * Pixels of portable map are read straight into raster of decoded page, so JPEG is decoded by SIMD code
+ * of native library, and no ImageIO reader with its buffers is allocated per page.
+ * Page is piped into djpeg, so entries of page archive are decoded without extraction.
+ */
+public final class DjpegDecoder implements PageDecoder
+{
+  /** djpeg reports errors in a line or two, longer output is cut. */
+  private static final int ERROR_OUTPUT_LIMIT = 1024;
+
+  private final String executable;
+
+  /** @param executable path of djpeg */
+  public DjpegDecoder( String executable )
+  {
+    this.executable = executable;
+  }
+
+  @Override
+  public String getName()
+  {
+    return "djpeg";
+  }
+
+  @Override
+  public boolean accepts( PageImage image )
+  {
+    String name = image.getName().toLowerCase( Locale.ROOT );
+    return name.endsWith( ".jpg" ) || name.endsWith( ".jpeg" );
+  }
+
+  /** Throws {@link IOException}, if djpeg fails, e.g. on CMYK JPEG, which has no portable map format. */
+  @Override
+  public BufferedImage decode( PageImage image ) throws IOException
+  {
+    ProcessBuilder processBuilder = new ProcessBuilder( executable );
+    if ( image instanceof PageImage.FilePage ) processBuilder.redirectInput( ((PageImage.FilePage) image).getFile() );
+    Process process = processBuilder.start();
+
+    // Page is written and errors are read by helper thread, as pipes of process have small buffers
+    ByteArrayOutputStream errors = new ByteArrayOutputStream();
+    IOException[] feedError = new IOException[1];
+    Thread feeder = new Thread( () ->
+    {
+      if ( !(image instanceof PageImage.FilePage) )
+      {
+        try ( InputStream in = image.openStream(); OutputStream out = process.getOutputStream() )
+        {
+          copy( in, out, null );
+        }
+        catch ( IOException e )
+        {
+          // djpeg, which failed, closes its input early
+          feedError[0] = e;
+        }
+      }
+      try
+      {
+        copy( process.getErrorStream(), null, errors );
+      }
+      catch ( IOException e )
+      {
+        // Errors are optional part of message
+      }
+    }, "djpeg " + image.getName() );
+    feeder.setDaemon( true );
+    feeder.start();
+
+    BufferedImage decoded;
+    try ( InputStream in = new BufferedInputStream(process.getInputStream(), 65536) )
+    {
+      decoded = readPortableMap( in );
+    }
+    catch ( IOException e )
+    {
+      // Process is not destroyed, as its error output explains failure
+      decoded = null;
+    }
+
+    try
+    {
+      int exitCode = process.waitFor();
+      feeder.join();
+      // Exit code 0 means complete JPEG without warnings, so page is decoded even if its tail was not read
+      if ( exitCode == 0 && decoded != null ) return decoded;
+      String message = new String( errors.toByteArray(), StandardCharsets.UTF_8 ).trim();
+      if ( message.isEmpty() && feedError[0] != null ) message = feedError[0].getMessage();
+      throw new IOException( "djpeg failed to decode " + image.getName() + (message.isEmpty() ? "" : ": " + message) );
+    }
+    catch ( InterruptedException e )
+    {
+      process.destroy();
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException( "Interrupted while decoding " + image.getName() );
+    }
+  }
+
+  /**
+   * Reads binary PPM (P6) into {@link BufferedImage#TYPE_3BYTE_BGR} image or PGM (P5)
+   * into {@link BufferedImage#TYPE_BYTE_GRAY} image. Only 8-bit samples are supported.
+   */
+  public static BufferedImage readPortableMap( InputStream in ) throws IOException
+  {
+    String magic = readToken( in );
+    int width = Integer.parseInt( readToken(in) );
+    int height = Integer.parseInt( readToken(in) );
+    int maxValue = Integer.parseInt( readToken(in) );
+    if ( !(magic.equals("P6") || magic.equals("P5")) || maxValue != 255 || width <= 0 || height <= 0 )
+    {
+      throw new IOException( "Unsupported portable map " + magic + " " + width + "x" + height + " " + maxValue );
+    }
+
+    boolean colour = magic.equals( "P6" );
+    BufferedImage image = new BufferedImage(
+      width, height, colour ? BufferedImage.TYPE_3BYTE_BGR : BufferedImage.TYPE_BYTE_GRAY
+    );
+    byte[] pixels = ( (DataBufferByte) image.getRaster().getDataBuffer() ).getData();
+    readFully( in, pixels );
+    if ( colour )
+    {
+      // RGB samples of PPM into BGR order of raster
+      for ( int i = 0; i < pixels.length; i += 3 )
+      {
+        byte red = pixels[i];
+        pixels[i] = pixels[i + 2];
+        pixels[i + 2] = red;
+      }
+    }
+    return image;
+  }
+
+  /** Reads header token, skipping comments, and the single whitespace after it. */
+  private static String readToken( InputStream in ) throws IOException
+  {
+    StringBuilder token = new StringBuilder();
+    int c = in.read();
+    while ( true )
+    {
+      if ( c == '#' )
+      {
+        while ( c != '\n' && c != '\r' && c != -1 ) c = in.read();
+      }
+      else if ( c == -1 || !Character.isWhitespace(c) )
+      {
+        break;
+      }
+      c = in.read();
+    }
+    while ( c != -1 && !Character.isWhitespace(c) )
+    {
+      if ( token.length() > 16 ) throw new IOException( "Not a portable map" );
+      token.append( (char) c );
+      c = in.read();
+    }
+    if ( token.length() == 0 ) throw new EOFException( "Truncated portable map" );
+    return token.toString();
+  }
+
+  private static void readFully( InputStream in, byte[] buffer ) throws IOException
+  {
+    int offset = 0;
+    while ( offset < buffer.length )
+    {
+      int read = in.read( buffer, offset, buffer.length - offset );
+      if ( read < 0 ) throw new EOFException( "Truncated portable map" );
+      offset += read;
+    }
+  }
+
+  /** Copies stream into output, or into limited buffer, if output is null. */
+  private static void copy( InputStream in, OutputStream out, ByteArrayOutputStream limited ) throws IOException
+  {
+    byte[] buffer = new byte[ 65536 ];
+    int read;
+    while ( (read = in.read(buffer)) >= 0 )
+    {
+      if ( out != null ) out.write( buffer, 0, read );
+      else if ( limited != null && limited.size() < ERROR_OUTPUT_LIMIT ) limited.write( buffer, 0, read );
+    }
+  }
+}
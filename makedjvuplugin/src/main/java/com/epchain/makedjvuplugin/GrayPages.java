@@ -0,0 +1,128 @@
+package com.epchain.makedjvuplugin;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Detects colour pages, which are effectively gray, such as gray scans saved as colour JPEG.
+ * Such pages are stored as grayscale, so portable map is written as PGM of one byte per pixel
+ * instead of PPM of three, and c44 does not encode chroma. Pages are checked in a single pass
+ * over raster data, which stops at the first few coloured pixels. Counts pages of a book, which were downgraded.
+ */
+public final class GrayPages
+{
+  /** Pixel is neutral, if its colour channels differ by no more than this. JPEG noise of gray scans fits into it. */
+  private static final int TOLERANCE = 8;
+  /** Page is gray, if no more than this fraction of pixels is coloured. Tolerates isolated JPEG artifacts. */
+  private static final double COLOURED_FRACTION = 0.0001;
+
+  private final boolean detectGrayPages;
+  private final AtomicInteger downgradedPages = new AtomicInteger();
+  private final AtomicLong savedBytes = new AtomicLong();
+
+  /** @param detectGrayPages whether gray colour pages are stored as grayscale */
+  public GrayPages( boolean detectGrayPages )
+  {
+    this.detectGrayPages = detectGrayPages;
+  }
+
+  public boolean detectsGrayPages()
+  {
+    return detectGrayPages;
+  }
+
+  /** Returns grayscale copy of page, if page is gray colour page, or given page otherwise. */
+  public BufferedImage apply( BufferedImage page )
+  {
+    if ( !detectGrayPages || !isGray(page) ) return page;
+    BufferedImage gray = toGray( page );
+    downgradedPages.incrementAndGet();
+    savedBytes.addAndGet( Utils.portableMapSize(page) - Utils.portableMapSize(gray) );
+    return gray;
+  }
+
+  /** Returns number of pages stored as grayscale. */
+  public int getDowngradedPages()
+  {
+    return downgradedPages.get();
+  }
+
+  /** Returns portable map bytes saved by grayscale pages. */
+  public long getSavedBytes()
+  {
+    return savedBytes.get();
+  }
+
+  /** Describes downgraded pages of a book for log. */
+  public String getSummary()
+  {
+    return summary( getDowngradedPages(), getSavedBytes() );
+  }
+
+  public static String summary( int downgradedPages, long savedBytes )
+  {
+    return String.format(
+      Locale.ROOT, "%d pages stored as grayscale, %.1f MB of portable maps saved", downgradedPages, savedBytes / 1e6
+    );
+  }
+
+  /**
+   * Returns true, if colour page has almost no coloured pixels. Only colour types,
+   * which are written as PPM, are checked. Their raster is read as is, like portable map writer does.
+   */
+  public static boolean isGray( BufferedImage page )
+  {
+    int bytesPerPixel;
+    switch ( page.getType() )
+    {
+      case BufferedImage.TYPE_3BYTE_BGR: bytesPerPixel = 3; break;
+      case BufferedImage.TYPE_4BYTE_ABGR: bytesPerPixel = 4; break;
+      default: return false;
+    }
+
+    byte[] pixels = ((DataBufferByte) page.getRaster().getDataBuffer()).getData();
+    int colorOffset = bytesPerPixel - 3;
+    long pixelNum = (long) page.getWidth() * page.getHeight();
+    long maxColoured = (long) ( pixelNum * COLOURED_FRACTION );
+    long coloured = 0;
+    int end = (int) ( pixelNum * bytesPerPixel );
+    for ( int i = colorOffset; i < end; i += bytesPerPixel )
+    {
+      int blue = pixels[i] & 0xFF;
+      int green = pixels[i + 1] & 0xFF;
+      int red = pixels[i + 2] & 0xFF;
+      int max = Math.max( red, Math.max(green, blue) );
+      int min = Math.min( red, Math.min(green, blue) );
+      if ( max - min > TOLERANCE && ++coloured > maxColoured ) return false;
+    }
+    return true;
+  }
+
+  /** Converts colour page into grayscale page by luma. Transparent pixels are blended with white. */
+  public static BufferedImage toGray( BufferedImage page )
+  {
+    int width = page.getWidth();
+    int height = page.getHeight();
+    BufferedImage gray = new BufferedImage( width, height, BufferedImage.TYPE_BYTE_GRAY );
+    byte[] grayPixels = ((DataBufferByte) gray.getRaster().getDataBuffer()).getData();
+    int[] argb = new int[ width ];
+    for ( int y = 0; y < height; ++y )
+    {
+      page.getRGB( 0, y, width, 1, argb, 0, width );
+      int rowStart = y * width;
+      for ( int x = 0; x < width; ++x )
+      {
+        int pixel = argb[x];
+        // Integer approximation of Rec. 601 luma
+        int luminance = ( 299 * ((pixel >> 16) & 0xFF) + 587 * ((pixel >> 8) & 0xFF) + 114 * (pixel & 0xFF) + 500 ) / 1000;
+        int alpha = pixel >>> 24;
+        luminance = ( luminance * alpha + 255 * (255 - alpha) ) / 255;
+        grayPixels[rowStart + x] = (byte) luminance;
+      }
+    }
+    return gray;
+  }
+}
@@ -1,29 +1,141 @@
 package com.epchain.makedjvuplugin;
 
 import org.gradle.api.DefaultTask;
-import org.gradle.api.tasks.InputDirectory;
-import org.gradle.api.tasks.OutputDirectory;
-import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.file.FileTree;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.*;
 
 import javax.imageio.ImageIO;
+import javax.inject.Inject;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/**
+ * Converts JPG images to PNG and deletes JPGs. Pages are converted concurrently within
+ * build-wide budget, every PNG is written into temporary file and moved into place when complete.
+ * Cores, which are not used by concurrent pages, compress blocks of rows of a single page.
+ */
 public class JpgToPngTask extends DefaultTask
 {
-  private File imagesDir;
+  private final Property<File> imagesDir;
+  private final Property<Integer> compressionLevel;
+  private final Property<String> filter;
+  private final Property<ConcurrencyBudgetService> concurrencyBudget;
+  private final Property<File> reportDir;
+  private final ObjectFactory objects;
 
-  @InputDirectory
+  @Inject
+  public JpgToPngTask( ObjectFactory objects )
+  {
+    this.objects = objects;
+    imagesDir = objects.property( File.class );
+    compressionLevel = objects.property( Integer.class );
+    filter = objects.property( String.class );
+    compressionLevel.set( 6 );
+    filter.set( PngWriteParam.Filter.ADAPTIVE.name() );
+    concurrencyBudget = objects.property( ConcurrencyBudgetService.class );
+    reportDir = objects.property( File.class );
+  }
+
+  /** Images dir is changed in place: JPGs are replaced with PNGs. */
   @OutputDirectory
   public File getImagesDir()
   {
-    return imagesDir;
+    return imagesDir.get();
+  }
+
+  /** JPG images to convert. Task is skipped, if there are none. */
+  @InputFiles
+  @SkipWhenEmpty
+  @PathSensitive( PathSensitivity.RELATIVE )
+  public FileTree getJpgs()
+  {
+    return objects.fileTree().from( getImagesDir() ).matching(
+      tree -> tree.include( element -> !element.isDirectory() && element.getName().toLowerCase().endsWith(".jpg") )
+    );
   }
 
   public void setImagesDir( File imagesDir )
   {
-    this.imagesDir = imagesDir;
+    this.imagesDir.set( imagesDir );
+  }
+
+  public void setImagesDir( Provider<File> imagesDir )
+  {
+    this.imagesDir.set( imagesDir );
+  }
+
+  /** PNG deflate level from 0 (fastest) to 9 (smallest). */
+  @Input
+  public int getCompressionLevel()
+  {
+    return compressionLevel.get();
+  }
+
+  public void setCompressionLevel( int compressionLevel )
+  {
+    this.compressionLevel.set( compressionLevel );
+  }
+
+  public void setCompressionLevel( Provider<Integer> compressionLevel )
+  {
+    this.compressionLevel.set( compressionLevel );
+  }
+
+  /** PNG scanline filter: none, sub, up, average, paeth or adaptive. */
+  @Input
+  public String getFilter()
+  {
+    return filter.get();
+  }
+
+  public void setFilter( String filter )
+  {
+    this.filter.set( filter );
+  }
+
+  public void setFilter( Provider<String> filter )
+  {
+    this.filter.set( filter );
+  }
+
+  @Internal
+  public ConcurrencyBudgetService getConcurrencyBudget()
+  {
+    return concurrencyBudget.get();
+  }
+
+  public void setConcurrencyBudget( Provider<ConcurrencyBudgetService> concurrencyBudget )
+  {
+    this.concurrencyBudget.set( concurrencyBudget );
+    usesService( concurrencyBudget );
+  }
+
+  /** Directory of book performance report. */
+  @Internal
+  public File getReportDir()
+  {
+    return reportDir.get();
+  }
+
+  public void setReportDir( File reportDir )
+  {
+    this.reportDir.set( reportDir );
+  }
+
+  public void setReportDir( Provider<File> reportDir )
+  {
+    this.reportDir.set( reportDir );
   }
 
   @TaskAction
@@ -31,47 +143,137 @@ public class JpgToPngTask extends DefaultTask
   {
     getLogger().lifecycle( "Converting JPG files to PNG" );
 
-    File[] files = imagesDir.listFiles();
-    int convertedJgps = 0;
-    if ( files != null )
+    PageManifest manifest = null;
+    try
     {
-      for ( File file : files )
-      {
-        if ( !Utils.isJpg(file) ) continue;
+      manifest = PageManifest.scan( getImagesDir() );
+    }
+    catch ( IOException e )
+    {
+      fail( "BUG: Images dir points to file" );
+    }
 
-        File png = new File( imagesDir, Utils.getFilenameWithoutExtension(file.getName()) + ".png" );
-        if ( png.exists() && png.isFile() )
-        {
-          fail( png.getName() + " already exists. Aborting operation." );
-        }
+    // Check all pages before any JPG is deleted, listing already tells which PNGs exist
+    List<File> jpgs = new ArrayList<>();
+    for ( PageManifest.Page page : manifest.getPages() )
+    {
+      File file = page.getFile();
+      if ( !file.getName().toLowerCase(Locale.ROOT).endsWith(".jpg") ) continue;
+      PageManifest.Page png = manifest.getPage( pngFor(file).getName() );
+      if ( png != null ) fail( png.getFile().getName() + " already exists. Aborting operation." );
+      jpgs.add( file );
+    }
 
-        try
+    PngWriteParam param = createWriteParam();
+    ConversionMetrics metrics = new ConversionMetrics();
+    ConcurrencyBudget budget = getConcurrencyBudget().getBudget();
+    int convertedJgps = 0;
+    if ( !jpgs.isEmpty() )
+    {
+      int workers = Math.min( jpgs.size(), budget.getMaxDecodeSlots() );
+      param.setDeflateThreads( Math.max(1, Runtime.getRuntime().availableProcessors() / workers) );
+      ExecutorService executor = Executors.newFixedThreadPool( workers );
+      try
+      {
+        List<Future<?>> pages = new ArrayList<>( jpgs.size() );
+        for ( File jpg : jpgs )
         {
-          final BufferedImage image = ImageIO.read( file );
-          ImageIO.write( image, "png", png );
+          pages.add( executor.submit(() -> convertJpgToPng(jpg, param, budget, metrics)) );
         }
-        catch ( IOException e )
+        for ( Future<?> page : pages )
         {
-          fail( "Failed to convert " + file.getName() + " to PNG" );
+          page.get();
+          ++convertedJgps;
         }
+      }
+      catch ( InterruptedException e )
+      {
+        Thread.currentThread().interrupt();
+        fail( "Interrupted while converting images" );
+      }
+      catch ( ExecutionException e )
+      {
+        // Page failure is already logged
+        if ( e.getCause() instanceof RuntimeException ) throw (RuntimeException) e.getCause();
+        throw new RuntimeException( e.getCause() );
+      }
+      finally
+      {
+        executor.shutdownNow();
+      }
+    }
 
-        if ( !png.exists() && !png.isFile() )
-        {
-          fail( png.getName() + " not exists after conversion process" );
-        }
+    getLogger().lifecycle( convertedJgps + " files converted" );
+    try
+    {
+      PerformanceReport.update( getReportDir(), getReportDir().getName(), "jpg-to-png", metrics );
+    }
+    catch ( IOException e )
+    {
+      getLogger().warn( "Failed to write performance report: " + e.getMessage() );
+    }
+  }
+
+  private PngWriteParam createWriteParam()
+  {
+    PngWriteParam param = new PngWriteParam();
+    try
+    {
+      param.setDeflateLevel( getCompressionLevel() );
+      param.setFilter( PngWriteParam.Filter.valueOf(getFilter().toUpperCase(Locale.ROOT)) );
+    }
+    catch ( IllegalArgumentException e )
+    {
+      fail( "Wrong PNG settings: " + e.getMessage() );
+    }
+    return param;
+  }
+
+  private File pngFor( File jpg )
+  {
+    return new File( getImagesDir(), Utils.getFilenameWithoutExtension(jpg.getName()) + ".png" );
+  }
 
-        getLogger().lifecycle( file.getName() + " converted to " + png.getName() );
-        if ( file.delete() ) getLogger().lifecycle( file.getName() + " deleted" );
+  /** JPG is deleted only after complete PNG is in place. */
+  private void convertJpgToPng( File jpg, PngWriteParam param, ConcurrencyBudget budget, ConversionMetrics metrics )
+  {
+    File png = pngFor( jpg );
+    File tmpPng = new File( getImagesDir(), png.getName() + ".tmp" );
+    try
+    {
+      ConcurrencyBudget.Permit decodeSlot = budget.acquireDecodeSlot();
+      try
+      {
+        long decodeStart = System.nanoTime();
+        final BufferedImage image = ImageIO.read( jpg );
+        metrics.record( ConversionMetrics.DECODE, jpg.getName(), ConversionMetrics.millisSince(decodeStart), jpg.length() );
+        metrics.sampleHeap();
+        if ( image == null ) throw new IOException( "unsupported format" );
 
-        ++convertedJgps;
+        long writeStart = System.nanoTime();
+        new PngEncoder( param ).write( image, tmpPng );
+        Conversions.moveIntoPlace( tmpPng, png );
+        metrics.record( ConversionMetrics.PNG_WRITE, jpg.getName(), ConversionMetrics.millisSince(writeStart), png.length() );
+      }
+      finally
+      {
+        decodeSlot.release();
       }
     }
-    else
+    catch ( IOException e )
     {
-      fail( "BUG: Images dir points to file" );
+      tmpPng.delete();
+      fail( "Failed to convert " + jpg.getName() + " to PNG: " + e.getMessage() );
+    }
+    catch ( InterruptedException e )
+    {
+      tmpPng.delete();
+      Thread.currentThread().interrupt();
+      fail( "Interrupted while converting " + jpg.getName() );
     }
 
-    getLogger().lifecycle( convertedJgps + " files converted" );
+    getLogger().lifecycle( jpg.getName() + " converted to " + png.getName() );
+    if ( jpg.delete() ) getLogger().lifecycle( jpg.getName() + " deleted" );
   }
 
   private void fail( String message )
@@ -0,0 +1,204 @@
+package com.epchain.makedjvuplugin;
+
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Library settings. Library is a directory tree, where every PDF file
+ * and every directory with images is a book. Books are selected with glob patterns
+ * relative to root directory, such as "scans/**" or "**&#47;*.pdf".
+ */
+public class LibraryPluginExtension
+{
+  private final Property<File> rootDir;
+  private final Property<File> outDir;
+  private final ListProperty<String> includes;
+  private final ListProperty<String> excludes;
+  private final Property<Boolean> forceCleanUp;
+  private final Property<Boolean> keepIntermediates;
+  private final Property<String> cropMargins;
+  private final Property<Integer> maxMegabytes;
+  private final Property<Integer> watchSettleSeconds;
+
+  @Inject
+  public LibraryPluginExtension( SettingsPluginExtension settings, ObjectFactory objects )
+  {
+    rootDir = objects.property( File.class );
+    outDir = objects.property( File.class );
+    includes = objects.listProperty( String.class );
+    excludes = objects.listProperty( String.class );
+    forceCleanUp = objects.property( Boolean.class );
+    keepIntermediates = objects.property( Boolean.class );
+    cropMargins = objects.property( String.class );
+    maxMegabytes = objects.property( Integer.class );
+    watchSettleSeconds = objects.property( Integer.class );
+    // Assign default values
+    outDir.set( settings.getOutDirProvider() );
+    forceCleanUp.set( false );
+    keepIntermediates.set( false );
+    cropMargins.set( "none" );
+    maxMegabytes.set( 0 );
+    watchSettleSeconds.set( 10 );
+  }
+
+  /** Library root directory. Library task is available only if root directory is set. */
+  public File getRootDir()
+  {
+    return rootDir.getOrNull();
+  }
+
+  public Provider<File> getRootDirProvider()
+  {
+    return rootDir;
+  }
+
+  public void setRootDir( File rootDir )
+  {
+    this.rootDir.set( rootDir );
+  }
+
+  /** Output directory. DJVU files are placed into the same relative paths, as their books. */
+  public File getOutDir()
+  {
+    return outDir.get();
+  }
+
+  public Provider<File> getOutDirProvider()
+  {
+    return outDir;
+  }
+
+  public void setOutDir( File outDir )
+  {
+    this.outDir.set( outDir );
+  }
+
+  /** Book path patterns to include. If none specified, all books are included. */
+  public List<String> getIncludes()
+  {
+    return includes.get();
+  }
+
+  public Provider<List<String>> getIncludesProvider()
+  {
+    return includes;
+  }
+
+  public void setIncludes( List<String> includes )
+  {
+    this.includes.set( includes );
+  }
+
+  public void include( String... patterns )
+  {
+    includes.addAll( Arrays.asList(patterns) );
+  }
+
+  /** Book path patterns to exclude. */
+  public List<String> getExcludes()
+  {
+    return excludes.get();
+  }
+
+  public Provider<List<String>> getExcludesProvider()
+  {
+    return excludes;
+  }
+
+  public void setExcludes( List<String> excludes )
+  {
+    this.excludes.set( excludes );
+  }
+
+  public void exclude( String... patterns )
+  {
+    excludes.addAll( Arrays.asList(patterns) );
+  }
+
+  /** Overwrite existing DJVU files. Otherwise, books with existing DJVU are skipped. */
+  public boolean forceCleanUp()
+  {
+    return forceCleanUp.get();
+  }
+
+  public Provider<Boolean> getForceCleanUpProvider()
+  {
+    return forceCleanUp;
+  }
+
+  public void setForceCleanUp( boolean forceCleanUp )
+  {
+    this.forceCleanUp.set( forceCleanUp );
+  }
+
+  /** Keep intermediates, except for large portable maps. */
+  public boolean keepIntermediates()
+  {
+    return keepIntermediates.get();
+  }
+
+  public Provider<Boolean> getKeepIntermediatesProvider()
+  {
+    return keepIntermediates;
+  }
+
+  public void setKeepIntermediates( boolean keepIntermediates )
+  {
+    this.keepIntermediates.set( keepIntermediates );
+  }
+
+  /** Margin crop of pages of every book: "none", "page" or "book". */
+  public String getCropMargins()
+  {
+    return cropMargins.get();
+  }
+
+  public Provider<String> getCropMarginsProvider()
+  {
+    return cropMargins;
+  }
+
+  public void setCropMargins( String cropMargins )
+  {
+    this.cropMargins.set( cropMargins );
+  }
+
+  /** Size budget of every book DJVU in megabytes, or 0 for default decibel. */
+  public int getMaxMegabytes()
+  {
+    return maxMegabytes.get();
+  }
+
+  public Provider<Integer> getMaxMegabytesProvider()
+  {
+    return maxMegabytes;
+  }
+
+  public void setMaxMegabytes( int maxMegabytes )
+  {
+    this.maxMegabytes.set( maxMegabytes );
+  }
+
+  /** In watch mode, new book is converted after it has no changes for this time, so it is completely copied. */
+  public int getWatchSettleSeconds()
+  {
+    return watchSettleSeconds.get();
+  }
+
+  public Provider<Integer> getWatchSettleSecondsProvider()
+  {
+    return watchSettleSeconds;
+  }
+
+  public void setWatchSettleSeconds( int watchSettleSeconds )
+  {
+    this.watchSettleSeconds.set( watchSettleSeconds );
+  }
+}
@@ -0,0 +1,220 @@
+package com.epchain.makedjvuplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line entry point of plugin jar. Converts PDF files and directories with images into DJVU
+ * with {@link BookConverter}, without Gradle startup and project configuration.
+ * Books are converted one after another, pages of every book are converted concurrently.
+ * Exit code is 0, if all books are converted or skipped, 1, if some books failed, and 2 for usage errors.
+ */
+public final class MakeDjvu
+{
+  private static final String USAGE =
+    "Usage: java -jar makedjvuplugin.jar [options] <book.pdf | images dir | book.cbz>...\n" +
+    "Converts every PDF file, directory with JPG/PNG pages or CBZ/ZIP page archive into DJVU book.\n" +
+    "Options:\n" +
+    "  --out <dir>              Output directory for DJVU. Current directory by default\n" +
+    "  --work <dir>             Directory for intermediates. [temp dir]/makedjvu by default\n" +
+    "  --crop <none|page|book>  Crop page margins\n" +
+    "  --blank-pages            Replace near-blank pages with blank ones\n" +
+    "  --no-gray-pages          Keep gray colour pages in colour\n" +
+    "  --no-duplicate-pages     Encode every page, even if another page has the same pixels\n" +
+    "  --max-megabytes <n>      Size budget of every DJVU: decibel is lowered until book fits it\n" +
+    "  --worker <host:port>     Page worker process, which encodes pages. May be repeated\n" +
+    "  --jpg-to-png             Replace JPG pages of directories with PNG, written from pages decoded for encoding\n" +
+    "  --keep-intermediates     Keep EPUB, extracted images and single page DJVU files\n" +
+    "  --force                  Overwrite existing DJVU. Otherwise such books are skipped\n" +
+    "  --max-processes <n>      Maximum number of concurrent tools. Number of processors by default\n" +
+    "  --reports                Write performance report of every book into [out]/reports\n" +
+    "  --help                   Print this message\n" +
+    "Bookmarks are taken from bookmarks.lsp inside images directory or from [name].lsp next to PDF or archive.";
+
+  private MakeDjvu()
+  {
+  }
+
+  public static void main( String[] args )
+  {
+    System.exit( run(args) );
+  }
+
+  /** Runs command line and returns exit code. */
+  public static int run( String[] args )
+  {
+    Options options;
+    try
+    {
+      options = Options.parse( args );
+    }
+    catch ( IllegalArgumentException e )
+    {
+      System.err.println( e.getMessage() );
+      System.err.println( USAGE );
+      return 2;
+    }
+    if ( options.help )
+    {
+      System.out.println( USAGE );
+      return 0;
+    }
+
+    ConcurrencyBudget defaults = ConcurrencyBudget.withDefaults();
+    ConcurrencyBudget budget = ( options.maxProcesses > 0 )
+      ? new ConcurrencyBudget( options.maxProcesses, Math.max(1, options.maxProcesses / 2), defaults.getScratchSpace() )
+      : defaults;
+    BookConverter converter = new BookConverter( ToolRegistry.fromEnvironment(), budget, System.out::println );
+    converter.setCropMode( options.cropMode );
+    converter.setDetectBlankPages( options.detectBlankPages );
+    converter.setDetectGrayPages( options.detectGrayPages );
+    converter.setDetectDuplicatePages( options.detectDuplicatePages );
+    converter.setKeepIntermediates( options.keepIntermediates );
+    converter.setMaxBytes( (long) options.maxMegabytes * 1024 * 1024 );
+    if ( options.jpgToPng ) converter.setPngCopies( new PngWriteParam() );
+    converter.setPageWorkers( options.pageWorkers );
+
+    int failed = 0;
+    Map<File, File> djvus = new HashMap<>();
+    for ( File source : options.sources )
+    {
+      String bookName = ( Utils.isPdfName(source) || Utils.isArchiveName(source) )
+        ? Utils.getFilenameWithoutExtension( source.getName() ) : source.getName();
+      File djvu = new File( options.outDir, bookName + ".djvu" );
+      File conflicting = djvus.putIfAbsent( djvu, source );
+      if ( conflicting != null )
+      {
+        System.err.println( "'" + source + "' failed: output DJVU conflicts with " + conflicting );
+        ++failed;
+        continue;
+      }
+      if ( !source.exists() )
+      {
+        System.err.println( "'" + bookName + "' failed: book not found: " + source );
+        ++failed;
+        continue;
+      }
+      if ( djvu.exists() && !options.force )
+      {
+        System.out.println( "'" + bookName + "' skipped: " + djvu + " exists" );
+        continue;
+      }
+
+      System.out.println( "Converting '" + bookName + "'..." );
+      long start = System.nanoTime();
+      ConversionMetrics metrics = new ConversionMetrics();
+      try
+      {
+        BookConverter.BookResult result = converter.convert(
+          source, djvu, new File( options.workDir, bookName ), bookName, metrics
+        );
+        System.out.println(
+          "'" + bookName + "' converted in " + ConversionMetrics.millisSince( start ) / 1000.0 + " s: " +
+          result.getPages() + " pages, " + djvu
+        );
+      }
+      catch ( IOException | RuntimeException e )
+      {
+        System.err.println( "'" + bookName + "' failed: " + e.getMessage() );
+        ++failed;
+      }
+      if ( options.reports ) writeReport( options.outDir, bookName, metrics );
+    }
+    return ( failed > 0 ) ? 1 : 0;
+  }
+
+  private static void writeReport( File outDir, String bookName, ConversionMetrics metrics )
+  {
+    try
+    {
+      PerformanceReport.update( new File(new File(outDir, PerformanceReport.DIR_NAME), bookName), bookName, "cli", metrics );
+    }
+    catch ( IOException e )
+    {
+      System.err.println( "Failed to write performance report of '" + bookName + "': " + e.getMessage() );
+    }
+  }
+
+  /** Parsed command line. */
+  static final class Options
+  {
+    File outDir = new File( "." );
+    File workDir = new File( System.getProperty("java.io.tmpdir"), "makedjvu" );
+    MarginCrop.Mode cropMode = MarginCrop.Mode.NONE;
+    boolean detectBlankPages = false;
+    boolean detectGrayPages = true;
+    boolean detectDuplicatePages = true;
+    boolean keepIntermediates = false;
+    boolean jpgToPng = false;
+    boolean force = false;
+    int maxProcesses = 0;
+    int maxMegabytes = 0;
+    boolean reports = false;
+    boolean help = false;
+    final List<String> pageWorkers = new ArrayList<>();
+    final List<File> sources = new ArrayList<>();
+
+    /** Throws {@link IllegalArgumentException} with message for user, if command line is not valid. */
+    static Options parse( String[] args )
+    {
+      Options options = new Options();
+      for ( int i = 0; i < args.length; ++i )
+      {
+        String arg = args[i];
+        switch ( arg )
+        {
+          case "--out": options.outDir = new File( value(args, ++i, arg) ); break;
+          case "--work": options.workDir = new File( value(args, ++i, arg) ); break;
+          case "--crop": options.cropMode = MarginCrop.modeFromName( value(args, ++i, arg) ); break;
+          case "--blank-pages": options.detectBlankPages = true; break;
+          case "--no-gray-pages": options.detectGrayPages = false; break;
+          case "--no-duplicate-pages": options.detectDuplicatePages = false; break;
+          case "--keep-intermediates": options.keepIntermediates = true; break;
+          case "--jpg-to-png": options.jpgToPng = true; break;
+          case "--worker": options.pageWorkers.add( address(value(args, ++i, arg)) ); break;
+          case "--force": options.force = true; break;
+          case "--reports": options.reports = true; break;
+          case "--help": options.help = true; break;
+          case "--max-processes": options.maxProcesses = positiveInt( value(args, ++i, arg), arg ); break;
+          case "--max-megabytes": options.maxMegabytes = positiveInt( value(args, ++i, arg), arg ); break;
+
+          default:
+            if ( arg.startsWith("--") ) throw new IllegalArgumentException( "Unknown option: " + arg );
+            options.sources.add( new File(arg) );
+        }
+      }
+      if ( options.sources.isEmpty() && !options.help ) throw new IllegalArgumentException( "No books specified" );
+      return options;
+    }
+
+    private static String address( String address )
+    {
+      WorkerProtocol.parseAddress( address );
+      return address;
+    }
+
+    private static String value( String[] args, int index, String option )
+    {
+      if ( index >= args.length ) throw new IllegalArgumentException( "Missing value of " + option );
+      return args[index];
+    }
+
+    private static int positiveInt( String value, String option )
+    {
+      try
+      {
+        int number = Integer.parseInt( value );
+        if ( number > 0 ) return number;
+      }
+      catch ( NumberFormatException e )
+      {
+        // Reported below
+      }
+      throw new IllegalArgumentException( "Invalid value of " + option + ": " + value );
+    }
+  }
+}
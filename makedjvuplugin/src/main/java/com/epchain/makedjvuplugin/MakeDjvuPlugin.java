@@ -4,6 +4,9 @@ import org.gradle.api.DefaultTask;
 import org.gradle.api.NamedDomainObjectContainer;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.TaskContainer;
+import org.gradle.api.tasks.TaskProvider;
 
 import java.io.File;
 import java.io.IOException;
@@ -13,17 +16,23 @@ import java.util.jar.Manifest;
 
 public class MakeDjvuPlugin implements Plugin<Project>
 {
-  public static final String PLUGIN_NAME = MakeDjvuPlugin.class.getSimpleName();
+  /** Compile-time constant, so command line, which runs without Gradle, never loads plugin class. */
+  public static final String PLUGIN_NAME = "MakeDjvuPlugin";
 
   private SettingsPluginExtension settingsExtension;
+  private LibraryPluginExtension libraryExtension;
   private NamedDomainObjectContainer<Book> booksContainer;
+  private Provider<ToolRegistryService> toolRegistry;
+  private Provider<ConcurrencyBudgetService> concurrencyBudget;
 
   @Override
   public void apply( Project project )
   {
     printVersion( project );
     setupExtension( project );
+    setupBuildServices( project );
     setupBooksContainer( project );
+    setupLibraryTask( project );
     setupUsageTask( project );
   }
 
@@ -31,8 +40,9 @@ public class MakeDjvuPlugin implements Plugin<Project>
   {
     try
     {
-      URLClassLoader cl = (URLClassLoader) getClass().getClassLoader();
-      URL url = cl.findResource( "META-INF/MANIFEST.MF" );
+      ClassLoader cl = getClass().getClassLoader();
+      URL url = ( cl instanceof URLClassLoader ) ? ((URLClassLoader) cl).findResource( "META-INF/MANIFEST.MF" ) : null;
+      if ( url == null ) throw new IOException( "Plugin manifest not found" );
       Manifest manifest = new Manifest( url.openStream() );
       String pluginVersion = manifest.getMainAttributes().getValue( "plugin-version" );
       project.getLogger().lifecycle( PLUGIN_NAME + " v." + pluginVersion );
@@ -45,126 +55,215 @@ public class MakeDjvuPlugin implements Plugin<Project>
 
   private void setupExtension( Project project )
   {
-    settingsExtension = project.getExtensions().create(
-      "settings", SettingsPluginExtension.class, project
+    settingsExtension = project.getExtensions().create( "settings", SettingsPluginExtension.class );
+    libraryExtension = project.getExtensions().create(
+      "library", LibraryPluginExtension.class, settingsExtension
+    );
+  }
+
+  /**
+   * Budget and tools are shared by the whole build. The first project applying plugin configures budget.
+   * Tasks reach them only through service providers, so tasks hold no build state and are restored
+   * from configuration cache as they are.
+   */
+  private void setupBuildServices( Project project )
+  {
+    toolRegistry = project.getGradle().getSharedServices().registerIfAbsent(
+      ToolRegistryService.NAME, ToolRegistryService.class, spec -> { }
+    );
+    concurrencyBudget = project.getGradle().getSharedServices().registerIfAbsent(
+      ConcurrencyBudgetService.NAME,
+      ConcurrencyBudgetService.class,
+      spec ->
+      {
+        spec.getParameters().getMaxProcesses().set( settingsExtension.getMaxProcessesProvider() );
+        spec.getParameters().getMaxDecodeSlots().set( settingsExtension.getMaxDecodeSlotsProvider() );
+        spec.getParameters().getScratchDir().set( settingsExtension.getScratchDirProvider() );
+        spec.getParameters().getMaxScratchMegabytes().set( settingsExtension.getMaxScratchMegabytesProvider() );
+        spec.getParameters().getMinFreeMegabytes().set( settingsExtension.getMinFreeMegabytesProvider() );
+      }
     );
   }
 
   private void setupBooksContainer( Project project )
   {
-    booksContainer = project.container( Book.class );
+    booksContainer = project.getObjects().domainObjectContainer(
+      Book.class, name -> new Book( name, project.getObjects() )
+    );
     project.getExtensions().add( "books", booksContainer );
-    // Create tasks for every specified book, if possible
-    booksContainer.all(
-      book ->
-        project.afterEvaluate(
-          proj ->
-          {
-            boolean isBookBroken = !Utils.isPdf( book.getBookFile() ) && !Utils.isImageSet( book.getBookFile() );
-            boolean skipBook = book.skip();
-            boolean cannotProcessPdf = Utils.isPdf(book.getBookFile()) && !ConvertPdfToImagesTask.toolsFound();
-            boolean cannotProcessImages = !CreateDjvuFromImagesTask.toolsFound();
-            if ( cannotProcessPdf ) skipBook = true;
-
-            if ( !skipBook && !isBookBroken && !cannotProcessImages )
-            {
-              // Creating tasks
-              DefaultTask bookTask =
-                project.getTasks().create( "convert" + Utils.capitalize( book.getName() ), DefaultTask.class );
-              bookTask.setGroup( PLUGIN_NAME );
-              bookTask.setDescription( "Convert '" + book.getName() + "' into DJVU book." );
-
-              CreateDjvuFromImagesTask createDjvuFromImagesTask =
-                project.getTasks().create( book.getName() + "ImagesToDjvu", CreateDjvuFromImagesTask.class );
-              createDjvuFromImagesTask.setGroup( PLUGIN_NAME );
-              createDjvuFromImagesTask.setDescription( "Create DJVU book from '" + book.getName() + "' images." );
-
-              JpgToPngTask jpgToPngTask =
-                project.getTasks().create( book.getName() + "JpgToPng", JpgToPngTask.class );
-              jpgToPngTask.setGroup( PLUGIN_NAME );
-              jpgToPngTask.setDescription(
-                "Converts JPG images to PNG for '" + book.getName() + "'. WARNING: task deletes old JPGs"
-              );
-
-              ConvertPdfToImagesTask convertPdfToImagesTask;
-
-              AddBookmarksToDjvuTask addBookmarksToDjvuTask;
-
-              // Setting up tasks
-              createDjvuFromImagesTask.setWorkDir( settingsExtension.getWorkDirProvider() );
-              createDjvuFromImagesTask.setOutDir( settingsExtension.getOutDirProvider() );
-              String djvuName = Utils.getFilenameWithoutExtension( book.getBookFile().getName() ) + ".djvu";
-              File djvu = ( book.isOutDirValid() )
-                ? new File( book.getOutDir(), djvuName )
-                : new File( settingsExtension.getOutDir(), djvuName );
-              createDjvuFromImagesTask.setDjvu( djvu );
-              createDjvuFromImagesTask.setBook( book );
-              // Implying that book is an image set. Images dir will be book file.
-              createDjvuFromImagesTask.setImagesDir( book.getBookFile() );
-              jpgToPngTask.setImagesDir( book.getBookFile() );
-
-              bookTask.dependsOn( createDjvuFromImagesTask );
-
-              if ( Utils.isPdf(book.getBookFile()) && ConvertPdfToImagesTask.toolsFound() )
-              {
-                convertPdfToImagesTask =
-                  project.getTasks().create( book.getName() + "PdfToImages", ConvertPdfToImagesTask.class );
-                convertPdfToImagesTask.setGroup( PLUGIN_NAME );
-                convertPdfToImagesTask.setDescription(
-                  "Convert PDF '" + book.getName() + "' with image pages into set of images."
-                );
-
-                File outDir = new File( settingsExtension.getWorkDir(), book.getName() );
-                convertPdfToImagesTask.setWorkDir( settingsExtension.getWorkDirProvider() );
-                convertPdfToImagesTask.setOutDir( outDir );
-                convertPdfToImagesTask.setBook( book );
-                // Override previously set images dir with out dir of PDF conversion task
-                createDjvuFromImagesTask.setImagesDir( outDir );
-                jpgToPngTask.setImagesDir( outDir );
-
-                createDjvuFromImagesTask.dependsOn( convertPdfToImagesTask );
-              }
-
-              if ( book.isBookmarksFound() )
-              {
-                addBookmarksToDjvuTask =
-                  project.getTasks().create( book.getName() + "AddBookmarks", AddBookmarksToDjvuTask.class );
-                addBookmarksToDjvuTask.setGroup( PLUGIN_NAME );
-                addBookmarksToDjvuTask.setDescription( "Add/replace bookmarks for '" + book.getName() + "'." );
-
-                addBookmarksToDjvuTask.setBook( book );
-                addBookmarksToDjvuTask.setDjvu( djvu );
-              }
-            }
-            else
-            {
-              if ( cannotProcessImages )
-              {
-                project.getLogger().error( "Plugin cannot process images!" );
-                project.getLogger().error( "Install DjvuLibre and add installation to PATH environment variable" );
-              }
-              if ( cannotProcessPdf )
-              {
-                project.getLogger().error( "'" + book.getName() + "' is PDF, but cannot be processed" );
-                project.getLogger().error( "Install Calibre and add installation to PATH environment variable" );
-              }
-              if ( skipBook )
-              {
-                project.getLogger().lifecycle( "'" + book.getName() + "' skipped" );
-              }
-              if ( isBookBroken )
-              {
-                project.getLogger().error( "'" + book.getName() + "' has wrong block settings/data or unsupported" );
-              }
-            }
-          }
-        )
+    // Register tasks for every specified book. Tasks are configured only when needed,
+    // book files and tools are checked by tasks at execution time.
+    // Which tasks a book has depends on its settings, so they are registered after the script;
+    // tasks are wired to book providers and never read the project at execution time.
+    project.afterEvaluate( proj -> booksContainer.all( book -> registerBookTasks(project, book) ) );
+  }
+
+  private void registerBookTasks( Project project, Book book )
+  {
+    if ( book.skip() )
+    {
+      project.getLogger().lifecycle( "'" + book.getName() + "' skipped" );
+      return;
+    }
+    if ( book.getBookFile() == null )
+    {
+      project.getLogger().error( "'" + book.getName() + "' has wrong block settings/data or unsupported" );
+      return;
+    }
+
+    TaskContainer tasks = project.getTasks();
+    final boolean isPdf = Utils.isPdfName( book.getBookFile() );
+    String djvuName = Utils.getFilenameWithoutExtension( book.getBookFile().getName() ) + ".djvu";
+    // Falls back to settings output dir, when book output dir is not valid
+    Provider<File> djvu = project.provider(
+      () -> ( book.isOutDirValid() )
+        ? new File( book.getOutDir(), djvuName )
+        : new File( settingsExtension.getOutDir(), djvuName )
+    );
+    Provider<File> reportDir = settingsExtension.getOutDirProvider().map(
+      outDir -> new File( new File(outDir, PerformanceReport.DIR_NAME), book.getName() )
     );
+    // Implying that book is an image set or page archive, images dir will be book file. Otherwise images are extracted from PDF
+    // into their own dir of book work dir, so cleanup of extracted images never touches pages and journals of ImagesToDjvu.
+    Provider<File> imagesDir = ( isPdf )
+      ? settingsExtension.getWorkDirProvider().map( workDir -> new File(new File(workDir, book.getName()), "images") )
+      : book.getBookFileProvider();
+
+    TaskProvider<ConvertPdfToImagesTask> convertPdfToImagesTask = null;
+    if ( isPdf )
+    {
+      convertPdfToImagesTask = tasks.register(
+        book.getName() + "PdfToImages",
+        ConvertPdfToImagesTask.class,
+        task ->
+        {
+          task.setGroup( PLUGIN_NAME );
+          task.setDescription( "Convert PDF '" + book.getName() + "' with image pages into set of images." );
+          task.setWorkDir( settingsExtension.getWorkDirProvider() );
+          task.setOutDir( imagesDir );
+          task.setBook( book );
+          task.setReportDir( reportDir );
+          task.setToolRegistry( toolRegistry );
+          task.setConcurrencyBudget( concurrencyBudget );
+        }
+      );
+    }
+
+    final TaskProvider<ConvertPdfToImagesTask> pdfToImagesDependency = convertPdfToImagesTask;
+    TaskProvider<CreateDjvuFromImagesTask> createDjvuFromImagesTask = tasks.register(
+      book.getName() + "ImagesToDjvu",
+      CreateDjvuFromImagesTask.class,
+      task ->
+      {
+        task.setGroup( PLUGIN_NAME );
+        task.setDescription( "Create DJVU book from '" + book.getName() + "' images." );
+        task.setWorkDir( settingsExtension.getWorkDirProvider() );
+        task.setOutDir( settingsExtension.getOutDirProvider() );
+        task.setDjvu( djvu );
+        task.setBook( book );
+        task.setImagesDir( imagesDir );
+        task.setToolRegistry( toolRegistry );
+        task.setReportDir( reportDir );
+        task.setConcurrencyBudget( concurrencyBudget );
+        task.setDetectBlankPages( settingsExtension.getDetectBlankPagesProvider() );
+        task.setDetectGrayPages( settingsExtension.getDetectGrayPagesProvider() );
+        task.setDetectDuplicatePages( settingsExtension.getDetectDuplicatePagesProvider() );
+        task.setPngCompressionLevel( settingsExtension.getPngCompressionLevelProvider() );
+        task.setPngFilter( settingsExtension.getPngFilterProvider() );
+        task.setPageWorkers( settingsExtension.getPageWorkersProvider() );
+        if ( pdfToImagesDependency != null ) task.dependsOn( pdfToImagesDependency );
+      }
+    );
+
+    // Pages of archive are never extracted, so there are no files to convert
+    if ( !Utils.isArchiveName(book.getBookFile()) )
+    {
+      tasks.register(
+        book.getName() + "JpgToPng",
+        JpgToPngTask.class,
+        task ->
+        {
+          task.setGroup( PLUGIN_NAME );
+          task.setDescription( "Converts JPG images to PNG for '" + book.getName() + "'. WARNING: task deletes old JPGs" );
+          task.setImagesDir( imagesDir );
+          task.setCompressionLevel( settingsExtension.getPngCompressionLevelProvider() );
+          task.setFilter( settingsExtension.getPngFilterProvider() );
+          task.setConcurrencyBudget( concurrencyBudget );
+          task.setReportDir( reportDir );
+        }
+      );
+    }
+
+    if ( book.getBookmarksFile() != null )
+    {
+      tasks.register(
+        book.getName() + "AddBookmarks",
+        AddBookmarksToDjvuTask.class,
+        task ->
+        {
+          task.setGroup( PLUGIN_NAME );
+          task.setDescription( "Add/replace bookmarks for '" + book.getName() + "'." );
+          task.setBook( book );
+          task.setWorkDir( settingsExtension.getWorkDirProvider() );
+          task.setDjvu( djvu );
+          task.setToolRegistry( toolRegistry );
+          task.setReportDir( reportDir );
+          task.setConcurrencyBudget( concurrencyBudget );
+          // DJVU is not declared as input, as bookmarks are added in place
+          task.mustRunAfter( createDjvuFromImagesTask );
+        }
+      );
+    }
+
+    tasks.register(
+      "convert" + Utils.capitalize( book.getName() ),
+      DefaultTask.class,
+      task ->
+      {
+        task.setGroup( PLUGIN_NAME );
+        task.setDescription( "Convert '" + book.getName() + "' into DJVU book." );
+        task.dependsOn( createDjvuFromImagesTask );
+      }
+    );
+  }
+
+  /** Library task is registered only if library root dir is specified. */
+  private void setupLibraryTask( Project project )
+  {
+    project.afterEvaluate( proj ->
+    {
+      if ( !libraryExtension.getRootDirProvider().isPresent() ) return;
+
+      project.getTasks().register(
+        "convertLibrary",
+        ConvertLibraryTask.class,
+        task ->
+        {
+          task.setGroup( PLUGIN_NAME );
+          task.setDescription( "Convert all books of library into DJVU books." );
+          task.setRootDir( libraryExtension.getRootDirProvider() );
+          task.setOutDir( libraryExtension.getOutDirProvider() );
+          task.setWorkDir( settingsExtension.getWorkDirProvider() );
+          task.setIncludes( libraryExtension.getIncludesProvider() );
+          task.setExcludes( libraryExtension.getExcludesProvider() );
+          task.setForceCleanUp( libraryExtension.getForceCleanUpProvider() );
+          task.setKeepIntermediates( libraryExtension.getKeepIntermediatesProvider() );
+          task.setToolRegistry( toolRegistry );
+          task.setConcurrencyBudget( concurrencyBudget );
+          task.setDetectBlankPages( settingsExtension.getDetectBlankPagesProvider() );
+          task.setDetectGrayPages( settingsExtension.getDetectGrayPagesProvider() );
+          task.setDetectDuplicatePages( settingsExtension.getDetectDuplicatePagesProvider() );
+          task.setCropMargins( libraryExtension.getCropMarginsProvider() );
+          task.setMaxMegabytes( libraryExtension.getMaxMegabytesProvider() );
+          task.setWatchSettleSeconds( libraryExtension.getWatchSettleSecondsProvider() );
+        }
+      );
+    } );
   }
 
   private void setupUsageTask( Project project )
   {
-    project.getTasks().create(
+    project.getTasks().register(
       "usage",
       UsageTask.class,
       usageTask ->
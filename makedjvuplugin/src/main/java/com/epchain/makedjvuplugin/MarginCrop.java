@@ -0,0 +1,367 @@
+package com.epchain.makedjvuplugin;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.WritableRaster;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Crops page margins: scanner bed, black edges and wide white margins. Content bounds are found with
+ * row and column projections of dark pixels. Rows and columns with almost no dark pixels are margins,
+ * and almost completely dark ones outside of margins are scanner edges. Projections alternate, so side edges do not hide
+ * top and bottom margins, and vice versa. A small padding is kept around content.
+ * Pages are cropped one by one, or by one box, which holds content of every page of a book.
+ * Content bounds of book pages are cached per page checksum in book work dir, so re-run of a book scans no pages,
+ * and a book with a few changed pages scans only those.
+ */
+public final class MarginCrop
+{
+  public enum Mode { NONE, PAGE, BOOK }
+
+  /** Pixels darker than this luminance are ink. */
+  private static final int INK_LUMINANCE = 128;
+  /** Row or column with less ink than this fraction is margin. */
+  private static final double MIN_INK_FRACTION = 0.002;
+  /** Row or column with more ink than this fraction is scanner edge. */
+  private static final double MAX_INK_FRACTION = 0.9;
+  private static final int PROJECTION_PASSES = 3;
+  /** Padding around content, as fraction of page size. */
+  private static final double PADDING_FRACTION = 0.01;
+  private static final int MIN_PADDING = 8;
+  /** Pages are scanned for book crop box at reduced resolution. */
+  private static final int SCAN_SUBSAMPLING = 4;
+  private static final String FORMAT = "makedjvu-crop-scan-1";
+  /** Cache of content bounds inside book work dir. */
+  public static final String CACHE_NAME = "crop-scan.cache";
+  /** Cached bounds of page without content. */
+  private static final String NO_CONTENT = "-";
+
+  /** Scans pages for content bounds, see {@link #scanContentBounds}. */
+  public interface PageScanner
+  {
+    /** Returns content bounds of every page in order of pages, null for page without content. */
+    List<Rectangle> scan( List<PageImage> pages ) throws IOException;
+  }
+
+  private final Mode mode;
+  private final Rectangle bookBox;
+
+  private MarginCrop( Mode mode, Rectangle bookBox )
+  {
+    this.mode = mode;
+    this.bookBox = bookBox;
+  }
+
+  /** Crop, which keeps pages as they are. */
+  public static MarginCrop none()
+  {
+    return new MarginCrop( Mode.NONE, null );
+  }
+
+  /** Crop of every page by its own content bounds. */
+  public static MarginCrop perPage()
+  {
+    return new MarginCrop( Mode.PAGE, null );
+  }
+
+  /** Crop of every page by given box. Box is clipped by page bounds. */
+  public static MarginCrop byBox( Rectangle box )
+  {
+    return new MarginCrop( Mode.BOOK, box );
+  }
+
+  /**
+   * Finds one crop box for all pages of a book: union of content bounds of all pages.
+   * If no page has content, pages are not cropped.
+   * @param cacheFile cache of content bounds. Cache is an optimisation, so its failures are ignored
+   * @param scanner scans pages, which have no cached bounds
+   */
+  public static MarginCrop forBook( List<PageImage> images, File cacheFile, PageScanner scanner ) throws IOException
+  {
+    List<String> checksums = new ArrayList<>( images.size() );
+    for ( PageImage image : images ) checksums.add( image.checksum() );
+    Map<String, Rectangle> cache = readCache( cacheFile );
+    // Pages with the same contents are scanned once
+    Map<String, PageImage> missing = new LinkedHashMap<>();
+    for ( int i = 0; i < images.size(); ++i )
+    {
+      if ( !cache.containsKey(checksums.get(i)) ) missing.putIfAbsent( checksums.get(i), images.get(i) );
+    }
+    if ( !missing.isEmpty() )
+    {
+      List<Rectangle> scanned = scanner.scan( new ArrayList<>(missing.values()) );
+      int i = 0;
+      for ( String checksum : missing.keySet() ) cache.put( checksum, scanned.get(i++) );
+      writeCache( cacheFile, cache );
+    }
+
+    Rectangle union = null;
+    for ( String checksum : checksums )
+    {
+      Rectangle bounds = cache.get( checksum );
+      if ( bounds != null ) union = ( union == null ) ? bounds : union.union( bounds );
+    }
+    return ( union != null ) ? byBox( union ) : none();
+  }
+
+
+  /** Returns mode by its setting name: "none", "page" or "book". */
+  public static Mode modeFromName( String name )
+  {
+    try
+    {
+      return Mode.valueOf( name.toUpperCase(Locale.ROOT) );
+    }
+    catch ( IllegalArgumentException e )
+    {
+      throw new IllegalArgumentException( "Unknown crop margins mode '" + name + "', must be 'none', 'page' or 'book'" );
+    }
+  }
+
+  public Mode getMode()
+  {
+    return mode;
+  }
+
+  /** Crop box of book mode, or null. */
+  public Rectangle getBox()
+  {
+    return ( bookBox != null ) ? new Rectangle( bookBox ) : null;
+  }
+
+  /** Describes crop, so that pages of different crops are never mixed. */
+  public String getDescription()
+  {
+    if ( mode != Mode.BOOK ) return "crop " + mode.name().toLowerCase( Locale.ROOT );
+    return "crop " + bookBox.x + "," + bookBox.y + "," + bookBox.width + "x" + bookBox.height;
+  }
+
+  /**
+   * Returns cropped copy of page, or given page, if nothing is cropped.
+   * Copy has compact raster of the same type, as portable map writer reads raster data as is.
+   */
+  public BufferedImage apply( BufferedImage page )
+  {
+    Rectangle box;
+    switch ( mode )
+    {
+      case PAGE:
+        Rectangle bounds = contentBounds( page );
+        box = ( bounds != null ) ? pad( bounds, page.getWidth(), page.getHeight() ) : null;
+        break;
+
+      case BOOK:
+        box = pad( bookBox, page.getWidth(), page.getHeight() );
+        break;
+
+      default: box = null;
+    }
+    if ( box == null || box.isEmpty() ) return page;
+    if ( box.width == page.getWidth() && box.height == page.getHeight() ) return page;
+
+    ColorModel colorModel = page.getColorModel();
+    WritableRaster raster = page.getRaster().createCompatibleWritableRaster( box.width, box.height );
+    raster.setDataElements( 0, 0, page.getRaster().createChild(box.x, box.y, box.width, box.height, 0, 0, null) );
+    return new BufferedImage( colorModel, raster, colorModel.isAlphaPremultiplied(), null );
+  }
+
+  /** Returns bounds of page content, or null if page has no content. */
+  public static Rectangle contentBounds( BufferedImage page )
+  {
+    int width = page.getWidth();
+    int height = page.getHeight();
+    if ( (long) width * height > Integer.MAX_VALUE ) return new Rectangle( 0, 0, width, height );
+    BitSet ink = new BitSet( width * height );
+    int[] argb = new int[ width ];
+    for ( int y = 0; y < height; ++y )
+    {
+      page.getRGB( 0, y, width, 1, argb, 0, width );
+      for ( int x = 0; x < width; ++x )
+      {
+        int pixel = argb[x];
+        int luminance = ( 299 * ((pixel >> 16) & 0xFF) + 587 * ((pixel >> 8) & 0xFF) + 114 * (pixel & 0xFF) ) / 1000;
+        int alpha = pixel >>> 24;
+        luminance = ( luminance * alpha + 255 * (255 - alpha) ) / 255;
+        if ( luminance < INK_LUMINANCE ) ink.set( y * width + x );
+      }
+    }
+
+    Rectangle bounds = new Rectangle( 0, 0, width, height );
+    for ( int pass = 0; pass < PROJECTION_PASSES; ++pass )
+    {
+      int[] rows = new int[ height ];
+      int[] columns = new int[ width ];
+      for ( int y = bounds.y; y < bounds.y + bounds.height; ++y )
+      {
+        int rowStart = y * width;
+        int rowEnd = rowStart + bounds.x + bounds.width;
+        for ( int i = ink.nextSetBit(rowStart + bounds.x); i >= 0 && i < rowEnd; i = ink.nextSetBit(i + 1) )
+        {
+          ++rows[y];
+          ++columns[i - rowStart];
+        }
+      }
+
+      int top = firstContent( rows, bounds.y, bounds.y + bounds.height, 1, bounds.width );
+      if ( top < 0 ) return null;
+      int bottom = firstContent( rows, bounds.y + bounds.height - 1, bounds.y - 1, -1, bounds.width );
+      int left = firstContent( columns, bounds.x, bounds.x + bounds.width, 1, bounds.height );
+      if ( left < 0 ) return null;
+      int right = firstContent( columns, bounds.x + bounds.width - 1, bounds.x - 1, -1, bounds.height );
+
+      Rectangle next = new Rectangle( left, top, right - left + 1, bottom - top + 1 );
+      if ( next.equals(bounds) ) break;
+      bounds = next;
+    }
+    return bounds;
+  }
+
+  /**
+   * Returns index of first projection entry in given direction, which is neither margin nor edge, or -1.
+   * Edges are only at page border outside of margins, so dark figures inside content are kept.
+   */
+  private static int firstContent( int[] projection, int from, int to, int step, int span )
+  {
+    boolean inEdge = ( from == 0 || from == projection.length - 1 );
+    for ( int i = from; i != to; i += step )
+    {
+      double fraction = (double) projection[i] / span;
+      if ( inEdge && fraction > MAX_INK_FRACTION ) continue;
+      inEdge = false;
+      if ( fraction >= MIN_INK_FRACTION ) return i;
+    }
+    return -1;
+  }
+
+  /** Adds padding and clips box by page bounds. */
+  private static Rectangle pad( Rectangle box, int width, int height )
+  {
+    int paddingX = Math.max( MIN_PADDING, (int) (width * PADDING_FRACTION) );
+    int paddingY = Math.max( MIN_PADDING, (int) (height * PADDING_FRACTION) );
+    Rectangle padded = new Rectangle( box.x - paddingX, box.y - paddingY, box.width + 2 * paddingX, box.height + 2 * paddingY );
+    return padded.intersection( new Rectangle(0, 0, width, height) );
+  }
+
+  /**
+   * Finds content bounds of page at reduced resolution, or returns null, if page has no content. Bounds are in full resolution.
+   * ImageIO decodes page at reduced resolution, other decoders decode the whole page, which is subsampled then.
+   */
+  public static Rectangle scanContentBounds( PageImage image, PageDecoder decoder ) throws IOException
+  {
+    BufferedImage subsampled;
+    if ( decoder == PageDecoder.IMAGE_IO || !decoder.accepts(image) )
+    {
+      subsampled = readSubsampled( image );
+    }
+    else
+    {
+      BufferedImage decoded = decoder.decode( image );
+      if ( decoded == null ) throw new IOException( "Failed to decode " + image.getName() );
+      subsampled = subsample( decoded );
+    }
+    Rectangle bounds = contentBounds( subsampled );
+    if ( bounds == null ) return null;
+    // Subsampled pixel covers several full resolution pixels
+    return new Rectangle(
+      bounds.x * SCAN_SUBSAMPLING, bounds.y * SCAN_SUBSAMPLING,
+      (bounds.width + 1) * SCAN_SUBSAMPLING, (bounds.height + 1) * SCAN_SUBSAMPLING
+    );
+  }
+
+  /** Every {@link #SCAN_SUBSAMPLING}th pixel of every {@link #SCAN_SUBSAMPLING}th row, as ImageIO subsamples. */
+  private static BufferedImage subsample( BufferedImage page )
+  {
+    int width = ( page.getWidth() + SCAN_SUBSAMPLING - 1 ) / SCAN_SUBSAMPLING;
+    int height = ( page.getHeight() + SCAN_SUBSAMPLING - 1 ) / SCAN_SUBSAMPLING;
+    BufferedImage subsampled = new BufferedImage( width, height, BufferedImage.TYPE_INT_ARGB );
+    int[] row = new int[ page.getWidth() ];
+    int[] subsampledRow = new int[ width ];
+    for ( int y = 0; y < height; ++y )
+    {
+      page.getRGB( 0, y * SCAN_SUBSAMPLING, page.getWidth(), 1, row, 0, page.getWidth() );
+      for ( int x = 0; x < width; ++x ) subsampledRow[x] = row[x * SCAN_SUBSAMPLING];
+      subsampled.setRGB( 0, y, width, 1, subsampledRow, 0, width );
+    }
+    return subsampled;
+  }
+
+  private static BufferedImage readSubsampled( PageImage image ) throws IOException
+  {
+    try ( ImageInputStream in = image.openImageStream() )
+    {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders( in );
+      if ( !readers.hasNext() ) throw new IOException( "Failed to decode " + image.getName() );
+      ImageReader reader = readers.next();
+      try
+      {
+        reader.setInput( in, true, true );
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling( SCAN_SUBSAMPLING, SCAN_SUBSAMPLING, 0, 0 );
+        return reader.read( 0, param );
+      }
+      finally
+      {
+        reader.dispose();
+      }
+    }
+  }
+
+  private static Map<String, Rectangle> readCache( File cacheFile )
+  {
+    Map<String, Rectangle> cache = new HashMap<>();
+    if ( !cacheFile.isFile() ) return cache;
+    try ( BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile), StandardCharsets.UTF_8)) )
+    {
+      if ( !FORMAT.equals(in.readLine()) ) return cache;
+      String line;
+      while ( (line = in.readLine()) != null )
+      {
+        String[] fields = line.split( "\t" );
+        if ( fields.length == 2 && fields[1].equals(NO_CONTENT) )
+        {
+          cache.put( fields[0], null );
+          continue;
+        }
+        if ( fields.length != 5 ) return new HashMap<>();
+        cache.put( fields[0], new Rectangle(
+          Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), Integer.parseInt(fields[3]), Integer.parseInt(fields[4])
+        ) );
+      }
+      return cache;
+    }
+    catch ( IOException | RuntimeException e )
+    {
+      return new HashMap<>();
+    }
+  }
+
+  private static void writeCache( File cacheFile, Map<String, Rectangle> cache )
+  {
+    File partial = new File( cacheFile.getPath() + ".partial" );
+    try
+    {
+      try ( Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(partial), StandardCharsets.UTF_8)) )
+      {
+        out.write( FORMAT + "\n" );
+        for ( Map.Entry<String, Rectangle> page : cache.entrySet() )
+        {
+          Rectangle bounds = page.getValue();
+          out.write( page.getKey() + "\t" + ( (bounds != null)
+            ? bounds.x + "\t" + bounds.y + "\t" + bounds.width + "\t" + bounds.height : NO_CONTENT ) + "\n" );
+        }
+      }
+      Conversions.moveIntoPlace( partial, cacheFile );
+    }
+    catch ( IOException e )
+    {
+      partial.delete();
+    }
+  }
+}
@@ -0,0 +1,174 @@
+package com.epchain.makedjvuplugin;
+
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * CBZ or ZIP archive of page images. Pages are read straight from archive entries, nothing is extracted to disk.
+ * Archive is opened once with random access, so pages are decoded concurrently from the same archive.
+ * Pages are JPG and PNG entries of any archive folder in natural order of entry paths.
+ * Page is named after its entry path below folder, which all pages share, with {@link #FOLDER_SEPARATOR} in place of '/',
+ * so pages of different folders get their own single page DJVU files, e.g. "ch1/001.jpg" is page "ch1_001.jpg".
+ */
+public final class PageArchive implements Closeable
+{
+  /** Replaces '/' of entry path in page name. */
+  public static final char FOLDER_SEPARATOR = '_';
+
+  private final ZipFile zip;
+  private final List<PageImage> pages;
+
+  private PageArchive( ZipFile zip, List<PageImage> pages )
+  {
+    this.zip = zip;
+    this.pages = Collections.unmodifiableList( pages );
+  }
+
+  /** Opens archive and lists its pages. Throws {@link IOException} with message for user, if archive is not valid. */
+  public static PageArchive open( File archive ) throws IOException
+  {
+    ZipFile zip;
+    try
+    {
+      zip = new ZipFile( archive );
+    }
+    catch ( IOException e )
+    {
+      throw new IOException( "Failed to open page archive " + archive.getName() + ": " + e.getMessage(), e );
+    }
+
+    try
+    {
+      List<ZipEntry> entries = new ArrayList<>();
+      for ( Enumeration<? extends ZipEntry> it = zip.entries(); it.hasMoreElements(); )
+      {
+        ZipEntry entry = it.nextElement();
+        if ( !entry.isDirectory() && PageManifest.isImageName(entry.getName()) ) entries.add( entry );
+      }
+      entries.sort( Comparator.comparing(ZipEntry::getName, PageManifest.NATURAL_ORDER) );
+
+      String folder = commonFolder( entries );
+      List<PageImage> pages = new ArrayList<>( entries.size() );
+      // Pages, which differ by extension only, would share single page DJVU
+      Map<String, String> entryNames = new HashMap<>();
+      for ( ZipEntry entry : entries )
+      {
+        String name = entry.getName().substring( folder.length() ).replace( '/', FOLDER_SEPARATOR );
+        String conflicting = entryNames.put( Utils.getFilenameWithoutExtension(name), entry.getName() );
+        if ( conflicting != null )
+        {
+          throw new IOException(
+            "Page archive " + archive.getName() + " has pages with the same name: " + conflicting + ", " + entry.getName()
+          );
+        }
+        pages.add( new EntryPage(zip, entry, name) );
+      }
+      return new PageArchive( zip, pages );
+    }
+    catch ( IOException | RuntimeException e )
+    {
+      zip.close();
+      throw e;
+    }
+  }
+
+  /** Returns folder path with trailing '/', which all entries are in, or empty string. */
+  private static String commonFolder( List<ZipEntry> entries )
+  {
+    if ( entries.isEmpty() ) return "";
+    String first = entries.get( 0 ).getName();
+    String folder = first.substring( 0, first.lastIndexOf('/') + 1 );
+    for ( ZipEntry entry : entries )
+    {
+      while ( !entry.getName().startsWith(folder) ) folder = folder.substring( 0, folder.lastIndexOf('/', folder.length() - 2) + 1 );
+    }
+    return folder;
+  }
+
+  /** Pages in page order. Pages may be read only while archive is open. */
+  public List<PageImage> getPages()
+  {
+    return pages;
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    zip.close();
+  }
+
+  /** Archive entry, read with its own inflater. */
+  private static final class EntryPage implements PageImage
+  {
+    private final ZipFile zip;
+    private final ZipEntry entry;
+    private final String name;
+
+    EntryPage( ZipFile zip, ZipEntry entry, String name )
+    {
+      this.zip = zip;
+      this.entry = entry;
+      this.name = name;
+    }
+
+    @Override
+    public String getName()
+    {
+      return name;
+    }
+
+    @Override
+    public long length()
+    {
+      return entry.getSize();
+    }
+
+    @Override
+    public InputStream openStream() throws IOException
+    {
+      return zip.getInputStream( entry );
+    }
+
+    /** Entry is inflated as it is read, its read part is cached in memory only. */
+    @Override
+    public ImageInputStream openImageStream() throws IOException
+    {
+      InputStream in = openStream();
+      return new MemoryCacheImageInputStream( in )
+      {
+        @Override
+        public void close() throws IOException
+        {
+          try
+          {
+            super.close();
+          }
+          finally
+          {
+            in.close();
+          }
+        }
+      };
+    }
+
+    /** Archive keeps size and CRC of every entry, so entry is not read. */
+    @Override
+    public String checksum()
+    {
+      return entry.getSize() + ":" + Long.toHexString( entry.getCrc() );
+    }
+
+    @Override
+    public String toString()
+    {
+      return zip.getName() + "!/" + entry.getName();
+    }
+  }
+}
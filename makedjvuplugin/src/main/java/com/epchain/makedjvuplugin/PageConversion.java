@@ -0,0 +1,129 @@
+package com.epchain.makedjvuplugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Page conversion settings and state, which are shared by all pages of a book. */
+public final class PageConversion
+{
+  private final MarginCrop crop;
+  private final PageFingerprints fingerprints;
+  private final GrayPages grayPages;
+  private final List<PageVariant> outputs;
+  private final PageDecoder decoder;
+  private final PngWriteParam pngCopies;
+
+  public PageConversion( MarginCrop crop, PageFingerprints fingerprints, GrayPages grayPages )
+  {
+    this( crop, fingerprints, grayPages, Collections.emptyList() );
+  }
+
+  /** @param variants additional outputs, which are encoded from the same decoded pages */
+  public PageConversion( MarginCrop crop, PageFingerprints fingerprints, GrayPages grayPages, List<PageVariant> variants )
+  {
+    this( crop, fingerprints, grayPages, variants, PageDecoder.IMAGE_IO );
+  }
+
+  /** @param decoder decoder of pages. Decoders produce equivalent pages, so decoder is not part of description */
+  public PageConversion(
+    MarginCrop crop, PageFingerprints fingerprints, GrayPages grayPages, List<PageVariant> variants, PageDecoder decoder
+  )
+  {
+    this( crop, fingerprints, grayPages, PageVariant.main(), variants, decoder, null );
+  }
+
+  private PageConversion(
+    MarginCrop crop, PageFingerprints fingerprints, GrayPages grayPages, PageVariant main, List<PageVariant> variants,
+    PageDecoder decoder, PngWriteParam pngCopies
+  )
+  {
+    this.crop = crop;
+    this.fingerprints = fingerprints;
+    this.grayPages = grayPages;
+    List<PageVariant> outputs = new ArrayList<>( variants.size() + 1 );
+    outputs.add( main );
+    outputs.addAll( variants );
+    this.outputs = Collections.unmodifiableList( outputs );
+    this.decoder = decoder;
+    this.pngCopies = pngCopies;
+  }
+
+  /** Returns conversion with the same settings, whose main output is encoded at given decibel. */
+  public PageConversion withDecibel( int decibel )
+  {
+    return new PageConversion(
+      crop, fingerprints, grayPages, PageVariant.main(decibel), outputs.subList(1, outputs.size()), decoder, pngCopies
+    );
+  }
+
+  /**
+   * Returns conversion with the same settings, which replaces JPG pages with PNG copies written from decoded pages,
+   * see {@link PngCopy}. Copies do not change encoded pages, so they are not part of description.
+   */
+  public PageConversion withPngCopies( PngWriteParam param )
+  {
+    return new PageConversion( crop, fingerprints, grayPages, outputs.get(0), outputs.subList(1, outputs.size()), decoder, param );
+  }
+
+  /**
+   * Returns conversion for trial encodes of {@link SizeBudget}: main output at the first decibel and full resolution
+   * variants "trial-[decibel]" at the others, so every page is decoded once for all decibels.
+   * Trial pages have their own fingerprints and gray page counts, and never replace JPG pages.
+   */
+  public PageConversion forTrials( int[] decibels )
+  {
+    List<PageVariant> trials = new ArrayList<>();
+    for ( int i = 1; i < decibels.length; ++i ) trials.add( new PageVariant("trial-" + decibels[i], decibels[i], 1) );
+    return new PageConversion(
+      crop, new PageFingerprints(fingerprints.detectsBlankPages(), fingerprints.detectsDuplicatePages()),
+      new GrayPages(grayPages.detectsGrayPages()),
+      PageVariant.main(decibels[0]), trials, decoder, null
+    );
+  }
+
+  public MarginCrop getCrop()
+  {
+    return crop;
+  }
+
+  public PageFingerprints getFingerprints()
+  {
+    return fingerprints;
+  }
+
+  public GrayPages getGrayPages()
+  {
+    return grayPages;
+  }
+
+  public PageDecoder getDecoder()
+  {
+    return decoder;
+  }
+
+  /** PNG write settings of copies, which replace JPG pages, or null, if JPG pages are kept. */
+  public PngWriteParam getPngCopies()
+  {
+    return pngCopies;
+  }
+
+  /** Main output followed by additional variants. */
+  public List<PageVariant> getOutputs()
+  {
+    return outputs;
+  }
+
+  /** Describes settings, which define encoded pages. Pages of different settings are never mixed. */
+  public String getDescription()
+  {
+    String blankPages = fingerprints.detectsBlankPages() ? ", blank pages" : "";
+    String gray = grayPages.detectsGrayPages() ? ", gray pages" : "";
+    StringBuilder variants = new StringBuilder();
+    for ( PageVariant output : outputs )
+    {
+      if ( !output.isMain() ) variants.append( "; " ).append( output.getDescription() );
+    }
+    return outputs.get( 0 ).getDescription() + ", " + crop.getDescription() + blankPages + gray + variants;
+  }
+}
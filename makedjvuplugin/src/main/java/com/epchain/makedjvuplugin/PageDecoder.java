@@ -0,0 +1,55 @@
+package com.epchain.makedjvuplugin;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Decoder of page images into pixels, which are cropped, fingerprinted and encoded.
+ * Decoder is used by all page workers of a book at once.
+ */
+public interface PageDecoder
+{
+  /** Decodes every supported page with {@link javax.imageio.ImageIO}. */
+  PageDecoder IMAGE_IO = new PageDecoder()
+  {
+    @Override
+    public String getName()
+    {
+      return "ImageIO";
+    }
+
+    @Override
+    public boolean accepts( PageImage image )
+    {
+      return true;
+    }
+
+    @Override
+    public BufferedImage decode( PageImage image ) throws IOException
+    {
+      return image.decode();
+    }
+  };
+
+  String getName();
+
+  /** Returns true, if decoder may decode page. Does not read page. */
+  boolean accepts( PageImage image );
+
+  /**
+   * Decodes page into {@link BufferedImage#TYPE_3BYTE_BGR}, {@link BufferedImage#TYPE_4BYTE_ABGR}
+   * or {@link BufferedImage#TYPE_BYTE_GRAY} image, as ImageIO does for JPG and PNG.
+   * Returns null, if image format is not supported.
+   */
+  BufferedImage decode( PageImage image ) throws IOException;
+
+  /**
+   * Returns decoder for pages of a book: ImageIO, or, if djpeg is found in PATH, ImageIO and djpeg,
+   * which decode JPG pages until faster one is known.
+   */
+  static PageDecoder select( ToolRegistry toolRegistry )
+  {
+    String djpeg = toolRegistry.executablePath( "djpeg" );
+    return ( djpeg != null ) ? new AdaptivePageDecoder( IMAGE_IO, new DjpegDecoder(djpeg) ) : IMAGE_IO;
+  }
+}
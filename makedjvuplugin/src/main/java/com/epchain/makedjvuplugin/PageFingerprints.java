@@ -0,0 +1,298 @@
+package com.epchain.makedjvuplugin;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Fingerprints of decoded pages of a book. Pages with exactly the same pixels are encoded once,
+ * other ones reuse encoded page. Near-blank pages, which have almost no dark pixels,
+ * are found in the same pass, and may be replaced with blank page.
+ * Digest is taken from raster data as is, so pages of decoders are not converted pixel by pixel.
+ * Pixels are not read at all, if neither duplicate nor blank pages are detected.
+ */
+public final class PageFingerprints
+{
+  /** Pixels darker than this luminance are ink. */
+  private static final int INK_LUMINANCE = 128;
+  /** Page with no more ink pixels than this fraction is near-blank. */
+  private static final double BLANK_INK_FRACTION = 0.001;
+
+  /** Luminance of every gray level of {@link BufferedImage#TYPE_BYTE_GRAY} image, as its RGB pixels have. */
+  private static final int[] GRAY_LUMINANCE = grayLuminance();
+
+  private final boolean detectBlankPages;
+  private final boolean detectDuplicatePages;
+  private final ConcurrentHashMap<String, CompletableFuture<File>> encodedPages = new ConcurrentHashMap<>();
+
+  /**
+   * @param detectBlankPages whether near-blank pages are reported as blank
+   * @param detectDuplicatePages whether pages with the same pixels are encoded once
+   */
+  public PageFingerprints( boolean detectBlankPages, boolean detectDuplicatePages )
+  {
+    this.detectBlankPages = detectBlankPages;
+    this.detectDuplicatePages = detectDuplicatePages;
+  }
+
+  /** Fingerprints, which detect duplicate pages. */
+  public PageFingerprints( boolean detectBlankPages )
+  {
+    this( detectBlankPages, true );
+  }
+
+  public boolean detectsBlankPages()
+  {
+    return detectBlankPages;
+  }
+
+  public boolean detectsDuplicatePages()
+  {
+    return detectDuplicatePages;
+  }
+
+  /** Returns true, if page should be replaced with blank page. */
+  public boolean isBlank( Fingerprint fingerprint )
+  {
+    return detectBlankPages && fingerprint.inkPixels <= BLANK_INK_FRACTION * fingerprint.width * fingerprint.height;
+  }
+
+  /**
+   * Claims encoding of page. The first page with given pixels must encode itself and report result,
+   * later pages get that result instead. Every page encodes itself, if duplicate pages are not detected.
+   */
+  public Claim claim( Fingerprint fingerprint )
+  {
+    CompletableFuture<File> encoded = new CompletableFuture<>();
+    if ( !detectDuplicatePages ) return new Claim( encoded, true );
+    CompletableFuture<File> original = encodedPages.putIfAbsent( fingerprint.digest, encoded );
+    return ( original == null ) ? new Claim( encoded, true ) : new Claim( original, false );
+  }
+
+  /** Computes parts of fingerprint, which detection of this book uses, see {@link Fingerprint}. */
+  public Fingerprint fingerprintFor( BufferedImage image )
+  {
+    return fingerprint( image, detectDuplicatePages, detectBlankPages );
+  }
+
+  /** Computes the whole fingerprint. */
+  public static Fingerprint fingerprint( BufferedImage image )
+  {
+    return fingerprint( image, true, true );
+  }
+
+  private static Fingerprint fingerprint( BufferedImage image, boolean withDigest, boolean withInk )
+  {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    byte[] data = compactData( image );
+    String digest = withDigest ? width + "x" + height + ":" + image.getType() + ":" + digest( image, data ) : null;
+    long inkPixels = withInk ? countInk( image, data ) : -1;
+    return new Fingerprint( digest, width, height, inkPixels );
+  }
+
+  /** Returns bytes of raster, if they hold pixels of image and nothing else, or null. */
+  private static byte[] compactData( BufferedImage image )
+  {
+    Raster raster = image.getRaster();
+    if ( !(raster.getDataBuffer() instanceof DataBufferByte) || raster.getDataBuffer().getNumBanks() != 1 ) return null;
+    if ( raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0 ) return null;
+    byte[] data = ( (DataBufferByte) raster.getDataBuffer() ).getData();
+    return ( data.length == (long) image.getWidth() * image.getHeight() * raster.getNumDataElements() ) ? data : null;
+  }
+
+  private static String digest( BufferedImage image, byte[] data )
+  {
+    MessageDigest digest;
+    try
+    {
+      digest = MessageDigest.getInstance( "SHA-256" );
+    }
+    catch ( NoSuchAlgorithmException e )
+    {
+      throw new IllegalStateException( "SHA-256 is not supported", e );
+    }
+
+    if ( data != null )
+    {
+      digest.update( data );
+    }
+    else
+    {
+      int width = image.getWidth();
+      int[] argb = new int[ width ];
+      byte[] row = new byte[ width * 4 ];
+      for ( int y = 0; y < image.getHeight(); ++y )
+      {
+        image.getRGB( 0, y, width, 1, argb, 0, width );
+        int i = 0;
+        for ( int pixel : argb )
+        {
+          row[i++] = (byte) ( pixel >>> 24 );
+          row[i++] = (byte) ( pixel >>> 16 );
+          row[i++] = (byte) ( pixel >>> 8 );
+          row[i++] = (byte) pixel;
+        }
+        digest.update( row );
+      }
+    }
+
+    StringBuilder hex = new StringBuilder();
+    for ( byte b : digest.digest() ) hex.append( String.format("%02x", b) );
+    return hex.toString();
+  }
+
+  /** Counts ink pixels of decoded pages straight from their bytes, other images from their RGB pixels. */
+  private static long countInk( BufferedImage image, byte[] data )
+  {
+    long inkPixels = 0;
+    if ( data != null && image.getType() == BufferedImage.TYPE_BYTE_GRAY )
+    {
+      for ( byte sample : data )
+      {
+        if ( GRAY_LUMINANCE[sample & 0xFF] < INK_LUMINANCE ) ++inkPixels;
+      }
+      return inkPixels;
+    }
+    if ( data != null && image.getType() == BufferedImage.TYPE_3BYTE_BGR )
+    {
+      for ( int i = 0; i < data.length; i += 3 )
+      {
+        if ( luminance(0xFF, data[i + 2] & 0xFF, data[i + 1] & 0xFF, data[i] & 0xFF) < INK_LUMINANCE ) ++inkPixels;
+      }
+      return inkPixels;
+    }
+    if ( data != null && image.getType() == BufferedImage.TYPE_4BYTE_ABGR )
+    {
+      for ( int i = 0; i < data.length; i += 4 )
+      {
+        if ( luminance(data[i] & 0xFF, data[i + 3] & 0xFF, data[i + 2] & 0xFF, data[i + 1] & 0xFF) < INK_LUMINANCE ) ++inkPixels;
+      }
+      return inkPixels;
+    }
+
+    int width = image.getWidth();
+    int[] argb = new int[ width ];
+    for ( int y = 0; y < image.getHeight(); ++y )
+    {
+      image.getRGB( 0, y, width, 1, argb, 0, width );
+      for ( int pixel : argb )
+      {
+        if ( luminance(pixel >>> 24, (pixel >> 16) & 0xFF, (pixel >> 8) & 0xFF, pixel & 0xFF) < INK_LUMINANCE ) ++inkPixels;
+      }
+    }
+    return inkPixels;
+  }
+
+  /** Integer approximation of Rec. 601 luma, transparent pixels are blended with white. */
+  private static int luminance( int alpha, int red, int green, int blue )
+  {
+    int luminance = ( 299 * red + 587 * green + 114 * blue ) / 1000;
+    return ( luminance * alpha + 255 * (255 - alpha) ) / 255;
+  }
+
+  private static int[] grayLuminance()
+  {
+    BufferedImage levels = new BufferedImage( 256, 1, BufferedImage.TYPE_BYTE_GRAY );
+    for ( int level = 0; level < 256; ++level ) levels.getRaster().setSample( level, 0, 0, level );
+    int[] luminance = new int[ 256 ];
+    for ( int level = 0; level < 256; ++level )
+    {
+      int pixel = levels.getRGB( level, 0 );
+      luminance[level] = luminance( 0xFF, (pixel >> 16) & 0xFF, (pixel >> 8) & 0xFF, pixel & 0xFF );
+    }
+    return luminance;
+  }
+
+  /** Pixel digest, size and amount of ink of page. Digest is null and ink is -1, if they are not computed. */
+  public static final class Fingerprint
+  {
+    private final String digest;
+    private final int width;
+    private final int height;
+    private final long inkPixels;
+
+    private Fingerprint( String digest, int width, int height, long inkPixels )
+    {
+      this.digest = digest;
+      this.width = width;
+      this.height = height;
+      this.inkPixels = inkPixels;
+    }
+
+    public String getDigest()
+    {
+      return digest;
+    }
+
+    public int getWidth()
+    {
+      return width;
+    }
+
+    public int getHeight()
+    {
+      return height;
+    }
+
+    public long getInkPixels()
+    {
+      return inkPixels;
+    }
+  }
+
+  /** Claim of page encoding. Owner must complete or fail it, so duplicates never wait forever. */
+  public static final class Claim
+  {
+    private final CompletableFuture<File> encoded;
+    private final boolean owner;
+
+    private Claim( CompletableFuture<File> encoded, boolean owner )
+    {
+      this.encoded = encoded;
+      this.owner = owner;
+    }
+
+    /** Returns true, if page is the first with its pixels and must be encoded. */
+    public boolean isOwner()
+    {
+      return owner;
+    }
+
+    public void completed( File djvuPage )
+    {
+      if ( owner ) encoded.complete( djvuPage );
+    }
+
+    public void failed( Throwable error )
+    {
+      if ( owner ) encoded.completeExceptionally( error );
+    }
+
+    /** Waits for page, which was encoded by owner of the claim. */
+    public File awaitOriginal() throws IOException
+    {
+      try
+      {
+        return encoded.get();
+      }
+      catch ( InterruptedException e )
+      {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException( "Interrupted while waiting for original page" );
+      }
+      catch ( ExecutionException e )
+      {
+        throw new IOException( "Original page failed: " + e.getCause().getMessage(), e.getCause() );
+      }
+    }
+  }
+}
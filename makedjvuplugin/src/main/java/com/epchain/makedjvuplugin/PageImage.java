@@ -0,0 +1,119 @@
+package com.epchain.makedjvuplugin;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Encoded image of a single page: JPG or PNG file, or entry of page archive.
+ * Stream may be opened by several threads at once, every call returns its own stream.
+ */
+public interface PageImage
+{
+  /** File name of page, unique within book. Single page DJVU is named after it. */
+  String getName();
+
+  /** Size of encoded image in bytes. */
+  long length();
+
+  InputStream openStream() throws IOException;
+
+  /** Stream for image readers. Unlike streams of {@link ImageIO}, it is never cached in temporary file. */
+  ImageInputStream openImageStream() throws IOException;
+
+  /** Checksum of encoded image in {@link ConversionJournal#checksum(File)} format. */
+  String checksum() throws IOException;
+
+  /** Decodes page the same way as {@link ImageIO#read}. Returns null, if image format is not supported. */
+  default BufferedImage decode() throws IOException
+  {
+    try ( ImageInputStream in = openImageStream() )
+    {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders( in );
+      if ( !readers.hasNext() ) return null;
+      ImageReader reader = readers.next();
+      try
+      {
+        reader.setInput( in, true, true );
+        return reader.read( 0, reader.getDefaultReadParam() );
+      }
+      finally
+      {
+        reader.dispose();
+      }
+    }
+  }
+
+  static PageImage of( File file )
+  {
+    return new FilePage( file );
+  }
+
+  static List<PageImage> of( List<File> files )
+  {
+    List<PageImage> pages = new ArrayList<>( files.size() );
+    for ( File file : files ) pages.add( of(file) );
+    return pages;
+  }
+
+  /** Page image in its own file. */
+  final class FilePage implements PageImage
+  {
+    private final File file;
+
+    private FilePage( File file )
+    {
+      this.file = file;
+    }
+
+    public File getFile()
+    {
+      return file;
+    }
+
+    @Override
+    public String getName()
+    {
+      return file.getName();
+    }
+
+    @Override
+    public long length()
+    {
+      return file.length();
+    }
+
+    @Override
+    public InputStream openStream() throws IOException
+    {
+      return new FileInputStream( file );
+    }
+
+    @Override
+    public ImageInputStream openImageStream() throws IOException
+    {
+      return new FileImageInputStream( file );
+    }
+
+    @Override
+    public String checksum() throws IOException
+    {
+      return ConversionJournal.checksum( file );
+    }
+
+    @Override
+    public String toString()
+    {
+      return file.getPath();
+    }
+  }
+}
@@ -0,0 +1,287 @@
+package com.epchain.makedjvuplugin;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Image pages of a book directory in natural page order: "page-2" goes before "page-10".
+ * Directory is listed in one {@link DirectoryStream} pass, only entries with JPG or PNG names are stat'ed,
+ * once each, for all their attributes. Manifest may be cached in a file outside images dir, cache is reused
+ * without listing while images dir modification time is unchanged, as adding, removing or renaming a page
+ * updates it. Size and modification time of every page are kept, so pages need no further stat calls.
+ */
+public final class PageManifest
+{
+  private static final String FORMAT = "makedjvu-pages-1";
+  /**
+   * Listing is not cached, if images dir was modified this recently before scan: file systems with coarse
+   * timestamps may give the same modification time to a change made right after the scan.
+   */
+  private static final long RACY_MILLIS = 2000;
+
+  /** Natural order of file names: digit runs are compared as numbers, other parts as text. */
+  public static final Comparator<String> NATURAL_ORDER = PageManifest::compareNatural;
+
+  private final File imagesDir;
+  private final long dirModified;
+  private final long scanned;
+  private final List<Page> pages;
+
+  private PageManifest( File imagesDir, long dirModified, long scanned, List<Page> pages )
+  {
+    this.imagesDir = imagesDir;
+    this.dirModified = dirModified;
+    this.scanned = scanned;
+    this.pages = Collections.unmodifiableList( pages );
+  }
+
+  /** Lists images dir. Throws {@link IOException}, if it is not a directory. */
+  public static PageManifest scan( File imagesDir ) throws IOException
+  {
+    Path dir = imagesDir.toPath();
+    long scanned = System.currentTimeMillis();
+    long dirModified;
+    try
+    {
+      BasicFileAttributes dirAttributes = Files.readAttributes( dir, BasicFileAttributes.class );
+      if ( !dirAttributes.isDirectory() ) throw new NotDirectoryException( dir.toString() );
+      dirModified = dirAttributes.lastModifiedTime().toMillis();
+    }
+    catch ( NoSuchFileException | NotDirectoryException e )
+    {
+      throw new IOException( "Images dir not found: " + imagesDir.getAbsolutePath(), e );
+    }
+
+    List<Page> pages = new ArrayList<>();
+    try ( DirectoryStream<Path> entries = Files.newDirectoryStream(dir, entry -> isImageName(entry.getFileName().toString())) )
+    {
+      for ( Path entry : entries )
+      {
+        BasicFileAttributes attributes;
+        try
+        {
+          attributes = Files.readAttributes( entry, BasicFileAttributes.class );
+        }
+        catch ( NoSuchFileException e )
+        {
+          continue; // Removed while listed
+        }
+        if ( !attributes.isRegularFile() ) continue;
+        pages.add( new Page(
+          new File(imagesDir, entry.getFileName().toString()), attributes.size(), attributes.lastModifiedTime().toMillis()
+        ) );
+      }
+    }
+    pages.sort( Comparator.comparing(page -> page.getFile().getName(), NATURAL_ORDER) );
+    return new PageManifest( imagesDir, dirModified, scanned, pages );
+  }
+
+  /**
+   * Returns manifest of images dir from cache file, if images dir is unchanged since it was cached.
+   * Otherwise images dir is listed and cache is rewritten. Cache is an optimisation, so its failures are ignored.
+   * Cache file must be outside of images dir, otherwise writing it would invalidate it.
+   */
+  public static PageManifest load( File imagesDir, File cacheFile ) throws IOException
+  {
+    PageManifest cached = readCache( imagesDir, cacheFile );
+    if ( cached != null ) return cached;
+
+    PageManifest manifest = scan( imagesDir );
+    manifest.writeCache( cacheFile );
+    return manifest;
+  }
+
+  /** Cache file of book manifest in work dir. */
+  public static File cacheFile( File workDir, String bookName )
+  {
+    return new File( workDir, bookName + ".pages" );
+  }
+
+  /** Returns true, if file name has JPG or PNG extension. Does not access filesystem. */
+  public static boolean isImageName( String fileName )
+  {
+    String name = fileName.toLowerCase( Locale.ROOT );
+    return name.endsWith( ".jpg" ) || name.endsWith( ".png" );
+  }
+
+  public File getImagesDir()
+  {
+    return imagesDir;
+  }
+
+  public List<Page> getPages()
+  {
+    return pages;
+  }
+
+  public boolean isEmpty()
+  {
+    return pages.isEmpty();
+  }
+
+  /** Page files in page order. */
+  public List<File> getFiles()
+  {
+    List<File> files = new ArrayList<>( pages.size() );
+    for ( Page page : pages ) files.add( page.getFile() );
+    return files;
+  }
+
+  /** Returns page with given file name, or null. */
+  public Page getPage( String fileName )
+  {
+    for ( Page page : pages )
+    {
+      if ( page.getFile().getName().equals(fileName) ) return page;
+    }
+    return null;
+  }
+
+  private static int compareNatural( String a, String b )
+  {
+    int i = 0;
+    int j = 0;
+    while ( i < a.length() && j < b.length() )
+    {
+      char charA = a.charAt( i );
+      char charB = b.charAt( j );
+      if ( isDigit(charA) && isDigit(charB) )
+      {
+        int endA = digitsEnd( a, i );
+        int endB = digitsEnd( b, j );
+        // Leading zeros do not change number
+        int startA = i;
+        while ( startA < endA - 1 && a.charAt(startA) == '0' ) ++startA;
+        int startB = j;
+        while ( startB < endB - 1 && b.charAt(startB) == '0' ) ++startB;
+        int lengthDiff = ( endA - startA ) - ( endB - startB );
+        if ( lengthDiff != 0 ) return lengthDiff;
+        for ( int k = 0; k < endA - startA; ++k )
+        {
+          int diff = a.charAt( startA + k ) - b.charAt( startB + k );
+          if ( diff != 0 ) return diff;
+        }
+        i = endA;
+        j = endB;
+      }
+      else
+      {
+        int diff = Character.toLowerCase( charA ) - Character.toLowerCase( charB );
+        if ( diff != 0 ) return diff;
+        ++i;
+        ++j;
+      }
+    }
+    int remainingDiff = ( a.length() - i ) - ( b.length() - j );
+    // Names, which differ only in case or leading zeros, still have stable order
+    return ( remainingDiff != 0 ) ? remainingDiff : a.compareTo( b );
+  }
+
+  private static boolean isDigit( char c )
+  {
+    return c >= '0' && c <= '9';
+  }
+
+  private static int digitsEnd( String text, int start )
+  {
+    int end = start;
+    while ( end < text.length() && isDigit(text.charAt(end)) ) ++end;
+    return end;
+  }
+
+  private static PageManifest readCache( File imagesDir, File cacheFile )
+  {
+    if ( !cacheFile.isFile() ) return null;
+    try ( BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile), StandardCharsets.UTF_8)) )
+    {
+      String[] header = in.readLine().split( "\t" );
+      if ( header.length != 3 || !header[0].equals(FORMAT) || !header[1].equals(imagesDir.getAbsolutePath()) ) return null;
+      long cachedDirModified = Long.parseLong( header[2] );
+      long dirModified = imagesDir.lastModified();
+      // Modification time of 0 means that dir is not found
+      if ( dirModified == 0 || dirModified != cachedDirModified ) return null;
+
+      List<Page> pages = new ArrayList<>();
+      String line;
+      while ( (line = in.readLine()) != null )
+      {
+        String[] fields = line.split( "\t" );
+        if ( fields.length != 3 ) return null;
+        pages.add( new Page(new File(imagesDir, fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2])) );
+      }
+      return new PageManifest( imagesDir, dirModified, cachedDirModified, pages );
+    }
+    catch ( IOException | RuntimeException e )
+    {
+      return null;
+    }
+  }
+
+  private void writeCache( File cacheFile )
+  {
+    if ( scanned - dirModified < RACY_MILLIS )
+    {
+      cacheFile.delete();
+      return;
+    }
+    File partial = new File( cacheFile.getPath() + ".partial" );
+    try
+    {
+      try ( Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(partial), StandardCharsets.UTF_8)) )
+      {
+        out.write( FORMAT + "\t" + imagesDir.getAbsolutePath() + "\t" + dirModified + "\n" );
+        for ( Page page : pages )
+        {
+          out.write( page.getFile().getName() + "\t" + page.getSize() + "\t" + page.getModified() + "\n" );
+        }
+      }
+      Conversions.moveIntoPlace( partial, cacheFile );
+    }
+    catch ( IOException e )
+    {
+      partial.delete();
+    }
+  }
+
+  /** Page image with its size and modification time at the moment of scan. */
+  public static final class Page
+  {
+    private final File file;
+    private final long size;
+    private final long modified;
+
+    Page( File file, long size, long modified )
+    {
+      this.file = file;
+      this.size = size;
+      this.modified = modified;
+    }
+
+    public File getFile()
+    {
+      return file;
+    }
+
+    public long getSize()
+    {
+      return size;
+    }
+
+    /** Modification time in milliseconds. */
+    public long getModified()
+    {
+      return modified;
+    }
+  }
+}
@@ -0,0 +1,173 @@
+package com.epchain.makedjvuplugin;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Output of a book with its own page resolution and c44 settings. Main output keeps decoded pages as they are,
+ * additional variants, such as small DJVU for phones, are scaled down copies of the same decoded pages.
+ * Pages of variant are kept in its own subdir of book work dir, DJVU of variant is placed next to main DJVU.
+ */
+public final class PageVariant
+{
+  /** c44 decibels of main output, max quality. */
+  public static final int DECIBEL = 48;
+  /** Resolution, which c44 uses by default. */
+  public static final int DEFAULT_DPI = 100;
+
+  private static final Pattern NAME_PATTERN = Pattern.compile( "[A-Za-z0-9_.-]+" );
+
+  /** Name of main output, or null. */
+  private final String name;
+  private final int decibel;
+  private final double scale;
+
+  /** Throws {@link IllegalArgumentException} with message for user, if settings are not valid. */
+  public PageVariant( String name, int decibel, double scale )
+  {
+    if ( name == null || !NAME_PATTERN.matcher(name).matches() )
+    {
+      throw new IllegalArgumentException( "Invalid variant name '" + name + "', letters, digits, '.', '_' and '-' are allowed" );
+    }
+    if ( decibel < 16 || decibel > 50 )
+    {
+      throw new IllegalArgumentException( "Decibel of variant '" + name + "' must be within 16-50: " + decibel );
+    }
+    if ( !(scale > 0 && scale <= 1) )
+    {
+      throw new IllegalArgumentException( "Scale of variant '" + name + "' must be within (0, 1]: " + scale );
+    }
+    this.name = name;
+    this.decibel = decibel;
+    this.scale = scale;
+  }
+
+  private PageVariant( int decibel )
+  {
+    this.name = null;
+    this.decibel = decibel;
+    this.scale = 1;
+  }
+
+  /** Main output of a book: full resolution pages. */
+  public static PageVariant main()
+  {
+    return new PageVariant( DECIBEL );
+  }
+
+  /** Main output of a book with decibel chosen for its size budget. */
+  public static PageVariant main( int decibel )
+  {
+    return new PageVariant( decibel );
+  }
+
+  /** Returns DJVU of variant next to main DJVU: "[book]-[variant].djvu". */
+  public static File variantDjvu( File djvu, String variantName )
+  {
+    return new File( djvu.getParentFile(), Utils.getFilenameWithoutExtension(djvu.getName()) + "-" + variantName + ".djvu" );
+  }
+
+  public boolean isMain()
+  {
+    return name == null;
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  public int getDecibel()
+  {
+    return decibel;
+  }
+
+  public double getScale()
+  {
+    return scale;
+  }
+
+  /** Resolution of scaled pages, so they keep physical size of main pages. */
+  public int getDpi()
+  {
+    return Math.max( 25, (int) Math.round(DEFAULT_DPI * scale) );
+  }
+
+  /** Describes settings, which define encoded pages of variant. */
+  public String getDescription()
+  {
+    if ( isMain() ) return "c44 -decibel " + decibel;
+    return String.format( Locale.ROOT, "%s: c44 -decibel %d, scale %.3f", name, decibel, scale );
+  }
+
+  /** Returns DJVU of this output for given main DJVU. */
+  public File getDjvu( File mainDjvu )
+  {
+    return ( isMain() ) ? mainDjvu : variantDjvu( mainDjvu, name );
+  }
+
+  /** Returns single page DJVU of this output for given main page. */
+  public File getPage( File mainPage )
+  {
+    return ( isMain() ) ? mainPage : new File( getPagesDir(mainPage.getParentFile()), mainPage.getName() );
+  }
+
+  /** Returns dir of single page DJVU files of this output within book work dir. */
+  public File getPagesDir( File workDir )
+  {
+    return ( isMain() ) ? workDir : new File( workDir, "variant-" + name );
+  }
+
+  /** Returns page name for log and metrics: image name for main output, "[variant]/[image]" otherwise. */
+  public String label( String imageName )
+  {
+    return ( isMain() ) ? imageName : name + "/" + imageName;
+  }
+
+  /** Returns size of scaled page side. */
+  public int scaled( int size )
+  {
+    return ( scale == 1 ) ? size : Math.max( 1, (int) Math.round(size * scale) );
+  }
+
+  /**
+   * Scales decoded page to resolution of variant. Page is halved with bilinear filter until the last step,
+   * so downscaled text keeps strokes, which plain bilinear filter drops at small scales.
+   */
+  public BufferedImage scale( BufferedImage page )
+  {
+    int targetWidth = scaled( page.getWidth() );
+    int targetHeight = scaled( page.getHeight() );
+    if ( targetWidth == page.getWidth() && targetHeight == page.getHeight() ) return page;
+
+    int type = page.getType();
+    if ( type == BufferedImage.TYPE_CUSTOM )
+    {
+      type = ( page.getColorModel().hasAlpha() ) ? BufferedImage.TYPE_4BYTE_ABGR : BufferedImage.TYPE_3BYTE_BGR;
+    }
+    BufferedImage scaled = page;
+    do
+    {
+      int width = Math.max( targetWidth, scaled.getWidth() / 2 );
+      int height = Math.max( targetHeight, scaled.getHeight() / 2 );
+      BufferedImage step = new BufferedImage( width, height, type );
+      Graphics2D graphics = step.createGraphics();
+      try
+      {
+        graphics.setRenderingHint( RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR );
+        graphics.drawImage( scaled, 0, 0, width, height, null );
+      }
+      finally
+      {
+        graphics.dispose();
+      }
+      scaled = step;
+    }
+    while ( scaled.getWidth() != targetWidth || scaled.getHeight() != targetHeight );
+    return scaled;
+  }
+}
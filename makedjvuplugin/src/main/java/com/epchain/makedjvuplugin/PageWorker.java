@@ -0,0 +1,335 @@
+package com.epchain.makedjvuplugin;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Worker process, which encodes single pages for {@link PageWorkerPool} of another machine or JVM.
+ * Every connection of coordinator encodes one page at a time, worker asks for as many connections as its slots.
+ * Pages are read from shared storage by path of coordinator, or sent over connection, if worker does not see them
+ * or sees another file by the same path. Worker listens on loopback address, unless another address is given,
+ * as it reads files by paths of whoever connects.
+ * Tools are looked up in {@code PATH} of worker, pages are encoded in work dir of worker and deleted after they are sent.
+ */
+public final class PageWorker implements Closeable
+{
+  private static final String USAGE =
+    "Usage: java -cp makedjvuplugin.jar com.epchain.makedjvuplugin.PageWorker [options]\n" +
+    "Encodes pages of books for Gradle builds and other coordinators, which list this worker as page worker.\n" +
+    "Options:\n" +
+    "  --bind <address>  Address to listen on, loopback by default, 0.0.0.0 for all addresses\n" +
+    "  --port <n>        Port to listen on, " + WorkerProtocol.DEFAULT_PORT + " by default, 0 for any free port\n" +
+    "  --slots <n>       Pages encoded at once. Number of processors by default\n" +
+    "  --work <dir>      Directory for pages being encoded. [temp dir]/makedjvu-worker by default\n" +
+    "  --help            Print this message";
+
+  private final ServerSocket server;
+  private final int slots;
+  private final File workDir;
+  private final ConcurrencyBudget budget;
+  private final ToolRegistry toolRegistry;
+  private final PageDecoder decoder;
+  private final Consumer<String> log;
+  private final ScheduledExecutorService heartbeats;
+  private final AtomicInteger jobs = new AtomicInteger();
+
+  /** Starts listening on given address and port, 0 for any free port. Connections are served by {@link #serve}. */
+  public PageWorker( InetAddress bindAddress, int port, int slots, File workDir, Consumer<String> log ) throws IOException
+  {
+    if ( Utils.createDirIfNotExists(workDir) == Utils.DirState.FAIL ) throw new IOException( "Work dir not found nor created: " + workDir );
+    this.server = new ServerSocket();
+    try
+    {
+      server.bind( new InetSocketAddress(bindAddress, port) );
+    }
+    catch ( IOException e )
+    {
+      server.close();
+      throw e;
+    }
+    this.slots = slots;
+    this.workDir = workDir;
+    ConcurrencyBudget defaults = ConcurrencyBudget.withDefaults();
+    this.budget = new ConcurrencyBudget( slots, Math.max(1, slots / 2), defaults.getScratchSpace() );
+    this.toolRegistry = ToolRegistry.fromEnvironment();
+    this.decoder = PageDecoder.select( toolRegistry );
+    this.log = log;
+    heartbeats = Executors.newSingleThreadScheduledExecutor( runnable ->
+    {
+      Thread thread = new Thread( runnable, "page worker heartbeats" );
+      thread.setDaemon( true );
+      return thread;
+    } );
+  }
+
+  /** Starts listening on loopback address. */
+  public PageWorker( int port, int slots, File workDir, Consumer<String> log ) throws IOException
+  {
+    this( InetAddress.getLoopbackAddress(), port, slots, workDir, log );
+  }
+
+  public static void main( String[] args )
+  {
+    InetAddress bindAddress = InetAddress.getLoopbackAddress();
+    int port = WorkerProtocol.DEFAULT_PORT;
+    int slots = Runtime.getRuntime().availableProcessors();
+    File workDir = new File( System.getProperty("java.io.tmpdir"), "makedjvu-worker" );
+    try
+    {
+      for ( int i = 0; i < args.length; ++i )
+      {
+        switch ( args[i] )
+        {
+          case "--bind": bindAddress = bindAddress( value(args, ++i) ); break;
+          case "--port": port = Integer.parseInt( value(args, ++i) ); break;
+          case "--slots": slots = Integer.parseInt( value(args, ++i) ); break;
+          case "--work": workDir = new File( value(args, ++i) ); break;
+          case "--help":
+            System.out.println( USAGE );
+            return;
+
+          default: throw new IllegalArgumentException( "Unknown option: " + args[i] );
+        }
+      }
+      if ( port < 0 || slots < 1 ) throw new IllegalArgumentException( "Port and slots must be positive" );
+    }
+    catch ( IllegalArgumentException e )
+    {
+      System.err.println( e.getMessage() );
+      System.err.println( USAGE );
+      System.exit( 2 );
+    }
+
+    try ( PageWorker worker = new PageWorker(bindAddress, port, slots, workDir, System.out::println) )
+    {
+      System.out.println(
+        "Page worker listening on " + worker.getAddress().getHostAddress() + ":" + worker.getPort() + " with " + slots + " slots"
+      );
+      worker.serve();
+    }
+    catch ( IOException e )
+    {
+      System.err.println( "Page worker failed: " + e.getMessage() );
+      System.exit( 1 );
+    }
+  }
+
+  public int getPort()
+  {
+    return server.getLocalPort();
+  }
+
+  public InetAddress getAddress()
+  {
+    return server.getInetAddress();
+  }
+
+  /** Accepts connections until worker is closed. Every connection is served by its own thread. */
+  public void serve() throws IOException
+  {
+    while ( !server.isClosed() )
+    {
+      Socket socket;
+      try
+      {
+        socket = server.accept();
+      }
+      catch ( IOException e )
+      {
+        if ( server.isClosed() ) return;
+        throw e;
+      }
+      Thread connection = new Thread( () -> serve(socket), "page worker " + socket.getRemoteSocketAddress() );
+      connection.setDaemon( true );
+      connection.start();
+    }
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    heartbeats.shutdownNow();
+    server.close();
+  }
+
+  private void serve( Socket socket )
+  {
+    try ( Socket connection = socket )
+    {
+      connection.setTcpNoDelay( true );
+      DataInputStream in = new DataInputStream( new BufferedInputStream(connection.getInputStream()) );
+      DataOutputStream out = new DataOutputStream( new BufferedOutputStream(connection.getOutputStream()) );
+      if ( !WorkerProtocol.MAGIC.equals(in.readUTF()) ) return;
+      out.writeUTF( WorkerProtocol.MAGIC );
+      out.writeInt( slots );
+      out.flush();
+
+      while ( true )
+      {
+        int frame = in.read();
+        if ( frame < 0 ) return; // Coordinator is done
+        if ( frame != WorkerProtocol.JOB ) throw new IOException( "unexpected frame " + frame );
+        encode( in, out );
+      }
+    }
+    catch ( IOException e )
+    {
+      log.accept( "Connection " + socket.getRemoteSocketAddress() + " closed: " + e.getMessage() );
+    }
+  }
+
+  /** Encodes page of job. Failure of page is sent to coordinator, failure of connection is thrown. */
+  private void encode( DataInputStream in, DataOutputStream out ) throws IOException
+  {
+    String name = new File( in.readUTF() ).getName();
+    String path = in.readUTF();
+    String checksum = in.readUTF();
+    PageConversion conversion = WorkerProtocol.readConversion( in, decoder );
+    File jobDir = new File( workDir, "job-" + jobs.incrementAndGet() );
+    File djvuPage = new File( jobDir, Utils.getFilenameWithoutExtension(name) + ".djvu" );
+    List<File> files = new ArrayList<>();
+    try
+    {
+      for ( PageVariant output : conversion.getOutputs() ) Files.createDirectories( output.getPagesDir(jobDir).toPath() );
+      File page = path.isEmpty() ? null : new File( path );
+      // File by the same path may be another file on this machine, or changed since
+      if ( page == null || !isSameFile(page, checksum) )
+      {
+        page = new File( jobDir, name );
+        files.add( page );
+        receivePage( in, out, page );
+      }
+
+      // Heartbeats tell coordinator, that slow page is still being encoded
+      ScheduledFuture<?> heartbeat = heartbeats.scheduleAtFixedRate(
+        () -> heartbeat( out ), WorkerProtocol.HEARTBEAT_MILLIS, WorkerProtocol.HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS
+      );
+      List<byte[]> pages = new ArrayList<>();
+      String error = null;
+      try
+      {
+        for ( PageVariant output : conversion.getOutputs() ) files.add( output.getPage(djvuPage) );
+        Conversions.encodePage( PageImage.of(page), djvuPage, conversion, toolRegistry, budget, new ConversionMetrics() );
+        for ( PageVariant output : conversion.getOutputs() ) pages.add( Files.readAllBytes(output.getPage(djvuPage).toPath()) );
+      }
+      catch ( IOException | RuntimeException e )
+      {
+        error = ( e.getMessage() != null ) ? e.getMessage() : e.toString();
+      }
+      finally
+      {
+        heartbeat.cancel( false );
+      }
+
+      synchronized ( out )
+      {
+        if ( error != null )
+        {
+          out.writeByte( WorkerProtocol.ERROR );
+          out.writeUTF( error );
+        }
+        else
+        {
+          out.writeByte( WorkerProtocol.RESULT );
+          out.writeInt( pages.size() );
+          for ( byte[] encoded : pages )
+          {
+            out.writeInt( encoded.length );
+            out.write( encoded );
+          }
+        }
+        out.flush();
+      }
+      log.accept( name + ( (error != null) ? " failed: " + error : " encoded" ) );
+    }
+    finally
+    {
+      for ( File file : files ) file.delete();
+      for ( PageVariant output : conversion.getOutputs() )
+      {
+        if ( !output.isMain() ) output.getPagesDir( jobDir ).delete();
+      }
+      jobDir.delete();
+    }
+  }
+
+  /** Returns true, if worker sees the page file of coordinator. */
+  private static boolean isSameFile( File page, String checksum )
+  {
+    try
+    {
+      return page.isFile() && checksum.equals( ConversionJournal.checksum(page) );
+    }
+    catch ( IOException e )
+    {
+      return false;
+    }
+  }
+
+  private static void receivePage( DataInputStream in, DataOutputStream out, File page ) throws IOException
+  {
+    synchronized ( out )
+    {
+      out.writeByte( WorkerProtocol.NEED_DATA );
+      out.flush();
+    }
+    long remaining = in.readLong();
+    byte[] buffer = new byte[ 64 * 1024 ];
+    try ( OutputStream pageOut = new FileOutputStream(page) )
+    {
+      while ( remaining > 0 )
+      {
+        int read = in.read( buffer, 0, (int) Math.min(buffer.length, remaining) );
+        if ( read < 0 ) throw new EOFException( "page data is truncated" );
+        pageOut.write( buffer, 0, read );
+        remaining -= read;
+      }
+    }
+  }
+
+  private static void heartbeat( DataOutputStream out )
+  {
+    try
+    {
+      synchronized ( out )
+      {
+        out.writeByte( WorkerProtocol.HEARTBEAT );
+        out.flush();
+      }
+    }
+    catch ( IOException e )
+    {
+      // Lost connection is noticed by the job itself
+    }
+  }
+
+  private static InetAddress bindAddress( String host )
+  {
+    try
+    {
+      return InetAddress.getByName( host );
+    }
+    catch ( IOException e )
+    {
+      throw new IllegalArgumentException( "Invalid address to listen on: " + host );
+    }
+  }
+
+  private static String value( String[] args, int index )
+  {
+    if ( index >= args.length ) throw new IllegalArgumentException( "Missing value of " + args[index - 1] );
+    return args[index];
+  }
+}
@@ -0,0 +1,341 @@
+package com.epchain.makedjvuplugin;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Coordinator side of remote page encoding: connections to {@link PageWorker} processes, one per worker slot.
+ * Page is sent to an idle connection and its single page DJVU files come back into place of local encode,
+ * so pages are assembled in page order as usual. Worker, which closes connection or sends no heartbeat within
+ * timeout, is lost: its connection is dropped and page is retried by another connection.
+ * Pages of remote workers have no duplicate copies, as every page is fingerprinted by its own worker.
+ */
+public final class PageWorkerPool implements Closeable
+{
+  /** Worker, which sends nothing this long, is lost. Heartbeats are sent every {@link WorkerProtocol#HEARTBEAT_MILLIS}. */
+  public static final long HEARTBEAT_TIMEOUT_MILLIS = 10_000;
+  /** Page is encoded locally after this many lost workers. */
+  public static final int MAX_ATTEMPTS = 3;
+  private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+  private final List<Connection> connections = new ArrayList<>();
+  private final BlockingQueue<Connection> idle = new LinkedBlockingQueue<>();
+  private final AtomicInteger live = new AtomicInteger();
+  private final long heartbeatTimeoutMillis;
+  private final Consumer<String> log;
+  private int workers;
+
+  private PageWorkerPool( long heartbeatTimeoutMillis, Consumer<String> log )
+  {
+    this.heartbeatTimeoutMillis = heartbeatTimeoutMillis;
+    this.log = log;
+  }
+
+  /**
+   * Connects to workers at "host:port" addresses. Worker, which is not available, is reported into log and skipped,
+   * so pool may have no slots. Throws {@link IllegalArgumentException}, if address is not valid.
+   */
+  public static PageWorkerPool connect( List<String> addresses, long heartbeatTimeoutMillis, Consumer<String> log )
+  {
+    PageWorkerPool pool = new PageWorkerPool( heartbeatTimeoutMillis, log );
+    for ( String address : addresses )
+    {
+      InetSocketAddress socketAddress = WorkerProtocol.parseAddress( address );
+      try
+      {
+        Connection first = pool.open( address, socketAddress );
+        for ( int i = 1; i < first.slots; ++i ) pool.open( address, socketAddress );
+        ++pool.workers;
+      }
+      catch ( IOException e )
+      {
+        log.accept( "Page worker " + address + " is not available: " + e.getMessage() );
+      }
+    }
+    return pool;
+  }
+
+  public static PageWorkerPool connect( List<String> addresses, Consumer<String> log )
+  {
+    return connect( addresses, HEARTBEAT_TIMEOUT_MILLIS, log );
+  }
+
+  /** Number of connected workers. */
+  public int getWorkers()
+  {
+    return workers;
+  }
+
+  /** Number of pages, which may be encoded at once by workers, which are not lost. */
+  public int getSlots()
+  {
+    return live.get();
+  }
+
+  /**
+   * Encodes page by a worker into {@link PageVariant#getPage} of given page for every output of conversion.
+   * Returns false, if no worker is left, or page was retried {@link #MAX_ATTEMPTS} times, so page is to be encoded locally.
+   * Throws {@link IOException}, if worker failed to encode the page.
+   */
+  public boolean encode( PageImage image, File djvuPage, PageConversion conversion, ConversionMetrics metrics ) throws IOException
+  {
+    for ( int attempt = 0; attempt < MAX_ATTEMPTS; ++attempt )
+    {
+      Connection connection = take();
+      if ( connection == null ) return false;
+      long start = System.nanoTime();
+      List<byte[]> pages;
+      try
+      {
+        pages = connection.encode( image, conversion );
+      }
+      catch ( WorkerLostException e )
+      {
+        connection.close();
+        log.accept( "Page worker " + connection.address + " lost while encoding " + image.getName() + ": " + e.getMessage() );
+        continue;
+      }
+      finally
+      {
+        if ( connection.isOpen() ) idle.add( connection );
+        else live.decrementAndGet();
+      }
+
+      long bytes = 0;
+      for ( int i = 0; i < pages.size(); ++i )
+      {
+        File page = conversion.getOutputs().get( i ).getPage( djvuPage );
+        File partial = new File( page.getPath() + ".partial" );
+        Files.write( partial.toPath(), pages.get(i) );
+        Conversions.moveIntoPlace( partial, page );
+        bytes += pages.get( i ).length;
+      }
+      metrics.record( ConversionMetrics.REMOTE_ENCODE, image.getName(), ConversionMetrics.millisSince(start), bytes );
+      return true;
+    }
+    log.accept( image.getName() + " is encoded locally after " + MAX_ATTEMPTS + " lost page workers" );
+    return false;
+  }
+
+  @Override
+  public void close()
+  {
+    synchronized ( connections )
+    {
+      for ( Connection connection : connections ) connection.close();
+    }
+  }
+
+  private Connection open( String address, InetSocketAddress socketAddress ) throws IOException
+  {
+    Connection connection = new Connection( address, socketAddress );
+    synchronized ( connections )
+    {
+      connections.add( connection );
+    }
+    live.incrementAndGet();
+    idle.add( connection );
+    return connection;
+  }
+
+  /** Returns idle connection, waiting for a busy one, or null, if all workers are lost. */
+  private Connection take() throws IOException
+  {
+    try
+    {
+      while ( live.get() > 0 )
+      {
+        Connection connection = idle.poll( 100, TimeUnit.MILLISECONDS );
+        if ( connection != null ) return connection;
+      }
+      return null;
+    }
+    catch ( InterruptedException e )
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException( "Interrupted while waiting for page worker" );
+    }
+  }
+
+  /** Failure of worker or its connection, as opposed to failure of page. */
+  private static final class WorkerLostException extends IOException
+  {
+    private static final long serialVersionUID = 1L;
+
+    WorkerLostException( String message, Throwable cause )
+    {
+      super( message, cause );
+    }
+  }
+
+  /** Failure to read page, which is sent to worker. Connection is out of step with worker, but worker is fine. */
+  private static final class PageReadException extends IOException
+  {
+    private static final long serialVersionUID = 1L;
+
+    PageReadException( IOException cause )
+    {
+      super( cause );
+    }
+  }
+
+  /** Connection to one slot of worker, used by one page at a time. */
+  private final class Connection
+  {
+    private final String address;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final int slots;
+
+    Connection( String address, InetSocketAddress socketAddress ) throws IOException
+    {
+      this.address = address;
+      socket = new Socket();
+      try
+      {
+        socket.connect( new InetSocketAddress(socketAddress.getHostString(), socketAddress.getPort()), CONNECT_TIMEOUT_MILLIS );
+        socket.setTcpNoDelay( true );
+        socket.setSoTimeout( (int) heartbeatTimeoutMillis );
+        in = new DataInputStream( new BufferedInputStream(socket.getInputStream()) );
+        out = new DataOutputStream( new BufferedOutputStream(socket.getOutputStream()) );
+        out.writeUTF( WorkerProtocol.MAGIC );
+        out.flush();
+        if ( !WorkerProtocol.MAGIC.equals(in.readUTF()) ) throw new IOException( "not a page worker" );
+        slots = in.readInt();
+      }
+      catch ( IOException e )
+      {
+        socket.close();
+        throw e;
+      }
+    }
+
+    /**
+     * Returns single page DJVU of every output. Page failure, reported by worker, and failure to read the page
+     * are thrown as is, only failure of connection or worker is thrown as {@link WorkerLostException}.
+     */
+    List<byte[]> encode( PageImage image, PageConversion conversion ) throws IOException
+    {
+      // Workers with shared storage read page files themselves, if their file is the same
+      File file = ( image instanceof PageImage.FilePage ) ? ( (PageImage.FilePage) image ).getFile() : null;
+      String checksum = ( file != null ) ? ConversionJournal.checksum( file ) : "";
+      String error;
+      try
+      {
+        out.writeByte( WorkerProtocol.JOB );
+        out.writeUTF( image.getName() );
+        out.writeUTF( (file != null) ? file.getAbsolutePath() : "" );
+        out.writeUTF( checksum );
+        WorkerProtocol.writeConversion( out, conversion );
+        out.flush();
+        while ( true )
+        {
+          byte frame = in.readByte();
+          if ( frame == WorkerProtocol.HEARTBEAT ) continue;
+          if ( frame == WorkerProtocol.NEED_DATA )
+          {
+            sendPage( image );
+            continue;
+          }
+          if ( frame == WorkerProtocol.RESULT )
+          {
+            int count = in.readInt();
+            if ( count != conversion.getOutputs().size() ) throw new IOException( "wrong number of outputs: " + count );
+            List<byte[]> pages = new ArrayList<>( count );
+            for ( int i = 0; i < count; ++i )
+            {
+              int length = in.readInt();
+              if ( length < 0 || length > WorkerProtocol.MAX_PAGE_LENGTH ) throw new IOException( "wrong length of output: " + length );
+              byte[] page = new byte[ length ];
+              in.readFully( page );
+              pages.add( page );
+            }
+            return pages;
+          }
+          if ( frame != WorkerProtocol.ERROR ) throw new IOException( "unexpected frame " + frame );
+          error = in.readUTF();
+          break;
+        }
+      }
+      catch ( PageReadException e )
+      {
+        // Worker waits for the rest of page, so connection is dropped
+        close();
+        throw (IOException) e.getCause();
+      }
+      catch ( IOException e )
+      {
+        throw new WorkerLostException( (e.getMessage() != null) ? e.getMessage() : e.toString(), e );
+      }
+      throw new IOException( "Page worker " + address + " failed to encode " + image.getName() + ": " + error );
+    }
+
+    /** Sends exactly the announced length of page. Failure to read the page is thrown as {@link PageReadException}. */
+    private void sendPage( PageImage image ) throws IOException
+    {
+      long length = image.length();
+      InputStream opened;
+      try
+      {
+        opened = image.openStream();
+      }
+      catch ( IOException e )
+      {
+        throw new PageReadException( e );
+      }
+      try ( InputStream pageIn = opened )
+      {
+        out.writeLong( length );
+        byte[] buffer = new byte[ 64 * 1024 ];
+        for ( long remaining = length; remaining > 0; )
+        {
+          int read = readPage( image, pageIn, buffer, (int) Math.min(buffer.length, remaining) );
+          out.write( buffer, 0, read );
+          remaining -= read;
+        }
+      }
+      out.flush();
+    }
+
+    private int readPage( PageImage image, InputStream pageIn, byte[] buffer, int length ) throws PageReadException
+    {
+      try
+      {
+        int read = pageIn.read( buffer, 0, length );
+        if ( read < 0 ) throw new EOFException( image.getName() + " is shorter than its length" );
+        return read;
+      }
+      catch ( IOException e )
+      {
+        throw new PageReadException( e );
+      }
+    }
+
+    boolean isOpen()
+    {
+      return !socket.isClosed();
+    }
+
+    void close()
+    {
+      try
+      {
+        socket.close();
+      }
+      catch ( IOException e )
+      {
+        // Connection is dropped anyway
+      }
+    }
+  }
+}
@@ -0,0 +1,310 @@
+package com.epchain.makedjvuplugin;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Book performance report. Merges metrics CSV files of all book tasks from report dir
+ * into "report.json" with stage totals and per-page timings, and into "report.html"
+ * with stage breakdown and the slowest pages.
+ */
+public final class PerformanceReport
+{
+  /** Reports of all books are kept in this dir of output dir. */
+  public static final String DIR_NAME = "reports";
+  public static final String JSON_NAME = "report.json";
+  public static final String HTML_NAME = "report.html";
+
+  private static final int SLOWEST_PAGES = 20;
+  /** Stages, which are measured for every page. */
+  private static final List<String> PAGE_STAGES = Arrays.asList(
+    ConversionMetrics.DECODE, ConversionMetrics.PNM_WRITE, ConversionMetrics.PNG_WRITE, ConversionMetrics.C44
+  );
+  /** Report order of known stages. */
+  private static final List<String> STAGE_ORDER = Arrays.asList(
+    ConversionMetrics.EBOOK_CONVERT, ConversionMetrics.EPUB_EXTRACT,
+    ConversionMetrics.CROP_SCAN, ConversionMetrics.SIZE_TRIAL, ConversionMetrics.DECODE, ConversionMetrics.CROP, ConversionMetrics.GRAY_PAGE,
+    ConversionMetrics.FINGERPRINT, ConversionMetrics.SCALE,
+    ConversionMetrics.PNM_WRITE, ConversionMetrics.PNG_WRITE, ConversionMetrics.C44,
+    ConversionMetrics.REMOTE_ENCODE, ConversionMetrics.BLANK_PAGE, ConversionMetrics.DUPLICATE_PAGE,
+    ConversionMetrics.DJVM, ConversionMetrics.DJVUSED
+  );
+
+  private final String bookName;
+  private final Map<String, Stage> stages = new TreeMap<>(
+    Comparator.comparingInt( PerformanceReport::stageRank ).thenComparing( Comparator.naturalOrder() )
+  );
+  private final Map<String, Page> pages = new TreeMap<>();
+  private long heapPeak;
+
+  private PerformanceReport( String bookName )
+  {
+    this.bookName = bookName;
+  }
+
+  /** Saves task metrics into report dir and regenerates book report. */
+  public static void update( File reportDir, String bookName, String taskName, ConversionMetrics metrics )
+    throws IOException
+  {
+    if ( Utils.createDirIfNotExists(reportDir) == Utils.DirState.FAIL )
+    {
+      throw new IOException( "Report dir not found nor created: " + reportDir.getAbsolutePath() );
+    }
+    metrics.writeCsv( new File(reportDir, taskName + ".csv"), taskName );
+    generate( reportDir, bookName );
+  }
+
+  /** Generates book report from all metrics CSV files of report dir. */
+  public static void generate( File reportDir, String bookName ) throws IOException
+  {
+    File[] csvFiles = reportDir.listFiles( file -> file.getName().endsWith(".csv") );
+    if ( csvFiles == null ) throw new IOException( "Report dir not found: " + reportDir.getAbsolutePath() );
+    Arrays.sort( csvFiles );
+
+    PerformanceReport report = new PerformanceReport( bookName );
+    for ( File csv : csvFiles )
+    {
+      report.read( csv );
+    }
+    write( new File(reportDir, JSON_NAME), report.toJson() );
+    write( new File(reportDir, HTML_NAME), report.toHtml() );
+  }
+
+  private void read( File csv ) throws IOException
+  {
+    List<String> lines = Files.readAllLines( csv.toPath(), StandardCharsets.UTF_8 );
+    for ( String line : lines.subList(Math.min(1, lines.size()), lines.size()) )
+    {
+      List<String> fields = parseCsvLine( line );
+      if ( fields.size() != 4 ) continue;
+
+      String stageName = fields.get( 0 );
+      String item = fields.get( 1 );
+      long millis;
+      long bytes;
+      try
+      {
+        millis = Long.parseLong( fields.get(2) );
+        bytes = Long.parseLong( fields.get(3) );
+      }
+      catch ( NumberFormatException e )
+      {
+        continue;
+      }
+
+      if ( stageName.equals(ConversionMetrics.HEAP_PEAK) )
+      {
+        heapPeak = Math.max( heapPeak, bytes );
+        continue;
+      }
+      stages.computeIfAbsent( stageName, Stage::new ).add( millis, bytes );
+      if ( PAGE_STAGES.contains(stageName) ) pages.computeIfAbsent( item, Page::new ).add( stageName, millis, bytes );
+    }
+  }
+
+  private String toJson()
+  {
+    StringBuilder json = new StringBuilder();
+    json.append( "{\n" );
+    json.append( "  \"book\": " ).append( Utils.toJsonString(bookName) ).append( ",\n" );
+    json.append( "  \"generatedAt\": " ).append( Utils.toJsonString(Instant.now().toString()) ).append( ",\n" );
+    json.append( "  \"heapPeakBytes\": " ).append( heapPeak ).append( ",\n" );
+    json.append( "  \"stages\": [" );
+    String separator = "\n";
+    for ( Stage stage : stages.values() )
+    {
+      json.append( separator ).append( "    {" );
+      json.append( "\"stage\": " ).append( Utils.toJsonString(stage.name) );
+      json.append( ", \"count\": " ).append( stage.count );
+      json.append( ", \"totalMillis\": " ).append( stage.totalMillis );
+      json.append( ", \"maxMillis\": " ).append( stage.maxMillis );
+      json.append( ", \"bytes\": " ).append( stage.bytes );
+      json.append( ", \"megabytesPerSecond\": " ).append( String.format(Locale.ROOT, "%.2f", stage.throughput()) );
+      json.append( "}" );
+      separator = ",\n";
+    }
+    json.append( "\n  ],\n" );
+    json.append( "  \"pages\": [" );
+    separator = "\n";
+    for ( Page page : pages.values() )
+    {
+      json.append( separator ).append( "    {" );
+      json.append( "\"page\": " ).append( Utils.toJsonString(page.name) );
+      for ( String stageName : PAGE_STAGES )
+      {
+        if ( !page.millis.containsKey(stageName) ) continue;
+        json.append( ", " ).append( Utils.toJsonString(jsonKey(stageName) + "Millis") ).append( ": " ).append( page.millis.get(stageName) );
+      }
+      json.append( ", \"portableMapBytes\": " ).append( page.portableMapBytes );
+      json.append( ", \"totalMillis\": " ).append( page.totalMillis() );
+      json.append( "}" );
+      separator = ",\n";
+    }
+    json.append( "\n  ]\n}\n" );
+    return json.toString();
+  }
+
+  private String toHtml()
+  {
+    long allStagesMillis = 0;
+    for ( Stage stage : stages.values() ) allStagesMillis += stage.totalMillis;
+
+    StringBuilder html = new StringBuilder();
+    html.append( "<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"utf-8\">\n" );
+    html.append( "<title>" ).append( escapeHtml(bookName) ).append( " performance</title>\n" );
+    html.append( "<style>\n" );
+    html.append( "body { font-family: sans-serif; margin: 2em; }\n" );
+    html.append( "table { border-collapse: collapse; margin-bottom: 2em; }\n" );
+    html.append( "th, td { border: 1px solid #ccc; padding: 0.3em 0.6em; text-align: right; }\n" );
+    html.append( "th:first-child, td:first-child { text-align: left; }\n" );
+    html.append( ".bar { background: #4a90d9; height: 0.8em; }\n" );
+    html.append( "</style>\n</head>\n<body>\n" );
+    html.append( "<h1>" ).append( escapeHtml(bookName) ).append( "</h1>\n" );
+    html.append( "<p>Pages: " ).append( pages.size() );
+    html.append( ". Peak heap: " ).append( heapPeak / (1024 * 1024) ).append( " MB.</p>\n" );
+
+    html.append( "<h2>Stages</h2>\n<table>\n" );
+    html.append( "<tr><th>Stage</th><th>Count</th><th>Total, s</th><th>Max, ms</th>" );
+    html.append( "<th>MB</th><th>MB/s</th><th>Share</th></tr>\n" );
+    for ( Stage stage : stages.values() )
+    {
+      double share = ( allStagesMillis > 0 ) ? 100.0 * stage.totalMillis / allStagesMillis : 0;
+      html.append( "<tr><td>" ).append( escapeHtml(stage.name) ).append( "</td>" );
+      html.append( "<td>" ).append( stage.count ).append( "</td>" );
+      html.append( "<td>" ).append( String.format(Locale.ROOT, "%.1f", stage.totalMillis / 1000.0) ).append( "</td>" );
+      html.append( "<td>" ).append( stage.maxMillis ).append( "</td>" );
+      html.append( "<td>" ).append( String.format(Locale.ROOT, "%.1f", stage.bytes / 1e6) ).append( "</td>" );
+      html.append( "<td>" ).append( String.format(Locale.ROOT, "%.1f", stage.throughput()) ).append( "</td>" );
+      html.append( "<td><div class=\"bar\" style=\"width: " ).append( String.format(Locale.ROOT, "%.0f", share * 3) );
+      html.append( "px\"></div>" ).append( String.format(Locale.ROOT, "%.1f%%", share) ).append( "</td></tr>\n" );
+    }
+    html.append( "</table>\n" );
+
+    List<Page> slowest = new ArrayList<>( pages.values() );
+    slowest.sort( Comparator.comparingLong(Page::totalMillis).reversed() );
+    html.append( "<h2>Slowest pages</h2>\n<table>\n<tr><th>Page</th>" );
+    for ( String stageName : PAGE_STAGES ) html.append( "<th>" ).append( stageName ).append( ", ms</th>" );
+    html.append( "<th>Portable map, MB</th><th>Total, ms</th></tr>\n" );
+    for ( Page page : slowest.subList(0, Math.min(SLOWEST_PAGES, slowest.size())) )
+    {
+      html.append( "<tr><td>" ).append( escapeHtml(page.name) ).append( "</td>" );
+      for ( String stageName : PAGE_STAGES )
+      {
+        Long millis = page.millis.get( stageName );
+        html.append( "<td>" ).append( (millis != null) ? millis.toString() : "" ).append( "</td>" );
+      }
+      html.append( "<td>" ).append( String.format(Locale.ROOT, "%.1f", page.portableMapBytes / 1e6) ).append( "</td>" );
+      html.append( "<td>" ).append( page.totalMillis() ).append( "</td></tr>\n" );
+    }
+    html.append( "</table>\n</body>\n</html>\n" );
+    return html.toString();
+  }
+
+  /** Converts stage name, such as "pnm-write", into camel case JSON key. */
+  private static String jsonKey( String stageName )
+  {
+    StringBuilder key = new StringBuilder();
+    for ( String word : stageName.split("-") )
+    {
+      key.append( (key.length() == 0) ? word : Utils.capitalize(word) );
+    }
+    return key.toString();
+  }
+
+  private static int stageRank( String stageName )
+  {
+    int rank = STAGE_ORDER.indexOf( stageName );
+    return ( rank >= 0 ) ? rank : STAGE_ORDER.size();
+  }
+
+  static List<String> parseCsvLine( String line )
+  {
+    List<String> fields = new ArrayList<>();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for ( int i = 0; i < line.length(); ++i )
+    {
+      char c = line.charAt( i );
+      if ( quoted )
+      {
+        if ( c != '"' ) field.append( c );
+        else if ( i + 1 < line.length() && line.charAt(i + 1) == '"' ) field.append( line.charAt(++i) );
+        else quoted = false;
+      }
+      else if ( c == '"' ) quoted = true;
+      else if ( c == ',' )
+      {
+        fields.add( field.toString() );
+        field.setLength( 0 );
+      }
+      else field.append( c );
+    }
+    fields.add( field.toString() );
+    return fields;
+  }
+
+  private static String escapeHtml( String str )
+  {
+    return str.replace( "&", "&amp;" ).replace( "<", "&lt;" ).replace( ">", "&gt;" ).replace( "\"", "&quot;" );
+  }
+
+  private static void write( File file, String contents ) throws IOException
+  {
+    Files.write( file.toPath(), contents.getBytes(StandardCharsets.UTF_8) );
+  }
+
+  private static final class Stage
+  {
+    final String name;
+    int count;
+    long totalMillis;
+    long maxMillis;
+    long bytes;
+
+    Stage( String name )
+    {
+      this.name = name;
+    }
+
+    void add( long millis, long bytes )
+    {
+      ++count;
+      totalMillis += millis;
+      maxMillis = Math.max( maxMillis, millis );
+      this.bytes += bytes;
+    }
+
+    double throughput()
+    {
+      return ( totalMillis > 0 ) ? ( bytes / 1e6 ) / ( totalMillis / 1000.0 ) : 0;
+    }
+  }
+
+  private static final class Page
+  {
+    final String name;
+    final Map<String, Long> millis = new HashMap<>();
+    long portableMapBytes;
+
+    Page( String name )
+    {
+      this.name = name;
+    }
+
+    void add( String stageName, long stageMillis, long bytes )
+    {
+      millis.merge( stageName, stageMillis, Long::sum );
+      if ( stageName.equals(ConversionMetrics.PNM_WRITE) ) portableMapBytes += bytes;
+    }
+
+    long totalMillis()
+    {
+      long total = 0;
+      for ( long stageMillis : millis.values() ) total += stageMillis;
+      return total;
+    }
+  }
+}
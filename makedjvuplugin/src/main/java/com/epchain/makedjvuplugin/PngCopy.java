@@ -0,0 +1,157 @@
+package com.epchain.makedjvuplugin;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PNG copy of JPG page, which replaces the JPG the same way as {@link JpgToPngTask} does, but is written from
+ * the page, which is already decoded for encoding. Copy is written by a shared pool of {@link #MAX_WRITERS} threads
+ * into temporary file, while the page is prepared and encoded, so JPG is decoded once for both.
+ * Copy holds decode slot of the page until it is written, as decoded page is kept in memory till then.
+ */
+public final class PngCopy
+{
+  /** Copies written at once. Copies, which wait for a writer, hold their decode slots, so they are few anyway. */
+  public static final int MAX_WRITERS = Runtime.getRuntime().availableProcessors();
+  private static final ExecutorService WRITERS = writers();
+
+  private final File jpg;
+  private final File png;
+  private final File tmpPng;
+  private final ConversionMetrics metrics;
+  private Future<?> writer;
+  private long writeMillis;
+  private IOException error;
+  private boolean done;
+
+  private PngCopy( File jpg, ConversionMetrics metrics )
+  {
+    this.jpg = jpg;
+    this.png = pngFor( jpg );
+    this.tmpPng = new File( png.getParentFile(), png.getName() + ".tmp" );
+    this.metrics = metrics;
+  }
+
+  /**
+   * Starts writing PNG copy of decoded page. Returns null, if page is not a JPG file.
+   * Otherwise copy takes decode slot, which is released when copy is written, whether or not it succeeds.
+   */
+  public static PngCopy start(
+    PageImage image, BufferedImage decoded, PngWriteParam param, ConcurrencyBudget.Permit decodeSlot, ConversionMetrics metrics
+  )
+  {
+    if ( !isJpgFile(image) ) return null;
+    PngCopy copy = new PngCopy( ((PageImage.FilePage) image).getFile(), metrics );
+    copy.writer = WRITERS.submit( () ->
+    {
+      long writeStart = System.nanoTime();
+      try
+      {
+        new PngEncoder( param ).write( decoded, copy.tmpPng );
+      }
+      catch ( IOException e )
+      {
+        copy.error = e;
+      }
+      catch ( RuntimeException e )
+      {
+        copy.error = new IOException( e.toString(), e );
+      }
+      finally
+      {
+        decodeSlot.release();
+      }
+      copy.writeMillis = ConversionMetrics.millisSince( writeStart );
+    } );
+    return copy;
+  }
+
+  /** Returns true, if page is a JPG file, which may be replaced with PNG copy. Pages of archives are never replaced. */
+  public static boolean isJpgFile( PageImage image )
+  {
+    return image instanceof PageImage.FilePage && image.getName().toLowerCase( Locale.ROOT ).endsWith( ".jpg" );
+  }
+
+  /** PNG next to JPG with the same base name. */
+  public static File pngFor( File jpg )
+  {
+    return new File( jpg.getParentFile(), Utils.getFilenameWithoutExtension(jpg.getName()) + ".png" );
+  }
+
+  public File getPng()
+  {
+    return png;
+  }
+
+  /** Waits for complete PNG, moves it into place and deletes JPG. JPG is deleted only after complete PNG is in place. */
+  public void commit() throws IOException
+  {
+    await();
+    if ( error != null )
+    {
+      tmpPng.delete();
+      throw new IOException( "Failed to convert " + jpg.getName() + " to PNG: " + error.getMessage(), error );
+    }
+    Conversions.moveIntoPlace( tmpPng, png );
+    metrics.record( ConversionMetrics.PNG_WRITE, jpg.getName(), writeMillis, png.length() );
+    if ( !jpg.delete() ) throw new IOException( "Failed to delete " + jpg.getName() + " after it was converted to PNG" );
+  }
+
+  /** Waits for the writer and deletes incomplete PNG. JPG is kept. Never fails, so it may be called on failure of page. */
+  public void discard()
+  {
+    if ( done ) return;
+    try
+    {
+      await();
+    }
+    catch ( IOException e )
+    {
+      // Writer is left to finish on its own, it holds temporary file only
+    }
+    tmpPng.delete();
+  }
+
+  private void await() throws IOException
+  {
+    done = true;
+    try
+    {
+      writer.get();
+    }
+    catch ( InterruptedException e )
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException( "Interrupted while converting " + jpg.getName() + " to PNG" );
+    }
+    catch ( ExecutionException e )
+    {
+      // Writer catches failures of its own, so it is an Error
+      throw new IOException( "Failed to convert " + jpg.getName() + " to PNG: " + e.getCause(), e.getCause() );
+    }
+  }
+
+  /** Daemon threads, which are stopped when idle, so pool does not keep Gradle daemon busy between builds. */
+  private static ExecutorService writers()
+  {
+    ThreadPoolExecutor writers = new ThreadPoolExecutor(
+      MAX_WRITERS, MAX_WRITERS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable ->
+      {
+        Thread thread = new Thread( runnable, "png copy writer" );
+        thread.setDaemon( true );
+        return thread;
+      }
+    );
+    writers.allowCoreThreadTimeOut( true );
+    return writers;
+  }
+}
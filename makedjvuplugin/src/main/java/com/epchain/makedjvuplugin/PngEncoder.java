@@ -0,0 +1,474 @@
+package com.epchain.makedjvuplugin;
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * PNG writer with configurable deflate level and scanline filter.
+ * Grayscale images are written as 8-bit gray, images with alpha as RGBA, other images as RGB.
+ * Large images may be filtered and compressed by several threads, like pigz does: blocks of rows are
+ * deflated independently, primed with the last 32K of previous block, and ended on byte boundary,
+ * so concatenated blocks form a single valid zlib stream.
+ */
+public final class PngEncoder
+{
+  private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+  private static final int COLOR_GRAY = 0;
+  private static final int COLOR_RGB = 2;
+  private static final int COLOR_RGBA = 6;
+  private static final int IDAT_SIZE = 64 * 1024;
+  /** Uncompressed bytes per block of parallel deflate. */
+  private static final int BLOCK_SIZE = 256 * 1024;
+  private static final int DICTIONARY_SIZE = 32 * 1024;
+
+  private final PngWriteParam param;
+
+  public PngEncoder( PngWriteParam param )
+  {
+    this.param = param;
+  }
+
+  /** Writes image into file. */
+  public void write( BufferedImage image, File png ) throws IOException
+  {
+    try ( OutputStream out = new BufferedOutputStream(new FileOutputStream(png), IDAT_SIZE) )
+    {
+      write( image, out );
+    }
+  }
+
+  /** Writes image into stream. Stream is not closed. */
+  public void write( BufferedImage image, OutputStream out ) throws IOException
+  {
+    Scanlines scanlines = new Scanlines( image );
+
+    DataOutputStream pngOut = new DataOutputStream( out );
+    pngOut.write( SIGNATURE );
+
+    ByteArrayOutputStream header = new ByteArrayOutputStream( 13 );
+    DataOutputStream headerOut = new DataOutputStream( header );
+    headerOut.writeInt( image.getWidth() );
+    headerOut.writeInt( image.getHeight() );
+    headerOut.writeByte( 8 ); // Bit depth
+    headerOut.writeByte( scanlines.colorType );
+    headerOut.writeByte( 0 ); // Deflate compression
+    headerOut.writeByte( 0 ); // Adaptive filtering
+    headerOut.writeByte( 0 ); // No interlace
+    writeChunk( pngOut, "IHDR", header.toByteArray(), header.size() );
+
+    int blockRows = Math.max( 1, BLOCK_SIZE / (scanlines.rowBytes + 1) );
+    if ( param.getDeflateThreads() > 1 && image.getHeight() > blockRows )
+    {
+      try ( IdatOutputStream idatOut = new IdatOutputStream(pngOut) )
+      {
+        writeParallel( image, blockRows, idatOut );
+      }
+    }
+    else
+    {
+      writeSequential( image, scanlines, pngOut );
+    }
+
+    writeChunk( pngOut, "IEND", new byte[0], 0 );
+    pngOut.flush();
+  }
+
+  private void writeSequential( BufferedImage image, Scanlines scanlines, DataOutputStream pngOut ) throws IOException
+  {
+    Deflater deflater = new Deflater( param.getDeflateLevel() );
+    try ( IdatOutputStream idatOut = new IdatOutputStream(pngOut) )
+    {
+      DeflaterOutputStream zOut = new DeflaterOutputStream( idatOut, deflater, IDAT_SIZE );
+      byte[] filtered = new byte[ scanlines.rowBytes + 1 ];
+      for ( int y = 0; y < image.getHeight(); ++y )
+      {
+        scanlines.next();
+        filterRow( param.getFilter(), scanlines, filtered );
+        zOut.write( filtered );
+      }
+      zOut.finish();
+    }
+    finally
+    {
+      deflater.end();
+    }
+  }
+
+  /** Compresses blocks of rows on several threads and writes them in order into zlib stream. */
+  private void writeParallel( BufferedImage image, int blockRows, OutputStream zlibOut ) throws IOException
+  {
+    int height = image.getHeight();
+    int blocks = ( height + blockRows - 1 ) / blockRows;
+    int threads = Math.min( param.getDeflateThreads(), blocks );
+    ExecutorService executor = Executors.newFixedThreadPool( threads );
+    try
+    {
+      zlibOut.write( 0x78 ); // Deflate with 32K window
+      zlibOut.write( zlibLevelFlags(param.getDeflateLevel()) );
+
+      // Limited number of blocks in flight keeps memory bounded for huge images
+      Deque<Future<Block>> inFlight = new ArrayDeque<>();
+      int submitted = 0;
+      long adler = 1;
+      for ( int i = 0; i < blocks; ++i )
+      {
+        while ( submitted < blocks && submitted < i + threads * 2 )
+        {
+          final int from = submitted * blockRows;
+          final int to = Math.min( height, from + blockRows );
+          inFlight.add( executor.submit(() -> compressBlock(image, from, to, to == height)) );
+          ++submitted;
+        }
+
+        Block block = inFlight.poll().get();
+        zlibOut.write( block.deflated );
+        adler = ( i == 0 ) ? block.adler : adler32Combine( adler, block.adler, block.length );
+      }
+
+      zlibOut.write( (int) (adler >>> 24) );
+      zlibOut.write( (int) (adler >>> 16) );
+      zlibOut.write( (int) (adler >>> 8) );
+      zlibOut.write( (int) adler );
+    }
+    catch ( InterruptedException e )
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException( "Interrupted while compressing PNG" );
+    }
+    catch ( ExecutionException e )
+    {
+      if ( e.getCause() instanceof IOException ) throw (IOException) e.getCause();
+      throw new IOException( "Failed to compress PNG: " + e.getCause(), e.getCause() );
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+  }
+
+  /** Filters and deflates rows. Block is raw deflate data, which ends on byte boundary, if block is not last. */
+  private Block compressBlock( BufferedImage image, int from, int to, boolean last )
+  {
+    byte[] filtered = filterRows( image, from, to );
+    Deflater deflater = new Deflater( param.getDeflateLevel(), true );
+    try
+    {
+      if ( from > 0 )
+      {
+        // Filtering is deterministic, so previous rows give the same bytes, as the end of previous block
+        int rowLength = filtered.length / ( to - from );
+        int dictionaryRows = ( DICTIONARY_SIZE + rowLength - 1 ) / rowLength;
+        byte[] previous = filterRows( image, Math.max(0, from - dictionaryRows), from );
+        int dictionaryLength = Math.min( DICTIONARY_SIZE, previous.length );
+        deflater.setDictionary( previous, previous.length - dictionaryLength, dictionaryLength );
+      }
+      deflater.setInput( filtered );
+
+      ByteArrayOutputStream deflated = new ByteArrayOutputStream( filtered.length / 2 );
+      byte[] buffer = new byte[ IDAT_SIZE ];
+      if ( last )
+      {
+        deflater.finish();
+        while ( !deflater.finished() )
+        {
+          int length = deflater.deflate( buffer );
+          deflated.write( buffer, 0, length );
+        }
+      }
+      else
+      {
+        int length;
+        do
+        {
+          length = deflater.deflate( buffer, 0, buffer.length, Deflater.SYNC_FLUSH );
+          deflated.write( buffer, 0, length );
+        }
+        while ( length == buffer.length );
+      }
+
+      Adler32 adler = new Adler32();
+      adler.update( filtered );
+      return new Block( deflated.toByteArray(), adler.getValue(), filtered.length );
+    }
+    finally
+    {
+      deflater.end();
+    }
+  }
+
+  private byte[] filterRows( BufferedImage image, int from, int to )
+  {
+    Scanlines scanlines = new Scanlines( image, from );
+    byte[] filtered = new byte[ scanlines.rowBytes + 1 ];
+    byte[] rows = new byte[ (to - from) * filtered.length ];
+    for ( int y = from; y < to; ++y )
+    {
+      scanlines.next();
+      filterRow( param.getFilter(), scanlines, filtered );
+      System.arraycopy( filtered, 0, rows, (y - from) * filtered.length, filtered.length );
+    }
+    return rows;
+  }
+
+  /** Returns zlib header FLG byte, which includes compression level hint. */
+  private static int zlibLevelFlags( int level )
+  {
+    if ( level <= 1 ) return 0x01;
+    if ( level <= 5 ) return 0x5E;
+    if ( level == 6 ) return 0x9C;
+    return 0xDA;
+  }
+
+  /** Returns Adler-32 of concatenated data from checksums of its parts, as zlib adler32_combine does. */
+  static long adler32Combine( long adler1, long adler2, long length2 )
+  {
+    final long base = 65521;
+    long remainder = length2 % base;
+    long sum1 = adler1 & 0xFFFF;
+    long sum2 = ( remainder * sum1 ) % base;
+    sum1 += ( adler2 & 0xFFFF ) + base - 1;
+    sum2 += ( (adler1 >>> 16) & 0xFFFF ) + ( (adler2 >>> 16) & 0xFFFF ) + base - remainder;
+    if ( sum1 >= base ) sum1 -= base;
+    if ( sum1 >= base ) sum1 -= base;
+    if ( sum2 >= (base << 1) ) sum2 -= ( base << 1 );
+    if ( sum2 >= base ) sum2 -= base;
+    return sum1 | ( sum2 << 16 );
+  }
+
+  /** Filters current row of scanlines into filter type byte and filtered bytes. */
+  static void filterRow( PngWriteParam.Filter filter, Scanlines scanlines, byte[] filtered )
+  {
+    if ( filter != PngWriteParam.Filter.ADAPTIVE )
+    {
+      applyFilter( filter, scanlines.row, scanlines.prior, scanlines.bytesPerPixel, filtered );
+      return;
+    }
+
+    // Minimum sum of absolute differences heuristic, recommended by PNG specification
+    byte[] candidate = scanlines.candidate;
+    long bestSum = Long.MAX_VALUE;
+    for ( PngWriteParam.Filter type : PngWriteParam.Filter.values() )
+    {
+      if ( type == PngWriteParam.Filter.ADAPTIVE ) continue;
+      applyFilter( type, scanlines.row, scanlines.prior, scanlines.bytesPerPixel, candidate );
+      long sum = 0;
+      for ( int i = 1; i < candidate.length && sum < bestSum; ++i )
+      {
+        sum += Math.abs( (int) candidate[i] );
+      }
+      if ( sum < bestSum )
+      {
+        bestSum = sum;
+        System.arraycopy( candidate, 0, filtered, 0, candidate.length );
+      }
+    }
+  }
+
+  private static void applyFilter( PngWriteParam.Filter filter, byte[] row, byte[] prior, int bpp, byte[] out )
+  {
+    int length = row.length;
+    out[0] = (byte) filter.ordinal();
+    switch ( filter )
+    {
+      case NONE:
+        System.arraycopy( row, 0, out, 1, length );
+        break;
+
+      case SUB:
+        for ( int i = 0; i < length; ++i )
+        {
+          int left = ( i >= bpp ) ? row[i - bpp] & 0xFF : 0;
+          out[i + 1] = (byte) ( (row[i] & 0xFF) - left );
+        }
+        break;
+
+      case UP:
+        for ( int i = 0; i < length; ++i )
+        {
+          out[i + 1] = (byte) ( (row[i] & 0xFF) - (prior[i] & 0xFF) );
+        }
+        break;
+
+      case AVERAGE:
+        for ( int i = 0; i < length; ++i )
+        {
+          int left = ( i >= bpp ) ? row[i - bpp] & 0xFF : 0;
+          out[i + 1] = (byte) ( (row[i] & 0xFF) - ((left + (prior[i] & 0xFF)) >>> 1) );
+        }
+        break;
+
+      case PAETH:
+        for ( int i = 0; i < length; ++i )
+        {
+          int left = ( i >= bpp ) ? row[i - bpp] & 0xFF : 0;
+          int up = prior[i] & 0xFF;
+          int upLeft = ( i >= bpp ) ? prior[i - bpp] & 0xFF : 0;
+          out[i + 1] = (byte) ( (row[i] & 0xFF) - paeth(left, up, upLeft) );
+        }
+        break;
+
+      default:
+        throw new IllegalStateException( "BUG: Unexpected filter " + filter );
+    }
+  }
+
+  private static int paeth( int left, int up, int upLeft )
+  {
+    int estimate = left + up - upLeft;
+    int leftDistance = Math.abs( estimate - left );
+    int upDistance = Math.abs( estimate - up );
+    int upLeftDistance = Math.abs( estimate - upLeft );
+    if ( leftDistance <= upDistance && leftDistance <= upLeftDistance ) return left;
+    return ( upDistance <= upLeftDistance ) ? up : upLeft;
+  }
+
+  private static void writeChunk( DataOutputStream out, String type, byte[] data, int length ) throws IOException
+  {
+    byte[] typeBytes = type.getBytes( StandardCharsets.US_ASCII );
+    CRC32 crc = new CRC32();
+    crc.update( typeBytes );
+    crc.update( data, 0, length );
+
+    out.writeInt( length );
+    out.write( typeBytes );
+    out.write( data, 0, length );
+    out.writeInt( (int) crc.getValue() );
+  }
+
+  /** Image rows in PNG sample order. Keeps previous row for filters. */
+  static final class Scanlines
+  {
+    final int colorType;
+    final int bytesPerPixel;
+    final int rowBytes;
+    private final BufferedImage image;
+    private final int[] argb;
+    byte[] row;
+    byte[] prior;
+    final byte[] candidate;
+    private int y = 0;
+
+    Scanlines( BufferedImage image )
+    {
+      this( image, 0 );
+    }
+
+    /** Creates scanlines, which start at given row. */
+    Scanlines( BufferedImage image, int startRow )
+    {
+      this.image = image;
+      if ( image.getType() == BufferedImage.TYPE_BYTE_GRAY ) colorType = COLOR_GRAY;
+      else if ( image.getColorModel().hasAlpha() ) colorType = COLOR_RGBA;
+      else colorType = COLOR_RGB;
+      bytesPerPixel = ( colorType == COLOR_GRAY ) ? 1 : ( colorType == COLOR_RGBA ) ? 4 : 3;
+      rowBytes = image.getWidth() * bytesPerPixel;
+      argb = ( colorType == COLOR_GRAY ) ? null : new int[ image.getWidth() ];
+      row = new byte[ rowBytes ];
+      prior = new byte[ rowBytes ];
+      candidate = new byte[ rowBytes + 1 ];
+      if ( startRow > 0 )
+      { // Load previous row as prior one
+        y = startRow - 1;
+        next();
+      }
+    }
+
+    /** Advances to the next row. Current row becomes prior one. */
+    void next()
+    {
+      byte[] swap = prior;
+      prior = row;
+      row = swap;
+
+      int width = image.getWidth();
+      if ( colorType == COLOR_GRAY )
+      {
+        image.getRaster().getDataElements( 0, y, width, 1, row );
+      }
+      else
+      {
+        image.getRGB( 0, y, width, 1, argb, 0, width );
+        int i = 0;
+        for ( int pixel : argb )
+        {
+          row[i++] = (byte) ( pixel >>> 16 );
+          row[i++] = (byte) ( pixel >>> 8 );
+          row[i++] = (byte) pixel;
+          if ( colorType == COLOR_RGBA ) row[i++] = (byte) ( pixel >>> 24 );
+        }
+      }
+      ++y;
+    }
+  }
+
+  private static final class Block
+  {
+    final byte[] deflated;
+    final long adler;
+    final int length;
+
+    Block( byte[] deflated, long adler, int length )
+    {
+      this.deflated = deflated;
+      this.adler = adler;
+      this.length = length;
+    }
+  }
+
+  /** Splits stream into IDAT chunks. Closing it does not close underlying stream. */
+  private static final class IdatOutputStream extends OutputStream
+  {
+    private final DataOutputStream out;
+    private final byte[] buffer = new byte[ IDAT_SIZE ];
+    private int length = 0;
+
+    IdatOutputStream( DataOutputStream out )
+    {
+      this.out = out;
+    }
+
+    @Override
+    public void write( int b ) throws IOException
+    {
+      if ( length == buffer.length ) flushChunk();
+      buffer[length++] = (byte) b;
+    }
+
+    @Override
+    public void write( byte[] bytes, int offset, int count ) throws IOException
+    {
+      while ( count > 0 )
+      {
+        if ( length == buffer.length ) flushChunk();
+        int copied = Math.min( count, buffer.length - length );
+        System.arraycopy( bytes, offset, buffer, length, copied );
+        length += copied;
+        offset += copied;
+        count -= copied;
+      }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      if ( length > 0 ) flushChunk();
+    }
+
+    private void flushChunk() throws IOException
+    {
+      writeChunk( out, "IDAT", buffer, length );
+      length = 0;
+    }
+  }
+}
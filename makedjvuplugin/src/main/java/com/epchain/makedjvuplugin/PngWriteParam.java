@@ -0,0 +1,79 @@
+package com.epchain.makedjvuplugin;
+
+import javax.imageio.ImageWriteParam;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * PNG write parameters of {@link PngEncoder}.
+ * Compression quality follows ImageIO convention for lossless formats: 1.0 is the fastest,
+ * lightest compression, 0.0 is the strongest one. It maps to deflate levels 0-9.
+ */
+public class PngWriteParam extends ImageWriteParam
+{
+  public static final String DEFLATE = "Deflate";
+
+  /** Scanline filter. Adaptive filter picks the best filter for every row, as most PNG encoders do. */
+  public enum Filter { NONE, SUB, UP, AVERAGE, PAETH, ADAPTIVE }
+
+  private Filter filter = Filter.ADAPTIVE;
+  private int deflateThreads = 1;
+
+  public PngWriteParam()
+  {
+    super( Locale.getDefault() );
+    canWriteCompressed = true;
+    compressionTypes = new String[] { DEFLATE };
+    compressionType = DEFLATE;
+  }
+
+  /** Deflate is the only compression type, so it is selected with explicit mode. */
+  @Override
+  public void setCompressionMode( int mode )
+  {
+    super.setCompressionMode( mode );
+    if ( mode == MODE_EXPLICIT ) setCompressionType( DEFLATE );
+  }
+
+  /** Sets explicit deflate level from 0 (no compression) to 9 (strongest compression). */
+  public void setDeflateLevel( int level )
+  {
+    if ( level < 0 || level > 9 ) throw new IllegalArgumentException( "Deflate level must be within 0-9: " + level );
+    setCompressionMode( MODE_EXPLICIT );
+    setCompressionQuality( 1.0f - level / 9.0f );
+  }
+
+  /** Returns deflate level, defined by compression mode and quality. */
+  public int getDeflateLevel()
+  {
+    switch ( getCompressionMode() )
+    {
+      case MODE_DISABLED: return Deflater.NO_COMPRESSION;
+      case MODE_EXPLICIT: return Math.round( (1.0f - getCompressionQuality()) * 9 );
+      default: return 6;
+    }
+  }
+
+  public Filter getFilter()
+  {
+    return filter;
+  }
+
+  public void setFilter( Filter filter )
+  {
+    if ( filter == null ) throw new IllegalArgumentException( "Filter must not be null" );
+    this.filter = filter;
+  }
+
+  /** Number of threads, which filter and compress blocks of rows of a single large image. */
+  public int getDeflateThreads()
+  {
+    return deflateThreads;
+  }
+
+  public void setDeflateThreads( int deflateThreads )
+  {
+    if ( deflateThreads < 1 ) throw new IllegalArgumentException( "Deflate threads must be positive: " + deflateThreads );
+    this.deflateThreads = deflateThreads;
+  }
+}
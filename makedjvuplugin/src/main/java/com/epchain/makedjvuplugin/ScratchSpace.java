@@ -0,0 +1,136 @@
+package com.epchain.makedjvuplugin;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Places short-lived large intermediates, such as portable maps, and keeps them within space limits.
+ * Intermediates go to scratch dir, usually RAM-backed, while it has budget left,
+ * and to given work dir otherwise. Reservation is delayed while work dir free space would drop
+ * below configured minimum and other reservations may still free it, instead of failing on full disk.
+ */
+public final class ScratchSpace
+{
+  private static final File[] RAM_DIRS = { new File( "/dev/shm" ) };
+
+  private final File scratchDir;
+  private final long scratchBudget;
+  private final long minFreeBytes;
+  private long scratchReserved = 0;
+  private long workReserved = 0;
+  private int outstanding = 0;
+
+  /**
+   * @param scratchDir dir for short-lived intermediates, may be null to always use work dirs
+   * @param scratchBudget maximum bytes reserved in scratch dir at once
+   * @param minFreeBytes free space kept in work dir
+   */
+  public ScratchSpace( File scratchDir, long scratchBudget, long minFreeBytes )
+  {
+    this.scratchDir = scratchDir;
+    this.scratchBudget = scratchBudget;
+    this.minFreeBytes = minFreeBytes;
+  }
+
+  /** Returns writable RAM-backed dir, if system has one, or null. */
+  public static File detectRamDir()
+  {
+    for ( File dir : RAM_DIRS )
+    {
+      if ( dir.isDirectory() && dir.canWrite() ) return dir;
+    }
+    return null;
+  }
+
+  /** Returns default scratch budget: half of free space of scratch dir. */
+  public static long defaultBudget( File scratchDir )
+  {
+    return ( scratchDir != null ) ? scratchDir.getUsableSpace() / 2 : 0;
+  }
+
+  public File getScratchDir()
+  {
+    return scratchDir;
+  }
+
+  /**
+   * Reserves space for intermediate file. Blocks while there is not enough space,
+   * and other reservations are outstanding. Reservation must be closed after file is deleted.
+   * @param bytes expected file size
+   * @param workDir dir to use, when scratch dir is not available or has no budget left
+   * @throws IOException if there is not enough space, and no reservation may free it
+   */
+  public synchronized Reservation reserve( long bytes, File workDir ) throws IOException, InterruptedException
+  {
+    while ( true )
+    {
+      if ( scratchDir != null
+        && scratchReserved + bytes <= scratchBudget
+        && scratchDir.getUsableSpace() - bytes >= 0 )
+      {
+        scratchReserved += bytes;
+        ++outstanding;
+        return new Reservation( scratchDir, bytes, true );
+      }
+
+      long workFree = workDir.getUsableSpace() - workReserved - bytes;
+      if ( workFree >= minFreeBytes )
+      {
+        workReserved += bytes;
+        ++outstanding;
+        return new Reservation( workDir, bytes, false );
+      }
+
+      if ( outstanding == 0 )
+      {
+        throw new IOException(
+          "Not enough space in " + workDir.getAbsolutePath() + ": " + bytes / (1024 * 1024) + " MB needed, " +
+          workDir.getUsableSpace() / (1024 * 1024) + " MB free, " + minFreeBytes / (1024 * 1024) + " MB must be kept free"
+        );
+      }
+      // Wait until other intermediates are deleted
+      wait();
+    }
+  }
+
+  private synchronized void release( Reservation reservation )
+  {
+    if ( reservation.inScratchDir ) scratchReserved -= reservation.bytes;
+    else workReserved -= reservation.bytes;
+    --outstanding;
+    notifyAll();
+  }
+
+  /** Reserved space. Closing it more than once has no effect. */
+  public final class Reservation implements AutoCloseable
+  {
+    private final File dir;
+    private final long bytes;
+    private final boolean inScratchDir;
+    private boolean released = false;
+
+    private Reservation( File dir, long bytes, boolean inScratchDir )
+    {
+      this.dir = dir;
+      this.bytes = bytes;
+      this.inScratchDir = inScratchDir;
+    }
+
+    /** Dir, where intermediate file must be placed. */
+    public File getDir()
+    {
+      return dir;
+    }
+
+    @Override
+    public void close()
+    {
+      synchronized ( ScratchSpace.this )
+      {
+        if ( released ) return;
+        released = true;
+        release( this );
+      }
+    }
+  }
+}
@@ -1,23 +1,66 @@
 package com.epchain.makedjvuplugin;
 
-import org.gradle.api.Project;
+import org.gradle.api.file.ProjectLayout;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.ListProperty;
 import org.gradle.api.provider.Property;
 import org.gradle.api.provider.Provider;
 
+import javax.inject.Inject;
 import java.io.File;
+import java.util.Arrays;
+import java.util.List;
 
 public class SettingsPluginExtension
 {
   private final Property<File> workDir;
   private final Property<File> outDir;
+  private final Property<Integer> maxProcesses;
+  private final Property<Integer> maxDecodeSlots;
+  private final Property<File> scratchDir;
+  private final Property<Integer> maxScratchMegabytes;
+  private final Property<Integer> minFreeMegabytes;
+  private final Property<Integer> pngCompressionLevel;
+  private final Property<String> pngFilter;
+  private final Property<Boolean> detectBlankPages;
+  private final Property<Boolean> detectGrayPages;
+  private final Property<Boolean> detectDuplicatePages;
+  private final ListProperty<String> pageWorkers;
 
-  public SettingsPluginExtension( Project project )
+  @Inject
+  public SettingsPluginExtension( ObjectFactory objects, ProjectLayout layout )
   {
-    workDir = project.getObjects().property( File.class );
-    outDir = project.getObjects().property( File.class );
+    workDir = objects.property( File.class );
+    outDir = objects.property( File.class );
+    maxProcesses = objects.property( Integer.class );
+    maxDecodeSlots = objects.property( Integer.class );
+    scratchDir = objects.property( File.class );
+    maxScratchMegabytes = objects.property( Integer.class );
+    minFreeMegabytes = objects.property( Integer.class );
+    pngCompressionLevel = objects.property( Integer.class );
+    pngFilter = objects.property( String.class );
+    detectBlankPages = objects.property( Boolean.class );
+    detectGrayPages = objects.property( Boolean.class );
+    detectDuplicatePages = objects.property( Boolean.class );
+    pageWorkers = objects.listProperty( String.class ).empty();
     // Assign default values
-    setWorkDir( new File(project.getProjectDir(), "tmp") );
-    setOutDir( new File(project.getProjectDir(), "out") );
+    File projectDir = layout.getProjectDirectory().getAsFile();
+    setWorkDir( new File(projectDir, "tmp") );
+    setOutDir( new File(projectDir, "out") );
+    int processors = Runtime.getRuntime().availableProcessors();
+    setMaxProcesses( processors );
+    // Decoded pages are held in heap, so decodes are limited harder than processes
+    setMaxDecodeSlots( Math.max(1, processors / 2) );
+    // Portable maps live only until c44 reads them, so RAM disk saves disk writes
+    setScratchDir( ScratchSpace.detectRamDir() );
+    setMaxScratchMegabytes( 0 );
+    setMinFreeMegabytes( 256 );
+    setPngCompressionLevel( 6 );
+    setPngFilter( "adaptive" );
+    // Blank page loses faint marks, so it is never done unless asked
+    setDetectBlankPages( false );
+    setDetectGrayPages( true );
+    setDetectDuplicatePages( true );
   }
 
   public File getWorkDir()
@@ -49,4 +92,185 @@ public class SettingsPluginExtension
   {
     this.outDir.set( outDir );
   }
+
+  /** Build-wide limit of concurrently running DjvuLibre and Calibre tools. */
+  public int getMaxProcesses()
+  {
+    return maxProcesses.get();
+  }
+
+  public Provider<Integer> getMaxProcessesProvider()
+  {
+    return maxProcesses;
+  }
+
+  public void setMaxProcesses( int maxProcesses )
+  {
+    this.maxProcesses.set( maxProcesses );
+  }
+
+  /** Build-wide limit of concurrently decoded images. */
+  public int getMaxDecodeSlots()
+  {
+    return maxDecodeSlots.get();
+  }
+
+  public Provider<Integer> getMaxDecodeSlotsProvider()
+  {
+    return maxDecodeSlots;
+  }
+
+  public void setMaxDecodeSlots( int maxDecodeSlots )
+  {
+    this.maxDecodeSlots.set( maxDecodeSlots );
+  }
+
+  /** Dir for short-lived intermediates. RAM disk by default, if available. Null to use work dir. */
+  public File getScratchDir()
+  {
+    return scratchDir.getOrNull();
+  }
+
+  public Provider<File> getScratchDirProvider()
+  {
+    return scratchDir;
+  }
+
+  public void setScratchDir( File scratchDir )
+  {
+    this.scratchDir.set( scratchDir );
+  }
+
+  /** Maximum megabytes of intermediates in scratch dir. Half of its free space, if not positive. */
+  public int getMaxScratchMegabytes()
+  {
+    return maxScratchMegabytes.get();
+  }
+
+  public Provider<Integer> getMaxScratchMegabytesProvider()
+  {
+    return maxScratchMegabytes;
+  }
+
+  public void setMaxScratchMegabytes( int maxScratchMegabytes )
+  {
+    this.maxScratchMegabytes.set( maxScratchMegabytes );
+  }
+
+  /** Free space kept in work dir. New pages wait, while their intermediates would take it. */
+  public int getMinFreeMegabytes()
+  {
+    return minFreeMegabytes.get();
+  }
+
+  public Provider<Integer> getMinFreeMegabytesProvider()
+  {
+    return minFreeMegabytes;
+  }
+
+  public void setMinFreeMegabytes( int minFreeMegabytes )
+  {
+    this.minFreeMegabytes.set( minFreeMegabytes );
+  }
+
+  /** Deflate level of PNG, written by JpgToPng tasks: 0 is the fastest, 9 is the smallest. */
+  public int getPngCompressionLevel()
+  {
+    return pngCompressionLevel.get();
+  }
+
+  public Provider<Integer> getPngCompressionLevelProvider()
+  {
+    return pngCompressionLevel;
+  }
+
+  public void setPngCompressionLevel( int pngCompressionLevel )
+  {
+    this.pngCompressionLevel.set( pngCompressionLevel );
+  }
+
+  /** Scanline filter of PNG: none, sub, up, average, paeth or adaptive. */
+  public String getPngFilter()
+  {
+    return pngFilter.get();
+  }
+
+  public Provider<String> getPngFilterProvider()
+  {
+    return pngFilter;
+  }
+
+  public void setPngFilter( String pngFilter )
+  {
+    this.pngFilter.set( pngFilter );
+  }
+
+  /** Whether near-blank pages are replaced with tiny blank pages. */
+  public boolean getDetectBlankPages()
+  {
+    return detectBlankPages.get();
+  }
+
+  public Provider<Boolean> getDetectBlankPagesProvider()
+  {
+    return detectBlankPages;
+  }
+
+  public void setDetectBlankPages( boolean detectBlankPages )
+  {
+    this.detectBlankPages.set( detectBlankPages );
+  }
+
+  /** Whether colour pages, which are effectively gray, are stored as grayscale. */
+  public boolean getDetectGrayPages()
+  {
+    return detectGrayPages.get();
+  }
+
+  public Provider<Boolean> getDetectGrayPagesProvider()
+  {
+    return detectGrayPages;
+  }
+
+  public void setDetectGrayPages( boolean detectGrayPages )
+  {
+    this.detectGrayPages.set( detectGrayPages );
+  }
+
+  /** Whether pages with the same pixels are encoded once. Otherwise pages are not fingerprinted for duplicates. */
+  public boolean getDetectDuplicatePages()
+  {
+    return detectDuplicatePages.get();
+  }
+
+  public Provider<Boolean> getDetectDuplicatePagesProvider()
+  {
+    return detectDuplicatePages;
+  }
+
+  public void setDetectDuplicatePages( boolean detectDuplicatePages )
+  {
+    this.detectDuplicatePages.set( detectDuplicatePages );
+  }
+
+  /** Addresses "host:port" of page workers, which encode pages of image sets. If none specified, pages are encoded locally. */
+  public List<String> getPageWorkers()
+  {
+    return pageWorkers.get();
+  }
+
+  public Provider<List<String>> getPageWorkersProvider()
+  {
+    return pageWorkers;
+  }
+
+  public void setPageWorkers( List<String> pageWorkers )
+  {
+    this.pageWorkers.set( pageWorkers );
+  }
+
+  public void pageWorker( String... addresses )
+  {
+    pageWorkers.addAll( Arrays.asList(addresses) );
+  }
 }
@@ -0,0 +1,246 @@
+package com.epchain.makedjvuplugin;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Byte budget of a book DJVU. Before pages are encoded, decibel of main output is searched: sample pages
+ * are encoded at trial decibels, size of the whole book is estimated from them, and the highest decibel,
+ * whose estimate fits the budget, is chosen. Every round encodes sample pages at a few decibels at once,
+ * which split the remaining range, so the search takes two or three rounds.
+ * Trial sizes are cached per page checksum in book work dir, so re-run of a book encodes no trial pages,
+ * and a book with a few changed pages encodes only those.
+ */
+public final class SizeBudget
+{
+  /** Trial decibels from the best quality down. Default decibel goes first, c44 accepts down to 16. */
+  private static final int[] DECIBELS = { PageVariant.DECIBEL, 46, 44, 42, 40, 38, 36, 34, 32, 30, 27, 24, 20, 16 };
+  /** Book is estimated from this many pages spread evenly over it, smaller books are encoded whole. */
+  public static final int SAMPLE_PAGES = 12;
+  /** Decibels encoded per round, all from one decoded page. */
+  private static final int ROUND_DECIBELS = 3;
+  /** Share of budget kept for bundle directory, bookmarks and estimate error. */
+  private static final double MARGIN = 0.05;
+  private static final String FORMAT = "makedjvu-size-trials-1";
+  /** Cache of trial sizes inside book work dir. */
+  public static final String CACHE_NAME = "size-trials.cache";
+
+  /** Encodes pages at given decibels. */
+  public interface TrialEncoder
+  {
+    /** Returns page sizes in bytes: sizes[decibel index][page index]. */
+    long[][] encode( List<PageImage> pages, int[] decibels ) throws IOException;
+  }
+
+  private final long maxBytes;
+
+  /** @param maxBytes maximal size of book DJVU */
+  public SizeBudget( long maxBytes )
+  {
+    if ( maxBytes <= 0 ) throw new IllegalArgumentException( "Size budget must be positive: " + maxBytes );
+    this.maxBytes = maxBytes;
+  }
+
+  public long getMaxBytes()
+  {
+    return maxBytes;
+  }
+
+  /**
+   * Searches decibel of main output. The lowest decibel is chosen, if even it does not fit the budget.
+   * @param settings description of other conversion settings. Cached sizes of other settings are discarded
+   * @param cacheFile cache of trial sizes. Cache is an optimisation, so its failures are ignored
+   */
+  public Choice choose( List<PageImage> images, String settings, File cacheFile, TrialEncoder encoder ) throws IOException
+  {
+    List<PageImage> sample = sample( images );
+    List<String> checksums = new ArrayList<>( sample.size() );
+    for ( PageImage page : sample ) checksums.add( page.checksum() );
+    Map<String, Long> cache = readCache( cacheFile, settings );
+    int cachedSizes = cache.size();
+
+    Choice choice = new Choice();
+    choice.samplePages = sample.size();
+    Long[] estimates = new Long[ DECIBELS.length ];
+    long limit = (long) ( maxBytes * (1 - MARGIN) );
+    // Chosen index is the first one within [low, high], whose estimate fits, or none, if low passes high
+    int low = 0;
+    int high = DECIBELS.length - 1;
+    try
+    {
+      while ( low <= high && !(low == high && estimates[low] != null) )
+      {
+        SortedSet<Integer> probes = new TreeSet<>();
+        for ( int k = 0; k < ROUND_DECIBELS; ++k )
+        {
+          int probe = low + ( high - low + 1 ) * k / ROUND_DECIBELS;
+          if ( estimates[probe] == null ) probes.add( probe );
+        }
+        encodeMissing( sample, checksums, probes, cache, encoder, choice );
+        for ( int probe : probes ) estimates[probe] = estimate( images.size(), checksums, DECIBELS[probe], cache );
+
+        for ( int probe : probes )
+        {
+          if ( estimates[probe] <= limit )
+          {
+            high = probe;
+            break;
+          }
+          low = probe + 1;
+        }
+      }
+    }
+    finally
+    {
+      if ( cache.size() > cachedSizes ) writeCache( cacheFile, settings, cache );
+    }
+
+    int chosen = ( low <= high ) ? low : DECIBELS.length - 1;
+    choice.decibel = DECIBELS[chosen];
+    choice.estimatedBytes = estimates[chosen];
+    choice.fits = low <= high;
+    return choice;
+  }
+
+  /** Pages spread evenly over the book, or all pages of a small book. */
+  static List<PageImage> sample( List<PageImage> images )
+  {
+    if ( images.size() <= SAMPLE_PAGES ) return images;
+    List<PageImage> sample = new ArrayList<>( SAMPLE_PAGES );
+    for ( int k = 0; k < SAMPLE_PAGES; ++k )
+    {
+      sample.add( images.get((int) ((2L * k + 1) * images.size() / (2L * SAMPLE_PAGES))) );
+    }
+    return sample;
+  }
+
+  /** Encodes sample pages, which have no cached size at some of given decibels, at all of them. */
+  private static void encodeMissing(
+    List<PageImage> sample, List<String> checksums, SortedSet<Integer> probes, Map<String, Long> cache,
+    TrialEncoder encoder, Choice choice
+  ) throws IOException
+  {
+    int[] decibels = new int[ probes.size() ];
+    int i = 0;
+    for ( int probe : probes ) decibels[i++] = DECIBELS[probe];
+
+    List<PageImage> pages = new ArrayList<>();
+    List<String> pageChecksums = new ArrayList<>();
+    for ( int page = 0; page < sample.size(); ++page )
+    {
+      for ( int decibel : decibels )
+      {
+        if ( !cache.containsKey(key(checksums.get(page), decibel)) )
+        {
+          pages.add( sample.get(page) );
+          pageChecksums.add( checksums.get(page) );
+          break;
+        }
+      }
+    }
+    if ( pages.isEmpty() ) return;
+
+    long[][] sizes = encoder.encode( pages, decibels );
+    for ( int d = 0; d < decibels.length; ++d )
+    {
+      for ( int page = 0; page < pages.size(); ++page ) cache.put( key(pageChecksums.get(page), decibels[d]), sizes[d][page] );
+    }
+    choice.trialEncodes += pages.size() * decibels.length;
+  }
+
+  /** Book size estimated from sample pages. */
+  private static long estimate( int pageCount, List<String> checksums, int decibel, Map<String, Long> cache )
+  {
+    long sampleBytes = 0;
+    for ( String checksum : checksums ) sampleBytes += cache.get( key(checksum, decibel) );
+    return sampleBytes * pageCount / checksums.size();
+  }
+
+  private static String key( String checksum, int decibel )
+  {
+    return checksum + "\t" + decibel;
+  }
+
+  private static Map<String, Long> readCache( File cacheFile, String settings )
+  {
+    Map<String, Long> cache = new HashMap<>();
+    if ( !cacheFile.isFile() ) return cache;
+    try ( BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile), StandardCharsets.UTF_8)) )
+    {
+      if ( !(FORMAT + "\t" + settings).equals(in.readLine()) ) return cache;
+      String line;
+      while ( (line = in.readLine()) != null )
+      {
+        String[] fields = line.split( "\t" );
+        if ( fields.length != 3 ) return new HashMap<>();
+        cache.put( key(fields[0], Integer.parseInt(fields[1])), Long.parseLong(fields[2]) );
+      }
+      return cache;
+    }
+    catch ( IOException | RuntimeException e )
+    {
+      return new HashMap<>();
+    }
+  }
+
+  private static void writeCache( File cacheFile, String settings, Map<String, Long> cache )
+  {
+    File partial = new File( cacheFile.getPath() + ".partial" );
+    try
+    {
+      try ( Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(partial), StandardCharsets.UTF_8)) )
+      {
+        out.write( FORMAT + "\t" + settings + "\n" );
+        for ( Map.Entry<String, Long> size : cache.entrySet() ) out.write( size.getKey() + "\t" + size.getValue() + "\n" );
+      }
+      Conversions.moveIntoPlace( partial, cacheFile );
+    }
+    catch ( IOException e )
+    {
+      partial.delete();
+    }
+  }
+
+  /** Chosen decibel with its estimate. */
+  public final class Choice
+  {
+    private int decibel;
+    private long estimatedBytes;
+    private boolean fits;
+    private int samplePages;
+    private int trialEncodes;
+
+    public int getDecibel()
+    {
+      return decibel;
+    }
+
+    public long getEstimatedBytes()
+    {
+      return estimatedBytes;
+    }
+
+    /** Returns false, if even the lowest decibel does not fit the budget. */
+    public boolean fits()
+    {
+      return fits;
+    }
+
+    /** Number of pages encoded at trial decibels. Sizes found in cache are not encoded again. */
+    public int getTrialEncodes()
+    {
+      return trialEncodes;
+    }
+
+    /** Describes choice for log. */
+    public String getSummary()
+    {
+      return String.format( Locale.ROOT,
+        "Size budget %.1f MB: decibel %d, estimated %.1f MB from %d sample pages, %d trial encodes%s",
+        maxBytes / (1024.0 * 1024), decibel, estimatedBytes / (1024.0 * 1024), samplePages, trialEncodes,
+        fits ? "" : ". Book does not fit budget even at the lowest decibel"
+      );
+    }
+  }
+}
@@ -0,0 +1,159 @@
+package com.epchain.makedjvuplugin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches spool directory tree for new and changed entries. Changes are grouped by top-level entry of spool,
+ * such as dropped book directory or PDF file, and entry is reported only after it has no changes
+ * for settle time, so books, which are still being copied, are not picked up.
+ * New directories are watched as soon as they appear, files created before that are found by rescan of the entry.
+ */
+public final class SpoolWatcher implements Closeable
+{
+  private final Path root;
+  private final List<Path> ignored;
+  private final long settleNanos;
+  private final WatchService watchService;
+  private final Map<WatchKey, Path> watchedDirs = new HashMap<>();
+  /** Changed top-level entries with time of their last change. */
+  private final Map<Path, Long> changed = new HashMap<>();
+
+  /**
+   * @param root spool directory
+   * @param ignored directories, which are never reported, such as own output inside spool
+   * @param settleMillis time without changes, after which entry is reported
+   */
+  public SpoolWatcher( Path root, Collection<Path> ignored, long settleMillis ) throws IOException
+  {
+    this.root = root.toAbsolutePath().normalize();
+    this.ignored = new ArrayList<>();
+    for ( Path path : ignored ) this.ignored.add( path.toAbsolutePath().normalize() );
+    this.settleNanos = settleMillis * 1_000_000;
+    watchService = this.root.getFileSystem().newWatchService();
+    watchTree( this.root );
+  }
+
+  /** Marks top-level entry as changed, so it is reported again after settle time. */
+  public void markChanged( Path entry )
+  {
+    Path topEntry = topEntry( entry.toAbsolutePath().normalize() );
+    if ( topEntry != null ) changed.put( topEntry, System.nanoTime() );
+  }
+
+  /**
+   * Waits for settled entries. Returns them in name order, or empty list, if none settled within timeout.
+   * Spool root itself is returned, if some changes were lost, so whole spool should be rescanned.
+   */
+  public List<Path> awaitSettled( long timeoutMillis ) throws IOException, InterruptedException
+  {
+    long deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+    while ( true )
+    {
+      long now = System.nanoTime();
+      List<Path> settled = new ArrayList<>();
+      long nextSettle = deadline;
+      for ( Iterator<Map.Entry<Path, Long>> i = changed.entrySet().iterator(); i.hasNext(); )
+      {
+        Map.Entry<Path, Long> entry = i.next();
+        long settleAt = entry.getValue() + settleNanos;
+        if ( settleAt - now <= 0 )
+        {
+          settled.add( entry.getKey() );
+          i.remove();
+        }
+        else if ( settleAt - nextSettle < 0 )
+        {
+          nextSettle = settleAt;
+        }
+      }
+      if ( !settled.isEmpty() )
+      {
+        Collections.sort( settled );
+        return settled;
+      }
+      if ( deadline - now <= 0 ) return settled;
+
+      WatchKey key = watchService.poll( Math.max(1, (nextSettle - now) / 1_000_000), TimeUnit.MILLISECONDS );
+      while ( key != null )
+      {
+        handleEvents( key );
+        key = watchService.poll();
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    watchService.close();
+  }
+
+  private void handleEvents( WatchKey key ) throws IOException
+  {
+    Path dir = watchedDirs.get( key );
+    for ( WatchEvent<?> event : key.pollEvents() )
+    {
+      if ( event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null )
+      { // Events are lost
+        changed.put( root, System.nanoTime() );
+        continue;
+      }
+      Path child = dir.resolve( (Path) event.context() );
+      if ( isIgnored(child) ) continue;
+      Path topEntry = topEntry( child );
+      if ( topEntry != null ) changed.put( topEntry, System.nanoTime() );
+      if ( event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS) )
+      {
+        try
+        {
+          watchTree( child );
+        }
+        catch ( NoSuchFileException e )
+        {
+          // Directory was removed right after it was created
+        }
+      }
+    }
+    if ( !key.reset() ) watchedDirs.remove( key );
+  }
+
+  /** Returns entry of spool root, which contains given path, or null, if path is outside of spool. */
+  private Path topEntry( Path path )
+  {
+    if ( path.equals(root) ) return root;
+    if ( !path.startsWith(root) ) return null;
+    return root.resolve( root.relativize(path).getName(0) );
+  }
+
+  private boolean isIgnored( Path path )
+  {
+    for ( Path ignoredPath : ignored )
+    {
+      if ( path.startsWith(ignoredPath) ) return true;
+    }
+    return false;
+  }
+
+  private void watchTree( Path dir ) throws IOException
+  {
+    Files.walkFileTree( dir, new SimpleFileVisitor<Path>()
+    {
+      @Override
+      public FileVisitResult preVisitDirectory( Path subDir, BasicFileAttributes attrs ) throws IOException
+      {
+        if ( isIgnored(subDir) && !subDir.equals(root) ) return FileVisitResult.SKIP_SUBTREE;
+        WatchKey key = subDir.register(
+          watchService,
+          StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE
+        );
+        watchedDirs.put( key, subDir );
+        return FileVisitResult.CONTINUE;
+      }
+    } );
+  }
+}
@@ -0,0 +1,191 @@
+package com.epchain.makedjvuplugin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Registry of external tools, shared by the whole build through {@link ToolRegistryService}.
+ * PATH is scanned in-process once per build, resolved paths and versions are cached,
+ * so no {@code which}/{@code where} processes are spawned for tool lookups.
+ * Conversions start tools by resolved paths, so the tool, which is checked and logged, is the one that runs.
+ */
+public final class ToolRegistry
+{
+  private static final Pattern VERSION_PATTERN = Pattern.compile( "[0-9]+(\\.[0-9]+)+" );
+  /** Probe output is only needed for version lookup, so it is read up to this limit. */
+  private static final int PROBE_OUTPUT_LIMIT = 4096;
+
+  private final String searchPath;
+  private final List<String> executableExtensions;
+  /** Executable names are case-insensitive on Windows only. */
+  private final boolean ignoreCase;
+  /** Executable name to path. Filled once from all PATH directories. */
+  private volatile Map<String, String> executables;
+  /** Probe command line to version, as tools may report different versions for different arguments. */
+  private final ConcurrentMap<List<String>, Optional<String>> versions = new ConcurrentHashMap<>();
+
+  /**
+   * Creates registry for given search path.
+   * @param searchPath directories separated with {@link File#pathSeparator}, may be null
+   * @param executableExtensions extensions, which may be omitted from executable names, such as ".exe"
+   * @param ignoreCase true, if file names differing in case only name the same executable
+   */
+  public ToolRegistry( String searchPath, List<String> executableExtensions, boolean ignoreCase )
+  {
+    this.searchPath = ( searchPath != null ) ? searchPath : "";
+    this.executableExtensions = new ArrayList<>( executableExtensions );
+    this.ignoreCase = ignoreCase;
+  }
+
+  /** Creates registry with case-sensitive executable names. */
+  public ToolRegistry( String searchPath, List<String> executableExtensions )
+  {
+    this( searchPath, executableExtensions, false );
+  }
+
+  /** Creates registry from PATH (and PATHEXT on Windows) of current process. */
+  public static ToolRegistry fromEnvironment()
+  {
+    List<String> extensions = new ArrayList<>();
+    boolean windows = System.getProperty( "os.name" ).toLowerCase().contains( "windows" );
+    if ( windows )
+    {
+      String pathExt = System.getenv( "PATHEXT" );
+      extensions.addAll( Arrays.asList( ((pathExt != null) ? pathExt : ".COM;.EXE;.BAT;.CMD").split( ";" ) ) );
+    }
+    return new ToolRegistry( System.getenv( "PATH" ), extensions, windows );
+  }
+
+  /** Returns absolute executable path or {@code null}, if executable not found in PATH. */
+  public String executablePath( String executableName )
+  {
+    return getExecutables().get( foldCase(executableName) );
+  }
+
+  /** Returns true, if all executables are found in PATH. */
+  public boolean allFound( String... executableNames )
+  {
+    for ( String executableName : executableNames )
+    {
+      if ( executablePath(executableName) == null ) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns tool version reported by tool itself or {@code null}, if tool not found or version unknown.
+   * Tool is started once per build with given arguments. DjvuLibre tools print version with usage info,
+   * when started without arguments, Calibre tools need "--version".
+   */
+  public String version( String executableName, String... probeArgs )
+  {
+    List<String> probe = new ArrayList<>();
+    probe.add( foldCase(executableName) );
+    probe.addAll( Arrays.asList(probeArgs) );
+    return versions.computeIfAbsent( probe, key -> Optional.ofNullable( probeVersion(executableName, probeArgs) ) )
+      .orElse( null );
+  }
+
+  private Map<String, String> getExecutables()
+  {
+    Map<String, String> result = executables;
+    if ( result == null )
+    {
+      synchronized ( this )
+      {
+        result = executables;
+        if ( result == null )
+        {
+          result = scanSearchPath();
+          executables = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  /** Lists every PATH directory once. First found executable wins, as with shell lookup. */
+  private Map<String, String> scanSearchPath()
+  {
+    Map<String, String> result = new HashMap<>();
+    for ( String dirName : searchPath.split( Pattern.quote(File.pathSeparator) ) )
+    {
+      if ( dirName.isEmpty() ) continue;
+      File dir = new File( dirName );
+      File[] files = dir.listFiles();
+      if ( files == null ) continue;
+
+      for ( File file : files )
+      {
+        String fileName = foldCase( file.getName() );
+        if ( executableExtensions.isEmpty() )
+        {
+          if ( !result.containsKey(fileName) && isExecutable(file) ) result.put( fileName, file.getAbsolutePath() );
+          continue;
+        }
+        for ( String extension : executableExtensions )
+        {
+          String foldedExtension = foldCase( extension );
+          if ( !foldedExtension.isEmpty() && fileName.endsWith(foldedExtension) )
+          {
+            String shortName = fileName.substring( 0, fileName.length() - foldedExtension.length() );
+            if ( !result.containsKey(shortName) ) result.put( shortName, file.getAbsolutePath() );
+            if ( !result.containsKey(fileName) ) result.put( fileName, file.getAbsolutePath() );
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  private String foldCase( String name )
+  {
+    return ignoreCase ? name.toLowerCase( Locale.ROOT ) : name;
+  }
+
+  private static boolean isExecutable( File file )
+  {
+    return file.isFile() && Files.isExecutable( file.toPath() );
+  }
+
+  private String probeVersion( String executableName, String... probeArgs )
+  {
+    String executable = executablePath( executableName );
+    if ( executable == null ) return null;
+
+    List<String> command = new ArrayList<>();
+    command.add( executable );
+    command.addAll( Arrays.asList(probeArgs) );
+    ProcessBuilder processBuilder = new ProcessBuilder( command ).redirectErrorStream( true );
+
+    StringBuilder output = new StringBuilder();
+    try
+    {
+      Process process = processBuilder.start();
+      process.getOutputStream().close();
+      BufferedReader in = new BufferedReader( new InputStreamReader(process.getInputStream()) );
+      String line;
+      while ( (line = in.readLine()) != null )
+      {
+        if ( output.length() < PROBE_OUTPUT_LIMIT ) output.append( line ).append( '\n' );
+      }
+      process.waitFor();
+      in.close();
+    }
+    catch ( IOException | InterruptedException e )
+    {
+      return null;
+    }
+
+    Matcher matcher = VERSION_PATTERN.matcher( output );
+    return matcher.find() ? matcher.group() : null;
+  }
+}
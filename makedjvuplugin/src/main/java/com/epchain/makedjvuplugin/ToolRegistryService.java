@@ -0,0 +1,20 @@
+package com.epchain.makedjvuplugin;
+
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+/**
+ * Build-wide {@link ToolRegistry}. PATH is read when the first task needs a tool,
+ * so a build, which reuses cached configuration, still finds tools of its own environment.
+ */
+public abstract class ToolRegistryService implements BuildService<BuildServiceParameters.None>
+{
+  public static final String NAME = "makeDjvuToolRegistry";
+
+  private final ToolRegistry registry = ToolRegistry.fromEnvironment();
+
+  public ToolRegistry getRegistry()
+  {
+    return registry;
+  }
+}
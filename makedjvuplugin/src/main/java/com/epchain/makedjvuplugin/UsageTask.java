@@ -13,7 +13,7 @@ public class UsageTask extends DefaultTask
     getLogger().lifecycle( "Books:" );
     getLogger().lifecycle( "  books {" );
     getLogger().lifecycle( "    <book-name> {" );
-    getLogger().lifecycle( "      // Directory with images or PDF file" );
+    getLogger().lifecycle( "      // Directory with images, CBZ/ZIP archive of images or PDF file" );
     getLogger().lifecycle( "      bookFile = <file>" );
     getLogger().lifecycle( "      // Bookmarks file. Optional" );
     getLogger().lifecycle( "      bookmarksFile = <file>" );
@@ -25,6 +25,17 @@ public class UsageTask extends DefaultTask
     getLogger().lifecycle( "      keepIntermediates = <true|false>" );
     getLogger().lifecycle( "      // Forces cleanup of images and DJVU. Optional" );
     getLogger().lifecycle( "      forceCleanUp = <true|false>   " );
+    getLogger().lifecycle( "      // Crop margins of every page, or of all pages by one box. Optional" );
+    getLogger().lifecycle( "      cropMargins = <none|page|book>" );
+    getLogger().lifecycle( "      // Size budget of DJVU: decibel is lowered until book fits it. Optional" );
+    getLogger().lifecycle( "      maxMegabytes = <int>" );
+    getLogger().lifecycle( "      // Replace JPG pages with PNG while encoding them, each JPG is decoded once. Optional" );
+    getLogger().lifecycle( "      jpgToPng = <true|false>" );
+    getLogger().lifecycle( "      // Additional DJVU [book]-[variant-name].djvu from the same decoded pages. Optional" );
+    getLogger().lifecycle( "      variant( '<variant-name>' ) {" );
+    getLogger().lifecycle( "        scale = <double>          // Page size as fraction of source page, (0, 1]" );
+    getLogger().lifecycle( "        decibel = <16-50>         // Encoding quality, 48 by default" );
+    getLogger().lifecycle( "      }" );
     getLogger().lifecycle( "    }" );
     getLogger().lifecycle( "    <book-name> {" );
     getLogger().lifecycle( "      ..." );
@@ -35,6 +46,29 @@ public class UsageTask extends DefaultTask
     getLogger().lifecycle( "  settings {" );
     getLogger().lifecycle( "    workDir = <file> // Directory for intermediate files" );
     getLogger().lifecycle( "    outDir = <file>  // Output directory for DJVU" );
+    getLogger().lifecycle( "    maxProcesses = <int>   // Build-wide limit of concurrent DjvuLibre/Calibre tools" );
+    getLogger().lifecycle( "    maxDecodeSlots = <int> // Build-wide limit of concurrently decoded images" );
+    getLogger().lifecycle( "    scratchDir = <file>         // Directory for portable maps, RAM disk by default" );
+    getLogger().lifecycle( "    maxScratchMegabytes = <int> // Limit of portable maps in scratch directory" );
+    getLogger().lifecycle( "    minFreeMegabytes = <int>    // Free space kept in work directory" );
+    getLogger().lifecycle( "    pngCompressionLevel = <0-9> // PNG deflate level: 0 fastest, 9 smallest" );
+    getLogger().lifecycle( "    pngFilter = <none|sub|up|average|paeth|adaptive>" );
+    getLogger().lifecycle( "    detectBlankPages = <true|false> // Replace near-blank pages with blank ones" );
+    getLogger().lifecycle( "    detectGrayPages = <true|false>  // Store gray colour pages as grayscale" );
+    getLogger().lifecycle( "    detectDuplicatePages = <true|false> // Encode pages with the same pixels once" );
+    getLogger().lifecycle( "    pageWorker '<host:port>', ...   // Worker processes, which encode pages. Optional" );
+    getLogger().lifecycle( "  }" );
+    getLogger().lifecycle( "Library (optional, enables convertLibrary task, run with --watch to keep converting new books):" );
+    getLogger().lifecycle( "  library {" );
+    getLogger().lifecycle( "    rootDir = <file>             // Tree of PDF files and directories with images" );
+    getLogger().lifecycle( "    outDir = <file>              // Output directory for DJVU. Optional" );
+    getLogger().lifecycle( "    include '<glob>', ...        // Book paths to include, relative to rootDir. Optional" );
+    getLogger().lifecycle( "    exclude '<glob>', ...        // Book paths to exclude. Optional" );
+    getLogger().lifecycle( "    forceCleanUp = <true|false>  // Overwrite existing DJVU. Optional" );
+    getLogger().lifecycle( "    keepIntermediates = <true|false>" );
+    getLogger().lifecycle( "    cropMargins = <none|page|book> // Crop page margins. Optional" );
+    getLogger().lifecycle( "    maxMegabytes = <int>         // Size budget of every DJVU. Optional" );
+    getLogger().lifecycle( "    watchSettleSeconds = <int>   // Quiet time of new book with --watch. Optional" );
     getLogger().lifecycle( "  }" );
   }
 }
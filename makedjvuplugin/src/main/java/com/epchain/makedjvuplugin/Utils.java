@@ -13,30 +13,6 @@ public final class Utils
     return str.substring( 0, 1 ).toUpperCase() + str.substring( 1 );
   }
 
-  /** Search for executable path with OS-dependent utility. */
-  public static String executablePath( String executableName )
-  {
-    String searchingExecutable =
-      System.getProperty( "os.name" ).toLowerCase().contains( "windows" ) ? "where" : "which";
-
-    ProcessBuilder processBuilder = new ProcessBuilder( searchingExecutable, executableName );
-    String result;
-    try
-    {
-      Process process = processBuilder.start();
-      BufferedReader in = new BufferedReader( new InputStreamReader(process.getInputStream()) );
-      result = in.readLine();
-      process.waitFor();
-      in.close();
-    }
-    catch ( IOException | InterruptedException e )
-    {
-      throw new RuntimeException( e );
-    }
-
-    return result;
-  }
-
   /**
    * Returns filename without extension.
    * If name has no extension, this name is returned.
@@ -55,6 +31,29 @@ public final class Utils
     return ( lastDot > 0 ) ? fileName.substring( lastDot + 1, fileName.length() ) : null;
   }
 
+  /** Returns quoted and escaped JSON string or null literal. */
+  public static String toJsonString( String str )
+  {
+    if ( str == null ) return "null";
+
+    StringBuilder json = new StringBuilder( str.length() + 2 ).append( '"' );
+    for ( char c : str.toCharArray() )
+    {
+      switch ( c )
+      {
+        case '"':  json.append( "\\\"" ); break;
+        case '\\': json.append( "\\\\" ); break;
+        case '\n': json.append( "\\n" ); break;
+        case '\r': json.append( "\\r" ); break;
+        case '\t': json.append( "\\t" ); break;
+        default:
+          if ( c < 0x20 ) json.append( String.format("\\u%04x", (int) c) );
+          else json.append( c );
+      }
+    }
+    return json.append( '"' ).toString();
+  }
+
   public enum DirState { EXISTS, CREATED, FAIL }
 
   /** Attempts to create dir with all parent dirs if it doesn't exist. */
@@ -65,25 +64,30 @@ public final class Utils
     else return DirState.FAIL;
   }
 
-  /** Returns true, if file is supported image set. */
+  /**
+   * Returns true, if file is supported image set: dir of images or CBZ/ZIP page archive.
+   * Books list their pages once with {@link PageManifest} or {@link PageArchive} instead.
+   */
   public static boolean isImageSet( File file )
   {
     if ( file == null ) return false;
-
-    File[] files = file.listFiles();
-    if ( files != null )
+    if ( isArchiveName(file) && file.isFile() )
     {
-      int imageCount = 0;
-      for ( File f : files )
+      try ( PageArchive archive = PageArchive.open(file) )
       {
-        if ( isJpg(f) ) ++imageCount;
-        else if ( isPng(f) ) ++imageCount;
+        return !archive.getPages().isEmpty();
+      }
+      catch ( IOException e )
+      {
+        return false;
       }
-
-      return imageCount > 0;
     }
-    else
-    { // This also means files is file, not directory
+    try
+    {
+      return !PageManifest.scan( file ).isEmpty();
+    }
+    catch ( IOException e )
+    { // This also means file is file, not directory
       return false;
     }
   }
@@ -112,6 +116,20 @@ public final class Utils
     return isFileValid( file ) && file.getName().toLowerCase().endsWith( ".pdf" );
   }
 
+  /** Returns true, if file name has PDF extension. Unlike {@link #isPdf(File)}, does not access filesystem. */
+  public static boolean isPdfName( File file )
+  {
+    return file != null && file.getName().toLowerCase().endsWith( ".pdf" );
+  }
+
+  /** Returns true, if file name has CBZ or ZIP extension of page archive. Does not access filesystem. */
+  public static boolean isArchiveName( File file )
+  {
+    if ( file == null ) return false;
+    String fileName = file.getName().toLowerCase();
+    return fileName.endsWith( ".cbz" ) || fileName.endsWith( ".zip" );
+  }
+
   /** Returns true, if file is DJVU. */
   public static boolean isDjvu( File file )
   {
@@ -128,10 +146,30 @@ public final class Utils
    */
   public static String imageToPortableMap( final File image, final File ppm, final String comment )
   {
-    String fileFormat;
     try
     {
       final BufferedImage rawImage = ImageIO.read( image );
+      return ( rawImage != null ) ? imageToPortableMap( rawImage, ppm, comment ) : null;
+    }
+    catch ( IOException e )
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Writes decoded image into few supported Portable Image formats.
+   * Colored images converted into PPM, grayscale images converted to PGM.
+   * @param rawImage decoded image
+   * @param ppm a non-null file object
+   * @param comment comment to add into PPM file
+   * @return output file format, if operation succeeded; {@code null} otherwise
+   */
+  public static String imageToPortableMap( final BufferedImage rawImage, final File ppm, final String comment )
+  {
+    String fileFormat;
+    try
+    {
       int type = rawImage.getType();
 
       switch ( type )
@@ -213,6 +251,14 @@ public final class Utils
     return fileFormat;
   }
 
+  /** Returns expected size of portable map, written for decoded image. */
+  public static long portableMapSize( final BufferedImage rawImage )
+  {
+    int bytesPerPixel = ( rawImage.getType() == BufferedImage.TYPE_BYTE_GRAY ) ? 1 : 3;
+    // Header with comment is well within 256 bytes
+    return (long) rawImage.getWidth() * rawImage.getHeight() * bytesPerPixel + 256;
+  }
+
   /**
    * Performs common blending operation between source color and background color.
    * @param srcColor source color
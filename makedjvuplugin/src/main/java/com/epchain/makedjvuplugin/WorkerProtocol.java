@@ -0,0 +1,123 @@
+package com.epchain.makedjvuplugin;
+
+import java.awt.Rectangle;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Socket protocol between {@link PageWorkerPool} and {@link PageWorker}. Both sides start with {@link #MAGIC},
+ * worker adds number of pages it encodes at once. Then coordinator sends jobs one by one over the connection:
+ * <pre>
+ *   JOB name path checksum conversion   coordinator asks to encode page, path and checksum are empty, if page is not a file
+ *   NEED_DATA                  worker does not see the page or its file differs, coordinator sends its length and bytes
+ *   HEARTBEAT                  worker is alive, sent every {@link #HEARTBEAT_MILLIS} while page is encoded
+ *   RESULT count [length bytes]...  single page DJVU of every output of conversion, in order of outputs, each within {@link #MAX_PAGE_LENGTH}
+ *   ERROR message              page failed, worker is fine
+ * </pre>
+ * Strings are modified UTF-8 of {@link DataOutputStream#writeUTF}. Checksum is {@link ConversionJournal#checksum} of page file,
+ * so worker trusts the file by path only if it has the same length and contents as the file of coordinator.
+ */
+final class WorkerProtocol
+{
+  static final String MAGIC = "makedjvu-worker-3";
+  static final int DEFAULT_PORT = 7790;
+  static final long HEARTBEAT_MILLIS = 1000;
+  /** Single page DJVU of worker is a few megabytes at most, so longer result means broken connection. */
+  static final int MAX_PAGE_LENGTH = 256 * 1024 * 1024;
+
+  static final byte JOB = 1;
+  static final byte NEED_DATA = 2;
+  static final byte HEARTBEAT = 3;
+  static final byte RESULT = 4;
+  static final byte ERROR = 5;
+
+  private WorkerProtocol()
+  {
+  }
+
+  /** Parses "host:port" or "host" with default port. Throws {@link IllegalArgumentException} with message for user. */
+  static InetSocketAddress parseAddress( String address )
+  {
+    int colon = address.lastIndexOf( ':' );
+    String host = ( colon >= 0 ) ? address.substring( 0, colon ) : address;
+    int port = DEFAULT_PORT;
+    try
+    {
+      if ( colon >= 0 ) port = Integer.parseInt( address.substring(colon + 1) );
+    }
+    catch ( NumberFormatException e )
+    {
+      port = -1;
+    }
+    if ( host.isEmpty() || port <= 0 || port > 65535 )
+    {
+      throw new IllegalArgumentException( "Invalid page worker address '" + address + "', must be 'host:port'" );
+    }
+    return InetSocketAddress.createUnresolved( host, port );
+  }
+
+  /** Writes settings, which define encoded pages. Decoder is chosen by worker, fingerprints and gray page counts are its own. */
+  static void writeConversion( DataOutputStream out, PageConversion conversion ) throws IOException
+  {
+    MarginCrop crop = conversion.getCrop();
+    out.writeUTF( crop.getMode().name() );
+    if ( crop.getMode() == MarginCrop.Mode.BOOK )
+    {
+      Rectangle box = crop.getBox();
+      out.writeInt( box.x );
+      out.writeInt( box.y );
+      out.writeInt( box.width );
+      out.writeInt( box.height );
+    }
+    out.writeBoolean( conversion.getFingerprints().detectsBlankPages() );
+    out.writeBoolean( conversion.getFingerprints().detectsDuplicatePages() );
+    out.writeBoolean( conversion.getGrayPages().detectsGrayPages() );
+    List<PageVariant> outputs = conversion.getOutputs();
+    out.writeInt( outputs.get(0).getDecibel() );
+    out.writeInt( outputs.size() - 1 );
+    for ( PageVariant variant : outputs.subList(1, outputs.size()) )
+    {
+      out.writeUTF( variant.getName() );
+      out.writeInt( variant.getDecibel() );
+      out.writeDouble( variant.getScale() );
+    }
+  }
+
+  static PageConversion readConversion( DataInputStream in, PageDecoder decoder ) throws IOException
+  {
+    try
+    {
+      MarginCrop crop;
+      switch ( MarginCrop.Mode.valueOf(in.readUTF()) )
+      {
+        case PAGE:
+          crop = MarginCrop.perPage();
+          break;
+
+        case BOOK:
+          crop = MarginCrop.byBox( new Rectangle(in.readInt(), in.readInt(), in.readInt(), in.readInt()) );
+          break;
+
+        default: crop = MarginCrop.none();
+      }
+      PageFingerprints fingerprints = new PageFingerprints( in.readBoolean(), in.readBoolean() );
+      GrayPages grayPages = new GrayPages( in.readBoolean() );
+      int decibel = in.readInt();
+      int variantCount = in.readInt();
+      List<PageVariant> variants = new ArrayList<>( variantCount );
+      for ( int i = 0; i < variantCount; ++i )
+      {
+        variants.add( new PageVariant(in.readUTF(), in.readInt(), in.readDouble()) );
+      }
+      return new PageConversion( crop, fingerprints, grayPages, variants, decoder ).withDecibel( decibel );
+    }
+    catch ( IllegalArgumentException e )
+    {
+      throw new IOException( "Invalid page conversion: " + e.getMessage(), e );
+    }
+  }
+}
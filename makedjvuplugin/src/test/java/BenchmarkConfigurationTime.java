@@ -0,0 +1,45 @@
+import org.gradle.testkit.runner.GradleRunner;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Configuration time of synthetic libraries through Gradle TestKit, library of {@link TestConfigurationTime}.
+ * Configuration time per book must not grow with number of books. Disabled by default, run with MAKEDJVU_BENCHMARK=true.
+ */
+@EnabledIfEnvironmentVariable( named = "MAKEDJVU_BENCHMARK", matches = "true" )
+class BenchmarkConfigurationTime
+{
+  /** Configuration time per book may grow this much from small to large library. Linear scan per book would make it 10 times. */
+  private static final double MAX_SCALING = 3.0;
+  /** Generous bound for slow machines. Lazy task registration takes well under a second for the large library. */
+  private static final long MAX_LARGE_LIBRARY_MILLIS = 20_000;
+
+  @TempDir
+  Path projectDir;
+
+  @Test
+  void ThousandsOfBooks() throws IOException
+  {
+    GradleRunner runner = TestConfigurationTime.library( projectDir );
+
+    // Warm up daemon, script compilation and plugin classes
+    TestConfigurationTime.configure( runner, 100 );
+
+    double smallLibraryMillis = TestConfigurationTime.configure( runner, 500 );
+    double largeLibraryMillis = TestConfigurationTime.configure( runner, 5000 );
+
+    assertTrue( largeLibraryMillis < MAX_LARGE_LIBRARY_MILLIS, "5000 books configured in " + largeLibraryMillis + " ms" );
+    // Small library sets the floor, so that timer noise of a fast machine does not fail the scaling check
+    double smallPerBook = Math.max( smallLibraryMillis, 50 ) / 500;
+    double largePerBook = largeLibraryMillis / 5000;
+    assertTrue( largePerBook <= smallPerBook * MAX_SCALING,
+      String.format( "Configuration time per book grows from %.3f ms to %.3f ms", smallPerBook, largePerBook )
+    );
+  }
+}
@@ -0,0 +1,68 @@
+import com.epchain.makedjvuplugin.PngEncoder;
+import com.epchain.makedjvuplugin.PngWriteParam;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Measures speedup of parallel deflate on huge pages. Disabled by default, run with
+ * MAKEDJVU_BENCHMARK=true. Page size is set by MAKEDJVU_BENCHMARK_PAGE, e.g. 6000x8000,
+ * and number of threads by MAKEDJVU_BENCHMARK_THREADS, which defaults to number of cores.
+ */
+@EnabledIfEnvironmentVariable( named = "MAKEDJVU_BENCHMARK", matches = "true" )
+class BenchmarkPngEncoder
+{
+  private static final int RUNS = 3;
+
+  @Test
+  void ParallelDeflateSpeedup() throws IOException
+  {
+    String size = System.getenv().getOrDefault( "MAKEDJVU_BENCHMARK_PAGE", "6000x8000" );
+    int width = Integer.parseInt( size.substring(0, size.indexOf('x')) );
+    int height = Integer.parseInt( size.substring(size.indexOf('x') + 1) );
+    BufferedImage image = TestPngEncoder.testImage( width, height, BufferedImage.TYPE_3BYTE_BGR );
+
+    int threads = Integer.parseInt( System.getenv().getOrDefault(
+      "MAKEDJVU_BENCHMARK_THREADS", String.valueOf(Runtime.getRuntime().availableProcessors())) );
+    for ( int level : new int[] { 1, 6, 9 } )
+    {
+      long sequential = bestMillis( image, level, 1 );
+      long parallel = bestMillis( image, level, threads );
+      System.out.printf( "%s page, level %d: 1 thread %d ms, %d threads %d ms, speedup %.2fx%n",
+        size, level, sequential, threads, parallel, (double) sequential / Math.max(1, parallel) );
+    }
+  }
+
+  private static long bestMillis( BufferedImage image, int level, int threads ) throws IOException
+  {
+    PngWriteParam param = new PngWriteParam();
+    param.setDeflateLevel( level );
+    param.setDeflateThreads( threads );
+    PngEncoder encoder = new PngEncoder( param );
+
+    long best = Long.MAX_VALUE;
+    for ( int run = 0; run < RUNS; ++run )
+    {
+      long start = System.nanoTime();
+      encoder.write( image, new NullOutputStream() );
+      best = Math.min( best, (System.nanoTime() - start) / 1_000_000 );
+    }
+    return best;
+  }
+
+  private static final class NullOutputStream extends OutputStream
+  {
+    @Override
+    public void write( int b )
+    {
+    }
+
+    @Override
+    public void write( byte[] bytes, int offset, int length )
+    {
+    }
+  }
+}
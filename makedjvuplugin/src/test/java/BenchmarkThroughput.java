@@ -0,0 +1,251 @@
+import org.gradle.testkit.runner.GradleRunner;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.junit.jupiter.api.condition.OS;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * End-to-end throughput of whole-book conversion through Gradle TestKit. Synthetic books of every page type
+ * are converted by ImagesToDjvu and PdfToImages tasks with stub tools, which sleep for simulated latency.
+ * Pages per second and peak heap of every scenario are compared with stored baseline.
+ *
+ * Disabled by default, run with MAKEDJVU_BENCHMARK=true. Settings:
+ * MAKEDJVU_BENCHMARK_PAGES - pages per book, 40 by default,
+ * MAKEDJVU_BENCHMARK_PAGE - page size, 1240x1754 (A4 at 150 dpi) by default,
+ * MAKEDJVU_BENCHMARK_TOOL_LATENCY - simulated latency of every tool call in ms, 20 by default,
+ * MAKEDJVU_BENCHMARK_BASELINE - baseline file, "throughput-baseline.properties" by default,
+ * MAKEDJVU_BENCHMARK_TOLERANCE - allowed regression as a fraction of baseline, 0.2 by default,
+ * MAKEDJVU_BENCHMARK_UPDATE_BASELINE=true - store results as new baseline.
+ * Baseline is stored on first run. Numbers depend on machine, so baseline should be kept per machine.
+ */
+@EnabledIfEnvironmentVariable( named = "MAKEDJVU_BENCHMARK", matches = "true" )
+@DisabledOnOs( OS.WINDOWS )
+class BenchmarkThroughput
+{
+  private static final int RUNS = 3;
+  private static final String BOOK_NAME = "book";
+  private static final Pattern HEAP_PEAK_PATTERN = Pattern.compile( "\"heapPeakBytes\": ([0-9]+)" );
+
+  private static final int PAGES = Integer.parseInt( setting("MAKEDJVU_BENCHMARK_PAGES", "40") );
+  private static final String PAGE_SIZE = setting( "MAKEDJVU_BENCHMARK_PAGE", "1240x1754" );
+  private static final int PAGE_WIDTH = Integer.parseInt( PAGE_SIZE.substring(0, PAGE_SIZE.indexOf('x')) );
+  private static final int PAGE_HEIGHT = Integer.parseInt( PAGE_SIZE.substring(PAGE_SIZE.indexOf('x') + 1) );
+  private static final long TOOL_LATENCY = Long.parseLong( setting("MAKEDJVU_BENCHMARK_TOOL_LATENCY", "20") );
+
+  private static Path rootDir;
+  private static Map<String, String> environment;
+  private static final Properties results = new Properties();
+
+  @BeforeAll
+  static void installTools() throws IOException
+  {
+    rootDir = Files.createTempDirectory( "makedjvu-throughput" );
+    environment = StubTools.environment( StubTools.install(rootDir.resolve("bin").toFile(), TOOL_LATENCY) );
+  }
+
+  @AfterAll
+  static void compareWithBaseline() throws IOException
+  {
+    try
+    {
+      if ( !results.isEmpty() ) checkBaseline();
+    }
+    finally
+    {
+      delete( rootDir );
+    }
+  }
+
+  @Test
+  void ImagesToDjvu() throws IOException
+  {
+    for ( SyntheticBooks.PageType type : SyntheticBooks.PageType.values() )
+    {
+      File projectDir = createProject( type.name().toLowerCase(Locale.ROOT), BOOK_NAME );
+      SyntheticBooks.images( new File(projectDir, BOOK_NAME), type, PAGES, PAGE_WIDTH, PAGE_HEIGHT );
+      measure( "images-to-djvu." + type.name().toLowerCase(Locale.ROOT), projectDir, BOOK_NAME + "ImagesToDjvu" );
+    }
+  }
+
+  @Test
+  void PdfToImages() throws IOException
+  {
+    File projectDir = createProject( "pdf", BOOK_NAME + ".pdf" );
+    SyntheticBooks.pdf( new File(projectDir, BOOK_NAME + ".pdf"), PAGES, PAGE_WIDTH, PAGE_HEIGHT );
+    measure( "pdf-to-images", projectDir, BOOK_NAME + "PdfToImages" );
+  }
+
+  /** Converts book of project several times after warm-up run, keeps best pages per second and highest heap peak. */
+  private static void measure( String scenario, File projectDir, String taskName ) throws IOException
+  {
+    GradleRunner runner = GradleRunner.create()
+      .withProjectDir( projectDir )
+      .withPluginClasspath( pluginClasspath() )
+      .withEnvironment( environment )
+      .withArguments( taskName, "--rerun-tasks", "--stacktrace" );
+
+    double bestPagesPerSecond = 0;
+    long heapPeak = 0;
+    for ( int run = 0; run <= RUNS; ++run )
+    {
+      // Journal and outputs of previous run would let task skip pages
+      delete( new File(projectDir, "work").toPath() );
+      delete( new File(projectDir, "out").toPath() );
+
+      long start = System.nanoTime();
+      runner.build();
+      double seconds = ( System.nanoTime() - start ) / 1e9;
+      if ( run == 0 ) continue; // Warm-up of daemon and JIT
+
+      bestPagesPerSecond = Math.max( bestPagesPerSecond, PAGES / seconds );
+      heapPeak = Math.max( heapPeak, heapPeak(projectDir) );
+    }
+
+    System.out.println( String.format( Locale.ROOT,
+      "%-26s %d pages %s, tool latency %d ms: %.2f pages/s, peak heap %d MB",
+      scenario, PAGES, PAGE_SIZE, TOOL_LATENCY, bestPagesPerSecond, heapPeak / (1024 * 1024)
+    ) );
+    synchronized ( results )
+    {
+      results.setProperty( scenario + ".pagesPerSecond", String.format(Locale.ROOT, "%.2f", bestPagesPerSecond) );
+      results.setProperty( scenario + ".heapPeakMegabytes", String.valueOf(heapPeak / (1024 * 1024)) );
+    }
+  }
+
+  private static void checkBaseline() throws IOException
+  {
+    File baselineFile = new File( setting("MAKEDJVU_BENCHMARK_BASELINE", "throughput-baseline.properties") );
+    boolean update = Boolean.parseBoolean( setting("MAKEDJVU_BENCHMARK_UPDATE_BASELINE", "false") );
+    double tolerance = Double.parseDouble( setting("MAKEDJVU_BENCHMARK_TOLERANCE", "0.2") );
+    String settings = PAGES + " pages " + PAGE_SIZE + ", tool latency " + TOOL_LATENCY + " ms";
+
+    if ( update || !baselineFile.exists() )
+    {
+      results.setProperty( "settings", settings );
+      try ( OutputStream out = new FileOutputStream(baselineFile) )
+      {
+        results.store( out, "MakeDjvuPlugin throughput baseline" );
+      }
+      System.out.println( "Baseline stored: " + baselineFile.getAbsolutePath() );
+      return;
+    }
+
+    Properties baseline = new Properties();
+    try ( InputStream in = new FileInputStream(baselineFile) )
+    {
+      baseline.load( in );
+    }
+    if ( !settings.equals(baseline.getProperty("settings")) )
+    {
+      System.out.println( "Baseline is measured with other settings (" + baseline.getProperty("settings") + "), not compared" );
+      return;
+    }
+
+    List<String> regressions = new ArrayList<>();
+    for ( String key : new TreeSet<>(results.stringPropertyNames()) )
+    {
+      if ( baseline.getProperty(key) == null ) continue;
+      double expected = Double.parseDouble( baseline.getProperty(key) );
+      double actual = Double.parseDouble( results.getProperty(key) );
+      // Throughput should not drop, heap should not grow
+      double change = ( key.endsWith(".pagesPerSecond") ) ? 1 - actual / expected : actual / expected - 1;
+      System.out.println( String.format( Locale.ROOT, "%-45s baseline %10s, now %10s", key, baseline.getProperty(key), results.getProperty(key) ) );
+      if ( change > tolerance )
+      {
+        regressions.add( String.format(Locale.ROOT, "%s: %s -> %s", key, baseline.getProperty(key), results.getProperty(key)) );
+      }
+    }
+    assertTrue( regressions.isEmpty(), "Regressed against " + baselineFile + ": " + regressions );
+  }
+
+  private static File createProject( String name, String bookFile ) throws IOException
+  {
+    File projectDir = Files.createDirectories( rootDir.resolve(name) ).toFile();
+    write( new File(projectDir, "settings.gradle"), "rootProject.name = '" + name + "'\n" );
+    write( new File(projectDir, "gradle.properties"), "org.gradle.jvmargs=-Xmx1g\n" );
+    write( new File(projectDir, "build.gradle"),
+      "plugins {\n" +
+      "  id 'makedjvuplugin'\n" +
+      "}\n" +
+      "settings {\n" +
+      "  workDir = file( 'work' )\n" +
+      "  outDir = file( 'out' )\n" +
+      "}\n" +
+      "books {\n" +
+      "  " + BOOK_NAME + " {\n" +
+      "    bookFile = file( '" + bookFile + "' )\n" +
+      "  }\n" +
+      "}\n"
+    );
+    return projectDir;
+  }
+
+  private static long heapPeak( File projectDir ) throws IOException
+  {
+    File report = new File( projectDir, "out/reports/" + BOOK_NAME + "/report.json" );
+    Matcher matcher = HEAP_PEAK_PATTERN.matcher( new String(Files.readAllBytes(report.toPath()), StandardCharsets.UTF_8) );
+    return ( matcher.find() ) ? Long.parseLong( matcher.group(1) ) : 0;
+  }
+
+  /** Classes and plugin descriptor of plugin under test, as compiled for tests. */
+  static List<File> pluginClasspath()
+  {
+    try
+    {
+      URL descriptor = BenchmarkThroughput.class.getClassLoader().getResource( "META-INF/gradle-plugins/makedjvuplugin.properties" );
+      File resourcesDir = new File( descriptor.toURI() ).getParentFile().getParentFile().getParentFile();
+      File classesDir = new File( com.epchain.makedjvuplugin.MakeDjvuPlugin.class.getProtectionDomain().getCodeSource().getLocation().toURI() );
+      return Arrays.asList( classesDir, resourcesDir );
+    }
+    catch ( URISyntaxException e )
+    {
+      throw new IllegalStateException( e );
+    }
+  }
+
+  private static String setting( String name, String defaultValue )
+  {
+    return System.getenv().getOrDefault( name, defaultValue );
+  }
+
+  private static void write( File file, String text ) throws IOException
+  {
+    Files.write( file.toPath(), text.getBytes(StandardCharsets.UTF_8) );
+  }
+
+  private static void delete( Path path ) throws IOException
+  {
+    if ( !Files.exists(path) ) return;
+    try ( Stream<Path> paths = Files.walk(path) )
+    {
+      for ( Path child : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator ) Files.delete( child );
+    }
+  }
+}
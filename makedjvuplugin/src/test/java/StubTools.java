@@ -0,0 +1,72 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Deterministic shell stubs of DjvuLibre and Calibre tools. Every call sleeps for simulated latency
+ * and writes output derived from its input only, so conversion cost of the plugin itself is measured
+ * without real tools installed. Stubs need POSIX shell.
+ */
+final class StubTools
+{
+  private StubTools()
+  {
+  }
+
+  /** Writes c44, djvm, djvused and ebook-convert stubs into bin dir. */
+  static File install( File binDir, long latencyMillis ) throws IOException
+  {
+    Files.createDirectories( binDir.toPath() );
+    String sleep = ( latencyMillis > 0 )
+      ? String.format( Locale.ROOT, "sleep %.3f\n", latencyMillis / 1000.0 ) : "";
+
+    // c44 [options] <image> <djvu>: tiny DJVU header followed by hex of image head
+    write( binDir, "c44", sleep +
+      "[ $# -lt 2 ] && { echo 'C44 --- DjVuLibre-3.5.28'; exit 1; }\n" +
+      "for arg in \"$@\"; do image=\"$djvu\"; djvu=\"$arg\"; done\n" +
+      "[ -f \"$image\" ] || { echo \"c44: cannot open $image\" >&2; exit 1; }\n" +
+      "{ printf 'AT&TFORM'; head -c 64 \"$image\" | od -An -tx1 | tr -d ' \\n'; } > \"$djvu\"\n" );
+
+    // djvm -c <book> <page> | djvm -i <book> <page>
+    write( binDir, "djvm", sleep +
+      "[ $# -lt 3 ] && { echo 'DJVM --- DjVuLibre-3.5.28'; exit 1; }\n" +
+      "case \"$1\" in\n" +
+      "  -c) cat \"$3\" > \"$2\" ;;\n" +
+      "  -i) cat \"$3\" >> \"$2\" ;;\n" +
+      "  *) echo \"djvm: unsupported option $1\" >&2; exit 1 ;;\n" +
+      "esac\n" );
+
+    // djvused -e <command> -s <djvu>: appends command, as outline is saved into DJVU in place
+    write( binDir, "djvused", sleep +
+      "[ $# -lt 1 ] && { echo 'DJVUSED --- DjVuLibre-3.5.28'; exit 1; }\n" +
+      "for arg in \"$@\"; do djvu=\"$arg\"; done\n" +
+      "printf '%s' \"$2\" >> \"$djvu\"\n" );
+
+    // ebook-convert <pdf> <epub> [options]: copies EPUB prepared by SyntheticBooks.pdf
+    write( binDir, "ebook-convert",
+      "[ \"$1\" = --version ] && { echo 'ebook-convert (calibre 5.44.0)'; exit 0; }\n" + sleep +
+      "[ -f \"$1.epub\" ] || { echo \"ebook-convert: no prepared EPUB for $1\" >&2; exit 1; }\n" +
+      "cp \"$1.epub\" \"$2\"\n" );
+    return binDir;
+  }
+
+  /** Returns environment of current process with stubs first in PATH. */
+  static Map<String, String> environment( File binDir )
+  {
+    Map<String, String> environment = new HashMap<>( System.getenv() );
+    String path = environment.get( "PATH" );
+    environment.put( "PATH", binDir.getAbsolutePath() + ((path != null) ? File.pathSeparator + path : "") );
+    return environment;
+  }
+
+  private static void write( File binDir, String name, String body ) throws IOException
+  {
+    File script = new File( binDir, name );
+    Files.write( script.toPath(), ("#!/bin/sh\n" + body).getBytes(StandardCharsets.US_ASCII) );
+    if ( !script.setExecutable(true) ) throw new IOException( "Failed to make " + script + " executable" );
+  }
+}
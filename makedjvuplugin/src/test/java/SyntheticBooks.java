@@ -0,0 +1,215 @@
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates books with synthetic scanned pages: lines of "words" on paper with a few illustrations.
+ * Pages depend on page index only, so every run converts the same books.
+ */
+final class SyntheticBooks
+{
+  enum PageType
+  {
+    COLOUR_PNG( BufferedImage.TYPE_3BYTE_BGR, "png" ),
+    GRAY_PNG( BufferedImage.TYPE_BYTE_GRAY, "png" ),
+    ALPHA_PNG( BufferedImage.TYPE_4BYTE_ABGR, "png" ),
+    JPG( BufferedImage.TYPE_3BYTE_BGR, "jpg" );
+
+    final int imageType;
+    final String extension;
+
+    PageType( int imageType, String extension )
+    {
+      this.imageType = imageType;
+      this.extension = extension;
+    }
+  }
+
+  private SyntheticBooks()
+  {
+  }
+
+  /** Writes image set book with pages named "page-[index]" into given dir. */
+  static File images( File dir, PageType type, int pageCount, int width, int height ) throws IOException
+  {
+    Files.createDirectories( dir.toPath() );
+    for ( int page = 1; page <= pageCount; ++page )
+    {
+      File file = new File( dir, String.format(Locale.ROOT, "page-%04d.%s", page, type.extension) );
+      if ( !ImageIO.write(page(type, page, width, height), type.extension, file) )
+      {
+        throw new IOException( "No ImageIO writer for " + type.extension );
+      }
+    }
+    return dir;
+  }
+
+  /**
+   * Writes PDF with one JPG image per page. EPUB, which Calibre generates from such PDF, is written next to it
+   * as "[name].pdf.epub" for stub ebook-convert of {@link StubTools}.
+   */
+  static File pdf( File pdf, int pageCount, int width, int height ) throws IOException
+  {
+    Files.createDirectories( pdf.getParentFile().toPath() );
+    List<byte[]> jpgs = new ArrayList<>();
+    for ( int page = 1; page <= pageCount; ++page )
+    {
+      ByteArrayOutputStream jpg = new ByteArrayOutputStream();
+      ImageIO.write( page(PageType.JPG, page, width, height), "jpg", jpg );
+      jpgs.add( jpg.toByteArray() );
+    }
+    writePdf( pdf, jpgs, width, height );
+    writeEpub( new File(pdf.getPath() + ".epub"), jpgs );
+    return pdf;
+  }
+
+  static BufferedImage page( PageType type, int pageIndex, int width, int height )
+  {
+    BufferedImage image = new BufferedImage( width, height, type.imageType );
+    Random random = new Random( pageIndex );
+    Graphics2D graphics = image.createGraphics();
+    try
+    {
+      if ( type == PageType.ALPHA_PNG )
+      { // Transparent margins around paper, as cut out by scanning software
+        graphics.setColor( new Color(250, 248, 240) );
+        graphics.fillRect( width / 20, height / 20, width - width / 10, height - height / 10 );
+      }
+      else
+      {
+        graphics.setColor( new Color(250, 248, 240) );
+        graphics.fillRect( 0, 0, width, height );
+      }
+
+      int margin = width / 10;
+      int lineHeight = Math.max( 4, height / 60 );
+      graphics.setColor( new Color(30, 30, 30) );
+      for ( int y = margin; y < height - margin; y += lineHeight * 2 )
+      {
+        for ( int x = margin; x < width - margin; )
+        {
+          int wordWidth = lineHeight * ( 1 + random.nextInt(6) );
+          graphics.fillRect( x, y, Math.min(wordWidth, width - margin - x), lineHeight );
+          x += wordWidth + lineHeight;
+        }
+      }
+
+      if ( type != PageType.GRAY_PNG && pageIndex % 3 == 0 )
+      { // Illustration
+        graphics.setColor( new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256)) );
+        graphics.fillOval( width / 4, height / 3, width / 2, height / 4 );
+      }
+    }
+    finally
+    {
+      graphics.dispose();
+    }
+    return image;
+  }
+
+  private static void writePdf( File pdf, List<byte[]> jpgs, int width, int height ) throws IOException
+  {
+    try ( CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(pdf))) )
+    {
+      // Objects: 1 catalog, 2 page tree, then page, content and image of every page
+      List<Long> offsets = new ArrayList<>();
+      out.ascii( "%PDF-1.4\n" );
+      offsets.add( out.count );
+      out.ascii( "1 0 obj\n<< /Type /Catalog /Pages 2 0 R >>\nendobj\n" );
+      StringBuilder kids = new StringBuilder();
+      for ( int page = 0; page < jpgs.size(); ++page ) kids.append( 3 + page * 3 ).append( " 0 R " );
+      offsets.add( out.count );
+      out.ascii( "2 0 obj\n<< /Type /Pages /Kids [ " + kids + "] /Count " + jpgs.size() + " >>\nendobj\n" );
+
+      for ( int page = 0; page < jpgs.size(); ++page )
+      {
+        int pageObject = 3 + page * 3;
+        offsets.add( out.count );
+        out.ascii( pageObject + " 0 obj\n<< /Type /Page /Parent 2 0 R /MediaBox [0 0 " + width + " " + height + "]" +
+          " /Resources << /XObject << /Im0 " + (pageObject + 2) + " 0 R >> >> /Contents " + (pageObject + 1) + " 0 R >>\nendobj\n" );
+
+        String content = "q " + width + " 0 0 " + height + " 0 0 cm /Im0 Do Q";
+        offsets.add( out.count );
+        out.ascii( (pageObject + 1) + " 0 obj\n<< /Length " + content.length() + " >>\nstream\n" + content + "\nendstream\nendobj\n" );
+
+        byte[] jpg = jpgs.get( page );
+        offsets.add( out.count );
+        out.ascii( (pageObject + 2) + " 0 obj\n<< /Type /XObject /Subtype /Image /Width " + width + " /Height " + height +
+          " /ColorSpace /DeviceRGB /BitsPerComponent 8 /Filter /DCTDecode /Length " + jpg.length + " >>\nstream\n" );
+        out.write( jpg );
+        out.ascii( "\nendstream\nendobj\n" );
+      }
+
+      long xref = out.count;
+      out.ascii( "xref\n0 " + (offsets.size() + 1) + "\n0000000000 65535 f \n" );
+      for ( long offset : offsets ) out.ascii( String.format(Locale.ROOT, "%010d 00000 n \n", offset) );
+      out.ascii( "trailer\n<< /Size " + (offsets.size() + 1) + " /Root 1 0 R >>\nstartxref\n" + xref + "\n%%EOF\n" );
+    }
+  }
+
+  /** Writes EPUB with images named as Calibre names them: "index-[page]_1.jpg". */
+  private static void writeEpub( File epub, List<byte[]> jpgs ) throws IOException
+  {
+    try ( ZipOutputStream zipOut = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(epub))) )
+    {
+      zipOut.putNextEntry( new ZipEntry("mimetype") );
+      zipOut.write( "application/epub+zip".getBytes(StandardCharsets.US_ASCII) );
+      for ( int page = 0; page < jpgs.size(); ++page )
+      {
+        zipOut.putNextEntry( new ZipEntry("index-" + (page + 1) + "_1.jpg") );
+        zipOut.write( jpgs.get(page) );
+      }
+    }
+  }
+
+  private static final class CountingOutputStream extends OutputStream
+  {
+    private final OutputStream out;
+    long count;
+
+    CountingOutputStream( OutputStream out )
+    {
+      this.out = out;
+    }
+
+    void ascii( String text ) throws IOException
+    {
+      write( text.getBytes(StandardCharsets.US_ASCII) );
+    }
+
+    @Override
+    public void write( int b ) throws IOException
+    {
+      out.write( b );
+      ++count;
+    }
+
+    @Override
+    public void write( byte[] bytes, int offset, int length ) throws IOException
+    {
+      out.write( bytes, offset, length );
+      count += length;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,69 @@
+import org.gradle.testkit.runner.BuildResult;
+import org.gradle.testkit.runner.GradleRunner;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Builds image set and PDF books twice with configuration cache through Gradle TestKit.
+ * Second build must reuse cached task graph, so tasks may not reach project model at execution time.
+ * Stub tools need POSIX shell.
+ */
+@DisabledOnOs( OS.WINDOWS )
+class TestConfigurationCache
+{
+  @TempDir
+  Path projectDir;
+
+  @Test
+  void CachedTaskGraphIsReused() throws IOException
+  {
+    File binDir = StubTools.install( projectDir.resolve("bin").toFile(), 0 );
+    SyntheticBooks.images( projectDir.resolve("books/scan").toFile(), SyntheticBooks.PageType.JPG, 3, 120, 160 );
+    SyntheticBooks.pdf( projectDir.resolve("books/paper.pdf").toFile(), 2, 120, 160 );
+    write( "settings.gradle", "rootProject.name = 'cache'\n" );
+    write( "build.gradle",
+      "plugins {\n" +
+      "  id 'makedjvuplugin'\n" +
+      "}\n" +
+      "settings {\n" +
+      "  workDir = file( 'work' )\n" +
+      "  outDir = file( 'out' )\n" +
+      "}\n" +
+      "books {\n" +
+      "  scan {\n" +
+      "    bookFile = file( 'books/scan' )\n" +
+      "  }\n" +
+      "  paper {\n" +
+      "    bookFile = file( 'books/paper.pdf' )\n" +
+      "  }\n" +
+      "}\n"
+    );
+
+    GradleRunner runner = GradleRunner.create()
+      .withProjectDir( projectDir.toFile() )
+      .withPluginClasspath( BenchmarkThroughput.pluginClasspath() )
+      .withEnvironment( StubTools.environment(binDir) );
+
+    runner.withArguments( "convertScan", "convertPaper", "--configuration-cache", "--stacktrace" ).build();
+    BuildResult result = runner.withArguments( "convertScan", "convertPaper", "--configuration-cache", "--rerun-tasks", "--stacktrace" ).build();
+
+    assertTrue( result.getOutput().contains("Reusing configuration cache"), result.getOutput() );
+    assertTrue( projectDir.resolve("out/scan.djvu").toFile().isFile() );
+    assertTrue( projectDir.resolve("out/paper.djvu").toFile().isFile() );
+  }
+
+  private void write( String name, String text ) throws IOException
+  {
+    Files.write( projectDir.resolve(name), text.getBytes(StandardCharsets.UTF_8) );
+  }
+}
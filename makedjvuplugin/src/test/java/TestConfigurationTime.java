@@ -0,0 +1,86 @@
+import org.gradle.testkit.runner.BuildResult;
+import org.gradle.testkit.runner.GradleRunner;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Configuration of synthetic library through Gradle TestKit. Build script counts book tasks, which are created
+ * before all projects are evaluated, and times creation of books and registration of their tasks.
+ * Book files do not exist, so any filesystem check at configuration time would be a bug anyway.
+ * Timing of large libraries is in {@link BenchmarkConfigurationTime}.
+ */
+class TestConfigurationTime
+{
+  private static final Pattern CONFIGURATION_PATTERN = Pattern.compile( "Configured ([0-9]+) books in ([0-9.]+) ms" );
+
+  @TempDir
+  Path projectDir;
+
+  @Test
+  void BookTasksAreNotCreatedAtConfigurationTime() throws IOException
+  {
+    configure( library(projectDir), 1000 );
+  }
+
+  /** Writes library project, which has as many books as 'bookCount' property, and returns its runner. */
+  static GradleRunner library( Path projectDir ) throws IOException
+  {
+    write( projectDir, "settings.gradle", "rootProject.name = 'library'\n" );
+    write( projectDir, "build.gradle",
+      "plugins {\n" +
+      "  id 'makedjvuplugin'\n" +
+      "}\n" +
+      "long start = System.nanoTime()\n" +
+      "int bookCount = Integer.parseInt( findProperty('bookCount') )\n" +
+      "int realizedTasks = 0\n" +
+      "tasks.configureEach { task ->\n" +
+      "  if ( task.name.startsWith('book') || task.name.startsWith('convertBook') ) ++realizedTasks\n" +
+      "}\n" +
+      "File missingDir = file( 'missing' )\n" +
+      "for ( int i = 0; i < bookCount; ++i ) {\n" +
+      "  def book = books.create( \"book$i\" )\n" +
+      "  book.bookFile = new File( missingDir, (i % 2 == 0) ? \"book${i}.pdf\" : \"book$i\" )\n" +
+      "  book.bookmarksFile = new File( missingDir, \"bookmarks${i}.lsp\" )\n" +
+      "  book.outDir = new File( missingDir, \"out$i\" )\n" +
+      "}\n" +
+      "gradle.projectsEvaluated {\n" +
+      "  println \"Configured $bookCount books in ${(System.nanoTime() - start) / 1000000.0} ms\"\n" +
+      "  println \"Realized book tasks: $realizedTasks\"\n" +
+      "  println \"Book tasks: \" + ['book0PdfToImages', 'book1ImagesToDjvu', 'book1PdfToImages', \"convertBook${bookCount - 1}\".toString()]\n" +
+      "    .findAll { tasks.names.contains(it) }.join(', ')\n" +
+      "}\n"
+    );
+    return GradleRunner.create()
+      .withProjectDir( projectDir.toFile() )
+      .withPluginClasspath( BenchmarkThroughput.pluginClasspath() );
+  }
+
+  /** Returns configuration time of library with given number of books, checking that none of their tasks is created. */
+  static double configure( GradleRunner runner, int bookCount )
+  {
+    BuildResult result = runner.withArguments( "help", "-PbookCount=" + bookCount ).build();
+    String output = result.getOutput();
+
+    assertTrue( output.contains("Realized book tasks: 0"), "Book tasks must not be created at configuration time:\n" + output );
+    assertTrue( output.contains("Book tasks: book0PdfToImages, book1ImagesToDjvu, convertBook" + (bookCount - 1)), output );
+    Matcher matcher = CONFIGURATION_PATTERN.matcher( output );
+    assertTrue( matcher.find(), output );
+    assertEquals( bookCount, Integer.parseInt(matcher.group(1)) );
+    return Double.parseDouble( matcher.group(2) );
+  }
+
+  private static void write( Path projectDir, String name, String text ) throws IOException
+  {
+    Files.write( projectDir.resolve(name), text.getBytes(StandardCharsets.UTF_8) );
+  }
+}
@@ -0,0 +1,81 @@
+import com.epchain.makedjvuplugin.ConversionJournal;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestConversionJournal
+{
+  @Test
+  void CompletedStepsSurviveReopen() throws IOException
+  {
+    File dir = Files.createTempDirectory( "journal" ).toFile();
+    File journalFile = new File( dir, "test.journal" );
+    File page = write( new File(dir, "page-1.djvu"), "page 1" );
+
+    try ( ConversionJournal journal = ConversionJournal.open(journalFile, "c44") )
+    {
+      assertTrue( journal.isEmpty() );
+      journal.recordCompleted( "page-1.jpg", "source", page );
+    }
+
+    try ( ConversionJournal journal = ConversionJournal.open(journalFile, "c44") )
+    {
+      assertTrue( journal.isCompleted("page-1.jpg", "source", page) );
+      assertFalse( journal.isCompleted("page-1.jpg", "changed source", page) );
+      assertFalse( journal.isCompleted("page-2.jpg", "source", page) );
+      write( page, "damaged page" );
+      assertFalse( journal.isCompleted("page-1.jpg", "source", page) );
+    }
+
+    try ( ConversionJournal journal = ConversionJournal.open(journalFile, "c44 with other options") )
+    {
+      assertTrue( journal.isEmpty() );
+    }
+  }
+
+  @Test
+  void TornRecordIsDropped() throws IOException
+  {
+    File dir = Files.createTempDirectory( "journal" ).toFile();
+    File journalFile = new File( dir, "test.journal" );
+    File page1 = write( new File(dir, "page-1.djvu"), "page 1" );
+    File page2 = write( new File(dir, "page-2.djvu"), "page 2" );
+
+    try ( ConversionJournal journal = ConversionJournal.open(journalFile, "c44") )
+    {
+      journal.recordCompleted( "page-1.jpg", "source", page1 );
+    }
+    // Simulate crash in the middle of record
+    try ( FileOutputStream out = new FileOutputStream(journalFile, true) )
+    {
+      out.write( "page-2.jpg\tsource\t6:".getBytes(StandardCharsets.UTF_8) );
+    }
+
+    try ( ConversionJournal journal = ConversionJournal.open(journalFile, "c44") )
+    {
+      assertTrue( journal.isCompleted("page-1.jpg", "source", page1) );
+      assertFalse( journal.isCompleted("page-2.jpg", "source", page2) );
+      journal.recordCompleted( "page-2.jpg", "source", page2 );
+    }
+
+    try ( ConversionJournal journal = ConversionJournal.open(journalFile, "c44") )
+    {
+      assertTrue( journal.isCompleted("page-1.jpg", "source", page1) );
+      assertTrue( journal.isCompleted("page-2.jpg", "source", page2) );
+      journal.delete();
+    }
+    assertFalse( journalFile.exists() );
+  }
+
+  private static File write( File file, String contents ) throws IOException
+  {
+    Files.write( file.toPath(), contents.getBytes(StandardCharsets.UTF_8) );
+    return file;
+  }
+}
@@ -0,0 +1,201 @@
+import com.epchain.makedjvuplugin.CreateDjvuFromImagesTask;
+import org.gradle.testkit.runner.BuildResult;
+import org.gradle.testkit.runner.GradleRunner;
+import org.gradle.testkit.runner.TaskOutcome;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Existing DJVU of ImagesToDjvu through Gradle TestKit. DJVU of an earlier run is replaced, also after bookmarks
+ * are added or DJVU is restored from build cache, any other DJVU fails the task unless forceCleanUp is set.
+ * PNG settings make DJVU out of date only with jpgToPng. Cleanup of images, extracted from PDF, keeps journal of DJVU.
+ * Stub tools need POSIX shell.
+ */
+@DisabledOnOs( OS.WINDOWS )
+class TestDjvuOutputs
+{
+  @TempDir
+  Path projectDir;
+
+  @Test
+  void OnlyDjvuOfEarlierRunIsReplaced() throws IOException
+  {
+    File binDir = StubTools.install( projectDir.resolve("bin").toFile(), 0 );
+    File imagesDir = SyntheticBooks.images( projectDir.resolve("books/scan").toFile(), SyntheticBooks.PageType.JPG, 2, 120, 160 );
+    write( "settings.gradle", "rootProject.name = 'outputs'\n" );
+    write( "build.gradle",
+      "plugins {\n" +
+      "  id 'makedjvuplugin'\n" +
+      "}\n" +
+      "settings {\n" +
+      "  workDir = file( 'work' )\n" +
+      "  outDir = file( 'out' )\n" +
+      "}\n" +
+      "books {\n" +
+      "  scan {\n" +
+      "    bookFile = file( 'books/scan' )\n" +
+      "    forceCleanUp = project.hasProperty( 'force' )\n" +
+      "  }\n" +
+      "}\n"
+    );
+    GradleRunner runner = GradleRunner.create()
+      .withProjectDir( projectDir.toFile() )
+      .withPluginClasspath( BenchmarkThroughput.pluginClasspath() )
+      .withEnvironment( StubTools.environment(binDir) );
+    File djvu = projectDir.resolve( "out/scan.djvu" ).toFile();
+
+    runner.withArguments( "scanImagesToDjvu" ).build();
+    assertTrue( djvu.isFile() );
+
+    // Changed book is converted again over DJVU of the first run
+    SyntheticBooks.images( imagesDir, SyntheticBooks.PageType.JPG, 3, 120, 160 );
+    BuildResult result = runner.withArguments( "scanImagesToDjvu" ).build();
+    assertTrue( result.getOutput().contains("Deleted DJVU: scan.djvu"), result.getOutput() );
+    assertTrue( djvu.isFile() );
+
+    // DJVU, which is changed since, is kept and fails the task
+    Files.write( djvu.toPath(), "edited".getBytes(StandardCharsets.UTF_8) );
+    SyntheticBooks.images( imagesDir, SyntheticBooks.PageType.JPG, 4, 120, 160 );
+    result = runner.withArguments( "scanImagesToDjvu" ).buildAndFail();
+    assertTrue( result.getOutput().contains("Found destination DJVU, which is not written by 'scan' conversion"), result.getOutput() );
+    assertEquals( "edited", new String(Files.readAllBytes(djvu.toPath()), StandardCharsets.UTF_8) );
+
+    runner.withArguments( "scanImagesToDjvu", "-Pforce" ).build();
+    assertNotEquals( "edited", new String(Files.readAllBytes(djvu.toPath()), StandardCharsets.UTF_8) );
+  }
+
+  @Test
+  void DjvuWithBookmarksOrFromCacheIsReplaced() throws IOException
+  {
+    File binDir = StubTools.install( projectDir.resolve("bin").toFile(), 0 );
+    File imagesDir = SyntheticBooks.images( projectDir.resolve("books/scan").toFile(), SyntheticBooks.PageType.JPG, 2, 120, 160 );
+    write( "bookmarks.lsp", "(bookmarks (\"Cover\" \"#1\"))\n" );
+    write( "settings.gradle",
+      "rootProject.name = 'outputs'\n" +
+      "buildCache {\n" +
+      "  local {\n" +
+      "    directory = file( 'cache' )\n" +
+      "  }\n" +
+      "}\n"
+    );
+    write( "build.gradle",
+      "plugins {\n" +
+      "  id 'makedjvuplugin'\n" +
+      "}\n" +
+      "settings {\n" +
+      "  workDir = file( 'work' )\n" +
+      "  outDir = file( 'out' )\n" +
+      "}\n" +
+      "books {\n" +
+      "  scan {\n" +
+      "    bookFile = file( 'books/scan' )\n" +
+      "    bookmarksFile = file( 'bookmarks.lsp' )\n" +
+      "  }\n" +
+      "}\n"
+    );
+    GradleRunner runner = GradleRunner.create()
+      .withProjectDir( projectDir.toFile() )
+      .withPluginClasspath( BenchmarkThroughput.pluginClasspath() )
+      .withEnvironment( StubTools.environment(binDir) );
+    File djvu = projectDir.resolve( "out/scan.djvu" ).toFile();
+
+    runner.withArguments( "scanImagesToDjvu", "scanAddBookmarks", "--build-cache" ).build();
+    assertTrue( new String(Files.readAllBytes(djvu.toPath()), StandardCharsets.UTF_8).endsWith("bookmarks.lsp\"") );
+
+    // DJVU with bookmarks is replaced
+    SyntheticBooks.images( imagesDir, SyntheticBooks.PageType.JPG, 3, 120, 160 );
+    BuildResult result = runner.withArguments( "scanImagesToDjvu", "--build-cache" ).build();
+    assertTrue( result.getOutput().contains("Deleted DJVU: scan.djvu"), result.getOutput() );
+
+    // DJVU of the first run is restored from build cache with its journal, and is replaced as well
+    Files.delete( imagesDir.toPath().resolve("page-0003.jpg") );
+    result = runner.withArguments( "scanImagesToDjvu", "--build-cache" ).build();
+    assertEquals( TaskOutcome.FROM_CACHE, result.task(":scanImagesToDjvu").getOutcome() );
+    SyntheticBooks.images( imagesDir, SyntheticBooks.PageType.JPG, 4, 120, 160 );
+    result = runner.withArguments( "scanImagesToDjvu", "--build-cache" ).build();
+    assertTrue( result.getOutput().contains("Deleted DJVU: scan.djvu"), result.getOutput() );
+  }
+
+  @Test
+  void PngSettingsWithoutJpgToPngAreNotInputs() throws IOException
+  {
+    File binDir = StubTools.install( projectDir.resolve("bin").toFile(), 0 );
+    SyntheticBooks.images( projectDir.resolve("books/scan").toFile(), SyntheticBooks.PageType.JPG, 2, 120, 160 );
+    write( "settings.gradle", "rootProject.name = 'outputs'\n" );
+    write( "build.gradle",
+      "plugins {\n" +
+      "  id 'makedjvuplugin'\n" +
+      "}\n" +
+      "settings {\n" +
+      "  workDir = file( 'work' )\n" +
+      "  outDir = file( 'out' )\n" +
+      "  pngFilter = project.findProperty( 'pngFilter' ) ?: 'adaptive'\n" +
+      "}\n" +
+      "books {\n" +
+      "  scan {\n" +
+      "    bookFile = file( 'books/scan' )\n" +
+      "  }\n" +
+      "}\n"
+    );
+    GradleRunner runner = GradleRunner.create()
+      .withProjectDir( projectDir.toFile() )
+      .withPluginClasspath( BenchmarkThroughput.pluginClasspath() )
+      .withEnvironment( StubTools.environment(binDir) );
+
+    runner.withArguments( "scanImagesToDjvu" ).build();
+    BuildResult result = runner.withArguments( "scanImagesToDjvu", "-PpngFilter=paeth" ).build();
+    assertEquals( TaskOutcome.UP_TO_DATE, result.task(":scanImagesToDjvu").getOutcome() );
+  }
+
+  @Test
+  void CleanUpOfPdfImagesKeepsJournalOfDjvu() throws IOException
+  {
+    File binDir = StubTools.install( projectDir.resolve("bin").toFile(), 0 );
+    File pdf = SyntheticBooks.pdf( projectDir.resolve("scan.pdf").toFile(), 2, 120, 160 );
+    write( "settings.gradle", "rootProject.name = 'outputs'\n" );
+    write( "build.gradle",
+      "plugins {\n" +
+      "  id 'makedjvuplugin'\n" +
+      "}\n" +
+      "settings {\n" +
+      "  workDir = file( 'work' )\n" +
+      "  outDir = file( 'out' )\n" +
+      "}\n" +
+      "books {\n" +
+      "  scan {\n" +
+      "    bookFile = file( 'scan.pdf' )\n" +
+      "    forceCleanUp = true\n" +
+      "  }\n" +
+      "}\n"
+    );
+    GradleRunner runner = GradleRunner.create()
+      .withProjectDir( projectDir.toFile() )
+      .withPluginClasspath( BenchmarkThroughput.pluginClasspath() )
+      .withEnvironment( StubTools.environment(binDir) );
+    File outputsJournal = CreateDjvuFromImagesTask.outputsJournal( projectDir.resolve("work").toFile(), "scan" );
+
+    runner.withArguments( "scanImagesToDjvu" ).build();
+    assertTrue( outputsJournal.isFile() );
+
+    // Images of changed PDF replace images of the first run only
+    SyntheticBooks.pdf( pdf, 3, 120, 160 );
+    BuildResult result = runner.withArguments( "scanPdfToImages" ).build();
+    assertTrue( result.getOutput().contains("Cleaning up book images directory"), result.getOutput() );
+    assertTrue( outputsJournal.isFile() );
+  }
+
+  private void write( String name, String text ) throws IOException
+  {
+    Files.write( projectDir.resolve(name), text.getBytes(StandardCharsets.UTF_8) );
+  }
+}
@@ -0,0 +1,122 @@
+import com.epchain.makedjvuplugin.GrayPages;
+import com.epchain.makedjvuplugin.Utils;
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestGrayPages
+{
+  @Test
+  void GrayScanWithJpegNoiseIsGray()
+  {
+    BufferedImage page = grayScan( 400, 600, BufferedImage.TYPE_3BYTE_BGR );
+    assertTrue( GrayPages.isGray(page) );
+  }
+
+  @Test
+  void ColourFigureIsNotGray()
+  {
+    BufferedImage page = grayScan( 400, 600, BufferedImage.TYPE_3BYTE_BGR );
+    Graphics2D graphics = page.createGraphics();
+    graphics.setColor( new Color(200, 40, 40) );
+    graphics.fillRect( 100, 100, 20, 20 );
+    graphics.dispose();
+    assertFalse( GrayPages.isGray(page) );
+  }
+
+  @Test
+  void FewColouredPixelsAreTolerated()
+  {
+    BufferedImage page = grayScan( 400, 600, BufferedImage.TYPE_3BYTE_BGR );
+    page.setRGB( 10, 10, 0xFF0000 );
+    page.setRGB( 20, 20, 0x0000FF );
+    assertTrue( GrayPages.isGray(page) );
+  }
+
+  @Test
+  void GrayscalePageIsNotDowngradedAgain()
+  {
+    BufferedImage page = new BufferedImage( 100, 100, BufferedImage.TYPE_BYTE_GRAY );
+    GrayPages grayPages = new GrayPages( true );
+    assertSame( page, grayPages.apply(page) );
+    assertEquals( 0, grayPages.getDowngradedPages() );
+  }
+
+  @Test
+  void TransparentPixelsAreBlendedWithWhite()
+  {
+    BufferedImage page = new BufferedImage( 4, 1, BufferedImage.TYPE_4BYTE_ABGR );
+    page.setRGB( 0, 0, 0x00000000 );
+    page.setRGB( 1, 0, 0xFF000000 );
+    page.setRGB( 2, 0, 0xFF808080 );
+    page.setRGB( 3, 0, 0x80000000 );
+    assertTrue( GrayPages.isGray(page) );
+
+    BufferedImage gray = GrayPages.toGray( page );
+    assertEquals( BufferedImage.TYPE_BYTE_GRAY, gray.getType() );
+    int[] samples = gray.getRaster().getPixels( 0, 0, 4, 1, (int[]) null );
+    assertEquals( 255, samples[0] );
+    assertEquals( 0, samples[1] );
+    assertEquals( 0x80, samples[2] );
+    assertEquals( 127, samples[3] );
+  }
+
+  @Test
+  void DowngradedPageIsWrittenAsPgm() throws IOException
+  {
+    BufferedImage page = grayScan( 400, 600, BufferedImage.TYPE_3BYTE_BGR );
+    GrayPages grayPages = new GrayPages( true );
+    BufferedImage gray = grayPages.apply( page );
+    assertEquals( 1, grayPages.getDowngradedPages() );
+    assertEquals( 400 * 600 * 2, grayPages.getSavedBytes() );
+
+    File pgm = File.createTempFile( "gray", ".pnm" );
+    try
+    {
+      assertEquals( "pgm", Utils.imageToPortableMap(gray, pgm, "test") );
+      byte[] header = new byte[ 2 ];
+      System.arraycopy( Files.readAllBytes(pgm.toPath()), 0, header, 0, 2 );
+      assertEquals( "P5", new String(header, StandardCharsets.US_ASCII) );
+    }
+    finally
+    {
+      pgm.delete();
+    }
+  }
+
+  @Test
+  void DisabledDetectionKeepsColourPages()
+  {
+    BufferedImage page = grayScan( 100, 100, BufferedImage.TYPE_3BYTE_BGR );
+    GrayPages grayPages = new GrayPages( false );
+    assertSame( page, grayPages.apply(page) );
+  }
+
+  /** Gray text lines on white, with small chroma noise of colour JPEG. */
+  private static BufferedImage grayScan( int width, int height, int type )
+  {
+    BufferedImage page = new BufferedImage( width, height, type );
+    Random random = new Random( 39 );
+    for ( int y = 0; y < height; ++y )
+    {
+      for ( int x = 0; x < width; ++x )
+      {
+        int luminance = ( (y / 10) % 3 == 0 && x > 20 && x < width - 20 ) ? 40 : 235;
+        int red = luminance + random.nextInt( 7 ) - 3;
+        int green = luminance + random.nextInt( 7 ) - 3;
+        int blue = luminance + random.nextInt( 7 ) - 3;
+        page.setRGB( x, y, 0xFF000000 | (red << 16) | (green << 8) | blue );
+      }
+    }
+    return page;
+  }
+}
@@ -0,0 +1,47 @@
+import com.epchain.makedjvuplugin.MakeDjvu;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestMakeDjvu
+{
+  @Test
+  void HelpSucceeds()
+  {
+    assertEquals( 0, MakeDjvu.run(new String[] { "--help" }) );
+  }
+
+  @Test
+  void UsageErrorsHaveExitCode2()
+  {
+    assertEquals( 2, MakeDjvu.run(new String[0]) );
+    assertEquals( 2, MakeDjvu.run(new String[] { "--unknown", "book.pdf" }) );
+    assertEquals( 2, MakeDjvu.run(new String[] { "book.pdf", "--out" }) );
+    assertEquals( 2, MakeDjvu.run(new String[] { "--crop", "all", "book.pdf" }) );
+    assertEquals( 2, MakeDjvu.run(new String[] { "--max-processes", "0", "book.pdf" }) );
+  }
+
+  @Test
+  void MissingBookFails() throws IOException
+  {
+    File out = Files.createTempDirectory( "makedjvu-out" ).toFile();
+    String missing = new File( out, "missing" ).getAbsolutePath();
+    assertEquals( 1, MakeDjvu.run(new String[] { "--out", out.getAbsolutePath(), missing }) );
+    assertFalse( new File(out, "missing.djvu").exists() );
+  }
+
+  @Test
+  void ExistingDjvuIsSkipped() throws IOException
+  {
+    File out = Files.createTempDirectory( "makedjvu-out" ).toFile();
+    File djvu = new File( out, "book.djvu" );
+    Files.write( djvu.toPath(), new byte[] { 1 } );
+    File book = Files.createDirectory( out.toPath().resolve("book") ).toFile();
+    assertEquals( 0, MakeDjvu.run(new String[] { "--out", out.getAbsolutePath(), book.getPath() }) );
+    assertEquals( 1, djvu.length() );
+  }
+}
@@ -0,0 +1,168 @@
+import com.epchain.makedjvuplugin.MarginCrop;
+import com.epchain.makedjvuplugin.PageDecoder;
+import com.epchain.makedjvuplugin.PageImage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestMarginCrop
+{
+  @TempDir
+  Path workDir;
+
+  @Test
+  void ContentWithinWhiteMarginsAndBlackEdges()
+  {
+    BufferedImage page = scan( 1000, 1400, new Rectangle(200, 300, 500, 700) );
+    Rectangle bounds = MarginCrop.contentBounds( page );
+    assertEquals( new Rectangle(200, 300, 500, 700), bounds );
+  }
+
+  @Test
+  void BlankPageHasNoContent()
+  {
+    BufferedImage page = scan( 300, 400, null );
+    assertNull( MarginCrop.contentBounds(page) );
+  }
+
+  @Test
+  void CroppedPageIsCompactCopy()
+  {
+    BufferedImage page = scan( 1000, 1400, new Rectangle(200, 300, 500, 700) );
+    BufferedImage cropped = MarginCrop.perPage().apply( page );
+    // Content with 1% padding
+    assertEquals( 500 + 2 * 10, cropped.getWidth() );
+    assertEquals( 700 + 2 * 14, cropped.getHeight() );
+    assertEquals( BufferedImage.TYPE_3BYTE_BGR, cropped.getType() );
+    byte[] data = ( (DataBufferByte) cropped.getRaster().getDataBuffer() ).getData();
+    assertEquals( cropped.getWidth() * cropped.getHeight() * 3, data.length );
+    assertEquals( page.getRGB(210, 314), cropped.getRGB(20, 28) );
+    assertSame( page, MarginCrop.none().apply(page) );
+  }
+
+  @Test
+  void BookBoxHoldsContentOfAllPages() throws IOException
+  {
+    File left = workDir.resolve( "page-1.png" ).toFile();
+    File right = workDir.resolve( "page-2.png" ).toFile();
+    ImageIO.write( scan(1000, 1400, new Rectangle(100, 300, 500, 700)), "png", left );
+    ImageIO.write( scan(1000, 1400, new Rectangle(300, 200, 500, 700)), "png", right );
+
+    MarginCrop crop = MarginCrop.forBook( PageImage.of(Arrays.asList(left, right)), cacheFile(), scanner(PageDecoder.IMAGE_IO, null) );
+    assertEquals( MarginCrop.Mode.BOOK, crop.getMode() );
+    BufferedImage cropped = crop.apply( ImageIO.read(left) );
+    // Union of both pages with subsampling slack and padding
+    assertTrue( cropped.getWidth() >= 700 + 20 && cropped.getWidth() <= 700 + 20 + 8, "Width " + cropped.getWidth() );
+    assertTrue( cropped.getHeight() >= 800 + 28 && cropped.getHeight() <= 800 + 28 + 8, "Height " + cropped.getHeight() );
+  }
+
+  @Test
+  void DecodersFindTheSameBounds() throws IOException
+  {
+    File page = workDir.resolve( "page-1.png" ).toFile();
+    ImageIO.write( scan(1001, 1402, new Rectangle(100, 300, 500, 700)), "png", page );
+    PageDecoder decoder = new PageDecoder()
+    {
+      @Override
+      public String getName()
+      {
+        return "copy";
+      }
+
+      @Override
+      public boolean accepts( PageImage image )
+      {
+        return true;
+      }
+
+      @Override
+      public BufferedImage decode( PageImage image ) throws IOException
+      {
+        return image.decode();
+      }
+    };
+    assertEquals(
+      MarginCrop.scanContentBounds( PageImage.of(page), PageDecoder.IMAGE_IO ),
+      MarginCrop.scanContentBounds( PageImage.of(page), decoder )
+    );
+  }
+
+  @Test
+  void BoundsOfUnchangedPagesAreCached() throws IOException
+  {
+    List<File> pages = new ArrayList<>();
+    for ( int i = 1; i <= 3; ++i )
+    {
+      File page = workDir.resolve( "page-" + i + ".png" ).toFile();
+      ImageIO.write( scan(400, 600, new Rectangle(100, 100, 100 * i, 300)), "png", page );
+      pages.add( page );
+    }
+    AtomicInteger scans = new AtomicInteger();
+    MarginCrop first = MarginCrop.forBook( PageImage.of(pages), cacheFile(), scanner(PageDecoder.IMAGE_IO, scans) );
+    assertEquals( 3, scans.get() );
+
+    // Re-run scans nothing, changed page is scanned alone
+    MarginCrop again = MarginCrop.forBook( PageImage.of(pages), cacheFile(), scanner(PageDecoder.IMAGE_IO, scans) );
+    assertEquals( 3, scans.get() );
+    assertEquals( first.getBox(), again.getBox() );
+    ImageIO.write( scan(400, 600, null), "png", pages.get(2) );
+    MarginCrop changed = MarginCrop.forBook( PageImage.of(pages), cacheFile(), scanner(PageDecoder.IMAGE_IO, scans) );
+    assertEquals( 4, scans.get() );
+    assertTrue( changed.getBox().width < first.getBox().width );
+  }
+
+  private File cacheFile()
+  {
+    return workDir.resolve( MarginCrop.CACHE_NAME ).toFile();
+  }
+
+  /** Scans pages one by one, counting them, if counter is given. */
+  private static MarginCrop.PageScanner scanner( PageDecoder decoder, AtomicInteger scans )
+  {
+    return pages ->
+    {
+      List<Rectangle> bounds = new ArrayList<>();
+      for ( PageImage page : pages ) bounds.add( MarginCrop.scanContentBounds(page, decoder) );
+      if ( scans != null ) scans.addAndGet( pages.size() );
+      return bounds;
+    };
+  }
+
+  /** Scanned page: black scanner edges around white paper, and text lines in content box. */
+  private static BufferedImage scan( int width, int height, Rectangle content )
+  {
+    BufferedImage page = new BufferedImage( width, height, BufferedImage.TYPE_3BYTE_BGR );
+    Graphics2D graphics = page.createGraphics();
+    graphics.setColor( Color.BLACK );
+    graphics.fillRect( 0, 0, width, height );
+    graphics.setColor( Color.WHITE );
+    graphics.fillRect( 30, 20, width - 60, height - 50 );
+    if ( content != null )
+    {
+      graphics.setColor( Color.DARK_GRAY );
+      for ( int y = content.y; y < content.y + content.height; y += 20 )
+      {
+        graphics.fillRect( content.x, y, content.width, Math.min(8, content.y + content.height - y) );
+      }
+      // Last line ends exactly at content bottom
+      graphics.fillRect( content.x, content.y + content.height - 8, content.width / 2, 8 );
+    }
+    graphics.dispose();
+    return page;
+  }
+}
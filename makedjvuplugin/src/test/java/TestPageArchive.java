@@ -0,0 +1,136 @@
+import com.epchain.makedjvuplugin.ConversionJournal;
+import com.epchain.makedjvuplugin.PageArchive;
+import com.epchain.makedjvuplugin.PageImage;
+import com.epchain.makedjvuplugin.Utils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestPageArchive
+{
+  @TempDir
+  Path workDir;
+
+  @Test
+  void PagesAreEntriesInNaturalOrder() throws IOException
+  {
+    File cbz = createArchive( "book.cbz", "scans/page-10.png", "scans/page-2.jpg", "scans/page-1.png", "ComicInfo.xml", "scans/" );
+    try ( PageArchive archive = PageArchive.open(cbz) )
+    {
+      List<String> names = new ArrayList<>();
+      for ( PageImage page : archive.getPages() ) names.add( page.getName() );
+      assertEquals( Arrays.asList("page-1.png", "page-2.jpg", "page-10.png"), names );
+    }
+    assertTrue( Utils.isImageSet(cbz) );
+  }
+
+  @Test
+  void PagesAreDecodedConcurrently() throws Exception
+  {
+    File cbz = createArchive( "book.zip", "page-1.png", "page-2.jpg", "page-3.png", "page-4.jpg" );
+    ExecutorService executor = Executors.newFixedThreadPool( 4 );
+    try ( PageArchive archive = PageArchive.open(cbz) )
+    {
+      List<Future<BufferedImage>> decoded = new ArrayList<>();
+      for ( PageImage page : archive.getPages() ) decoded.add( executor.submit(page::decode) );
+      for ( Future<BufferedImage> page : decoded )
+      {
+        assertEquals( 40, page.get().getWidth() );
+        assertEquals( 30, page.get().getHeight() );
+      }
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+    // Nothing is extracted next to archive
+    assertEquals( 1, workDir.toFile().list().length );
+  }
+
+  @Test
+  void ChecksumMatchesExtractedFile() throws IOException
+  {
+    File cbz = createArchive( "book.cbz", "page-1.png" );
+    File extracted = workDir.resolve( "page-1.png" ).toFile();
+    Files.write( extracted.toPath(), encode("png") );
+    try ( PageArchive archive = PageArchive.open(cbz) )
+    {
+      PageImage page = archive.getPages().get( 0 );
+      assertEquals( ConversionJournal.checksum(extracted), page.checksum() );
+      assertEquals( extracted.length(), page.length() );
+    }
+  }
+
+  @Test
+  void PagesOfDifferentFoldersAreKeptApart() throws IOException
+  {
+    File cbz = createArchive( "book.cbz", "book/ch2/001.jpg", "book/ch1/001.jpg", "book/ch1/002.png" );
+    try ( PageArchive archive = PageArchive.open(cbz) )
+    {
+      List<String> names = new ArrayList<>();
+      for ( PageImage page : archive.getPages() ) names.add( page.getName() );
+      assertEquals( Arrays.asList("ch1_001.jpg", "ch1_002.png", "ch2_001.jpg"), names );
+    }
+  }
+
+  @Test
+  void PagesWithTheSameNameAreRejected() throws IOException
+  {
+    // Both pages would be encoded into page-1.djvu
+    File cbz = createArchive( "book.cbz", "a/page-1.png", "a/page-1.jpg" );
+    IOException e = assertThrows( IOException.class, () -> PageArchive.open(cbz) );
+    assertTrue( e.getMessage().contains("a/page-1.png") );
+  }
+
+  @Test
+  void BrokenArchiveIsReported() throws IOException
+  {
+    File cbz = workDir.resolve( "book.cbz" ).toFile();
+    Files.write( cbz.toPath(), new byte[] { 1, 2, 3 } );
+    assertThrows( IOException.class, () -> PageArchive.open(cbz) );
+    assertFalse( Utils.isImageSet(cbz) );
+  }
+
+  /** Creates archive with given entries. Entries with image names are small images, names ending with '/' are folders. */
+  private File createArchive( String name, String... entries ) throws IOException
+  {
+    File archive = workDir.resolve( name ).toFile();
+    try ( ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive)) )
+    {
+      for ( String entry : entries )
+      {
+        out.putNextEntry( new ZipEntry(entry) );
+        if ( entry.endsWith(".png") ) out.write( encode("png") );
+        else if ( entry.endsWith(".jpg") ) out.write( encode("jpg") );
+        else if ( !entry.endsWith("/") ) out.write( new byte[] { 1 } );
+        out.closeEntry();
+      }
+    }
+    return archive;
+  }
+
+  private static byte[] encode( String format ) throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write( TestPngEncoder.testImage(40, 30, BufferedImage.TYPE_3BYTE_BGR), format, out );
+    return out.toByteArray();
+  }
+}
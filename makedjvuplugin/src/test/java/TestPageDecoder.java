@@ -0,0 +1,204 @@
+import com.epchain.makedjvuplugin.AdaptivePageDecoder;
+import com.epchain.makedjvuplugin.DjpegDecoder;
+import com.epchain.makedjvuplugin.PageArchive;
+import com.epchain.makedjvuplugin.PageDecoder;
+import com.epchain.makedjvuplugin.PageImage;
+import com.epchain.makedjvuplugin.ToolRegistry;
+import com.epchain.makedjvuplugin.Utils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestPageDecoder
+{
+  @TempDir
+  Path workDir;
+
+  @Test
+  void PortableMapsAreReadIntoRaster() throws IOException
+  {
+    for ( int type : new int[] { BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_BYTE_GRAY } )
+    {
+      BufferedImage image = TestPngEncoder.testImage( 37, 21, type );
+      File portableMap = workDir.resolve( "page.pm" ).toFile();
+      assertNotNull( Utils.imageToPortableMap(image, portableMap, "comment") );
+
+      BufferedImage decoded = DjpegDecoder.readPortableMap( new ByteArrayInputStream(Files.readAllBytes(portableMap.toPath())) );
+      assertEquals( type, decoded.getType() );
+      assertSamePixels( image, decoded );
+    }
+  }
+
+  @Test
+  void TruncatedPortableMapIsReported()
+  {
+    byte[] truncated = "P6\n4 4\n255\n123".getBytes( StandardCharsets.US_ASCII );
+    assertThrows( IOException.class, () -> DjpegDecoder.readPortableMap(new ByteArrayInputStream(truncated)) );
+  }
+
+  @Test
+  @DisabledOnOs( OS.WINDOWS )
+  void DjpegDecodesFilesAndArchiveEntries() throws IOException
+  {
+    BufferedImage image = TestPngEncoder.testImage( 40, 30, BufferedImage.TYPE_3BYTE_BGR );
+    File portableMap = workDir.resolve( "page.ppm" ).toFile();
+    Utils.imageToPortableMap( image, portableMap, "djpeg" );
+    // Stub reads whole page from stdin, as djpeg does, and writes prepared PPM
+    DjpegDecoder djpeg = new DjpegDecoder( stub("cat > /dev/null\ncat '" + portableMap.getAbsolutePath() + "'\n") );
+
+    File jpg = workDir.resolve( "page-1.jpg" ).toFile();
+    Files.write( jpg.toPath(), new byte[ 100_000 ] );
+    assertTrue( djpeg.accepts(PageImage.of(jpg)) );
+    assertFalse( djpeg.accepts(PageImage.of(new File("page-1.png"))) );
+    assertSamePixels( image, djpeg.decode(PageImage.of(jpg)) );
+
+    File cbz = workDir.resolve( "book.cbz" ).toFile();
+    try ( ZipOutputStream out = new ZipOutputStream(new FileOutputStream(cbz)) )
+    {
+      out.putNextEntry( new ZipEntry("page-1.jpg") );
+      out.write( new byte[ 200_000 ] );
+      out.closeEntry();
+    }
+    try ( PageArchive archive = PageArchive.open(cbz) )
+    {
+      assertSamePixels( image, djpeg.decode(archive.getPages().get(0)) );
+    }
+  }
+
+  @Test
+  @DisabledOnOs( OS.WINDOWS )
+  void DjpegFailureIsReported() throws IOException
+  {
+    DjpegDecoder djpeg = new DjpegDecoder( stub("echo 'Unsupported color conversion request' >&2\nexit 1\n") );
+    File jpg = workDir.resolve( "page-1.jpg" ).toFile();
+    Files.write( jpg.toPath(), new byte[] { 1 } );
+    IOException e = assertThrows( IOException.class, () -> djpeg.decode(PageImage.of(jpg)) );
+    assertTrue( e.getMessage().contains("Unsupported color conversion request"), e.getMessage() );
+  }
+
+  @Test
+  void FasterDecoderIsChosen() throws IOException
+  {
+    CountingDecoder slow = new CountingDecoder( "slow", 20, false, false );
+    CountingDecoder fast = new CountingDecoder( "fast", 0, true, false );
+    AdaptivePageDecoder decoder = new AdaptivePageDecoder( slow, fast );
+
+    for ( int i = 1; i <= 20; ++i ) decoder.decode( PageImage.of(new File("page-" + i + ".jpg")) );
+    assertSame( fast, decoder.getChosen() );
+    assertEquals( AdaptivePageDecoder.TRIAL_PAGES, slow.jpgPages.get() );
+    assertEquals( 20 - AdaptivePageDecoder.TRIAL_PAGES, fast.jpgPages.get() );
+
+    // Only fallback accepts PNG pages
+    decoder.decode( PageImage.of(new File("page-21.png")) );
+    assertEquals( 1, slow.pngPages.get() );
+    assertTrue( decoder.getSummary().startsWith("Pages decoded with fast"), decoder.getSummary() );
+  }
+
+  @Test
+  void FailedPagesAreDecodedWithFallback() throws IOException
+  {
+    CountingDecoder fallback = new CountingDecoder( "fallback", 5, false, false );
+    CountingDecoder broken = new CountingDecoder( "broken", 0, true, true );
+    AdaptivePageDecoder decoder = new AdaptivePageDecoder( fallback, broken );
+
+    for ( int i = 1; i <= 10; ++i ) assertNotNull( decoder.decode(PageImage.of(new File("page-" + i + ".jpg"))) );
+    assertSame( fallback, decoder.getChosen() );
+    assertEquals( 10, fallback.jpgPages.get() );
+    assertEquals( AdaptivePageDecoder.TRIAL_PAGES, decoder.getFailedPages() );
+  }
+
+  @Test
+  @DisabledOnOs( OS.WINDOWS )
+  void DecoderIsSelectedByToolAvailability() throws IOException
+  {
+    File emptyDir = Files.createDirectories( workDir.resolve("empty") ).toFile();
+    assertSame( PageDecoder.IMAGE_IO, PageDecoder.select(new ToolRegistry(emptyDir.getPath(), Collections.emptyList())) );
+
+    stub( "exit 0\n" );
+    assertTrue( PageDecoder.select(new ToolRegistry(workDir.toString(), Collections.emptyList())) instanceof AdaptivePageDecoder );
+  }
+
+  private String stub( String body ) throws IOException
+  {
+    File script = workDir.resolve( "djpeg" ).toFile();
+    Files.write( script.toPath(), ("#!/bin/sh\n" + body).getBytes(StandardCharsets.US_ASCII) );
+    assertTrue( script.setExecutable(true) );
+    return script.getAbsolutePath();
+  }
+
+  private static void assertSamePixels( BufferedImage expected, BufferedImage actual )
+  {
+    assertEquals( expected.getWidth(), actual.getWidth() );
+    assertEquals( expected.getHeight(), actual.getHeight() );
+    for ( int y = 0; y < expected.getHeight(); ++y )
+    {
+      for ( int x = 0; x < expected.getWidth(); ++x )
+      {
+        assertEquals( expected.getRGB(x, y), actual.getRGB(x, y), "pixel " + x + ", " + y );
+      }
+    }
+  }
+
+  /** Decoder of JPG pages, which returns tiny page after given delay, or fails. */
+  private static final class CountingDecoder implements PageDecoder
+  {
+    private final String name;
+    private final long delayMillis;
+    private final boolean jpgOnly;
+    private final boolean fails;
+    final AtomicInteger jpgPages = new AtomicInteger();
+    final AtomicInteger pngPages = new AtomicInteger();
+
+    CountingDecoder( String name, long delayMillis, boolean jpgOnly, boolean fails )
+    {
+      this.name = name;
+      this.delayMillis = delayMillis;
+      this.jpgOnly = jpgOnly;
+      this.fails = fails;
+    }
+
+    @Override
+    public String getName()
+    {
+      return name;
+    }
+
+    @Override
+    public boolean accepts( PageImage image )
+    {
+      return !jpgOnly || image.getName().endsWith( ".jpg" );
+    }
+
+    @Override
+    public BufferedImage decode( PageImage image ) throws IOException
+    {
+      if ( fails ) throw new IOException( "Failed to decode " + image.getName() );
+      try
+      {
+        Thread.sleep( delayMillis );
+      }
+      catch ( InterruptedException e )
+      {
+        throw new IllegalStateException( e );
+      }
+      ( image.getName().endsWith(".jpg") ? jpgPages : pngPages ).incrementAndGet();
+      return new BufferedImage( 10, 10, BufferedImage.TYPE_BYTE_GRAY );
+    }
+  }
+}
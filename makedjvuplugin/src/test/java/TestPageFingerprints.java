@@ -0,0 +1,104 @@
+import com.epchain.makedjvuplugin.PageFingerprints;
+import org.junit.jupiter.api.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestPageFingerprints
+{
+  @Test
+  void NearBlankPages()
+  {
+    BufferedImage specks = page( 400, 600 );
+    for ( int i = 0; i < 50; ++i ) specks.setRGB( i * 7, i * 11, 0 ); // Dust
+    BufferedImage text = page( 400, 600 );
+    Graphics2D graphics = text.createGraphics();
+    graphics.setColor( Color.BLACK );
+    graphics.fillRect( 40, 40, 320, 10 );
+    graphics.dispose();
+
+    PageFingerprints fingerprints = new PageFingerprints( true );
+    assertTrue( fingerprints.isBlank(PageFingerprints.fingerprint(specks)) );
+    assertFalse( fingerprints.isBlank(PageFingerprints.fingerprint(text)) );
+    assertFalse( new PageFingerprints(false).isBlank(PageFingerprints.fingerprint(specks)), "Detection disabled" );
+  }
+
+  @Test
+  void DuplicatesWaitForOriginal() throws IOException
+  {
+    BufferedImage first = TestPngEncoder.testImage( 50, 70, BufferedImage.TYPE_3BYTE_BGR );
+    BufferedImage same = TestPngEncoder.testImage( 50, 70, BufferedImage.TYPE_3BYTE_BGR );
+    BufferedImage other = TestPngEncoder.testImage( 70, 50, BufferedImage.TYPE_3BYTE_BGR );
+
+    PageFingerprints fingerprints = new PageFingerprints( false );
+    PageFingerprints.Claim original = fingerprints.claim( PageFingerprints.fingerprint(first) );
+    PageFingerprints.Claim duplicate = fingerprints.claim( PageFingerprints.fingerprint(same) );
+    assertTrue( original.isOwner() );
+    assertFalse( duplicate.isOwner() );
+    assertTrue( fingerprints.claim(PageFingerprints.fingerprint(other)).isOwner() );
+
+    File page = new File( "page-1.djvu" );
+    original.completed( page );
+    assertEquals( page, duplicate.awaitOriginal() );
+  }
+
+  @Test
+  void InkOfDecodedPagesMatchesTheirRgbPixels()
+  {
+    int[] types = { BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR };
+    for ( int type : types )
+    {
+      // Bytes of decoded page are counted as they are, copy of other type goes through its RGB pixels
+      BufferedImage page = TestPngEncoder.testImage( 120, 80, type );
+      BufferedImage copy = new BufferedImage( page.getWidth(), page.getHeight(), BufferedImage.TYPE_INT_ARGB );
+      for ( int y = 0; y < page.getHeight(); ++y )
+      {
+        for ( int x = 0; x < page.getWidth(); ++x ) copy.setRGB( x, y, page.getRGB(x, y) );
+      }
+      long ink = PageFingerprints.fingerprint( page ).getInkPixels();
+      assertTrue( ink > 0 && ink < 120 * 80, "Type " + type );
+      assertEquals( PageFingerprints.fingerprint(copy).getInkPixels(), ink, "Type " + type );
+    }
+  }
+
+  @Test
+  void PagesAreNotHashedWithoutDuplicateDetection()
+  {
+    BufferedImage image = page( 10, 10 );
+    PageFingerprints fingerprints = new PageFingerprints( true, false );
+    PageFingerprints.Fingerprint fingerprint = fingerprints.fingerprintFor( image );
+    assertNull( fingerprint.getDigest() );
+    assertTrue( fingerprints.isBlank(fingerprint) );
+    assertTrue( fingerprints.claim(fingerprint).isOwner() );
+    assertTrue( fingerprints.claim(fingerprint).isOwner() );
+
+    assertEquals( -1, new PageFingerprints(false, false).fingerprintFor(image).getInkPixels() );
+    assertNotNull( new PageFingerprints(false).fingerprintFor(image).getDigest() );
+  }
+
+  @Test
+  void FailureOfOriginalFailsDuplicates()
+  {
+    BufferedImage image = page( 10, 10 );
+    PageFingerprints fingerprints = new PageFingerprints( false );
+    PageFingerprints.Claim original = fingerprints.claim( PageFingerprints.fingerprint(image) );
+    PageFingerprints.Claim duplicate = fingerprints.claim( PageFingerprints.fingerprint(image) );
+    original.failed( new IOException("c44 failed") );
+    assertThrows( IOException.class, duplicate::awaitOriginal );
+  }
+
+  private static BufferedImage page( int width, int height )
+  {
+    BufferedImage image = new BufferedImage( width, height, BufferedImage.TYPE_3BYTE_BGR );
+    Graphics2D graphics = image.createGraphics();
+    graphics.setColor( new Color(0xF4F0E8) ); // Paper
+    graphics.fillRect( 0, 0, width, height );
+    graphics.dispose();
+    return image;
+  }
+}
@@ -0,0 +1,95 @@
+import com.epchain.makedjvuplugin.PageManifest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestPageManifest
+{
+  @TempDir
+  Path workDir;
+
+  @Test
+  void PagesAreInNaturalOrder() throws IOException
+  {
+    File imagesDir = createImages( "page-10.png", "page-2.jpg", "page-1.png", "cover.png", "page-002b.png" );
+    assertEquals(
+      Arrays.asList( "cover.png", "page-1.png", "page-2.jpg", "page-002b.png", "page-10.png" ),
+      names( PageManifest.scan(imagesDir) )
+    );
+  }
+
+  @Test
+  void OnlyImagesAreListed() throws IOException
+  {
+    File imagesDir = createImages( "page-1.png", "page-2.JPG", "notes.txt", "page-3.png.tmp" );
+    Files.createDirectory( imagesDir.toPath().resolve("extra.png") );
+    PageManifest manifest = PageManifest.scan( imagesDir );
+    assertEquals( Arrays.asList("page-1.png", "page-2.JPG"), names(manifest) );
+    assertEquals( 1, manifest.getPage("page-1.png").getSize() );
+    assertNull( manifest.getPage("notes.txt") );
+  }
+
+  @Test
+  void CachedListingIsReusedWhileDirIsUnchanged() throws IOException
+  {
+    File imagesDir = createImages( "page-1.png", "page-2.png" );
+    settle( imagesDir, 1 );
+    File cacheFile = PageManifest.cacheFile( workDir.toFile(), "book" );
+
+    PageManifest.load( imagesDir, cacheFile );
+    assertTrue( cacheFile.isFile() );
+    // Removing a page behind the back of the cache, while keeping dir time, shows that listing is not repeated
+    long dirModified = imagesDir.lastModified();
+    Files.delete( imagesDir.toPath().resolve("page-2.png") );
+    assertTrue( imagesDir.setLastModified(dirModified) );
+    assertEquals( Arrays.asList("page-1.png", "page-2.png"), names(PageManifest.load(imagesDir, cacheFile)) );
+  }
+
+  @Test
+  void CacheIsInvalidatedByNewPage() throws IOException
+  {
+    File imagesDir = createImages( "page-1.png", "page-2.png" );
+    settle( imagesDir, 2 );
+    File cacheFile = PageManifest.cacheFile( workDir.toFile(), "book" );
+    PageManifest.load( imagesDir, cacheFile );
+
+    Files.write( imagesDir.toPath().resolve("page-3.png"), new byte[] { 1 } );
+    settle( imagesDir, 1 );
+    assertEquals( Arrays.asList("page-1.png", "page-2.png", "page-3.png"), names(PageManifest.load(imagesDir, cacheFile)) );
+  }
+
+  @Test
+  void MissingDirIsReported()
+  {
+    assertThrows( IOException.class, () -> PageManifest.scan(workDir.resolve("missing").toFile()) );
+  }
+
+  private File createImages( String... names ) throws IOException
+  {
+    File imagesDir = Files.createDirectories( workDir.resolve("images") ).toFile();
+    for ( String name : names ) Files.write( imagesDir.toPath().resolve(name), new byte[] { 1 } );
+    return imagesDir;
+  }
+
+  /** Moves dir time out of racy window, so listing is cached. */
+  private static void settle( File dir, int minutesAgo )
+  {
+    assertTrue( dir.setLastModified(System.currentTimeMillis() - minutesAgo * 60_000L) );
+  }
+
+  private static List<String> names( PageManifest manifest )
+  {
+    List<String> names = new ArrayList<>();
+    for ( File file : manifest.getFiles() ) names.add( file.getName() );
+    return names;
+  }
+}
@@ -0,0 +1,118 @@
+import com.epchain.makedjvuplugin.BookVariant;
+import com.epchain.makedjvuplugin.ConcurrencyBudget;
+import com.epchain.makedjvuplugin.ConversionMetrics;
+import com.epchain.makedjvuplugin.Conversions;
+import com.epchain.makedjvuplugin.GrayPages;
+import com.epchain.makedjvuplugin.MarginCrop;
+import com.epchain.makedjvuplugin.PageConversion;
+import com.epchain.makedjvuplugin.PageFingerprints;
+import com.epchain.makedjvuplugin.PageImage;
+import com.epchain.makedjvuplugin.PageVariant;
+import com.epchain.makedjvuplugin.ScratchSpace;
+import com.epchain.makedjvuplugin.ToolRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestPageVariant
+{
+  @TempDir
+  Path workDir;
+
+  @Test
+  void ScaledPageKeepsType()
+  {
+    PageVariant mobile = new PageVariant( "mobile", 36, 0.3 );
+    BufferedImage page = new BufferedImage( 1000, 600, BufferedImage.TYPE_BYTE_GRAY );
+    BufferedImage scaled = mobile.scale( page );
+    assertEquals( 300, scaled.getWidth() );
+    assertEquals( 180, scaled.getHeight() );
+    assertEquals( BufferedImage.TYPE_BYTE_GRAY, scaled.getType() );
+    assertEquals( 30, mobile.getDpi() );
+
+    PageVariant main = PageVariant.main();
+    assertSame( page, main.scale(page) );
+  }
+
+  @Test
+  void InvalidSettingsAreRejected()
+  {
+    assertThrows( IllegalArgumentException.class, () -> new PageVariant("my phone", 36, 0.5) );
+    assertThrows( IllegalArgumentException.class, () -> new PageVariant("mobile", 10, 0.5) );
+    assertThrows( IllegalArgumentException.class, () -> new PageVariant("mobile", 36, 0) );
+    assertThrows( IllegalArgumentException.class, () -> new PageVariant("mobile", 36, 1.5) );
+
+    BookVariant variant = new BookVariant( "mobile" );
+    variant.setScale( 2 );
+    assertThrows( IllegalArgumentException.class, variant::toPageVariant );
+    variant.setScale( 0.5 );
+    assertEquals( PageVariant.DECIBEL, variant.toPageVariant().getDecibel() );
+  }
+
+  @Test
+  void VariantFilesAreKeptApart()
+  {
+    PageVariant mobile = new PageVariant( "mobile", 36, 0.5 );
+    File djvu = new File( "out", "book.djvu" );
+    assertEquals( new File("out", "book-mobile.djvu"), mobile.getDjvu(djvu) );
+    File page = new File( "work", "page-1.djvu" );
+    assertEquals( new File(new File("work", "variant-mobile"), "page-1.djvu"), mobile.getPage(page) );
+    assertEquals( page, PageVariant.main().getPage(page) );
+  }
+
+  @Test
+  void PageIsDecodedOnceForAllOutputs() throws IOException
+  {
+    File image = workDir.resolve( "page-1.png" ).toFile();
+    // Blank page is written without c44
+    ImageIO.write( TestPngCopy.paleImage(400, 300), "png", image );
+    PageVariant mobile = new PageVariant( "mobile", 36, 0.5 );
+    PageConversion conversion = new PageConversion(
+      MarginCrop.none(), new PageFingerprints(true), new GrayPages(false),
+      Collections.singletonList( mobile )
+    );
+    File djvuPage = workDir.resolve( "page-1.djvu" ).toFile();
+    Files.createDirectories( mobile.getPagesDir(workDir.toFile()).toPath() );
+    ConversionMetrics metrics = new ConversionMetrics();
+
+    Conversions.encodePage(
+      PageImage.of(image), djvuPage, conversion, new ToolRegistry(null, Collections.emptyList()),
+      new ConcurrencyBudget(2, 1, new ScratchSpace(null, 0, 0)), metrics
+    );
+
+    assertArrayEquals( new int[] { 400, 300, 100 }, readInfo(djvuPage) );
+    assertArrayEquals( new int[] { 200, 150, 50 }, readInfo(mobile.getPage(djvuPage)) );
+    File csv = workDir.resolve( "metrics.csv" ).toFile();
+    metrics.writeCsv( csv, "test" );
+    long decodes = Files.readAllLines( csv.toPath(), StandardCharsets.UTF_8 ).stream()
+      .filter( line -> line.startsWith(ConversionMetrics.DECODE + ",") )
+      .count();
+    assertEquals( 1, decodes );
+  }
+
+  /** Returns width, height and resolution of single page DJVU. */
+  private static int[] readInfo( File djvuPage ) throws IOException
+  {
+    try ( DataInputStream in = new DataInputStream(new FileInputStream(djvuPage)) )
+    {
+      in.skipBytes( 24 ); // FORM header and INFO chunk header
+      int width = in.readUnsignedShort();
+      int height = in.readUnsignedShort();
+      in.skipBytes( 2 ); // Version
+      int dpi = in.readUnsignedByte() | ( in.readUnsignedByte() << 8 );
+      return new int[] { width, height, dpi };
+    }
+  }
+}
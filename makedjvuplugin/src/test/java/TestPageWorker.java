@@ -0,0 +1,380 @@
+import com.epchain.makedjvuplugin.ConversionMetrics;
+import com.epchain.makedjvuplugin.GrayPages;
+import com.epchain.makedjvuplugin.MarginCrop;
+import com.epchain.makedjvuplugin.PageArchive;
+import com.epchain.makedjvuplugin.PageConversion;
+import com.epchain.makedjvuplugin.PageFingerprints;
+import com.epchain.makedjvuplugin.PageImage;
+import com.epchain.makedjvuplugin.PageVariant;
+import com.epchain.makedjvuplugin.PageWorker;
+import com.epchain.makedjvuplugin.PageWorkerPool;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestPageWorker
+{
+  private static final String MAGIC = "makedjvu-worker-3";
+
+  @TempDir
+  Path workDir;
+
+  private final List<Process> workers = new ArrayList<>();
+  private final List<ServerSocket> fakeWorkers = new ArrayList<>();
+
+  @AfterEach
+  void stopWorkers() throws IOException
+  {
+    for ( Process worker : workers ) worker.destroyForcibly();
+    for ( ServerSocket fakeWorker : fakeWorkers ) fakeWorker.close();
+  }
+
+  @Test
+  @DisabledOnOs( OS.WINDOWS )
+  void PagesAreEncodedByWorkerJvmsInPlaceOfTheirPages() throws Exception
+  {
+    List<String> addresses = Arrays.asList( startWorker(2), startWorker(2) );
+    PageVariant mobile = new PageVariant( "mobile", 36, 0.5 );
+    PageConversion conversion = conversion( Collections.singletonList(mobile) );
+    Files.createDirectories( mobile.getPagesDir(workDir.toFile()).toPath() );
+    ConversionMetrics metrics = new ConversionMetrics();
+
+    // Pages of different widths show, that every result lands into its own page
+    List<File> images = new ArrayList<>();
+    for ( int i = 0; i < 8; ++i ) images.add( createPage("page-" + i + ".png", 100 + 10 * i) );
+    ExecutorService executor = Executors.newFixedThreadPool( 4 );
+    try ( PageWorkerPool pool = PageWorkerPool.connect(addresses, System.out::println) )
+    {
+      assertEquals( 2, pool.getWorkers() );
+      assertEquals( 4, pool.getSlots() );
+      List<Future<Boolean>> encoded = new ArrayList<>();
+      for ( File image : images )
+      {
+        encoded.add( executor.submit(() -> pool.encode(PageImage.of(image), djvuPage(image), conversion, metrics)) );
+      }
+      for ( Future<Boolean> page : encoded ) assertTrue( page.get() );
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+
+    for ( int i = 0; i < images.size(); ++i )
+    {
+      File djvuPage = djvuPage( images.get(i) );
+      assertEquals( 100 + 10 * i, readWidth(djvuPage) );
+      assertEquals( (100 + 10 * i) / 2, readWidth(mobile.getPage(djvuPage)) );
+    }
+    assertEquals( 8, countStage(metrics, ConversionMetrics.REMOTE_ENCODE) );
+  }
+
+  @Test
+  @DisabledOnOs( OS.WINDOWS )
+  void PageWhichWorkerDoesNotSeeIsSent() throws Exception
+  {
+    File cbz = workDir.resolve( "book.cbz" ).toFile();
+    try ( ZipOutputStream out = new ZipOutputStream(new FileOutputStream(cbz)) )
+    {
+      out.putNextEntry( new ZipEntry("scans/page-1.jpg") );
+      ImageIO.write( TestPngEncoder.testImage(140, 90, BufferedImage.TYPE_3BYTE_BGR), "jpg", out );
+      out.closeEntry();
+    }
+    try ( PageArchive archive = PageArchive.open(cbz);
+          PageWorkerPool pool = PageWorkerPool.connect(Collections.singletonList(startWorker(1)), System.out::println) )
+    {
+      File djvuPage = workDir.resolve( "page-1.djvu" ).toFile();
+      assertTrue( pool.encode(archive.getPages().get(0), djvuPage, conversion(Collections.emptyList()), new ConversionMetrics()) );
+      assertEquals( 140, readWidth(djvuPage) );
+    }
+  }
+
+  @Test
+  @DisabledOnOs( OS.WINDOWS )
+  void PageFileWhichDiffersOnWorkerIsSent() throws Exception
+  {
+    File image = createPage( "page-1.png", 120 );
+    byte[] coordinatorPage = Files.readAllBytes( createPage("page-2.png", 150).toPath() );
+    String[] address = startWorker( 1 ).split( ":(?=[0-9]+$)" );
+    try ( Socket socket = new Socket(address[0], Integer.parseInt(address[1])) )
+    {
+      DataInputStream in = new DataInputStream( socket.getInputStream() );
+      DataOutputStream out = new DataOutputStream( socket.getOutputStream() );
+      out.writeUTF( MAGIC );
+      assertEquals( MAGIC, in.readUTF() );
+      assertEquals( 1, in.readInt() );
+
+      // Job of page with the same path, but other contents on coordinator
+      out.writeByte( 1 );
+      out.writeUTF( "page-1.png" );
+      out.writeUTF( image.getAbsolutePath() );
+      out.writeUTF( coordinatorPage.length + ":0" );
+      out.writeUTF( MarginCrop.Mode.NONE.name() );
+      out.writeBoolean( false );
+      out.writeBoolean( true );
+      out.writeBoolean( false );
+      out.writeInt( PageVariant.DECIBEL );
+      out.writeInt( 0 );
+      out.flush();
+      assertEquals( 2, nextFrame(in) );
+      out.writeLong( coordinatorPage.length );
+      out.write( coordinatorPage );
+      out.flush();
+
+      assertEquals( 4, nextFrame(in) );
+      assertEquals( 1, in.readInt() );
+      byte[] encoded = new byte[ in.readInt() ];
+      in.readFully( encoded );
+      File djvuPage = djvuPage( image );
+      Files.write( djvuPage.toPath(), encoded );
+      assertEquals( 150, readWidth(djvuPage) );
+    }
+  }
+
+  @Test
+  @DisabledOnOs( OS.WINDOWS )
+  void PageOfLostWorkerIsRetriedByAnother() throws Exception
+  {
+    // Hung worker sends no heartbeats, crashed worker drops connection
+    List<String> addresses = Arrays.asList( startFakeWorker(FakeWorker.HANG), startFakeWorker(FakeWorker.CRASH), startWorker(1) );
+    List<String> log = new CopyOnWriteArrayList<>();
+    File image = createPage( "page-1.png", 120 );
+    try ( PageWorkerPool pool = PageWorkerPool.connect(addresses, 1500, log::add) )
+    {
+      assertEquals( 3, pool.getSlots() );
+      assertTrue( pool.encode(PageImage.of(image), djvuPage(image), conversion(Collections.emptyList()), new ConversionMetrics()) );
+      assertEquals( 1, pool.getSlots() );
+    }
+    assertEquals( 120, readWidth(djvuPage(image)) );
+    assertEquals( 2, log.stream().filter(line -> line.contains("lost while encoding page-1.png")).count() );
+  }
+
+  @Test
+  @DisabledOnOs( OS.WINDOWS )
+  void WorkerWithWrongOutputLengthIsLost() throws Exception
+  {
+    List<String> addresses = Arrays.asList( startFakeWorker(FakeWorker.HUGE_RESULT), startWorker(1) );
+    List<String> log = new CopyOnWriteArrayList<>();
+    File image = createPage( "page-1.png", 120 );
+    try ( PageWorkerPool pool = PageWorkerPool.connect(addresses, log::add) )
+    {
+      assertTrue( pool.encode(PageImage.of(image), djvuPage(image), conversion(Collections.emptyList()), new ConversionMetrics()) );
+      assertEquals( 1, pool.getSlots() );
+    }
+    assertEquals( 120, readWidth(djvuPage(image)) );
+    assertTrue( log.stream().anyMatch(line -> line.contains("lost while encoding page-1.png: wrong length of output")), log.toString() );
+  }
+
+  @Test
+  @DisabledOnOs( OS.WINDOWS )
+  void PageWhichCannotBeReadKeepsWorker() throws Exception
+  {
+    File missing = workDir.resolve( "page-1.png" ).toFile();
+    File image = createPage( "page-2.png", 120 );
+    List<String> log = new CopyOnWriteArrayList<>();
+    try ( PageWorkerPool pool = PageWorkerPool.connect(Collections.singletonList(startWorker(1)), log::add) )
+    {
+      assertThrows( FileNotFoundException.class,
+        () -> pool.encode(PageImage.of(missing), djvuPage(missing), conversion(Collections.emptyList()), new ConversionMetrics())
+      );
+      assertEquals( 1, pool.getSlots() );
+      assertTrue( pool.encode(PageImage.of(image), djvuPage(image), conversion(Collections.emptyList()), new ConversionMetrics()) );
+    }
+    assertEquals( Collections.emptyList(), log );
+  }
+
+  @Test
+  @DisabledOnOs( OS.WINDOWS )
+  void PageFailureIsNotRetried() throws Exception
+  {
+    File broken = workDir.resolve( "page-1.png" ).toFile();
+    Files.write( broken.toPath(), new byte[] { 1, 2, 3 } );
+    File image = createPage( "page-2.png", 120 );
+    try ( PageWorkerPool pool = PageWorkerPool.connect(Collections.singletonList(startWorker(1)), System.out::println) )
+    {
+      IOException e = assertThrows( IOException.class,
+        () -> pool.encode(PageImage.of(broken), djvuPage(broken), conversion(Collections.emptyList()), new ConversionMetrics())
+      );
+      assertTrue( e.getMessage().contains("page-1.png"), e.getMessage() );
+      // Worker is still there for other pages
+      assertEquals( 1, pool.getSlots() );
+      assertTrue( pool.encode(PageImage.of(image), djvuPage(image), conversion(Collections.emptyList()), new ConversionMetrics()) );
+    }
+  }
+
+  @Test
+  void PageIsLeftForLocalEncodingWithoutWorkers() throws Exception
+  {
+    int port;
+    try ( ServerSocket unused = new ServerSocket(0) )
+    {
+      port = unused.getLocalPort();
+    }
+    List<String> log = new ArrayList<>();
+    File image = createPage( "page-1.png", 120 );
+    try ( PageWorkerPool pool = PageWorkerPool.connect(Collections.singletonList("localhost:" + port), log::add) )
+    {
+      assertEquals( 0, pool.getSlots() );
+      assertFalse( pool.encode(PageImage.of(image), djvuPage(image), conversion(Collections.emptyList()), new ConversionMetrics()) );
+    }
+    assertEquals( 1, log.size() );
+    assertThrows( IllegalArgumentException.class, () -> PageWorkerPool.connect(Collections.singletonList("localhost:port"), log::add) );
+  }
+
+  /** Starts worker JVM on free port and returns its address. */
+  private String startWorker( int slots ) throws IOException, URISyntaxException
+  {
+    String java = new File( new File(System.getProperty("java.home"), "bin"), "java" ).getPath();
+    File classesDir = new File( PageWorker.class.getProtectionDomain().getCodeSource().getLocation().toURI() );
+    File workerDir = workDir.resolve( "worker-" + workers.size() ).toFile();
+    ProcessBuilder processBuilder = new ProcessBuilder(
+      java, "-cp", classesDir.getPath(), PageWorker.class.getName(), "--port", "0", "--slots", String.valueOf( slots ),
+      "--work", workerDir.getPath()
+    ).redirectErrorStream( true );
+    // Worker looks up c44 in its own PATH
+    processBuilder.environment().putAll( StubTools.environment(StubTools.install(workDir.resolve("bin").toFile(), 0)) );
+    Process worker = processBuilder.start();
+    workers.add( worker );
+
+    BufferedReader out = new BufferedReader( new InputStreamReader(worker.getInputStream(), StandardCharsets.UTF_8) );
+    String line = out.readLine();
+    assertNotNull( line, "Worker exited" );
+    assertTrue( line.startsWith("Page worker listening on "), line );
+    String address = line.substring( "Page worker listening on ".length() ).split( " " )[0];
+    // Worker is not reachable from other machines, unless it is told to
+    assertTrue( InetAddress.getByName(address.substring(0, address.lastIndexOf(':'))).isLoopbackAddress(), line );
+    // Output of worker is drained, so worker never blocks on full pipe
+    Thread drain = new Thread( () ->
+    {
+      try
+      {
+        while ( out.readLine() != null ) { }
+      }
+      catch ( IOException e )
+      {
+        // Worker is stopped
+      }
+    } );
+    drain.setDaemon( true );
+    drain.start();
+    return address;
+  }
+
+  private enum FakeWorker
+  {
+    /** Keeps silent on job */
+    HANG,
+    /** Drops connection on job */
+    CRASH,
+    /** Answers job with output longer than any page */
+    HUGE_RESULT
+  }
+
+  /** Starts worker, which greets coordinator with one slot, but then fails on job. */
+  private String startFakeWorker( FakeWorker fake ) throws IOException
+  {
+    ServerSocket server = new ServerSocket( 0 );
+    fakeWorkers.add( server );
+    Thread thread = new Thread( () ->
+    {
+      try ( Socket socket = server.accept() )
+      {
+        DataInputStream in = new DataInputStream( socket.getInputStream() );
+        DataOutputStream out = new DataOutputStream( socket.getOutputStream() );
+        in.readUTF();
+        out.writeUTF( MAGIC );
+        out.writeInt( 1 );
+        out.flush();
+        in.readByte();
+        if ( fake == FakeWorker.HUGE_RESULT )
+        {
+          out.writeByte( 4 );
+          out.writeInt( 1 );
+          out.writeInt( Integer.MAX_VALUE );
+          out.flush();
+        }
+        if ( fake != FakeWorker.CRASH ) Thread.sleep( 60_000 );
+      }
+      catch ( IOException | InterruptedException e )
+      {
+        // Test is over
+      }
+    } );
+    thread.setDaemon( true );
+    thread.start();
+    return "localhost:" + server.getLocalPort();
+  }
+
+  /** Returns next frame of worker, which is not a heartbeat. */
+  private static byte nextFrame( DataInputStream in ) throws IOException
+  {
+    byte frame;
+    do
+    {
+      frame = in.readByte();
+    }
+    while ( frame == 3 );
+    return frame;
+  }
+
+  private static PageConversion conversion( List<PageVariant> variants )
+  {
+    return new PageConversion( MarginCrop.none(), new PageFingerprints(false), new GrayPages(true), variants );
+  }
+
+  private File createPage( String name, int width ) throws IOException
+  {
+    File page = workDir.resolve( name ).toFile();
+    ImageIO.write( TestPngEncoder.testImage(width, 80, BufferedImage.TYPE_3BYTE_BGR), "png", page );
+    return page;
+  }
+
+  private File djvuPage( File image )
+  {
+    return workDir.resolve( image.getName().replaceAll("\\.[a-z]+$", ".djvu") ).toFile();
+  }
+
+  /** Returns width of portable map, which stub c44 has encoded into single page DJVU. */
+  private static int readWidth( File djvuPage ) throws IOException
+  {
+    String hex = new String( Files.readAllBytes(djvuPage.toPath()), StandardCharsets.US_ASCII ).substring( "AT&TFORM".length() );
+    byte[] head = new byte[ hex.length() / 2 ];
+    for ( int i = 0; i < head.length; ++i ) head[i] = (byte) Integer.parseInt( hex.substring(2 * i, 2 * i + 2), 16 );
+    // Magic, comment, then columns and rows
+    for ( String line : new String(head, StandardCharsets.US_ASCII).split("\n") )
+    {
+      if ( !line.startsWith("P") && !line.startsWith("#") ) return Integer.parseInt( line.split(" ")[0] );
+    }
+    throw new IOException( "No page size in " + djvuPage.getName() );
+  }
+
+  private long countStage( ConversionMetrics metrics, String stage ) throws IOException
+  {
+    File csv = workDir.resolve( "metrics.csv" ).toFile();
+    metrics.writeCsv( csv, "test" );
+    return Files.readAllLines( csv.toPath(), StandardCharsets.UTF_8 ).stream()
+      .filter( line -> line.startsWith(stage + ",") )
+      .count();
+  }
+}
@@ -0,0 +1,48 @@
+import com.epchain.makedjvuplugin.ConversionMetrics;
+import com.epchain.makedjvuplugin.PerformanceReport;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestPerformanceReport
+{
+  @Test
+  void ReportMergesTasks() throws IOException
+  {
+    File reportDir = new File( Files.createTempDirectory("report").toFile(), "book" );
+
+    ConversionMetrics pdfMetrics = new ConversionMetrics();
+    pdfMetrics.record( ConversionMetrics.EPUB_EXTRACT, "book.epub", 2000, 10_000_000 );
+    PerformanceReport.update( reportDir, "book", "pdf-to-images", pdfMetrics );
+
+    ConversionMetrics djvuMetrics = new ConversionMetrics();
+    djvuMetrics.record( ConversionMetrics.DECODE, "page-1.jpg", 10, 1000 );
+    djvuMetrics.record( ConversionMetrics.PNM_WRITE, "page-1.jpg", 5, 3000 );
+    djvuMetrics.record( ConversionMetrics.C44, "page-1.jpg", 100, 500 );
+    djvuMetrics.record( ConversionMetrics.DECODE, "page,2.jpg", 20, 1000 );
+    djvuMetrics.record( ConversionMetrics.C44, "page,2.jpg", 300, 500 );
+    PerformanceReport.update( reportDir, "book", "images-to-djvu", djvuMetrics );
+
+    assertTrue( new File(reportDir, "pdf-to-images.csv").isFile() );
+    assertTrue( new File(reportDir, "images-to-djvu.csv").isFile() );
+    String json = read( new File(reportDir, PerformanceReport.JSON_NAME) );
+    assertTrue( json.contains("\"stage\": \"epub-extract\", \"count\": 1, \"totalMillis\": 2000") );
+    assertTrue( json.contains("\"megabytesPerSecond\": 5.00") );
+    assertTrue( json.contains("\"stage\": \"c44\", \"count\": 2, \"totalMillis\": 400, \"maxMillis\": 300") );
+    assertTrue( json.contains("\"page\": \"page-1.jpg\", \"decodeMillis\": 10, \"pnmWriteMillis\": 5, \"c44Millis\": 100") );
+    assertTrue( json.contains("\"page\": \"page,2.jpg\"") );
+
+    String html = read( new File(reportDir, PerformanceReport.HTML_NAME) );
+    assertTrue( html.indexOf("page,2.jpg") < html.indexOf("page-1.jpg"), "Slowest page goes first" );
+  }
+
+  private static String read( File file ) throws IOException
+  {
+    return new String( Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8 );
+  }
+}
@@ -0,0 +1,157 @@
+import com.epchain.makedjvuplugin.ConcurrencyBudget;
+import com.epchain.makedjvuplugin.ConversionMetrics;
+import com.epchain.makedjvuplugin.Conversions;
+import com.epchain.makedjvuplugin.GrayPages;
+import com.epchain.makedjvuplugin.MarginCrop;
+import com.epchain.makedjvuplugin.PageConversion;
+import com.epchain.makedjvuplugin.PageFingerprints;
+import com.epchain.makedjvuplugin.PageImage;
+import com.epchain.makedjvuplugin.PngCopy;
+import com.epchain.makedjvuplugin.PngWriteParam;
+import com.epchain.makedjvuplugin.ScratchSpace;
+import com.epchain.makedjvuplugin.ToolRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestPngCopy
+{
+  @TempDir
+  Path workDir;
+
+  @Test
+  void JpgIsReplacedWithPixelsOfDecodedPage() throws IOException
+  {
+    File jpg = createPage( "page-1.jpg", "jpg" );
+    BufferedImage expected = ImageIO.read( jpg );
+    File djvuPage = workDir.resolve( "page-1.djvu" ).toFile();
+    ConversionMetrics metrics = new ConversionMetrics();
+
+    // Crop and gray pages change encoded page only, copy keeps the whole colour page
+    PageConversion conversion = new PageConversion(
+      MarginCrop.perPage(), new PageFingerprints(true), new GrayPages(true)
+    ).withPngCopies( new PngWriteParam() );
+    Conversions.encodePage( PageImage.of(jpg), djvuPage, conversion, tools(), budget(), metrics );
+
+    assertTrue( djvuPage.isFile() );
+    assertFalse( jpg.exists() );
+    File png = workDir.resolve( "page-1.png" ).toFile();
+    BufferedImage copy = ImageIO.read( png );
+    assertEquals( expected.getWidth(), copy.getWidth() );
+    assertEquals( expected.getHeight(), copy.getHeight() );
+    for ( int y = 0; y < expected.getHeight(); ++y )
+    {
+      for ( int x = 0; x < expected.getWidth(); ++x ) assertEquals( expected.getRGB(x, y), copy.getRGB(x, y) );
+    }
+    assertFalse( workDir.resolve("page-1.png.tmp").toFile().exists() );
+
+    File csv = workDir.resolve( "metrics.csv" ).toFile();
+    metrics.writeCsv( csv, "test" );
+    assertEquals( 1, countStage(csv, ConversionMetrics.DECODE) );
+    assertEquals( 1, countStage(csv, ConversionMetrics.PNG_WRITE) );
+  }
+
+  @Test
+  void DecodeSlotIsHeldUntilCopyIsWritten() throws Exception
+  {
+    File jpg = createPage( "page-1.jpg", "jpg" );
+    ConcurrencyBudget budget = budget();
+    ConcurrencyBudget.Permit decodeSlot = budget.acquireDecodeSlot();
+    PngCopy copy = PngCopy.start( PageImage.of(jpg), ImageIO.read(jpg), new PngWriteParam(), decodeSlot, new ConversionMetrics() );
+
+    // The only decode slot is free again, when decoded page is no longer needed
+    ConcurrencyBudget.Permit next = budget.acquireDecodeSlot();
+    assertTrue( workDir.resolve("page-1.png.tmp").toFile().isFile() );
+    next.release();
+    copy.commit();
+    assertTrue( copy.getPng().isFile() );
+    assertFalse( jpg.exists() );
+  }
+
+  @Test
+  void PngPageIsKept() throws IOException
+  {
+    File png = createPage( "page-1.png", "png" );
+    long modified = png.lastModified();
+    PageConversion conversion = new PageConversion(
+      MarginCrop.none(), new PageFingerprints(true), new GrayPages(false)
+    ).withPngCopies( new PngWriteParam() );
+    Conversions.encodePage(
+      PageImage.of(png), workDir.resolve("page-1.djvu").toFile(), conversion, tools(), budget(), new ConversionMetrics()
+    );
+
+    assertEquals( modified, png.lastModified() );
+    assertEquals( 2, workDir.toFile().list().length );
+  }
+
+  @Test
+  void JpgOfFailedPageIsKept() throws IOException
+  {
+    File jpg = createPage( "page-1.jpg", "jpg" );
+    // Page can not be written into missing dir
+    File djvuPage = workDir.resolve( "missing" ).resolve( "page-1.djvu" ).toFile();
+    PageConversion conversion = new PageConversion(
+      MarginCrop.none(), new PageFingerprints(true), new GrayPages(false)
+    ).withPngCopies( new PngWriteParam() );
+
+    assertThrows(
+      IOException.class,
+      () -> Conversions.encodePage(PageImage.of(jpg), djvuPage, conversion, tools(), budget(), new ConversionMetrics())
+    );
+    assertTrue( jpg.isFile() );
+    assertEquals( 1, workDir.toFile().list().length );
+  }
+
+  private File createPage( String name, String format ) throws IOException
+  {
+    File page = workDir.resolve( name ).toFile();
+    ImageIO.write( paleImage(120, 90), format, page );
+    return page;
+  }
+
+  /** Colour page without ink, so it is written as blank page without c44. */
+  static BufferedImage paleImage( int width, int height )
+  {
+    BufferedImage image = TestPngEncoder.testImage( width, height, BufferedImage.TYPE_3BYTE_BGR );
+    for ( int y = 0; y < height; ++y )
+    {
+      for ( int x = 0; x < width; ++x )
+      {
+        int rgb = image.getRGB( x, y );
+        int red = 160 + ( (rgb >> 16) & 0xFF ) * 95 / 255;
+        int green = 160 + ( (rgb >> 8) & 0xFF ) * 95 / 255;
+        int blue = 160 + ( rgb & 0xFF ) * 95 / 255;
+        image.setRGB( x, y, (red << 16) | (green << 8) | blue );
+      }
+    }
+    return image;
+  }
+
+  /** Pages of these tests are blank, so no tools are needed. */
+  private static ToolRegistry tools()
+  {
+    return new ToolRegistry( null, Collections.emptyList() );
+  }
+
+  private static ConcurrencyBudget budget()
+  {
+    return new ConcurrencyBudget( 2, 1, new ScratchSpace(null, 0, 0) );
+  }
+
+  private static long countStage( File csv, String stage ) throws IOException
+  {
+    return Files.readAllLines( csv.toPath(), StandardCharsets.UTF_8 ).stream()
+      .filter( line -> line.startsWith(stage + ",") )
+      .count();
+  }
+}
@@ -0,0 +1,171 @@
+import com.epchain.makedjvuplugin.PngEncoder;
+import com.epchain.makedjvuplugin.PngWriteParam;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestPngEncoder
+{
+  @Test
+  void DecodersReadEveryFilterAndType() throws IOException
+  {
+    int[] types = { BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_INT_ARGB };
+    for ( int type : types )
+    {
+      BufferedImage image = testImage( 67, 41, type );
+      for ( PngWriteParam.Filter filter : PngWriteParam.Filter.values() )
+      {
+        for ( int level : new int[] { 0, 1, 9 } )
+        {
+          PngWriteParam param = new PngWriteParam();
+          param.setDeflateLevel( level );
+          param.setFilter( filter );
+
+          BufferedImage decoded = roundTrip( image, param );
+          assertSamePixels( image, decoded, "type " + type + ", " + filter + ", level " + level );
+        }
+      }
+    }
+  }
+
+  @Test
+  void ParallelDeflateIsReadByDecoders() throws IOException
+  {
+    // Large enough for several blocks, and height is not multiple of block rows
+    int[] types = { BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_BYTE_GRAY };
+    for ( int type : types )
+    {
+      BufferedImage image = testImage( 700, 1301, type );
+      for ( PngWriteParam.Filter filter : PngWriteParam.Filter.values() )
+      {
+        for ( int level : new int[] { 0, 1, 6, 9 } )
+        {
+          PngWriteParam param = new PngWriteParam();
+          param.setDeflateLevel( level );
+          param.setFilter( filter );
+          param.setDeflateThreads( 3 );
+
+          BufferedImage decoded = roundTrip( image, param );
+          assertSamePixels( image, decoded, "type " + type + ", " + filter + ", level " + level + ", parallel" );
+        }
+      }
+    }
+  }
+
+  @Test
+  void ParallelDeflateIsValidZlibStream() throws Exception
+  {
+    BufferedImage image = testImage( 500, 900, BufferedImage.TYPE_3BYTE_BGR );
+    PngWriteParam param = new PngWriteParam();
+    param.setDeflateThreads( 4 );
+    ByteArrayOutputStream png = new ByteArrayOutputStream();
+    new PngEncoder( param ).write( image, png );
+
+    // Inflater verifies zlib header and Adler-32 of the whole stream
+    byte[] idat = concatIdat( png.toByteArray() );
+    Inflater inflater = new Inflater();
+    inflater.setInput( idat );
+    byte[] rows = new byte[ 900 * (500 * 3 + 1) ];
+    assertEquals( rows.length, inflater.inflate(rows) );
+    assertTrue( inflater.finished() );
+    inflater.end();
+  }
+
+  @Test
+  void CompressionQualityMapsToDeflateLevel()
+  {
+    PngWriteParam param = new PngWriteParam();
+    assertEquals( 6, param.getDeflateLevel() );
+    param.setDeflateLevel( 1 );
+    assertEquals( ImageWriteParam.MODE_EXPLICIT, param.getCompressionMode() );
+    assertEquals( 1, param.getDeflateLevel() );
+    param.setCompressionQuality( 0.0f );
+    assertEquals( 9, param.getDeflateLevel() );
+    param.setCompressionMode( ImageWriteParam.MODE_DISABLED );
+    assertEquals( 0, param.getDeflateLevel() );
+    assertThrows( IllegalArgumentException.class, () -> param.setDeflateLevel(10) );
+  }
+
+  /** Returns concatenated data of IDAT chunks. */
+  static byte[] concatIdat( byte[] png ) throws IOException
+  {
+    DataInputStream in = new DataInputStream( new ByteArrayInputStream(png) );
+    in.skipBytes( 8 );
+    ByteArrayOutputStream idat = new ByteArrayOutputStream();
+    while ( true )
+    {
+      int length = in.readInt();
+      byte[] type = new byte[ 4 ];
+      in.readFully( type );
+      byte[] data = new byte[ length ];
+      in.readFully( data );
+      in.readInt(); // CRC
+      String name = new String( type, StandardCharsets.US_ASCII );
+      if ( name.equals("IDAT") ) idat.write( data );
+      if ( name.equals("IEND") ) return idat.toByteArray();
+    }
+  }
+
+  static BufferedImage testImage( int width, int height, int type )
+  {
+    BufferedImage image = new BufferedImage( width, height, type );
+    Random random = new Random( 42 );
+    for ( int y = 0; y < height; ++y )
+    {
+      for ( int x = 0; x < width; ++x )
+      {
+        // Gradients with noise, so that every filter wins somewhere
+        int noise = random.nextInt( 16 );
+        int red = ( x * 3 + noise ) & 0xFF;
+        int green = ( y * 5 + noise ) & 0xFF;
+        int blue = ( (x + y) * 2 ) & 0xFF;
+        int alpha = ( type == BufferedImage.TYPE_INT_ARGB ) ? ( x * 7 ) & 0xFF : 0xFF;
+        int argb = ( alpha << 24 ) | ( red << 16 ) | ( green << 8 ) | blue;
+        if ( type == BufferedImage.TYPE_BYTE_GRAY ) image.getRaster().setSample( x, y, 0, red );
+        else image.setRGB( x, y, argb );
+      }
+    }
+    return image;
+  }
+
+  static BufferedImage roundTrip( BufferedImage image, PngWriteParam param ) throws IOException
+  {
+    ByteArrayOutputStream png = new ByteArrayOutputStream();
+    new PngEncoder( param ).write( image, png );
+    BufferedImage decoded = ImageIO.read( new ByteArrayInputStream(png.toByteArray()) );
+    assertNotNull( decoded );
+    return decoded;
+  }
+
+  static void assertSamePixels( BufferedImage expected, BufferedImage actual, String message )
+  {
+    assertEquals( expected.getWidth(), actual.getWidth(), message );
+    assertEquals( expected.getHeight(), actual.getHeight(), message );
+    boolean gray = expected.getType() == BufferedImage.TYPE_BYTE_GRAY;
+    for ( int y = 0; y < expected.getHeight(); ++y )
+    {
+      for ( int x = 0; x < expected.getWidth(); ++x )
+      {
+        if ( gray )
+        {
+          assertEquals( expected.getRaster().getSample(x, y, 0), actual.getRaster().getSample(x, y, 0), message );
+        }
+        else
+        {
+          assertEquals( expected.getRGB(x, y), actual.getRGB(x, y), message );
+        }
+      }
+    }
+  }
+}
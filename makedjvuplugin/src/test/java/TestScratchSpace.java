@@ -0,0 +1,71 @@
+import com.epchain.makedjvuplugin.ScratchSpace;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class TestScratchSpace
+{
+  private static final long MB = 1024 * 1024;
+
+  @Test
+  void ScratchDirUntilBudgetIsUsed() throws Exception
+  {
+    File scratchDir = Files.createTempDirectory( "scratch" ).toFile();
+    File workDir = Files.createTempDirectory( "work" ).toFile();
+    ScratchSpace scratch = new ScratchSpace( scratchDir, 10 * MB, 0 );
+
+    try ( ScratchSpace.Reservation first = scratch.reserve(8 * MB, workDir);
+          ScratchSpace.Reservation second = scratch.reserve(8 * MB, workDir) )
+    {
+      assertEquals( scratchDir, first.getDir() );
+      assertEquals( workDir, second.getDir() );
+    }
+    try ( ScratchSpace.Reservation third = scratch.reserve(8 * MB, workDir) )
+    {
+      assertEquals( scratchDir, third.getDir(), "Released budget is reused" );
+    }
+  }
+
+  @Test
+  void WorkWaitsForFreeSpace() throws Exception
+  {
+    File workDir = Files.createTempDirectory( "work" ).toFile();
+    long keepFree = workDir.getUsableSpace() - 150 * MB;
+    assumeTrue( keepFree > 0, "Not enough free space for test" );
+    ScratchSpace scratch = new ScratchSpace( null, 0, keepFree );
+
+    ScratchSpace.Reservation first = scratch.reserve( 100 * MB, workDir );
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try
+    {
+      Future<File> second = executor.submit( () ->
+      {
+        try ( ScratchSpace.Reservation reservation = scratch.reserve(100 * MB, workDir) )
+        {
+          return reservation.getDir();
+        }
+      } );
+      assertThrows( TimeoutException.class, () -> second.get(300, TimeUnit.MILLISECONDS) );
+      first.close();
+      assertEquals( workDir, second.get(10, TimeUnit.SECONDS) );
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void FailsIfNothingCanFreeSpace() throws IOException
+  {
+    File workDir = Files.createTempDirectory( "work" ).toFile();
+    ScratchSpace scratch = new ScratchSpace( null, 0, Long.MAX_VALUE / 2 );
+    assertThrows( IOException.class, () -> scratch.reserve(MB, workDir) );
+  }
+}
@@ -0,0 +1,130 @@
+import com.epchain.makedjvuplugin.PageImage;
+import com.epchain.makedjvuplugin.PageVariant;
+import com.epchain.makedjvuplugin.SizeBudget;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestSizeBudget
+{
+  @TempDir
+  Path workDir;
+
+  @Test
+  void HighestFittingDecibelIsChosen() throws IOException
+  {
+    // Every page takes 100 bytes per decibel, so 10 pages fit 5% below budget at 38 decibel, not at 40
+    List<PageImage> pages = createPages( 10, 100 );
+    SizeBudget.Choice choice = new SizeBudget( 40_500 ).choose( pages, "settings", cacheFile(), new LinearEncoder() );
+    assertEquals( 38, choice.getDecibel() );
+    assertEquals( 38_000, choice.getEstimatedBytes() );
+    assertTrue( choice.fits() );
+  }
+
+  @Test
+  void DefaultDecibelIsKeptIfBookFits() throws IOException
+  {
+    List<PageImage> pages = createPages( 10, 100 );
+    SizeBudget.Choice choice = new SizeBudget( 1_000_000 ).choose( pages, "settings", cacheFile(), new LinearEncoder() );
+    assertEquals( PageVariant.DECIBEL, choice.getDecibel() );
+  }
+
+  @Test
+  void LowestDecibelIsChosenIfNothingFits() throws IOException
+  {
+    List<PageImage> pages = createPages( 10, 100 );
+    SizeBudget.Choice choice = new SizeBudget( 1000 ).choose( pages, "settings", cacheFile(), new LinearEncoder() );
+    assertEquals( 16, choice.getDecibel() );
+    assertFalse( choice.fits() );
+  }
+
+  @Test
+  void LargeBookIsEstimatedFromSample() throws IOException
+  {
+    List<PageImage> pages = createPages( 100, 100 );
+    LinearEncoder encoder = new LinearEncoder();
+    SizeBudget.Choice choice = new SizeBudget( 405_000 ).choose( pages, "settings", cacheFile(), encoder );
+    assertEquals( 38, choice.getDecibel() );
+    assertEquals( SizeBudget.SAMPLE_PAGES, encoder.distinctPages.size() );
+  }
+
+  @Test
+  void ReRunReusesCachedSizes() throws IOException
+  {
+    List<PageImage> pages = createPages( 10, 100 );
+    SizeBudget budget = new SizeBudget( 40_500 );
+    SizeBudget.Choice first = budget.choose( pages, "settings", cacheFile(), new LinearEncoder() );
+    assertTrue( first.getTrialEncodes() > 0 );
+
+    LinearEncoder encoder = new LinearEncoder();
+    SizeBudget.Choice second = budget.choose( pages, "settings", cacheFile(), encoder );
+    assertEquals( first.getDecibel(), second.getDecibel() );
+    assertEquals( 0, second.getTrialEncodes() );
+    assertEquals( 0, encoder.calls.get() );
+
+    // Only changed page is encoded again
+    byte[] changed = new byte[ 100 ];
+    changed[0] = 7;
+    changed[2] = 1;
+    Files.write( ((PageImage.FilePage) pages.get(3)).getFile().toPath(), changed );
+    SizeBudget.Choice third = budget.choose( pages, "settings", cacheFile(), encoder );
+    assertEquals( 1, encoder.distinctPages.size() );
+    assertTrue( third.getTrialEncodes() > 0 );
+
+    // Sizes of other settings are not reused
+    encoder.distinctPages.clear();
+    budget.choose( pages, "other settings", cacheFile(), encoder );
+    assertEquals( 10, encoder.distinctPages.size() );
+  }
+
+  private File cacheFile()
+  {
+    return workDir.resolve( SizeBudget.CACHE_NAME ).toFile();
+  }
+
+  /** Pages of given size with distinct contents. */
+  private List<PageImage> createPages( int count, int size ) throws IOException
+  {
+    File dir = Files.createDirectories( workDir.resolve("pages") ).toFile();
+    List<PageImage> pages = new ArrayList<>();
+    for ( int i = 0; i < count; ++i )
+    {
+      File page = new File( dir, "page-" + i + ".png" );
+      byte[] content = new byte[ size ];
+      content[0] = (byte) i;
+      content[1] = (byte) ( i >> 8 );
+      Files.write( page.toPath(), content );
+      pages.add( PageImage.of(page) );
+    }
+    return pages;
+  }
+
+  /** Encodes page into size of page file times decibel. */
+  private static final class LinearEncoder implements SizeBudget.TrialEncoder
+  {
+    final AtomicInteger calls = new AtomicInteger();
+    final List<String> distinctPages = new ArrayList<>();
+
+    @Override
+    public long[][] encode( List<PageImage> pages, int[] decibels )
+    {
+      calls.incrementAndGet();
+      long[][] sizes = new long[ decibels.length ][ pages.size() ];
+      for ( int page = 0; page < pages.size(); ++page )
+      {
+        if ( !distinctPages.contains(pages.get(page).getName()) ) distinctPages.add( pages.get(page).getName() );
+        for ( int d = 0; d < decibels.length; ++d ) sizes[d][page] = pages.get( page ).length() * decibels[d];
+      }
+      return sizes;
+    }
+  }
+}
@@ -0,0 +1,90 @@
+import com.epchain.makedjvuplugin.SpoolWatcher;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestSpoolWatcher
+{
+  private static final long SETTLE_MILLIS = 300;
+  private static final long TIMEOUT_MILLIS = 10_000;
+
+  @TempDir
+  Path spool;
+
+  @Test
+  void DroppedBookIsReportedOnceSettled() throws IOException, InterruptedException
+  {
+    try ( SpoolWatcher watcher = new SpoolWatcher(spool, Collections.emptyList(), SETTLE_MILLIS) )
+    {
+      Path book = Files.createDirectories( spool.resolve("book/chapter") );
+      Files.write( book.resolve("page-1.jpg"), new byte[] { 1 } );
+      Files.write( spool.resolve("scan.pdf"), new byte[] { 2 } );
+
+      List<Path> settled = awaitAll( watcher, 2 );
+      assertEquals( spool.toAbsolutePath().resolve("book"), settled.get(0) );
+      assertEquals( spool.toAbsolutePath().resolve("scan.pdf"), settled.get(1) );
+      assertTrue( watcher.awaitSettled(SETTLE_MILLIS * 2).isEmpty() );
+    }
+  }
+
+  @Test
+  void BookBeingCopiedIsNotReported() throws IOException, InterruptedException
+  {
+    try ( SpoolWatcher watcher = new SpoolWatcher(spool, Collections.emptyList(), SETTLE_MILLIS) )
+    {
+      Path book = Files.createDirectories( spool.resolve("book") );
+      long copyEnd = System.nanoTime() + SETTLE_MILLIS * 3 * 1_000_000;
+      for ( int page = 0; System.nanoTime() - copyEnd < 0; ++page )
+      {
+        Files.write( book.resolve("page-" + page + ".png"), new byte[] { 1 } );
+        assertTrue( watcher.awaitSettled(SETTLE_MILLIS / 3).isEmpty() );
+      }
+      assertEquals( Collections.singletonList(book.toAbsolutePath()), awaitAll(watcher, 1) );
+    }
+  }
+
+  @Test
+  void IgnoredDirIsNotReported() throws IOException, InterruptedException
+  {
+    Path out = Files.createDirectories( spool.resolve("out") );
+    try ( SpoolWatcher watcher = new SpoolWatcher(spool, Collections.singletonList(out), SETTLE_MILLIS) )
+    {
+      Files.write( out.resolve("book.djvu"), new byte[] { 1 } );
+      Files.createDirectories( out.resolve("reports") );
+      assertTrue( watcher.awaitSettled(SETTLE_MILLIS * 3).isEmpty() );
+    }
+  }
+
+  @Test
+  void MarkedEntryIsReportedAgain() throws IOException, InterruptedException
+  {
+    try ( SpoolWatcher watcher = new SpoolWatcher(spool, Collections.emptyList(), SETTLE_MILLIS) )
+    {
+      Path pdf = Files.write( spool.resolve("scan.pdf"), new byte[] { 1 } );
+      assertEquals( 1, awaitAll(watcher, 1).size() );
+      watcher.markChanged( pdf );
+      assertEquals( Collections.singletonList(pdf.toAbsolutePath()), awaitAll(watcher, 1) );
+    }
+  }
+
+  private static List<Path> awaitAll( SpoolWatcher watcher, int count ) throws IOException, InterruptedException
+  {
+    long deadline = System.nanoTime() + TIMEOUT_MILLIS * 1_000_000;
+    List<Path> settled = new ArrayList<>();
+    while ( settled.size() < count && System.nanoTime() - deadline < 0 )
+    {
+      settled.addAll( watcher.awaitSettled(TIMEOUT_MILLIS) );
+    }
+    Collections.sort( settled );
+    assertEquals( count, settled.size() );
+    return settled;
+  }
+}
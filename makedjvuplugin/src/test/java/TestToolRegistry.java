@@ -0,0 +1,114 @@
+import com.epchain.makedjvuplugin.ConcurrencyBudget;
+import com.epchain.makedjvuplugin.ConversionMetrics;
+import com.epchain.makedjvuplugin.Conversions;
+import com.epchain.makedjvuplugin.ScratchSpace;
+import com.epchain.makedjvuplugin.ToolRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestToolRegistry
+{
+  @Test
+  void FirstPathEntryWins() throws IOException
+  {
+    File first = Files.createTempDirectory( "first" ).toFile();
+    File second = Files.createTempDirectory( "second" ).toFile();
+    File firstTool = executable( first, "c44" );
+    executable( second, "c44" );
+    File djvm = executable( second, "djvm" );
+
+    ToolRegistry registry = new ToolRegistry(
+      first.getAbsolutePath() + File.pathSeparator + second.getAbsolutePath(), Collections.emptyList()
+    );
+
+    assertEquals( firstTool.getAbsolutePath(), registry.executablePath("c44") );
+    assertEquals( djvm.getAbsolutePath(), registry.executablePath("djvm") );
+    assertTrue( registry.allFound("c44", "djvm") );
+  }
+
+  @Test
+  void MissingAndNonExecutableTools() throws IOException
+  {
+    File dir = Files.createTempDirectory( "tools" ).toFile();
+    File notExecutable = new File( dir, "djvused" );
+    assertTrue( notExecutable.createNewFile() );
+    notExecutable.setExecutable( false );
+
+    ToolRegistry registry = new ToolRegistry( dir.getAbsolutePath(), Collections.emptyList() );
+
+    assertNull( registry.executablePath("ebook-convert") );
+    assertNull( registry.version("ebook-convert", "--version") );
+    if ( !Files.isExecutable(notExecutable.toPath()) ) assertNull( registry.executablePath("djvused") );
+  }
+
+  @Test
+  @DisabledOnOs( OS.WINDOWS )
+  void NamesDifferingInCaseAreDifferentTools() throws IOException
+  {
+    File dir = Files.createTempDirectory( "tools" ).toFile();
+    File lower = executable( dir, "c44" );
+
+    ToolRegistry registry = new ToolRegistry( dir.getAbsolutePath(), Collections.emptyList() );
+    assertEquals( lower.getAbsolutePath(), registry.executablePath("c44") );
+    assertNull( registry.executablePath("C44") );
+
+    ToolRegistry windowsRegistry = new ToolRegistry( dir.getAbsolutePath(), Collections.emptyList(), true );
+    assertEquals( lower.getAbsolutePath(), windowsRegistry.executablePath("C44") );
+  }
+
+  @Test
+  @DisabledOnOs( OS.WINDOWS )
+  void VersionIsProbedForEveryArguments() throws IOException
+  {
+    File dir = Files.createTempDirectory( "tools" ).toFile();
+    File tool = executable( dir, "ebook-convert" );
+    Files.write( tool.toPath(),
+      "#!/bin/sh\nif [ \"$1\" = --version ]; then echo 'ebook-convert 5.1.0'; else echo 'usage 0.9'; fi\n".getBytes(StandardCharsets.UTF_8)
+    );
+
+    ToolRegistry registry = new ToolRegistry( dir.getAbsolutePath(), Collections.emptyList() );
+    assertEquals( "0.9", registry.version("ebook-convert") );
+    assertEquals( "5.1.0", registry.version("ebook-convert", "--version") );
+    assertEquals( "0.9", registry.version("ebook-convert") );
+  }
+
+  @Test
+  @DisabledOnOs( OS.WINDOWS )
+  void ConversionsRunResolvedTools() throws IOException
+  {
+    // Stub tools are outside PATH, so they are only found through registry
+    File binDir = StubTools.install( Files.createTempDirectory("tools").toFile(), 0 );
+    File pagesDir = Files.createTempDirectory( "pages" ).toFile();
+    File page = new File( pagesDir, "page-1.djvu" );
+    Files.write( page.toPath(), "AT&TFORM".getBytes(StandardCharsets.US_ASCII) );
+    File djvu = new File( pagesDir, "book.djvu" );
+    ConcurrencyBudget budget = new ConcurrencyBudget( 1, 1, new ScratchSpace(null, 0, 0) );
+
+    ToolRegistry registry = new ToolRegistry( binDir.getAbsolutePath(), Collections.emptyList() );
+    Conversions.bundlePages( Collections.singletonList(page), djvu, true, registry, budget, new ConversionMetrics(), line -> {} );
+    assertTrue( djvu.isFile() );
+
+    ToolRegistry empty = new ToolRegistry( null, Collections.emptyList() );
+    IOException e = assertThrows( IOException.class, () -> Conversions.bundlePages(
+      Collections.singletonList(page), djvu, true, empty, budget, new ConversionMetrics(), line -> {}
+    ) );
+    assertEquals( "djvm utility not found", e.getMessage() );
+  }
+
+  private static File executable( File dir, String name ) throws IOException
+  {
+    File file = new File( dir, name );
+    assertTrue( file.createNewFile() );
+    assertTrue( file.setExecutable(true) );
+    return file;
+  }
+}